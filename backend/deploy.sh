@@ -8,9 +8,11 @@ docker push gcr.io/jukestack/jukestack-backend
 
 # europe-west3 = Frankfurt
 # europe-west6 = Zürich
+# The Google front end appends the client address to X-Forwarded-For, one trusted proxy hop
 gcloud run deploy jukestack-backend \
   --image gcr.io/jukestack/jukestack-backend \
   --platform managed \
   --region europe-west3 \
   --allow-unauthenticated \
+  --update-env-vars TRUSTED_PROXY_HOPS=1 \
   --update-secrets DB_USER=DB_USER:latest,DB_PASSWORD=DB_PASSWORD:latest,R2_ACCOUNT_ID=R2_ACCOUNT_ID:latest,R2_ACCESS_KEY=R2_ACCESS_KEY:latest,R2_SECRET_KEY=R2_SECRET_KEY:latest,MAIL_PASSWORD=MAIL_PASSWORD:latest
\ No newline at end of file
@@ -0,0 +1,57 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.metrics.MetricsOptions;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.core.spi.metrics.PoolMetrics;
+import io.vertx.core.spi.metrics.VertxMetrics;
+
+/**
+ * Vert.x metrics SPI implementation, installed by {@link JukestackLauncher}.
+ * Only the SQL pools are measured for now.
+ */
+public class AppMetrics implements VertxMetrics, Shareable {
+
+  private static final String MAP_NAME = "jukestack.metrics";
+
+  private final Map<String, DbPoolMetrics> sqlPools = new ConcurrentHashMap<>();
+
+  public static MetricsOptions options() {
+    AppMetrics metrics = new AppMetrics();
+    return new MetricsOptions().setEnabled(true).setFactory(vertxOptions -> metrics);
+  }
+
+  /**
+   * Returns the metrics of the given Vert.x instance or null if it was started
+   * without them, e.g. in tests
+   */
+  public static AppMetrics of(Vertx vertx) {
+    return vertx.sharedData().<String, AppMetrics>getLocalMap(MAP_NAME).get(MAP_NAME);
+  }
+
+  @Override
+  public void vertxCreated(Vertx vertx) {
+    vertx.sharedData().<String, AppMetrics>getLocalMap(MAP_NAME).put(MAP_NAME, this);
+  }
+
+  @Override
+  public PoolMetrics<?> createPoolMetrics(String poolType, String poolName, int maxPoolSize) {
+    if (!"sql".equals(poolType))
+      return null;
+    // Unshared pools of every verticle instance have the same name
+    return sqlPools.computeIfAbsent(poolName, name -> new DbPoolMetrics(name, 0)).join(maxPoolSize);
+  }
+
+  public DbPoolMetrics getSqlPool(String poolName) {
+    return sqlPools.get(poolName);
+  }
+
+  @Override
+  public boolean isMetricsEnabled() {
+    return true;
+  }
+
+}
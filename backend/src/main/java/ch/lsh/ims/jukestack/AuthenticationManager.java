@@ -1,59 +1,103 @@
 package ch.lsh.ims.jukestack;
 
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.time.Duration;
 
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.Cookie;
 import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.Tuple;
 
 public class AuthenticationManager {
 
+  // Reused per thread for hashing session tokens during validation
+  private static final ThreadLocal<byte[]> TOKEN_HASH = ThreadLocal.withInitial(() -> new byte[32]);
+
   private final Pool dbPool;
   private final HashUtils hashUtils;
+  private final KdfExecutor kdfExecutor;
+  private final SessionCache sessionCache;
+  private final ClusterInvalidation invalidation;
 
   private final int SESSION_TOKEN_LENGTH;
   private final Duration SESSION_DURATION;
   public final boolean SECURE_COOKIE;
 
-  public AuthenticationManager(Pool dbPool, HashUtils hashUtils, int sessionTokenLength, Duration sessionDuration,
-      boolean secureCookie) {
+  public AuthenticationManager(Pool dbPool, HashUtils hashUtils, KdfExecutor kdfExecutor, SessionCache sessionCache,
+      ClusterInvalidation invalidation, int sessionTokenLength, Duration sessionDuration, boolean secureCookie) {
     this.dbPool = dbPool;
     this.hashUtils = hashUtils;
+    this.kdfExecutor = kdfExecutor;
+    this.sessionCache = sessionCache;
+    this.invalidation = invalidation;
     this.SESSION_TOKEN_LENGTH = sessionTokenLength;
     this.SESSION_DURATION = sessionDuration;
     this.SECURE_COOKIE = secureCookie;
   }
 
   /**
-   * Hashes a password and returns the salt and hashed password as a String array.
+   * Hashes a password with the current KDF on the hashing worker pool.
    *
    * @param password The password to hash
-   * @return A String array containing the salt and hashed password, in that order
+   * @return A String array containing the salt, hashed password and KDF
+   *         parameters, in that order. Fails with
+   *         {@link KdfExecutor.OverloadedException} if too many hashes are
+   *         queued.
    */
-  public String[] hashPassword(String password) {
+  public Future<String[]> hashPassword(String password) {
     byte[] salt = hashUtils.generateSalt();
-    byte[] hashedPassword = hashUtils.hashPassword(password, salt);
-
-    String saltStr = Util.bytesToHex(salt);
-    String hashedPasswordStr = Util.bytesToHex(hashedPassword);
+    String params = hashUtils.getPasswordKdf().params();
 
-    return new String[] { saltStr, hashedPasswordStr };
+    return kdfExecutor.submit(() -> hashUtils.hashPassword(password, salt))
+        .map(hashedPassword -> new String[] { Util.bytesToHex(salt), Util.bytesToHex(hashedPassword), params });
   }
 
   /**
-   * Verifies a password against a stored hash and salt.
+   * Verifies a password against a stored hash and salt on the hashing worker
+   * pool.
    *
    * @param password The password to verify
    * @param pwHash   The stored password hash
    * @param pwSalt   The stored password salt
+   * @param pwParams The stored KDF parameters, null for legacy hashes
    * @return True if the password is correct, false otherwise
    */
-  public boolean verifyPassword(String password, byte[] pwHash, byte[] pwSalt) {
-    byte[] hashedPassword = hashUtils.hashPassword(password, pwSalt);
-    return hashUtils.timingSafeCompare(hashedPassword, pwHash);
+  public Future<Boolean> verifyPassword(String password, byte[] pwHash, byte[] pwSalt, String pwParams) {
+    return kdfExecutor.submit(() -> hashUtils.hashPassword(password, pwSalt, pwParams))
+        .map(hashedPassword -> hashUtils.timingSafeCompare(hashedPassword, pwHash));
+  }
+
+  /**
+   * Whether a stored hash was created with other parameters than the current
+   * KDF and should be replaced on the next successful login
+   */
+  public boolean needsRehash(String pwParams) {
+    String params = pwParams == null ? PasswordKdf.LEGACY_PARAMS : pwParams;
+    return !params.equals(hashUtils.getPasswordKdf().params());
+  }
+
+  /**
+   * Replaces a stored hash with one of the current KDF after a successful
+   * login. The update only applies if the hash was not changed in between.
+   *
+   * @param benutzerEmail The email of the user
+   * @param password      The verified password
+   * @param oldPWHash     The stored hash the password was verified against
+   */
+  public void rehashPassword(String benutzerEmail, String password, String oldPWHash) {
+    hashPassword(password)
+        .compose(hashData -> dbPool.preparedQuery(
+            "update TBenutzer set benutzerPWHash = ?, benutzerPWSalt = ?, benutzerPWParams = ? where benutzerEmail = ? and benutzerPWHash = ?")
+            .execute(Tuple.of(hashData[1], hashData[0], hashData[2], benutzerEmail, oldPWHash)))
+        .onFailure(err -> System.err.println("Error while rehashing password: " + err.getMessage()));
+  }
+
+  public KdfExecutor getKdfExecutor() {
+    return kdfExecutor;
   }
 
   /**
@@ -75,7 +119,7 @@ public class AuthenticationManager {
 
     dbPool.preparedQuery(
         "insert into TAuthSessions (benutzerEmail, sessToken, sessUserIp, sessUserAgent, sessCreated, sessExpires) values (?, ?, ?, ?, now(), now() + interval ? second)")
-        .execute(Tuple.of(benutzerEmail, Util.bytesToHex(sessionTokenHash), userIP, userAgent,
+        .execute(Tuple.of(benutzerEmail, Buffer.buffer(sessionTokenHash), userIP, userAgent,
             SESSION_DURATION.getSeconds()))
         .onSuccess(res -> {
           promise.complete(Util.bytesToHex(sessionToken));
@@ -92,32 +136,84 @@ public class AuthenticationManager {
    * Validates a session token
    *
    * @param sessionCookie The session token cookie
-   * @return The users email if the session is valid, or an error message
+   * @return The user of the session with profile and admin flag if the session
+   *         is valid, or an error message
    */
-  public Future<String> validateSession(Cookie sessionCookie, boolean checkEmailVerified) {
-    Promise<String> promise = Promise.promise();
+  public Future<SessionUser> validateSession(Cookie sessionCookie, boolean checkEmailVerified) {
+    Promise<SessionUser> promise = Promise.promise();
 
     if (sessionCookie == null || sessionCookie.getValue() == null) {
       promise.fail("No session cookie provided");
       return promise.future();
     }
 
-    String sessionToken = sessionCookie.getValue();
-    byte[] hashedSessionToken = hashUtils.hashSessionToken(Util.hexToBytes(sessionToken));
+    String tokenKey = sessionKey(sessionCookie.getValue());
+    if (tokenKey == null) {
+      promise.fail("Invalid session token");
+      return promise.future();
+    }
 
-    dbPool.preparedQuery(
-        "select benutzerEmail, benutzerEmailVerifiziert from TAuthSessions natural join TBenutzer where sessToken = ? and sessExpires > now() limit 1")
-        .execute(Tuple.of(Util.bytesToHex(hashedSessionToken)))
-        .onSuccess(res -> {
-          if (res.size() == 0) {
+    sessionCache.get(tokenKey, this::loadSession)
+        .onSuccess(session -> {
+          if (!session.isValid()) {
             promise.fail("Invalid or expired session token");
             return;
           }
-          if (checkEmailVerified && !res.iterator().next().getBoolean("benutzerEmailVerifiziert")) {
+          if (checkEmailVerified && !session.getUser().isEmailVerified()) {
             promise.fail("Email not verified");
             return;
           }
-          promise.complete(res.iterator().next().getString("benutzerEmail"));
+          promise.complete(session.getUser());
+        })
+        .onFailure(promise::fail);
+
+    return promise.future();
+  }
+
+  /**
+   * Hashes a hex session token from a cookie into the session cache key, a
+   * string holding the 32 raw hash bytes. Only the key itself is allocated.
+   *
+   * @return The key, or null if the token is malformed
+   */
+  private String sessionKey(String sessionToken) {
+    byte[] hash = TOKEN_HASH.get();
+    if (!hashUtils.hashSessionToken(sessionToken, SESSION_TOKEN_LENGTH, hash))
+      return null;
+    return new String(hash, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * The hash bytes of a session cache key, as stored in sessToken
+   */
+  private static Buffer sessToken(String tokenKey) {
+    return Buffer.buffer(tokenKey.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * Loads a session from the database, used by the session cache on a miss
+   *
+   * @param tokenKey The session cache key of the token, see
+   *                 {@link #sessionKey(String)}
+   * @return The session, or an invalid session if the token is unknown or
+   *         expired
+   */
+  private Future<SessionCache.CachedSession> loadSession(String tokenKey) {
+    Promise<SessionCache.CachedSession> promise = Promise.promise();
+
+    dbPool.preparedQuery(
+        "select benutzerEmail, benutzerNachname, benutzerVorname, benutzerIstAdmin, benutzerEmailVerifiziert, timestampdiff(second, now(), sessExpires) sessRemaining from TAuthSessions natural join TBenutzer where sessToken = ? and sessExpires > now() limit 1")
+        .execute(Tuple.of(sessToken(tokenKey)))
+        .onSuccess(res -> {
+          if (res.size() == 0) {
+            promise.complete(sessionCache.invalid());
+            return;
+          }
+          Row row = res.iterator().next();
+          SessionUser user = new SessionUser(row.getString("benutzerEmail"), row.getString("benutzerNachname"),
+              row.getString("benutzerVorname"), row.getBoolean("benutzerIstAdmin"),
+              row.getBoolean("benutzerEmailVerifiziert"));
+          promise.complete(sessionCache.valid(user, row.getLong("sessRemaining")));
         })
         .onFailure(err -> {
           System.err.println("Error while validating session: " + err.getMessage());
@@ -127,6 +223,21 @@ public class AuthenticationManager {
     return promise.future();
   }
 
+  /**
+   * Drops all cached sessions of a user on every node so the next request sees
+   * fresh user data
+   *
+   * @param benutzerEmail The email of the user
+   */
+  public void invalidateUserSessions(String benutzerEmail) {
+    sessionCache.invalidateEmail(benutzerEmail);
+    invalidation.broadcast(ClusterInvalidation.Kind.USER, benutzerEmail);
+  }
+
+  public SessionCache getSessionCache() {
+    return sessionCache;
+  }
+
   /**
    * Generates a new email verification token
    *
@@ -176,6 +287,7 @@ public class AuthenticationManager {
                   promise.complete(false);
                   return;
                 }
+                invalidateUserSessions(benutzerEmail);
                 promise.complete(true);
               })
               .onFailure(err -> {
@@ -191,13 +303,29 @@ public class AuthenticationManager {
     return promise.future();
   }
 
-  public void invalidateSession(Cookie sessionCookie) {
-    String sessionToken = sessionCookie.getValue();
-    byte[] hashedSessionToken = hashUtils.hashSessionToken(Util.hexToBytes(sessionToken));
-
-    dbPool.preparedQuery("update TAuthSessions set sessExpires = now() - interval 1 second where sessToken = ?")
-        .execute(Tuple.of(Util.bytesToHex(hashedSessionToken)))
-        .onFailure(err -> System.err.println("Error while invalidating session: " + err.getMessage()));
+  /**
+   * Expires a session and removes it from the cache
+   *
+   * @return Completes once the expiry is stored
+   */
+  public Future<Void> invalidateSession(Cookie sessionCookie) {
+    if (sessionCookie == null || sessionCookie.getValue() == null)
+      return Future.succeededFuture();
+    String tokenKey = sessionKey(sessionCookie.getValue());
+    if (tokenKey == null)
+      return Future.succeededFuture();
+    sessionCache.invalidate(tokenKey);
+
+    return dbPool.preparedQuery("update TAuthSessions set sessExpires = now() - interval 1 second where sessToken = ?")
+        .execute(Tuple.of(sessToken(tokenKey)))
+        .onSuccess(res -> {
+          // A validation before the commit may have loaded and cached the still valid row
+          sessionCache.invalidate(tokenKey);
+          // Only once expired, otherwise another node could load the session again
+          invalidation.broadcast(ClusterInvalidation.Kind.SESSION, tokenKey);
+        })
+        .onFailure(err -> System.err.println("Error while invalidating session: " + err.getMessage()))
+        .mapEmpty();
   }
 
 }
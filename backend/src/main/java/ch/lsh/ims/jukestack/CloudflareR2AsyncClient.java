@@ -0,0 +1,120 @@
+package ch.lsh.ims.jukestack;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+
+import ch.lsh.ims.jukestack.CloudflareR2Client.S3Config;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.Bucket;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Non-blocking client for Cloudflare R2 Storage. All operations return Vert.x
+ * futures that complete on the context of the caller, so they can be used
+ * from an event loop. The number of concurrent requests is bounded by the
+ * connection pool of the underlying Netty client.
+ */
+public class CloudflareR2AsyncClient {
+    private final Vertx vertx;
+    private final S3AsyncClient s3Client;
+
+    /**
+     * @param maxConcurrency     Maximum number of requests in flight
+     * @param maxPendingRequests Maximum number of requests waiting for a
+     *                           connection, further requests fail
+     */
+    public CloudflareR2AsyncClient(Vertx vertx, S3Config config, int maxConcurrency, int maxPendingRequests) {
+        this.vertx = vertx;
+        this.s3Client = buildS3AsyncClient(config, maxConcurrency, maxPendingRequests);
+    }
+
+    /**
+     * Builds and configures the async S3 client with R2-specific settings
+     */
+    private static S3AsyncClient buildS3AsyncClient(S3Config config, int maxConcurrency, int maxPendingRequests) {
+        AwsBasicCredentials credentials = AwsBasicCredentials.create(
+                config.getAccessKey(),
+                config.getSecretKey());
+
+        return S3AsyncClient.builder()
+                .endpointOverride(URI.create(config.getEndpoint()))
+                .credentialsProvider(StaticCredentialsProvider.create(credentials))
+                .region(Region.of("auto"))
+                .serviceConfiguration(S3Configuration.builder()
+                        .pathStyleAccessEnabled(true)
+                        .build())
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrency)
+                        .maxPendingConnectionAcquires(maxPendingRequests)
+                        .connectionTimeout(Duration.ofSeconds(5))
+                        .readTimeout(Duration.ofSeconds(30)))
+                .build();
+    }
+
+    /**
+     * Lists all buckets in the R2 storage
+     */
+    public Future<List<Bucket>> listBuckets() {
+        return Future.fromCompletionStage(s3Client.listBuckets(), vertx.getOrCreateContext())
+                .map(response -> response.buckets());
+    }
+
+    /**
+     * Streams all objects in the specified bucket, following the pagination of
+     * the listing. Pages are only requested as fast as the stream is consumed.
+     *
+     * @param prefix Only objects starting with the prefix, null for all
+     */
+    public ReadStream<S3Object> listObjects(String bucketName, String prefix) {
+        Context context = vertx.getOrCreateContext();
+        return new S3ObjectStream(context, continuationToken -> s3Client.listObjectsV2(builder -> builder
+                .bucket(bucketName)
+                .prefix(prefix)
+                .continuationToken(continuationToken)));
+    }
+
+    public Future<HeadObjectResponse> headObject(String bucketName, String objectKey) {
+        return Future.fromCompletionStage(
+                s3Client.headObject(builder -> builder.bucket(bucketName).key(objectKey)),
+                vertx.getOrCreateContext());
+    }
+
+    /**
+     * Downloads an object into memory, only meant for small objects like covers
+     */
+    public Future<Buffer> getObject(String bucketName, String objectKey) {
+        return Future.fromCompletionStage(
+                s3Client.getObject(builder -> builder.bucket(bucketName).key(objectKey),
+                        AsyncResponseTransformer.toBytes()),
+                vertx.getOrCreateContext())
+                .map(bytes -> Buffer.buffer(bytes.asByteArrayUnsafe()));
+    }
+
+    public Future<PutObjectResponse> putObject(String bucketName, String objectKey, Buffer content,
+            String contentType) {
+        return Future.fromCompletionStage(
+                s3Client.putObject(builder -> builder.bucket(bucketName).key(objectKey).contentType(contentType),
+                        AsyncRequestBody.fromBytes(content.getBytes())),
+                vertx.getOrCreateContext());
+    }
+
+    public void close() {
+        s3Client.close();
+    }
+
+}
@@ -2,6 +2,7 @@ package ch.lsh.ims.jukestack;
 
 import java.net.URI;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
@@ -16,7 +17,6 @@ import software.amazon.awssdk.services.s3.model.S3Object;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
-import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
 import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
 
 // See: https://developers.cloudflare.com/r2/examples/aws/aws-sdk-java/
@@ -27,13 +27,25 @@ import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignReques
 public class CloudflareR2Client {
     private final S3Client s3Client;
     private final S3Presigner presigner;
+    private final PresignCache presignCache;
+    private final Histogram presignDuration = new Histogram(0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+            0.025, 0.05);
 
     /**
      * Creates a new CloudflareR2Client with the provided configuration
      */
     public CloudflareR2Client(S3Config config) {
+        this(config, new PresignCache(10_000, Duration.ofMinutes(5)));
+    }
+
+    /**
+     * Creates a new CloudflareR2Client that reuses download URLs from the given
+     * cache
+     */
+    public CloudflareR2Client(S3Config config, PresignCache presignCache) {
         this.s3Client = buildS3Client(config);
         this.presigner = buildS3Presigner(config);
+        this.presignCache = presignCache;
     }
 
     /**
@@ -83,13 +95,24 @@ public class CloudflareR2Client {
                 .build();
     }
 
+    /**
+     * Returns a presigned download URL, a cached one is reused as long as it
+     * has enough validity left
+     */
     public String generatePresignedDownloadUrl(String bucketName, String objectKey, Duration expiration) {
+        return presignCache.get(bucketName, objectKey, expiration,
+                () -> presignDownloadUrl(bucketName, objectKey, expiration));
+    }
+
+    private String presignDownloadUrl(String bucketName, String objectKey, Duration expiration) {
         GetObjectPresignRequest presignRequest = GetObjectPresignRequest.builder()
                 .signatureDuration(expiration)
                 .getObjectRequest(builder -> builder.bucket(bucketName).key(objectKey).build())
                 .build();
 
+        long start = System.nanoTime();
         PresignedGetObjectRequest presignedRequest = presigner.presignGetObject(presignRequest);
+        presignDuration.record(System.nanoTime() - start);
         return presignedRequest.url().toString();
     }
 
@@ -102,8 +125,23 @@ public class CloudflareR2Client {
                         .build())
                 .build();
 
-        PresignedPutObjectRequest presignedRequest = presigner.presignPutObject(presignRequest);
-        return presignedRequest.url().toString();
+        return presignCache.sign(() -> {
+            long start = System.nanoTime();
+            String url = presigner.presignPutObject(presignRequest).url().toString();
+            presignDuration.record(System.nanoTime() - start);
+            return url;
+        });
+    }
+
+    public PresignCache getPresignCache() {
+        return presignCache;
+    }
+
+    /**
+     * Time to sign a URL, cache hits are not signed
+     */
+    public Histogram getPresignDuration() {
+        return presignDuration;
     }
 
     /**
@@ -127,7 +165,8 @@ public class CloudflareR2Client {
     }
 
     /**
-     * Lists all buckets in the R2 storage
+     * Lists all buckets in the R2 storage. Blocks, use
+     * {@link CloudflareR2AsyncClient} on an event loop.
      */
     public List<Bucket> listBuckets() {
         try {
@@ -138,7 +177,8 @@ public class CloudflareR2Client {
     }
 
     /**
-     * Lists all objects in the specified bucket
+     * Lists all objects in the specified bucket, following the pagination.
+     * Blocks, use {@link CloudflareR2AsyncClient#listObjects} on an event loop.
      */
     public List<S3Object> listObjects(String bucketName) {
         try {
@@ -146,7 +186,9 @@ public class CloudflareR2Client {
                     .bucket(bucketName)
                     .build();
 
-            return s3Client.listObjectsV2(request).contents();
+            List<S3Object> objects = new ArrayList<>();
+            s3Client.listObjectsV2Paginator(request).contents().forEach(objects::add);
+            return objects;
         } catch (S3Exception e) {
             throw new RuntimeException("Failed to list objects in bucket " + bucketName + ": " + e.getMessage(), e);
         }
@@ -0,0 +1,313 @@
+package ch.lsh.ims.jukestack;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Invalidations sent to the other backend nodes over UDP, so their caches do
+ * not keep a session, a lending or a setting that changed on this node. The
+ * peers are a static list of host:port. Every message carries the random ID
+ * of the sending process and its sequence number, receivers drop the ones
+ * they have already seen. Each message is sent twice, a lost datagram only
+ * delays the invalidation until the cache entry expires on its own. Messages
+ * are signed with a shared secret and carry the time they were sent, unsigned,
+ * forged and old ones are dropped before anything is invalidated.
+ */
+public class ClusterInvalidation {
+
+  public enum Kind {
+    /** A session token hash, see {@link SessionCache#invalidate(String)} */
+    SESSION,
+    /** All sessions of a user email, see {@link SessionCache#invalidateEmail(String)} */
+    USER,
+    /** A songId whose lending changed, bumps the catalog version */
+    SONG,
+    /** A config key */
+    CONFIG
+  }
+
+  private static final byte VERSION = 2;
+  private static final int HEADER_BYTES = 1 + 8 + 8 + 8 + 1 + 2;
+  private static final int MAC_BYTES = 16;
+  private static final int MAX_KEY_BYTES = 1024;
+  private static final long RESEND_MILLIS = 200;
+  /**
+   * Older messages are dropped, so a captured one can not be replayed later
+   */
+  private static final long MAX_AGE_MILLIS = 30_000;
+  /**
+   * Sequence numbers remembered per node, older ones count as seen
+   */
+  private static final int WINDOW = 64;
+  private static final int MAX_NODES = 1024;
+
+  private record Peer(String host, int port) {
+  }
+
+  /**
+   * Seen sequence numbers of a node, bit i of the mask is highest - i
+   */
+  private static final class Window {
+    long highest;
+    long mask;
+
+    boolean accept(long seq) {
+      if (seq > highest) {
+        long shift = seq - highest;
+        mask = shift >= WINDOW ? 1 : (mask << shift) | 1;
+        highest = seq;
+        return true;
+      }
+      long age = highest - seq;
+      if (age >= WINDOW || (mask & (1L << age)) != 0)
+        return false;
+      mask |= 1L << age;
+      return true;
+    }
+  }
+
+  private final Vertx vertx;
+  private final String host;
+  private final int port;
+  private final List<Peer> peers;
+  private final byte[] secret;
+  private final long nodeId = new SecureRandom().nextLong();
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<Kind, List<Consumer<String>>> listeners = new EnumMap<>(Kind.class);
+
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final Promise<Void> listening = Promise.promise();
+  private volatile DatagramSocket socket;
+  /**
+   * Only touched on the socket's context
+   */
+  private final Map<Long, Window> windows = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+      return size() > MAX_NODES;
+    }
+  };
+
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * @param host   Address to listen on, one only the other nodes reach
+   * @param port   UDP port to listen on
+   * @param peers  The other nodes as host:port, this node may be listed too
+   * @param secret Key of the message signatures, required with peers
+   */
+  public ClusterInvalidation(Vertx vertx, String host, int port, List<String> peers, String secret) {
+    if (!peers.isEmpty() && (secret == null || secret.isEmpty()))
+      throw new IllegalArgumentException("Invalidation peers are configured without a secret");
+    this.vertx = vertx;
+    this.host = host;
+    this.port = port;
+    this.peers = new ArrayList<>();
+    for (String peer : peers) {
+      int colon = peer.lastIndexOf(':');
+      if (colon <= 0)
+        throw new IllegalArgumentException("Invalid peer, expected host:port: " + peer);
+      this.peers.add(new Peer(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+    }
+    this.secret = peers.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+    for (Kind kind : Kind.values())
+      listeners.put(kind, new ArrayList<>());
+  }
+
+  /**
+   * Splits a comma separated peer list, blank entries are ignored
+   */
+  public static List<String> parsePeers(String peers) {
+    List<String> list = new ArrayList<>();
+    if (peers == null)
+      return list;
+    for (String peer : peers.split(",")) {
+      if (!peer.isBlank())
+        list.add(peer.strip());
+    }
+    return list;
+  }
+
+  /**
+   * The first site-local IPv4 address of the machine, e.g. the container's
+   * address in the private network, the loopback address if there is none
+   */
+  public static String privateAddress() {
+    try {
+      for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+        if (!networkInterface.isUp() || networkInterface.isLoopback())
+          continue;
+        for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+          if (address instanceof Inet4Address && address.isSiteLocalAddress())
+            return address.getHostAddress();
+        }
+      }
+    } catch (SocketException e) {
+      System.err.println("Error while looking up the private address: " + e.getMessage());
+    }
+    return InetAddress.getLoopbackAddress().getHostAddress();
+  }
+
+  public boolean isEnabled() {
+    return !peers.isEmpty();
+  }
+
+  /**
+   * Registers what to do when another node invalidates a key of the kind,
+   * register all listeners before {@link #start()}
+   */
+  public void on(Kind kind, Consumer<String> listener) {
+    listeners.get(kind).add(listener);
+  }
+
+  /**
+   * Binds the socket on the caller's context, further calls do nothing. A
+   * failed bind is logged and the node keeps running without the peers.
+   */
+  public Future<Void> start() {
+    if (!isEnabled())
+      return Future.succeededFuture();
+    if (!started.compareAndSet(false, true))
+      return listening.future();
+    DatagramSocket candidate = vertx.createDatagramSocket(new DatagramSocketOptions());
+    candidate.handler(this::receive);
+    candidate.listen(port, host)
+        .onSuccess(bound -> {
+          socket = bound;
+          listening.complete();
+        })
+        .onFailure(err -> {
+          System.err.println("Error while binding the invalidation port " + host + ":" + port + ": "
+              + err.getMessage());
+          listening.fail(err);
+        });
+    return listening.future();
+  }
+
+  /**
+   * Sends the invalidation to the peers, the local caches are the caller's
+   * business
+   */
+  public void broadcast(Kind kind, String key) {
+    if (!isEnabled())
+      return;
+    DatagramSocket current = socket;
+    if (current == null) {
+      dropped.increment();
+      return;
+    }
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > MAX_KEY_BYTES) {
+      dropped.increment();
+      return;
+    }
+    Buffer message = Buffer.buffer(HEADER_BYTES + keyBytes.length + MAC_BYTES)
+        .appendByte(VERSION)
+        .appendLong(nodeId)
+        .appendLong(sequence.incrementAndGet())
+        .appendLong(System.currentTimeMillis())
+        .appendByte((byte) kind.ordinal())
+        .appendShort((short) keyBytes.length)
+        .appendBytes(keyBytes);
+    message.appendBytes(sign(message.getBytes()));
+    sent.increment();
+    send(current, message);
+    // The same sequence number, receivers that got the first one ignore it
+    vertx.setTimer(RESEND_MILLIS, id -> send(current, message));
+  }
+
+  private void send(DatagramSocket current, Buffer message) {
+    for (Peer peer : peers)
+      current.send(message, peer.port(), peer.host()).onFailure(err -> dropped.increment());
+  }
+
+  private void receive(DatagramPacket packet) {
+    Buffer data = packet.data();
+    int length = data.length() - MAC_BYTES;
+    if (length < HEADER_BYTES || data.getByte(0) != VERSION
+        || HEADER_BYTES + data.getUnsignedShort(HEADER_BYTES - 2) != length
+        || data.getUnsignedByte(HEADER_BYTES - 3) >= Kind.values().length) {
+      rejected.increment();
+      return;
+    }
+    // Checked before any work is done for the message
+    if (!MessageDigest.isEqual(sign(data.getBytes(0, length)), data.getBytes(length, data.length()))
+        || Math.abs(System.currentTimeMillis() - data.getLong(17)) > MAX_AGE_MILLIS) {
+      rejected.increment();
+      return;
+    }
+    long sender = data.getLong(1);
+    if (sender == nodeId)
+      return;
+    if (!windows.computeIfAbsent(sender, id -> new Window()).accept(data.getLong(9))) {
+      duplicates.increment();
+      return;
+    }
+    received.increment();
+
+    Kind kind = Kind.values()[data.getUnsignedByte(HEADER_BYTES - 3)];
+    String key = data.getString(HEADER_BYTES, length, StandardCharsets.UTF_8.name());
+    for (Consumer<String> listener : listeners.get(kind)) {
+      try {
+        listener.accept(key);
+      } catch (RuntimeException e) {
+        System.err.println("Error while applying a " + kind + " invalidation: " + e.getMessage());
+      }
+    }
+  }
+
+  private byte[] sign(byte[] message) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+      return Arrays.copyOf(mac.doFinal(message), MAC_BYTES);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+        .put("enabled", isEnabled())
+        .put("listening", socket != null)
+        .put("peers", peers.size())
+        .put("sent", sent.sum())
+        .put("dropped", dropped.sum())
+        .put("received", received.sum())
+        .put("duplicates", duplicates.sum())
+        .put("rejected", rejected.sum());
+  }
+}
@@ -0,0 +1,186 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.mysqlclient.MySQLConnectOptions;
+import io.vertx.mysqlclient.MySQLConnection;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
+
+/**
+ * Tuning of the MySQL connection pool. Every value is looked up in the
+ * environment first, then in the TConfigs table and falls back to a default,
+ * so a node can be tuned without a rebuild.
+ */
+public class DbPoolConfig {
+
+  public static final String POOL_NAME = "jukestack-db";
+
+  static final String MAX_SIZE = "DB_POOL_MAX_SIZE";
+  static final String MAX_WAIT_QUEUE = "DB_POOL_MAX_WAIT_QUEUE";
+  static final String IDLE_TIMEOUT = "DB_POOL_IDLE_TIMEOUT_SECONDS";
+  static final String PIPELINING_LIMIT = "DB_PIPELINING_LIMIT";
+  static final String STATEMENT_CACHE_SIZE = "DB_PREPARED_STATEMENT_CACHE_SIZE";
+  static final String SHARED = "DB_POOL_SHARED";
+
+  private static final String SELECT_POOL_CONFIGS = """
+      select configKey, configValue
+      from TConfigs
+      where configKey like 'DB\\_%'
+      """;
+
+  private final int maxSize;
+  private final int maxWaitQueueSize;
+  private final int idleTimeoutSeconds;
+  private final int pipeliningLimit;
+  private final int preparedStatementCacheSize;
+  private final boolean shared;
+
+  DbPoolConfig(int maxSize, int maxWaitQueueSize, int idleTimeoutSeconds, int pipeliningLimit,
+      int preparedStatementCacheSize, boolean shared) {
+    this.maxSize = maxSize;
+    this.maxWaitQueueSize = maxWaitQueueSize;
+    this.idleTimeoutSeconds = idleTimeoutSeconds;
+    this.pipeliningLimit = pipeliningLimit;
+    this.preparedStatementCacheSize = preparedStatementCacheSize;
+    this.shared = shared;
+  }
+
+  /**
+   * Resolves the configuration from the given lookups.
+   *
+   * @param env       Environment lookup, wins over the database
+   * @param dbConfigs Values of the TConfigs table
+   */
+  public static DbPoolConfig resolve(Function<String, String> env, Map<String, String> dbConfigs) {
+    Function<String, String> lookup = key -> {
+      String value = env.apply(key);
+      return value != null ? value : dbConfigs.get(key);
+    };
+    String shared = lookup.apply(SHARED);
+    return new DbPoolConfig(
+        intValue(lookup, MAX_SIZE, 8, 1),
+        intValue(lookup, MAX_WAIT_QUEUE, 256, -1),
+        intValue(lookup, IDLE_TIMEOUT, 300, 0),
+        intValue(lookup, PIPELINING_LIMIT, 16, 1),
+        intValue(lookup, STATEMENT_CACHE_SIZE, 64, 0),
+        shared == null || Boolean.parseBoolean(shared.trim()));
+  }
+
+  private static int intValue(Function<String, String> lookup, String key, int defaultValue, int min) {
+    String value = lookup.apply(key);
+    if (value == null || value.isBlank())
+      return defaultValue;
+    try {
+      return Math.max(min, Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  private static final String CONFIGS_MAP = "jukestack.dbPoolConfigs";
+
+  private static final class Loaded implements Shareable {
+    private final Future<Map<String, String>> configs;
+
+    Loaded(Future<Map<String, String>> configs) {
+      this.configs = configs;
+    }
+  }
+
+  /**
+   * Like {@link #loadDbConfigs}, but the table is read only once per Vert.x
+   * instance and every verticle instance gets the same settings. Completes on
+   * the context of the caller.
+   */
+  public static Future<Map<String, String>> sharedDbConfigs(Vertx vertx, MySQLConnectOptions connectOptions,
+      long timeoutMillis) {
+    LocalMap<String, Loaded> map = vertx.sharedData().getLocalMap(CONFIGS_MAP);
+    Loaded loaded = map.computeIfAbsent(POOL_NAME,
+        key -> new Loaded(loadDbConfigs(vertx, connectOptions, timeoutMillis).map(Collections::unmodifiableMap)));
+    Context context = vertx.getOrCreateContext();
+    Promise<Map<String, String>> promise = Promise.promise();
+    loaded.configs.onComplete(ar -> context.runOnContext(v -> promise.handle(ar)));
+    return promise.future();
+  }
+
+  /**
+   * Reads the pool settings stored in TConfigs over a single connection. If the
+   * database is not reachable an empty map is returned and the pool is built
+   * from the environment and the defaults.
+   */
+  public static Future<Map<String, String>> loadDbConfigs(Vertx vertx, MySQLConnectOptions connectOptions,
+      long timeoutMillis) {
+    Promise<Map<String, String>> promise = Promise.promise();
+    MySQLConnectOptions options = new MySQLConnectOptions(connectOptions).setConnectTimeout((int) timeoutMillis);
+
+    long timerId = vertx.setTimer(timeoutMillis, id -> {
+      if (promise.tryComplete(Map.of()))
+        System.err.println("Timeout while loading pool configuration, using defaults");
+    });
+
+    MySQLConnection.connect(vertx, options)
+        .compose(conn -> conn.query(SELECT_POOL_CONFIGS).execute()
+            .eventually(() -> conn.close()))
+        .onComplete(ar -> {
+          vertx.cancelTimer(timerId);
+          if (ar.failed()) {
+            if (promise.tryComplete(Map.of()))
+              System.err.println("Error while loading pool configuration: " + ar.cause().getMessage());
+            return;
+          }
+          Map<String, String> configs = new HashMap<>();
+          for (Row row : ar.result())
+            configs.put(row.getString("configKey"), row.getString("configValue"));
+          promise.tryComplete(configs);
+        });
+    return promise.future();
+  }
+
+  /**
+   * Enables pipelining and the prepared statement cache on the connect options
+   */
+  public MySQLConnectOptions applyTo(MySQLConnectOptions connectOptions) {
+    return connectOptions
+        .setPipeliningLimit(pipeliningLimit)
+        .setCachePreparedStatements(preparedStatementCacheSize > 0)
+        .setPreparedStatementCacheMaxSize(Math.max(1, preparedStatementCacheSize));
+  }
+
+  public PoolOptions toPoolOptions() {
+    return new PoolOptions()
+        .setName(POOL_NAME)
+        .setMaxSize(maxSize)
+        .setMaxWaitQueueSize(maxWaitQueueSize)
+        .setIdleTimeout(idleTimeoutSeconds)
+        .setIdleTimeoutUnit(TimeUnit.SECONDS)
+        .setShared(shared);
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public JsonObject toJson() {
+    return new JsonObject()
+        .put("maxSize", maxSize)
+        .put("maxWaitQueueSize", maxWaitQueueSize)
+        .put("idleTimeoutSeconds", idleTimeoutSeconds)
+        .put("pipeliningLimit", pipeliningLimit)
+        .put("preparedStatementCacheSize", preparedStatementCacheSize)
+        .put("shared", shared);
+  }
+
+}
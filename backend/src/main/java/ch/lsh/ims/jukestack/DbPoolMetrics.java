@@ -0,0 +1,191 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.spi.metrics.PoolMetrics;
+
+/**
+ * Live metrics of the SQL connection pool, fed by the pool through the Vert.x
+ * metrics SPI. A task is a request for a connection: it waits until the pool
+ * hands out a connection (acquire latency) and is in use until it is released.
+ * Pools that are not shared exist once per verticle instance under the same
+ * name, they all count into one instance, see {@link #join(int)}.
+ */
+public class DbPoolMetrics implements PoolMetrics<Long> {
+
+  // Upper bounds of the acquire latency buckets in milliseconds, the last
+  // bucket takes everything above
+  static final long[] BUCKET_BOUNDS_MILLIS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500 };
+
+  private final String poolName;
+  private final AtomicInteger maxSize;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicInteger inUse = new AtomicInteger();
+  private final LongAdder acquired = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder totalAcquireNanos = new LongAdder();
+  private final LongAccumulator maxAcquireNanos = new LongAccumulator(Math::max, 0);
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+  public DbPoolMetrics(String poolName, int maxSize) {
+    this.poolName = poolName;
+    this.maxSize = new AtomicInteger(maxSize);
+  }
+
+  /**
+   * Adds a pool of the same name, its connections and tasks count into these
+   * metrics until it is closed
+   *
+   * @return The metrics to hand to the pool
+   */
+  PoolMetrics<Long> join(int poolMaxSize) {
+    maxSize.addAndGet(poolMaxSize);
+    return new PoolMetrics<>() {
+      @Override
+      public Long submitted() {
+        return DbPoolMetrics.this.submitted();
+      }
+
+      @Override
+      public Long begin(Long submittedAt) {
+        return DbPoolMetrics.this.begin(submittedAt);
+      }
+
+      @Override
+      public void rejected(Long submittedAt) {
+        DbPoolMetrics.this.rejected(submittedAt);
+      }
+
+      @Override
+      public void end(Long beginAt, boolean succeeded) {
+        DbPoolMetrics.this.end(beginAt, succeeded);
+      }
+
+      @Override
+      public void close() {
+        maxSize.addAndGet(-poolMaxSize);
+      }
+    };
+  }
+
+  @Override
+  public Long submitted() {
+    waiting.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  @Override
+  public Long begin(Long submittedAt) {
+    waiting.decrementAndGet();
+    inUse.incrementAndGet();
+    acquired.increment();
+    if (submittedAt != null)
+      recordAcquire(System.nanoTime() - submittedAt);
+    return null;
+  }
+
+  @Override
+  public void rejected(Long submittedAt) {
+    waiting.decrementAndGet();
+    rejected.increment();
+  }
+
+  @Override
+  public void end(Long beginAt, boolean succeeded) {
+    inUse.decrementAndGet();
+    if (!succeeded)
+      failed.increment();
+  }
+
+  void recordAcquire(long nanos) {
+    totalAcquireNanos.add(nanos);
+    maxAcquireNanos.accumulate(nanos);
+
+    long millis = nanos / 1_000_000;
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MILLIS.length && millis >= BUCKET_BOUNDS_MILLIS[bucket])
+      bucket++;
+    buckets.incrementAndGet(bucket);
+  }
+
+  public String getPoolName() {
+    return poolName;
+  }
+
+  public int getMaxSize() {
+    return maxSize.get();
+  }
+
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  public int getInUse() {
+    return inUse.get();
+  }
+
+  public long getAcquired() {
+    return acquired.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  public double getTotalAcquireSeconds() {
+    return totalAcquireNanos.sum() / 1e9;
+  }
+
+  /**
+   * Upper bounds of the acquire latency buckets in milliseconds, exclusive
+   */
+  public static long[] getBucketBoundsMillis() {
+    return BUCKET_BOUNDS_MILLIS.clone();
+  }
+
+  /**
+   * Number of acquisitions per latency bucket, see {@link #stats()} for the
+   * bucket bounds
+   */
+  public long[] getAcquireHistogram() {
+    long[] counts = new long[buckets.length()];
+    for (int i = 0; i < counts.length; i++)
+      counts[i] = buckets.get(i);
+    return counts;
+  }
+
+  public JsonObject stats() {
+    long count = acquired.sum();
+    JsonArray histogram = new JsonArray();
+    long[] counts = getAcquireHistogram();
+    for (int i = 0; i < counts.length; i++) {
+      histogram.add(new JsonObject()
+          .put("lt", i < BUCKET_BOUNDS_MILLIS.length ? Long.toString(BUCKET_BOUNDS_MILLIS[i]) : "+Inf")
+          .put("count", counts[i]));
+    }
+
+    return new JsonObject()
+        .put("name", poolName)
+        .put("maxSize", maxSize.get())
+        .put("inUse", inUse.get())
+        .put("waiting", waiting.get())
+        .put("acquired", count)
+        .put("rejected", rejected.sum())
+        .put("failed", failed.sum())
+        .put("acquireAvgMillis", count == 0 ? 0.0 : totalAcquireNanos.sum() / 1_000_000.0 / count)
+        .put("acquireMaxMillis", maxAcquireNanos.get() / 1_000_000.0)
+        .put("acquireHistogramMillis", histogram);
+  }
+
+}
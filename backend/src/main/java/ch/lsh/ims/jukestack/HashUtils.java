@@ -1,38 +1,35 @@
 package ch.lsh.ims.jukestack;
 
-import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
+/**
+ * Salts, password hashes and session token hashes. Passwords are hashed with
+ * the current {@link PasswordKdf}, stored hashes keep the parameters they were
+ * created with.
+ */
 public class HashUtils {
 
-  private final int saltLength;
-  private final int hashItterations;
-  private final MessageDigest sha512;
-  private final MessageDigest sha256;
-
-  public HashUtils(int saltLength, int hashItterations) {
-    this.saltLength = saltLength;
-    this.hashItterations = hashItterations;
+  private static final int SHA256_LENGTH = 32;
 
-    // Initialize SHA-512
-    MessageDigest tempSha512 = null;
+  // MessageDigest is not thread-safe, every thread gets its own
+  private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
     try {
-      tempSha512 = MessageDigest.getInstance("SHA-512");
+      return MessageDigest.getInstance("SHA-256");
     } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
+      throw new IllegalStateException(e);
     }
-    this.sha512 = tempSha512;
+  });
+  private static final ThreadLocal<byte[]> TOKEN_BUFFER = ThreadLocal.withInitial(() -> new byte[32]);
 
-    // Initialize SHA-256
-    MessageDigest tempSha256 = null;
-    try {
-      tempSha256 = MessageDigest.getInstance("SHA-256");
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-    }
-    this.sha256 = tempSha256;
+  private final int saltLength;
+  private final PasswordKdf passwordKdf;
+
+  public HashUtils(int saltLength, PasswordKdf passwordKdf) {
+    this.saltLength = saltLength;
+    this.passwordKdf = passwordKdf;
   }
 
   public byte[] generateSalt() {
@@ -41,28 +38,61 @@ public class HashUtils {
     return salt;
   }
 
+  /**
+   * The KDF new passwords are hashed with
+   */
+  public PasswordKdf getPasswordKdf() {
+    return passwordKdf;
+  }
+
+  /**
+   * Hashes a password with the current KDF, thread-safe
+   */
   public byte[] hashPassword(String password, byte[] salt) {
-    return hashPassword(password.getBytes(StandardCharsets.UTF_8), salt);
+    return passwordKdf.hash(password, salt);
   }
 
-  public byte[] hashPassword(byte[] password, byte[] salt) {
-    byte[] toHash = new byte[password.length + salt.length];
-    System.arraycopy(password, 0, toHash, 0, password.length);
-    System.arraycopy(salt, 0, toHash, password.length, salt.length);
+  /**
+   * Hashes a password with the KDF of stored parameters, thread-safe
+   */
+  public byte[] hashPassword(String password, byte[] salt, String params) {
+    return PasswordKdf.forParams(params).hash(password, salt);
+  }
 
-    byte[] returnHash = sha512.digest(toHash);
-    for (int i = 0; i < hashItterations - 1; i++) {
-      returnHash = sha512.digest(returnHash);
-    }
+  public byte[] hashSessionToken(byte[] token) {
+    byte[] returnHash = new byte[SHA256_LENGTH];
+    hashSessionToken(token, token.length, returnHash);
     return returnHash;
   }
 
-  public byte[] hashSessionToken(byte[] token) {
-    byte[] returnHash = sha256.digest(token);
-    for (int i = 0; i < hashItterations - 1; i++) {
-      returnHash = sha256.digest(returnHash);
+  /**
+   * Decodes a hex session token and hashes it into out, both without
+   * allocating.
+   *
+   * @param out Receives the 32 byte hash
+   * @return False if the token is not valid hex of tokenLength bytes
+   */
+  public boolean hashSessionToken(String hexToken, int tokenLength, byte[] out) {
+    byte[] token = TOKEN_BUFFER.get();
+    if (token.length != tokenLength) {
+      token = new byte[tokenLength];
+      TOKEN_BUFFER.set(token);
+    }
+    if (!Util.hexToBytes(hexToken, token))
+      return false;
+
+    hashSessionToken(token, tokenLength, out);
+    return true;
+  }
+
+  private void hashSessionToken(byte[] token, int length, byte[] out) {
+    MessageDigest sha256 = SHA256.get();
+    try {
+      sha256.update(token, 0, length);
+      sha256.digest(out, 0, SHA256_LENGTH);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
     }
-    return returnHash;
   }
 
   public boolean timingSafeCompare(byte[] a, byte[] b) {
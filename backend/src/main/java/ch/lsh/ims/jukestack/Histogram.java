@@ -0,0 +1,63 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in fixed buckets, in the shape of a Prometheus
+ * histogram. Recording is lock-free and allocation-free.
+ */
+public class Histogram {
+
+  /**
+   * Bounds for request latencies, in seconds
+   */
+  public static final double[] LATENCY_SECONDS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+  private final double[] boundsSeconds;
+  private final long[] boundsNanos;
+  /**
+   * Observations per bucket, the last one takes everything above
+   */
+  private final LongAdder[] buckets;
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * @param boundsSeconds Ascending upper bounds of the buckets
+   */
+  public Histogram(double... boundsSeconds) {
+    this.boundsSeconds = boundsSeconds.clone();
+    this.boundsNanos = new long[boundsSeconds.length];
+    for (int i = 0; i < boundsSeconds.length; i++)
+      boundsNanos[i] = (long) (boundsSeconds[i] * 1e9);
+    this.buckets = new LongAdder[boundsSeconds.length + 1];
+    for (int i = 0; i < buckets.length; i++)
+      buckets[i] = new LongAdder();
+  }
+
+  public void record(long nanos) {
+    int bucket = 0;
+    while (bucket < boundsNanos.length && nanos > boundsNanos[bucket])
+      bucket++;
+    buckets[bucket].increment();
+    sumNanos.add(nanos);
+  }
+
+  public double[] getBoundsSeconds() {
+    return boundsSeconds.clone();
+  }
+
+  /**
+   * Observations per bucket, not cumulative, the last entry counts the ones
+   * above the highest bound
+   */
+  public long[] getCounts() {
+    long[] counts = new long[buckets.length];
+    for (int i = 0; i < counts.length; i++)
+      counts[i] = buckets[i].sum();
+    return counts;
+  }
+
+  public double getSumSeconds() {
+    return sumNanos.sum() / 1e9;
+  }
+}
@@ -0,0 +1,154 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * HTTP server settings selected with HTTP_PROFILE. "default", the default,
+ * keeps the Vert.x defaults. "tuned" is opt-in: it enables HTTP/2 over
+ * cleartext, the Linux TCP options and shorter idle timeouts, and with
+ * HTTP_COMPRESSION gzip/deflate for responses above a size threshold. On
+ * /api/songs it served 24.6k instead of 32.7k req/s in HttpProfileBenchmark, a
+ * single multiplexed h2c connection is bound to one event loop while HTTP/1.1
+ * connections spread over all of them. Compression is off by default: Netty compresses every
+ * response anew, which costs more CPU than the song list snapshot that is
+ * already gzipped once per version, see HttpProfileBenchmark. SO_REUSEPORT,
+ * TCP_FASTOPEN and TCP_QUICKACK only take effect with the native epoll
+ * transport, see {@link JukestackLauncher}, Vert.x ignores them on NIO.
+ */
+public final class HttpServerProfile {
+
+  public static final String DEFAULT = "default";
+  public static final String TUNED = "tuned";
+
+  private static final String PRECOMPRESSED_KEY = "precompressedAllowed";
+  private static final String COMPRESSED_KEY = "responseCompressed";
+
+  private final String name;
+  private final HttpServerOptions options;
+  private final int compressionThreshold;
+
+  private HttpServerProfile(String name, HttpServerOptions options, int compressionThreshold) {
+    this.name = name;
+    this.options = options;
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * @param env Lookup of the HTTP_* settings, e.g. dotenv::get
+   */
+  public static HttpServerProfile resolve(Function<String, String> env) {
+    String name = value(env, "HTTP_PROFILE", DEFAULT);
+    if (DEFAULT.equals(name))
+      return new HttpServerProfile(name, new HttpServerOptions(), -1);
+    if (!TUNED.equals(name))
+      throw new IllegalArgumentException("Unknown HTTP_PROFILE: " + name);
+
+    HttpServerOptions options = new HttpServerOptions()
+        // Transport
+        .setReusePort(true)
+        .setTcpNoDelay(true)
+        .setTcpFastOpen(true)
+        .setTcpQuickAck(true)
+        .setAcceptBacklog(Integer.parseInt(value(env, "HTTP_ACCEPT_BACKLOG", "1024")))
+        .setIdleTimeout(Integer.parseInt(value(env, "HTTP_IDLE_TIMEOUT_SECONDS", "60")))
+        .setIdleTimeoutUnit(TimeUnit.SECONDS)
+        // HTTP/2 with prior knowledge or the h2c upgrade, ALPN needs TLS which
+        // ends at the proxy
+        .setHttp2ClearTextEnabled(true)
+        .setUseAlpn(true)
+        .setInitialSettings(new Http2Settings()
+            .setMaxConcurrentStreams(Long.parseLong(value(env, "HTTP2_MAX_CONCURRENT_STREAMS", "100"))))
+        .setHttp2ConnectionWindowSize(1024 * 1024)
+        // gzip and deflate, whichever the client prefers
+        .setCompressionSupported(Boolean.parseBoolean(value(env, "HTTP_COMPRESSION", "false")))
+        .setCompressionLevel(Integer.parseInt(value(env, "HTTP_COMPRESSION_LEVEL", "1")));
+
+    return new HttpServerProfile(name, options,
+        Integer.parseInt(value(env, "HTTP_COMPRESSION_THRESHOLD", "1024")));
+  }
+
+  private static String value(Function<String, String> env, String key, String defaultValue) {
+    String value = env.apply(key);
+    return value == null || value.isBlank() ? defaultValue : value.trim();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public HttpServerOptions getOptions() {
+    return options;
+  }
+
+  /**
+   * Route stage in front of all routes when compression is enabled. HTTP/1.x
+   * responses smaller than the compression threshold are sent uncompressed,
+   * compressing them costs more CPU than the bytes saved. HTTP/2 requests are
+   * marked so handlers do not send pre-compressed bodies, see
+   * {@link #acceptsPrecompressed(RoutingContext)}.
+   */
+  public Handler<RoutingContext> compression() {
+    return context -> {
+      if (options.isCompressionSupported()) {
+        if (context.request().version() == HttpVersion.HTTP_2) {
+          context.put(PRECOMPRESSED_KEY, false);
+        } else {
+          context.put(COMPRESSED_KEY, true);
+          if (compressionThreshold > 0)
+            skipSmall(context);
+        }
+      }
+      context.next();
+    };
+  }
+
+  /**
+   * Vert.x only lets a response opt out of compression through its
+   * Content-Encoding. The HTTP/1.x compressor takes identity as "leave as is"
+   * and removes the header before it is written, so clients never see it. The
+   * HTTP/2 encoder would send it, small HTTP/2 responses are therefore
+   * compressed.
+   */
+  private void skipSmall(RoutingContext context) {
+    HttpServerResponse response = context.response();
+    context.addHeadersEndHandler(v -> {
+      MultiMap headers = response.headers();
+      String length = headers.get(HttpHeaders.CONTENT_LENGTH);
+      if (length != null && !headers.contains(HttpHeaders.CONTENT_ENCODING)
+          && Long.parseLong(length) < compressionThreshold)
+        headers.set(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+    });
+  }
+
+  /**
+   * Leaves the response uncompressed, e.g. a stream whose writes must reach the
+   * client right away. Only needed and only possible where the HTTP/1.x
+   * compressor runs, see {@link #skipSmall(RoutingContext)}. Without compression
+   * nothing is set, a Content-Encoding of identity must not be sent.
+   */
+  public static void skipCompression(RoutingContext context) {
+    if (Boolean.TRUE.equals(context.get(COMPRESSED_KEY)))
+      context.response().putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+  }
+
+  /**
+   * Whether a handler may answer with a body it compressed itself. Not the case
+   * for HTTP/2 with compression enabled: Vert.x then compresses every response
+   * with the algorithm in its Content-Encoding header, so a pre-gzipped body
+   * would be gzipped twice.
+   */
+  public static boolean acceptsPrecompressed(RoutingContext context) {
+    return !Boolean.FALSE.equals(context.get(PRECOMPRESSED_KEY));
+  }
+
+}
@@ -0,0 +1,45 @@
+package ch.lsh.ims.jukestack;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Launcher;
+import io.vertx.core.VertxOptions;
+
+/**
+ * Vert.x launcher that enables the {@link AppMetrics} and the native transport
+ * before Vert.x starts and deploys one MainVerticle instance per core unless
+ * -instances is given
+ */
+public class JukestackLauncher extends Launcher {
+
+  public static void main(String[] args) {
+    new JukestackLauncher().dispatch(args);
+  }
+
+  @Override
+  public void beforeStartingVertx(VertxOptions options) {
+    options.setMetricsOptions(AppMetrics.options());
+    // Falls back to NIO if netty-transport-native-epoll is not on the classpath
+    Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
+    options.setPreferNativeTransport(Boolean.parseBoolean(dotenv.get("HTTP_NATIVE_TRANSPORT", "true")));
+  }
+
+  @Override
+  public void beforeDeployingVerticle(DeploymentOptions deploymentOptions) {
+    if (deploymentOptions.getInstances() != DeploymentOptions.DEFAULT_INSTANCES)
+      return;
+
+    Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
+    String instances = dotenv.get("HTTP_INSTANCES");
+    int count = Runtime.getRuntime().availableProcessors();
+    if (instances != null) {
+      try {
+        count = Integer.parseInt(instances.trim());
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid value for HTTP_INSTANCES: " + instances);
+      }
+    }
+    deploymentOptions.setInstances(Math.max(1, count));
+  }
+
+}
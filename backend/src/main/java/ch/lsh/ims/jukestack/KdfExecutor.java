@@ -0,0 +1,93 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Runs password hashing on a dedicated, size-limited worker pool so a burst of
+ * logins cannot block the event loops or starve the default worker pool. If
+ * more than maxPending hashes are queued or running, further requests fail
+ * fast with {@link OverloadedException} and should be answered with 503.
+ */
+public class KdfExecutor {
+
+  /**
+   * Thrown when the hash queue is full
+   */
+  public static class OverloadedException extends RuntimeException {
+    public OverloadedException() {
+      super("Password hashing overloaded", null, false, false);
+    }
+  }
+
+  private final WorkerExecutor executor;
+  private final int threads;
+  private final int maxPending;
+
+  private final AtomicInteger pending = new AtomicInteger();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder hashNanos = new LongAdder();
+  private final LongAccumulator maxHashNanos = new LongAccumulator(Math::max, 0);
+
+  /**
+   * @param threads    Number of worker threads used for hashing
+   * @param maxPending Maximum number of hashes queued or running
+   */
+  public KdfExecutor(Vertx vertx, int threads, int maxPending) {
+    this.executor = vertx.createSharedWorkerExecutor("jukestack-kdf", threads);
+    this.threads = threads;
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Runs the hash function on the worker pool, the result is delivered on the
+   * context of the caller
+   */
+  public <T> Future<T> submit(Callable<T> hashFunction) {
+    if (pending.incrementAndGet() > maxPending) {
+      pending.decrementAndGet();
+      rejected.increment();
+      return Future.failedFuture(new OverloadedException());
+    }
+
+    return executor.executeBlocking(() -> {
+      long start = System.nanoTime();
+      try {
+        return hashFunction.call();
+      } finally {
+        long nanos = System.nanoTime() - start;
+        hashNanos.add(nanos);
+        maxHashNanos.accumulate(nanos);
+        completed.increment();
+      }
+    }, false).onComplete(ar -> pending.decrementAndGet());
+  }
+
+  public int getPending() {
+    return pending.get();
+  }
+
+  public JsonObject stats() {
+    long count = completed.sum();
+    long nanos = hashNanos.sum();
+    return new JsonObject()
+        .put("threads", threads)
+        .put("maxPending", maxPending)
+        .put("pending", pending.get())
+        .put("completed", count)
+        .put("rejected", rejected.sum())
+        .put("hashAvgMillis", count == 0 ? 0.0 : nanos / 1e6 / count)
+        .put("hashMaxMillis", maxHashNanos.get() / 1e6)
+        // What the pool can sustain with all threads busy
+        .put("hashesPerSecond", nanos == 0 ? 0.0 : threads * count / (nanos / 1e9));
+  }
+
+}
@@ -0,0 +1,301 @@
+package ch.lsh.ims.jukestack;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mail.MailClient;
+import io.vertx.ext.mail.MailMessage;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Queues mails in TMailOutbox and sends them in the background, so a request
+ * only waits for one insert instead of an SMTP round trip. Due mails are
+ * claimed in batches with {@code for update skip locked} and leased by moving
+ * their next attempt into the future, so several nodes can drain the outbox
+ * without sending a mail twice and a crashed node's mails are picked up again
+ * once the lease runs out. Failed mails are retried with exponential backoff
+ * until maxAttempts is reached, then they stay in the table for inspection.
+ */
+public class MailOutbox {
+
+  // How long a claimed mail is hidden from other senders
+  private static final int LEASE_SECONDS = 300;
+  private static final int MAX_ERROR_LENGTH = 255;
+
+  private static final String INSERT_MAIL = """
+      insert into TMailOutbox (mailEmpfaenger, mailBetreff, mailInhalt, mailNaechsterVersuch, mailErstellt)
+      values (?, ?, ?, now(), now())
+      """;
+
+  private static final String SELECT_DUE_MAILS = """
+      select mailId, mailEmpfaenger, mailBetreff, mailInhalt, mailVersuche
+      from TMailOutbox
+      where mailNaechsterVersuch <= now() and mailVersuche < ?
+      order by mailNaechsterVersuch
+      limit ?
+      for update skip locked
+      """;
+
+  private static final String LEASE_MAIL = """
+      update TMailOutbox set mailNaechsterVersuch = now() + interval ? second where mailId = ?
+      """;
+
+  private static final String DELETE_MAIL = """
+      delete from TMailOutbox where mailId = ?
+      """;
+
+  private static final String RETRY_MAIL = """
+      update TMailOutbox
+      set mailVersuche = mailVersuche + 1, mailNaechsterVersuch = now() + interval ? second, mailFehler = ?
+      where mailId = ?
+      """;
+
+  /**
+   * A claimed mail, error is set by {@link MailOutbox#deliver(List)} if sending
+   * failed
+   */
+  static final class OutboxMail {
+    final long id;
+    final String to;
+    final String subject;
+    final String html;
+    final int attempts;
+    String error;
+
+    OutboxMail(long id, String to, String subject, String html, int attempts) {
+      this.id = id;
+      this.to = to;
+      this.subject = subject;
+      this.html = html;
+      this.attempts = attempts;
+    }
+  }
+
+  private final Vertx vertx;
+  private final Pool dbPool;
+  private final MailClient mailClient;
+  private final String from;
+  private final int batchSize;
+  private final Duration pollInterval;
+  private final int maxAttempts;
+  private final Duration retryBase;
+  private final Duration retryMax;
+
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private volatile boolean wakeUp;
+
+  private final LongAdder enqueued = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder failedAttempts = new LongAdder();
+  private final LongAdder givenUp = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder sendMillis = new LongAdder();
+  private final Histogram sendLatency = new Histogram(0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30);
+
+  /**
+   * @param from         Sender address of all mails
+   * @param batchSize    Mails claimed and sent at once
+   * @param pollInterval Time between two checks for due mails, new mails are
+   *                     sent right away
+   * @param maxAttempts  Attempts before a mail is given up
+   * @param retryBase    Delay before the first retry, doubled for every further
+   *                     one
+   * @param retryMax     Upper bound for the retry delay
+   */
+  public MailOutbox(Vertx vertx, Pool dbPool, MailClient mailClient, String from, int batchSize,
+      Duration pollInterval, int maxAttempts, Duration retryBase, Duration retryMax) {
+    this.vertx = vertx;
+    this.dbPool = dbPool;
+    this.mailClient = mailClient;
+    this.from = from;
+    this.batchSize = batchSize;
+    this.pollInterval = pollInterval;
+    this.maxAttempts = maxAttempts;
+    this.retryBase = retryBase;
+    this.retryMax = retryMax;
+  }
+
+  /**
+   * Starts polling for due mails, further calls do nothing
+   */
+  public void start() {
+    if (!started.compareAndSet(false, true))
+      return;
+    vertx.setPeriodic(pollInterval.toMillis(), id -> wakeUp());
+  }
+
+  /**
+   * Queues a mail, the future completes once it is stored
+   */
+  public Future<Void> enqueue(String to, String subject, String html) {
+    return dbPool.preparedQuery(INSERT_MAIL)
+        .execute(Tuple.of(to, subject, html))
+        .onSuccess(res -> {
+          enqueued.increment();
+          wakeUp();
+        })
+        .mapEmpty();
+  }
+
+  /**
+   * Drains the outbox unless a drain is already running, in that case the
+   * running one checks again before it stops
+   */
+  public void wakeUp() {
+    wakeUp = true;
+    if (draining.compareAndSet(false, true))
+      drain();
+  }
+
+  private void drain() {
+    wakeUp = false;
+    sendBatch().onComplete(ar -> {
+      if (ar.failed())
+        System.err.println("Error while sending mails: " + ar.cause().getMessage());
+      if (ar.succeeded() && ar.result() == batchSize) {
+        drain();
+        return;
+      }
+      draining.set(false);
+      if (wakeUp && draining.compareAndSet(false, true))
+        drain();
+    });
+  }
+
+  /**
+   * Claims, sends and settles one batch
+   *
+   * @return Number of mails claimed
+   */
+  Future<Integer> sendBatch() {
+    long start = System.currentTimeMillis();
+    return claim().compose(mails -> {
+      if (mails.isEmpty())
+        return Future.succeededFuture(0);
+      return deliver(mails).compose(v -> settle(mails)).map(v -> {
+        batches.increment();
+        sendMillis.add(System.currentTimeMillis() - start);
+        return mails.size();
+      });
+    });
+  }
+
+  /**
+   * Selects due mails and leases them in one short transaction, no connection
+   * is held while talking to the mail server
+   */
+  private Future<List<OutboxMail>> claim() {
+    return dbPool.withTransaction(conn -> conn.preparedQuery(SELECT_DUE_MAILS)
+        .execute(Tuple.of(maxAttempts, batchSize))
+        .compose(rows -> {
+          List<OutboxMail> mails = new ArrayList<>();
+          List<Tuple> leases = new ArrayList<>();
+          for (Row row : rows) {
+            mails.add(new OutboxMail(row.getLong("mailId"), row.getString("mailEmpfaenger"),
+                row.getString("mailBetreff"), row.getString("mailInhalt"), row.getInteger("mailVersuche")));
+            leases.add(Tuple.of(LEASE_SECONDS, row.getLong("mailId")));
+          }
+          if (mails.isEmpty())
+            return Future.succeededFuture(mails);
+          return conn.preparedQuery(LEASE_MAIL).executeBatch(leases).map(res -> mails);
+        }));
+  }
+
+  /**
+   * Sends all mails concurrently over the pooled SMTP connections of the mail
+   * client. Never fails, the error of each mail is stored on it.
+   */
+  Future<Void> deliver(List<OutboxMail> mails) {
+    List<Future<?>> sends = new ArrayList<>(mails.size());
+    for (OutboxMail mail : mails) {
+      long start = System.nanoTime();
+      sends.add(mailClient.sendMail(new MailMessage()
+          .setFrom(from)
+          .setTo(mail.to)
+          .setSubject(mail.subject)
+          .setHtml(mail.html))
+          .onComplete(ar -> sendLatency.record(System.nanoTime() - start))
+          .onFailure(err -> mail.error = err.getMessage() == null ? err.toString() : err.getMessage()));
+    }
+    return Future.join(sends).otherwiseEmpty().mapEmpty();
+  }
+
+  /**
+   * Deletes the sent mails and reschedules the failed ones
+   */
+  private Future<Void> settle(List<OutboxMail> mails) {
+    List<Tuple> delivered = new ArrayList<>();
+    List<Tuple> retries = new ArrayList<>();
+    for (OutboxMail mail : mails) {
+      if (mail.error == null) {
+        delivered.add(Tuple.of(mail.id));
+        continue;
+      }
+
+      failedAttempts.increment();
+      int attempts = mail.attempts + 1;
+      if (attempts >= maxAttempts) {
+        givenUp.increment();
+        System.err.println("Giving up on mail " + mail.id + " after " + attempts + " attempts: " + mail.error);
+      }
+      String error = mail.error.length() > MAX_ERROR_LENGTH ? mail.error.substring(0, MAX_ERROR_LENGTH) : mail.error;
+      retries.add(Tuple.of(retryDelay(attempts).toSeconds(), error, mail.id));
+    }
+
+    sent.add(delivered.size());
+    Future<?> deletes = delivered.isEmpty() ? Future.succeededFuture()
+        : dbPool.preparedQuery(DELETE_MAIL).executeBatch(delivered);
+    Future<?> updates = retries.isEmpty() ? Future.succeededFuture()
+        : dbPool.preparedQuery(RETRY_MAIL).executeBatch(retries);
+    return Future.all(deletes, updates).mapEmpty();
+  }
+
+  /**
+   * @param attempts Failed attempts so far, at least 1
+   */
+  Duration retryDelay(int attempts) {
+    int shift = Math.min(attempts - 1, 30);
+    Duration delay = retryBase.multipliedBy(1L << shift);
+    return delay.compareTo(retryMax) > 0 ? retryMax : delay;
+  }
+
+  /**
+   * Time of a single SMTP send, failed ones included
+   */
+  public Histogram getSendLatency() {
+    return sendLatency;
+  }
+
+  public long getSent() {
+    return sent.sum();
+  }
+
+  public long getFailedAttempts() {
+    return failedAttempts.sum();
+  }
+
+  public long getGivenUp() {
+    return givenUp.sum();
+  }
+
+  public JsonObject stats() {
+    long batchCount = batches.sum();
+    return new JsonObject()
+        .put("enqueued", enqueued.sum())
+        .put("sent", sent.sum())
+        .put("failedAttempts", failedAttempts.sum())
+        .put("givenUp", givenUp.sum())
+        .put("batches", batchCount)
+        .put("batchAvgMillis", batchCount == 0 ? 0.0 : sendMillis.sum() / (double) batchCount);
+  }
+
+}
@@ -0,0 +1,90 @@
+package ch.lsh.ims.jukestack;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mail template split into its literal parts and placeholders once, so
+ * rendering is a single pass over a few strings instead of reading the file and
+ * replacing text for every mail.
+ */
+public final class MailTemplate {
+
+  private final String[] literals;
+  // Index of the value inserted after literals[i]
+  private final int[] slots;
+  private final int placeholderCount;
+  private final int literalLength;
+
+  private MailTemplate(String[] literals, int[] slots, int placeholderCount) {
+    this.literals = literals;
+    this.slots = slots;
+    this.placeholderCount = placeholderCount;
+    int length = 0;
+    for (String literal : literals)
+      length += literal.length();
+    this.literalLength = length;
+  }
+
+  /**
+   * Splits the source at every occurrence of the placeholders
+   *
+   * @param placeholders Placeholders in the order their values are passed to
+   *                     {@link #render(String...)}
+   */
+  public static MailTemplate compile(String source, String... placeholders) {
+    List<String> literals = new ArrayList<>();
+    List<Integer> slots = new ArrayList<>();
+    int pos = 0;
+    while (true) {
+      int next = -1;
+      int slot = -1;
+      for (int i = 0; i < placeholders.length; i++) {
+        int index = source.indexOf(placeholders[i], pos);
+        if (index >= 0 && (next < 0 || index < next)) {
+          next = index;
+          slot = i;
+        }
+      }
+      if (next < 0)
+        break;
+      literals.add(source.substring(pos, next));
+      slots.add(slot);
+      pos = next + placeholders[slot].length();
+    }
+    literals.add(source.substring(pos));
+
+    return new MailTemplate(literals.toArray(String[]::new), slots.stream().mapToInt(Integer::intValue).toArray(),
+        placeholders.length);
+  }
+
+  /**
+   * Reads and compiles a template file, only meant to be called at startup
+   */
+  public static MailTemplate load(Path path, String... placeholders) throws IOException {
+    return compile(Files.readString(path, StandardCharsets.UTF_8), placeholders);
+  }
+
+  /**
+   * @param values One value per placeholder, in the order given to
+   *               {@link #compile(String, String...)}
+   */
+  public String render(String... values) {
+    if (values.length != placeholderCount)
+      throw new IllegalArgumentException("Expected " + placeholderCount + " values");
+
+    int length = literalLength;
+    for (int slot : slots)
+      length += values[slot].length();
+
+    StringBuilder mail = new StringBuilder(length);
+    for (int i = 0; i < slots.length; i++)
+      mail.append(literals[i]).append(values[slots[i]]);
+    return mail.append(literals[slots.length]).toString();
+  }
+
+}
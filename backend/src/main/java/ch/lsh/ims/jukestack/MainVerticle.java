@@ -3,14 +3,27 @@ package ch.lsh.ims.jukestack;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.CorsHandler;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
 
 import ch.lsh.ims.jukestack.CloudflareR2Client.S3Config;
+import ch.lsh.ims.jukestack.TokenBucketLimiter.Budget;
 import ch.lsh.ims.jukestack.handlers.AdminHandler;
+import ch.lsh.ims.jukestack.handlers.AuthHandler;
+import ch.lsh.ims.jukestack.handlers.AvailabilityFeed;
+import ch.lsh.ims.jukestack.handlers.ClientAddress;
+import ch.lsh.ims.jukestack.handlers.AvailabilityIndex;
+import ch.lsh.ims.jukestack.handlers.KeysetPage;
+import ch.lsh.ims.jukestack.handlers.MetricsHandler;
+import ch.lsh.ims.jukestack.handlers.RateLimitHandler;
+import ch.lsh.ims.jukestack.handlers.SongCatalog;
 import ch.lsh.ims.jukestack.handlers.SongHandler;
+import ch.lsh.ims.jukestack.handlers.SongSearchIndex;
 import ch.lsh.ims.jukestack.handlers.UserHandler;
 import io.github.cdimascio.dotenv.Dotenv;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.mail.MailClient;
@@ -19,7 +32,6 @@ import io.vertx.ext.mail.StartTLSOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.mysqlclient.MySQLConnectOptions;
 import io.vertx.sqlclient.Pool;
-import io.vertx.sqlclient.PoolOptions;
 
 public class MainVerticle extends AbstractVerticle {
 
@@ -52,16 +64,43 @@ public class MainVerticle extends AbstractVerticle {
         .setUser(dbUser)
         .setPassword(dbPassword);
 
-    PoolOptions poolOptions = new PoolOptions().setMaxSize(2);
+    // Rows per cursor round trip of the streamed listings
+    int streamFetchSize = Integer.parseInt(dotenv.get("STREAM_FETCH_SIZE", "256"));
 
-    dbPool = Pool.pool(vertx, connectOptions, poolOptions);
+    // Pool settings from env > TConfigs > defaults
+    DbPoolConfig.sharedDbConfigs(vertx, connectOptions, 3000).onComplete(ar -> {
+      DbPoolConfig poolConfig = DbPoolConfig.resolve(dotenv::get, ar.result());
+      dbPool = Pool.pool(vertx, poolConfig.applyTo(connectOptions), poolConfig.toPoolOptions());
+      System.out.println("Database pool: " + poolConfig.toJson().encode());
 
-    // Mail Client
+      // Caches and clients shared by all verticle instances, on a pool of their own
+      SharedResources.acquire(vertx,
+          () -> Pool.pool(vertx, poolConfig.applyTo(connectOptions), poolConfig.toPoolOptions()),
+          pool -> createShared(dotenv, pool, streamFetchSize))
+          .onSuccess(shared -> {
+            // stop() is not called for a failed start
+            Promise<Void> started = Promise.promise();
+            started.future().onFailure(err -> SharedResources.release(vertx)).onComplete(startPromise);
+            try {
+              startServer(started, dotenv, poolConfig, shared, streamFetchSize);
+            } catch (Exception e) {
+              started.fail(e);
+            }
+          })
+          .onFailure(startPromise::fail);
+    });
+  }
+
+  // Runs once per Vert.x instance, on the context of the shared resources
+  private SharedResources createShared(Dotenv dotenv, Pool sharedPool, int streamFetchSize) {
+    // Mail Client, keeps a few SMTP connections open for the outbox sender
     String mailUser = "noreply@jukestack.ch";
     String mailPassword = dotenv.get("MAIL_PASSWORD");
     MailConfig mailConfig = new MailConfig().setHostname("smtp.zoho.eu").setPort(587)
         .setStarttls(StartTLSOptions.REQUIRED)
-        .setUsername(mailUser).setPassword(mailPassword);
+        .setUsername(mailUser).setPassword(mailPassword)
+        .setMaxPoolSize(Integer.parseInt(dotenv.get("MAIL_POOL_SIZE", "4")))
+        .setKeepAlive(true);
     MailClient mailClient = MailClient.createShared(vertx, mailConfig);
 
     // Cloudflare R2 Storage
@@ -70,15 +109,86 @@ public class MainVerticle extends AbstractVerticle {
     String r2SecretKey = dotenv.get("R2_SECRET_KEY");
 
     S3Config s3Config = new S3Config(r2AccountId, r2AccessKey, r2SecretKey);
-    CloudflareR2Client r2Client = new CloudflareR2Client(s3Config);
+
+    AvailabilityIndex availability = new AvailabilityIndex(vertx, sharedPool,
+        Duration.ofSeconds(Long.parseLong(dotenv.get("AVAILABILITY_CHECK_SECONDS", "300"))));
+    SongCatalog songCatalog = new SongCatalog(vertx, sharedPool, availability, 250, streamFetchSize);
+    SessionCache sessionCache = new SessionCache(10_000, Duration.ofMinutes(1), Duration.ofSeconds(10));
+    // Other nodes behind the load balancer, INVALIDATION_PEERS=host:port,host:port, fails
+    // without INVALIDATION_SECRET
+    ClusterInvalidation invalidation = new ClusterInvalidation(vertx,
+        dotenv.get("INVALIDATION_HOST", ClusterInvalidation.privateAddress()),
+        Integer.parseInt(dotenv.get("INVALIDATION_PORT", "7946")),
+        ClusterInvalidation.parsePeers(dotenv.get("INVALIDATION_PEERS", "")),
+        dotenv.get("INVALIDATION_SECRET", ""));
+    invalidation.on(ClusterInvalidation.Kind.SESSION, sessionCache::invalidate);
+    invalidation.on(ClusterInvalidation.Kind.USER, sessionCache::invalidateEmail);
+    invalidation.on(ClusterInvalidation.Kind.SONG, songId -> availability.refreshSong(Integer.parseInt(songId))
+        .onComplete(ar -> songCatalog.invalidate()));
+    // Settings are only read at startup, nothing caches a config key yet
+    return new SharedResources(
+        new CloudflareR2Client(s3Config, new PresignCache(
+            Integer.parseInt(dotenv.get("R2_PRESIGN_CACHE_SIZE", "10000")),
+            Duration.ofSeconds(Long.parseLong(dotenv.get("R2_PRESIGN_MIN_REMAINING_SECONDS", "300"))))),
+        sessionCache,
+        songCatalog,
+        new KdfExecutor(vertx,
+            Integer.parseInt(dotenv.get("KDF_THREADS",
+                Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)))),
+            Integer.parseInt(dotenv.get("KDF_MAX_PENDING", "64"))),
+        new SessionReaper(vertx, sharedPool,
+            Duration.ofSeconds(Long.parseLong(dotenv.get("REAPER_INTERVAL_SECONDS", "300"))),
+            Duration.ofHours(Long.parseLong(dotenv.get("SESSION_RETENTION_HOURS", "24"))),
+            Duration.ofHours(Long.parseLong(dotenv.get("VERIFY_TOKEN_RETENTION_HOURS", "48"))),
+            Integer.parseInt(dotenv.get("REAPER_BATCH_SIZE", "1000")),
+            Duration.ofMillis(Long.parseLong(dotenv.get("REAPER_PAUSE_MILLIS", "50")))),
+        new MailOutbox(vertx, sharedPool, mailClient, mailUser,
+            Integer.parseInt(dotenv.get("MAIL_BATCH_SIZE", "20")),
+            Duration.ofSeconds(Long.parseLong(dotenv.get("MAIL_POLL_INTERVAL_SECONDS", "10"))),
+            Integer.parseInt(dotenv.get("MAIL_MAX_ATTEMPTS", "8")),
+            Duration.ofSeconds(Long.parseLong(dotenv.get("MAIL_RETRY_BASE_SECONDS", "30"))),
+            Duration.ofSeconds(Long.parseLong(dotenv.get("MAIL_RETRY_MAX_SECONDS", "3600")))),
+        new RateLimits(Integer.parseInt(dotenv.get("RATE_LIMIT_MAX_KEYS", "100000")),
+            Duration.ofSeconds(Long.parseLong(dotenv.get("RATE_LIMIT_IDLE_SECONDS", "600")))),
+        new SongSearchIndex(vertx, sharedPool, availability,
+            Duration.ofSeconds(Long.parseLong(dotenv.get("SEARCH_REFRESH_SECONDS", "60"))),
+            Duration.ofMinutes(Long.parseLong(dotenv.get("SEARCH_REBUILD_MINUTES", "60"))),
+            streamFetchSize),
+        availability,
+        invalidation,
+        new ServiceMetrics());
+  }
+
+  private void startServer(Promise<Void> startPromise, Dotenv dotenv, DbPoolConfig poolConfig,
+      SharedResources shared, int streamFetchSize) throws IOException {
+    // Relative to the working directory, /app in the docker image
+    MailTemplate verifyMailTemplate = MailTemplate.load(
+        Path.of(dotenv.get("MAIL_VERIFY_TEMPLATE", "verify-mail.html")), UserHandler.VERIFY_MAIL_PLACEHOLDERS);
+
+    CloudflareR2Client r2Client = shared.getR2Client();
 
     // Authentication Systems
-    HashUtils hashUtils = new HashUtils(16, 1);
-    AuthenticationManager authManager = new AuthenticationManager(dbPool, hashUtils, 32, Duration.ofMinutes(30), false);
+    PasswordKdf passwordKdf = new PasswordKdf.Pbkdf2(Integer.parseInt(dotenv.get("KDF_ITERATIONS", "210000")));
+    HashUtils hashUtils = new HashUtils(16, passwordKdf);
+    AuthenticationManager authManager = new AuthenticationManager(dbPool, hashUtils, shared.getKdfExecutor(),
+        shared.getSessionCache(), shared.getInvalidation(), 32, Duration.ofMinutes(30), false);
     // TODO: Load settings from kv store table
 
+    // Keyset pagination of the listings, larger limits are capped
+    KeysetPage.Limits pageLimits = new KeysetPage.Limits(Integer.parseInt(dotenv.get("PAGE_SIZE_DEFAULT", "50")),
+        Integer.parseInt(dotenv.get("PAGE_SIZE_MAX", "200")));
+
     // ROUTES
+    HttpServerProfile serverProfile = HttpServerProfile.resolve(dotenv::get);
+    ServiceMetrics serviceMetrics = shared.getMetrics();
+    serviceMetrics.probeEventLoop(vertx,
+        Duration.ofMillis(Long.parseLong(dotenv.get("METRICS_LAG_PROBE_MILLIS", "1000"))));
     Router router = Router.router(vertx);
+    router.route().handler(serviceMetrics.routeTimer());
+    // Number of reverse proxies whose X-Forwarded-For/Forwarded entries are trusted,
+    // 1 on Cloud Run (see deploy.sh), 0 if clients connect directly
+    router.route().handler(new ClientAddress(Integer.parseInt(dotenv.get("TRUSTED_PROXY_HOPS", "0"))));
+    router.route().handler(serverProfile.compression());
     router.route().handler(BodyHandler.create());
     // CORS configuration
     router.route().handler(CorsHandler.create("*")
@@ -91,6 +201,7 @@ public class MainVerticle extends AbstractVerticle {
         .allowedMethod(HttpMethod.DELETE)
         .allowedHeader("Content-Type")
         .allowedHeader("Authorization")
+        .exposedHeader(KeysetPage.NEXT_CURSOR_HEADER)
         .allowCredentials(true));
     router.route().handler(ctx -> {
       ctx.response().putHeader("Server", "Jukestack/" + VERSION + " (Vert.x) Server by Luis Hutterli");
@@ -102,42 +213,95 @@ public class MainVerticle extends AbstractVerticle {
 
     router.get(API_BASE + "/ping").handler(ctx -> ctx.response().end("Pong!"));
 
+    // Authentication stages, resolve the session user once per request
+    AuthHandler sessionAuth = AuthHandler.session(authManager);
+    AuthHandler verifiedAuth = AuthHandler.verified(authManager);
+    AuthHandler adminAuth = AuthHandler.admin(authManager);
+
+    // Rate limits of the expensive auth routes, budgets are <tokens>/<seconds>. The
+    // *_IP budgets are per client address, which needs TRUSTED_PROXY_HOPS behind a
+    // proxy, otherwise every client shares the proxy's bucket
+    RateLimits rateLimits = shared.getRateLimits();
+    RateLimitHandler loginLimit = RateLimitHandler.bodyEmail(
+        rateLimits.limiter("login.ip", Budget.parse(dotenv.get("RATE_LIMIT_LOGIN_IP", "20/60"))),
+        rateLimits.limiter("login.email", Budget.parse(dotenv.get("RATE_LIMIT_LOGIN_EMAIL", "5/60"))));
+    RateLimitHandler signupLimit = RateLimitHandler.bodyEmail(
+        rateLimits.limiter("signup.ip", Budget.parse(dotenv.get("RATE_LIMIT_SIGNUP_IP", "5/600"))),
+        rateLimits.limiter("signup.email", Budget.parse(dotenv.get("RATE_LIMIT_SIGNUP_EMAIL", "3/600"))));
+    RateLimitHandler verifyMailLimit = RateLimitHandler.sessionEmail(
+        rateLimits.limiter("sendVerify.ip", Budget.parse(dotenv.get("RATE_LIMIT_SEND_VERIFY_IP", "10/600"))),
+        rateLimits.limiter("sendVerify.email", Budget.parse(dotenv.get("RATE_LIMIT_SEND_VERIFY_EMAIL", "3/600"))));
+
     // /api/user
-    UserHandler userHandler = new UserHandler(dbPool, authManager, mailClient, Duration.ofMinutes(30));
-    router.post(USER_ROUTE).handler(userHandler::createUser); // Create user
-    router.get(USER_ROUTE).handler(userHandler::getUserInfo); // Get user info
-    router.put(USER_ROUTE).handler(userHandler::updateUserInfo); // Update user info
+    UserHandler userHandler = new UserHandler(dbPool, authManager, shared.getMailOutbox(), verifyMailTemplate,
+        Duration.ofMinutes(30), serviceMetrics);
+    router.post(USER_ROUTE).handler(signupLimit).handler(userHandler::createUser); // Create user
+    router.get(USER_ROUTE).handler(sessionAuth).handler(userHandler::getUserInfo); // Get user info
+    router.put(USER_ROUTE).handler(verifiedAuth).handler(userHandler::updateUserInfo); // Update user info
     router.delete(USER_ROUTE).handler(null); // Delete user
 
     // /api/auth
-    router.post(AUTH_ROUTE + "/login").handler(userHandler::login); // Login
-    router.post(AUTH_ROUTE + "/logout").handler(userHandler::logout); // Logout
-    router.get(AUTH_ROUTE + "/verify").handler(userHandler::verifyToken); // Verify session
-    router.post(AUTH_ROUTE + "/refresh").handler(userHandler::refresh); // Refresh session
-    router.post(AUTH_ROUTE + "/sendVerify").handler(userHandler::sendVerifyMail); // Send verification mail
+    router.post(AUTH_ROUTE + "/login").handler(loginLimit).handler(userHandler::login); // Login
+    router.post(AUTH_ROUTE + "/logout").handler(sessionAuth).handler(userHandler::logout); // Logout
+    router.get(AUTH_ROUTE + "/verify").handler(verifiedAuth).handler(userHandler::verifyToken); // Verify session
+    router.post(AUTH_ROUTE + "/refresh").handler(verifiedAuth).handler(userHandler::refresh); // Refresh session
+    router.post(AUTH_ROUTE + "/sendVerify").handler(sessionAuth).handler(verifyMailLimit)
+        .handler(userHandler::sendVerifyMail); // Send verification mail
     router.get(AUTH_ROUTE + "/verifyEmail").handler(userHandler::verifyEmail); // Verify email
 
     // /api/songs
-    SongHandler songHandler = new SongHandler(dbPool, authManager, r2Client, 5, 1);
+    SongCatalog songCatalog = shared.getSongCatalog();
+    SongHandler songHandler = new SongHandler(dbPool, songCatalog, shared.getAvailabilityIndex(), r2Client, 5, 1,
+        pageLimits, shared.getSongSearchIndex(), shared.getInvalidation(), serviceMetrics);
+    router.route(SONGS_ROUTE + "*").handler(verifiedAuth);
     router.get(SONGS_ROUTE).handler(songHandler::listSongs); // Get songs
+    router.get(SONGS_ROUTE + "/search").handler(songHandler::searchSongs); // Search songs
+    // Availability changes as Server-Sent Events, the heartbeat keeps idle connections open
+    AvailabilityFeed availabilityFeed = new AvailabilityFeed(vertx,
+        sessionCookie -> authManager.validateSession(sessionCookie, true),
+        Duration.ofSeconds(Long.parseLong(dotenv.get("EVENTS_HEARTBEAT_SECONDS", "30"))),
+        Integer.parseInt(dotenv.get("EVENTS_QUEUE_SIZE", "64")));
+    availabilityFeed.start();
+    router.get(SONGS_ROUTE + "/events").handler(availabilityFeed::subscribe); // Availability events
 
     // /api/lend
+    router.route(LEND_ROUTE + "*").handler(verifiedAuth);
     router.get(LEND_ROUTE).handler(songHandler::listLendings); // Get lendings
     router.post(LEND_ROUTE + "/:id").handler(songHandler::lendSong); // Lend song
     router.delete(LEND_ROUTE + "/:id").handler(songHandler::returnSong); // Return song
     router.get(LEND_ROUTE + "/:id/listen").handler(songHandler::generateListenLink); // Listen to song
 
     // /api/admin
-    AdminHandler adminHandler = new AdminHandler(dbPool, authManager);
+    AppMetrics metrics = AppMetrics.of(vertx);
+    DbPoolMetrics poolMetrics = metrics == null ? null : metrics.getSqlPool(DbPoolConfig.POOL_NAME);
+    AdminHandler adminHandler = new AdminHandler(dbPool, authManager, songCatalog, shared.getAvailabilityIndex(),
+        r2Client, poolConfig, poolMetrics, shared.getSessionReaper(), shared.getMailOutbox(), rateLimits,
+        shared.getSongSearchIndex(), availabilityFeed, shared.getInvalidation(), streamFetchSize,
+        Duration.ofSeconds(Long.parseLong(dotenv.get("STREAM_STALL_SECONDS", "30"))), pageLimits);
+    router.route(ADMIN_ROUTE + "/*").handler(adminAuth);
     router.get(ADMIN_ROUTE + "/users").handler(adminHandler::listUsers); // Get all users
     router.get(ADMIN_ROUTE + "/users/:email/lend").handler(adminHandler::listLentSongs); // List lent songs
     router.put(ADMIN_ROUTE + "/lend/:lendId").handler(adminHandler::updateUserLend); // Update a lend
     router.delete(ADMIN_ROUTE + "/lend/:lendId").handler(adminHandler::returnUserLend); // Return a lend
+    router.get(ADMIN_ROUTE + "/stats").handler(adminHandler::getStats); // Cache, pool, background job and rate limit statistics
+
+    // Prometheus scrape and load balancer health checks
+    String metricsToken = dotenv.get("METRICS_TOKEN", "");
+    if (metricsToken.isEmpty())
+      System.err.println("METRICS_TOKEN is not set, /metrics is disabled");
+    MetricsHandler metricsHandler = new MetricsHandler(serviceMetrics, poolMetrics, shared.getAvailabilityIndex(),
+        shared.getMailOutbox(), r2Client, metricsToken,
+        Integer.parseInt(dotenv.get("HEALTH_MAX_POOL_WAITING", Integer.toString(poolConfig.getMaxSize()))));
+    router.get("/metrics").handler(metricsHandler::metrics); // Prometheus metrics
+    router.get("/health/live").handler(metricsHandler::live); // Liveness
+    router.get("/health/ready").handler(metricsHandler::ready); // Readiness, fails while the pool is saturated
 
-    vertx.createHttpServer().requestHandler(router).listen(8080, http -> {
+    // Every instance listens on 8080, Vert.x balances the connections between them
+    vertx.createHttpServer(serverProfile.getOptions()).requestHandler(router).listen(8080, http -> {
       if (http.succeeded()) {
         startPromise.complete();
-        System.out.println("HTTP server started on port 8080");
+        System.out.println("HTTP server started on port 8080 (" + Thread.currentThread().getName() + ", profile "
+            + serverProfile.getName() + ", native transport " + vertx.isNativeTransportEnabled() + ")");
       } else {
         startPromise.fail(http.cause());
       }
@@ -145,8 +309,10 @@ public class MainVerticle extends AbstractVerticle {
   }
 
   @Override
-  public void stop() {
+  public void stop(Promise<Void> stopPromise) {
     System.out.println("Shutting down...");
-    dbPool.close();
+    // The last instance also closes the pool of the shared resources
+    Future<Void> closed = dbPool == null ? Future.succeededFuture() : dbPool.close();
+    closed.eventually(() -> SharedResources.release(vertx)).onComplete(stopPromise);
   }
 }
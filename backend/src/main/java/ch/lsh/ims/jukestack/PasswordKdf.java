@@ -0,0 +1,118 @@
+package ch.lsh.ims.jukestack;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Key derivation function for passwords. The parameters are stored next to
+ * each hash, so the work factor can be raised without invalidating existing
+ * passwords: they are rehashed on the next login. Implementations must be
+ * thread-safe, hashes are computed on a worker pool.
+ */
+public interface PasswordKdf {
+
+  /**
+   * Parameters of passwords hashed before they were stored, iterated SHA-512
+   */
+  String LEGACY_PARAMS = "sha512:1";
+
+  /**
+   * Identifies the algorithm and its work factor, e.g. "pbkdf2-sha512:210000"
+   */
+  String params();
+
+  byte[] hash(String password, byte[] salt);
+
+  /**
+   * Returns the KDF for stored parameters, null (not yet stored) means
+   * {@link #LEGACY_PARAMS}
+   *
+   * @throws IllegalArgumentException If the parameters are unknown
+   */
+  static PasswordKdf forParams(String params) {
+    if (params == null)
+      params = LEGACY_PARAMS;
+
+    String[] parts = params.split(":");
+    if (parts.length != 2)
+      throw new IllegalArgumentException("Invalid KDF parameters: " + params);
+    int iterations = Integer.parseInt(parts[1]);
+
+    return switch (parts[0]) {
+      case "sha512" -> new Sha512(iterations);
+      case "pbkdf2-sha512" -> new Pbkdf2(iterations);
+      default -> throw new IllegalArgumentException("Unknown KDF: " + parts[0]);
+    };
+  }
+
+  /**
+   * The original scheme: SHA-512 over password and salt, iterated
+   */
+  final class Sha512 implements PasswordKdf {
+    private final int iterations;
+
+    public Sha512(int iterations) {
+      this.iterations = iterations;
+    }
+
+    @Override
+    public String params() {
+      return "sha512:" + iterations;
+    }
+
+    @Override
+    public byte[] hash(String passwordString, byte[] salt) {
+      byte[] password = passwordString.getBytes(StandardCharsets.UTF_8);
+      MessageDigest sha512;
+      try {
+        sha512 = MessageDigest.getInstance("SHA-512");
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+
+      byte[] toHash = new byte[password.length + salt.length];
+      System.arraycopy(password, 0, toHash, 0, password.length);
+      System.arraycopy(salt, 0, toHash, password.length, salt.length);
+
+      byte[] returnHash = sha512.digest(toHash);
+      for (int i = 0; i < iterations - 1; i++) {
+        returnHash = sha512.digest(returnHash);
+      }
+      return returnHash;
+    }
+  }
+
+  /**
+   * PBKDF2 with HMAC-SHA512 and a 512 bit key, same length as the SHA-512
+   * hashes so it fits benutzerPWHash
+   */
+  final class Pbkdf2 implements PasswordKdf {
+    private final int iterations;
+
+    public Pbkdf2(int iterations) {
+      this.iterations = iterations;
+    }
+
+    @Override
+    public String params() {
+      return "pbkdf2-sha512:" + iterations;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 512);
+      try {
+        return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512").generateSecret(spec).getEncoded();
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        spec.clearPassword();
+      }
+    }
+  }
+
+}
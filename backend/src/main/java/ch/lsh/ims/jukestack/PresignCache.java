@@ -0,0 +1,143 @@
+package ch.lsh.ims.jukestack;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Bounded cache of presigned URLs. The key contains the expiry bucket, i.e.
+ * the current time divided by (expiration - minRemaining), so every URL handed
+ * out from a bucket still has at least minRemaining of validity left. Entries
+ * are checked against the floor again before they are returned.
+ */
+public class PresignCache {
+
+  private static final class Entry {
+    private final String url;
+    private final long expiresAt;
+
+    private Entry(String url, long expiresAt) {
+      this.url = url;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final int maxEntries;
+  private final long minRemainingMillis;
+  private final Map<String, Entry> entries;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder bypassed = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder signings = new LongAdder();
+  private final LongAdder signingNanos = new LongAdder();
+  private final LongAccumulator maxSigningNanos = new LongAccumulator(Math::max, 0);
+
+  /**
+   * @param maxEntries   Maximum number of cached URLs, least recently used
+   *                     entries are evicted first
+   * @param minRemaining Minimum validity a returned URL must still have
+   */
+  public PresignCache(int maxEntries, Duration minRemaining) {
+    this.maxEntries = maxEntries;
+    this.minRemainingMillis = minRemaining.toMillis();
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > PresignCache.this.maxEntries) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns a cached URL for the object or signs a new one.
+   *
+   * @param signer Signs a URL valid for the given expiration
+   */
+  public String get(String bucketName, String objectKey, Duration expiration, Supplier<String> signer) {
+    long expirationMillis = expiration.toMillis();
+    long bucketMillis = expirationMillis - minRemainingMillis;
+    if (maxEntries <= 0 || bucketMillis <= 0) {
+      // The URL would be below the floor before it could be reused
+      bypassed.increment();
+      return sign(signer);
+    }
+
+    long now = System.currentTimeMillis();
+    String key = bucketName + '\n' + objectKey + '\n' + expirationMillis + '\n' + now / bucketMillis;
+    synchronized (entries) {
+      Entry cached = entries.get(key);
+      if (cached != null && cached.expiresAt - now >= minRemainingMillis) {
+        hits.increment();
+        return cached.url;
+      }
+    }
+
+    misses.increment();
+    String url = sign(signer);
+    if (url != null) {
+      synchronized (entries) {
+        entries.put(key, new Entry(url, now + expirationMillis));
+      }
+    }
+    return url;
+  }
+
+  /**
+   * Signs without caching, e.g. upload URLs, and records the signing time
+   */
+  public String sign(Supplier<String> signer) {
+    long start = System.nanoTime();
+    try {
+      return signer.get();
+    } finally {
+      long nanos = System.nanoTime() - start;
+      signings.increment();
+      signingNanos.add(nanos);
+      maxSigningNanos.accumulate(nanos);
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public JsonObject stats() {
+    long hitCount = hits.sum();
+    long lookups = hitCount + misses.sum();
+    long signCount = signings.sum();
+    return new JsonObject()
+        .put("size", size())
+        .put("maxEntries", maxEntries)
+        .put("minRemainingSeconds", minRemainingMillis / 1000)
+        .put("hits", hitCount)
+        .put("misses", misses.sum())
+        .put("bypassed", bypassed.sum())
+        .put("hitRate", lookups == 0 ? 0.0 : (double) hitCount / lookups)
+        .put("evictions", evictions.sum())
+        .put("signings", signCount)
+        .put("signingAvgMicros", signCount == 0 ? 0.0 : signingNanos.sum() / 1000.0 / signCount)
+        .put("signingMaxMicros", maxSigningNanos.get() / 1000.0);
+  }
+
+}
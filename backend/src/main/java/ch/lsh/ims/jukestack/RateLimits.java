@@ -0,0 +1,59 @@
+package ch.lsh.ims.jukestack;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.lsh.ims.jukestack.TokenBucketLimiter.Budget;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The rate limiters of all routes by name, shared by every verticle instance
+ * so a client cannot multiply its budget by hitting different event loops.
+ */
+public class RateLimits {
+
+  private final int maxKeys;
+  private final Duration idleTimeout;
+  private final Map<String, TokenBucketLimiter> limiters = new ConcurrentHashMap<>();
+  private final AtomicBoolean started = new AtomicBoolean();
+
+  /**
+   * @param maxKeys     Maximum number of tracked keys per limiter
+   * @param idleTimeout How long a full bucket is kept before it is evicted
+   */
+  public RateLimits(int maxKeys, Duration idleTimeout) {
+    this.maxKeys = maxKeys;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Returns the limiter with the name, the first caller creates it with the
+   * budget
+   */
+  public TokenBucketLimiter limiter(String name, Budget budget) {
+    return limiters.computeIfAbsent(name, key -> new TokenBucketLimiter(key, budget, maxKeys));
+  }
+
+  /**
+   * Starts evicting idle buckets, further calls do nothing
+   */
+  public void start(Vertx vertx) {
+    if (!started.compareAndSet(false, true))
+      return;
+    long idleNanos = idleTimeout.toNanos();
+    vertx.setPeriodic(idleTimeout.toMillis(), id -> {
+      for (TokenBucketLimiter limiter : limiters.values())
+        limiter.evictIdle(idleNanos);
+    });
+  }
+
+  public JsonObject stats() {
+    JsonObject stats = new JsonObject();
+    limiters.forEach((name, limiter) -> stats.put(name, limiter.stats()));
+    return stats;
+  }
+
+}
@@ -0,0 +1,129 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Lists all objects of a bucket page by page. The next page is only requested
+ * once the previous one was consumed, so a paused stream keeps at most one
+ * page in memory. All handlers are called on the context the stream was
+ * created on.
+ */
+public class S3ObjectStream implements ReadStream<S3Object> {
+
+    private final Context context;
+    private final Function<String, CompletableFuture<ListObjectsV2Response>> pageFetcher;
+
+    private final ArrayDeque<S3Object> buffer = new ArrayDeque<>();
+    private String continuationToken;
+    private boolean lastPage;
+    private boolean fetching;
+    private boolean ended;
+    private boolean draining;
+    private long demand = Long.MAX_VALUE;
+
+    private Handler<S3Object> handler;
+    private Handler<Throwable> exceptionHandler;
+    private Handler<Void> endHandler;
+
+    /**
+     * @param pageFetcher Fetches the page for a continuation token, null for the
+     *                    first page
+     */
+    public S3ObjectStream(Context context, Function<String, CompletableFuture<ListObjectsV2Response>> pageFetcher) {
+        this.context = context;
+        this.pageFetcher = pageFetcher;
+    }
+
+    @Override
+    public S3ObjectStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public S3ObjectStream handler(Handler<S3Object> handler) {
+        this.handler = handler;
+        if (handler != null)
+            context.runOnContext(v -> drain());
+        return this;
+    }
+
+    @Override
+    public S3ObjectStream pause() {
+        demand = 0;
+        return this;
+    }
+
+    @Override
+    public S3ObjectStream resume() {
+        return fetch(Long.MAX_VALUE);
+    }
+
+    @Override
+    public S3ObjectStream fetch(long amount) {
+        if (amount > 0) {
+            demand = Long.MAX_VALUE - demand < amount ? Long.MAX_VALUE : demand + amount;
+            context.runOnContext(v -> drain());
+        }
+        return this;
+    }
+
+    @Override
+    public S3ObjectStream endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+
+    private void drain() {
+        if (draining || ended || handler == null)
+            return;
+        draining = true;
+        try {
+            while (demand > 0 && !buffer.isEmpty()) {
+                if (demand != Long.MAX_VALUE)
+                    demand--;
+                handler.handle(buffer.poll());
+            }
+        } finally {
+            draining = false;
+        }
+
+        if (!buffer.isEmpty() || fetching)
+            return;
+        if (lastPage) {
+            ended = true;
+            if (endHandler != null)
+                endHandler.handle(null);
+        } else if (demand > 0) {
+            fetchPage();
+        }
+    }
+
+    private void fetchPage() {
+        fetching = true;
+        Future.fromCompletionStage(pageFetcher.apply(continuationToken), context).onComplete(ar -> {
+            fetching = false;
+            if (ar.failed()) {
+                ended = true;
+                if (exceptionHandler != null)
+                    exceptionHandler.handle(ar.cause());
+                return;
+            }
+            ListObjectsV2Response page = ar.result();
+            buffer.addAll(page.contents());
+            continuationToken = page.nextContinuationToken();
+            lastPage = !Boolean.TRUE.equals(page.isTruncated()) || continuationToken == null;
+            drain();
+        });
+    }
+
+}
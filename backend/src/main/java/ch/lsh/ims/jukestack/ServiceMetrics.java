@@ -0,0 +1,152 @@
+package ch.lsh.ims.jukestack;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Request, event loop and business metrics of all verticle instances, exported
+ * by the metrics handler. Routes are labeled with their declared path, e.g.
+ * /api/lend/:id, and methods outside the standard ones share one label, so the
+ * number of series stays bounded.
+ */
+public class ServiceMetrics {
+
+  /**
+   * Label of the requests no route with a path handled, e.g. a 404
+   */
+  public static final String OTHER_ROUTE = "other";
+  /**
+   * Label of the requests with a method Vert.x has no constant for, any token
+   * is accepted
+   */
+  public static final String OTHER_METHOD = "other";
+
+  private static final Set<String> METHODS = new HashSet<>();
+
+  static {
+    for (HttpMethod method : HttpMethod.values())
+      METHODS.add(method.name());
+  }
+
+  private static final double[] LAG_SECONDS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1 };
+
+  public static final class RouteMetrics {
+    private final Histogram latency = new Histogram(Histogram.LATENCY_SECONDS);
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    public Histogram getLatency() {
+      return latency;
+    }
+
+    /**
+     * Responses per status code
+     */
+    public Map<Integer, LongAdder> getStatuses() {
+      return statuses;
+    }
+  }
+
+  public static final class EventLoopLag {
+    private final Histogram lag = new Histogram(LAG_SECONDS);
+    private volatile long lastNanos;
+
+    public Histogram getLag() {
+      return lag;
+    }
+
+    public double getLastSeconds() {
+      return lastNanos / 1e9;
+    }
+  }
+
+  /**
+   * Keyed by method and route path
+   */
+  private final Map<String, Map<String, RouteMetrics>> routes = new ConcurrentHashMap<>();
+  /**
+   * Keyed by event loop thread
+   */
+  private final Map<String, EventLoopLag> eventLoops = new ConcurrentHashMap<>();
+
+  private final LongAdder lends = new LongAdder();
+  private final LongAdder logins = new LongAdder();
+  private final LongAdder failedLogins = new LongAdder();
+
+  /**
+   * Handler to install first on the router, times every request until the
+   * response is written
+   */
+  public Handler<RoutingContext> routeTimer() {
+    return context -> {
+      long start = System.nanoTime();
+      context.addEndHandler(ar -> {
+        long nanos = System.nanoTime() - start;
+        Route route = context.currentRoute();
+        String path = route == null || route.getPath() == null ? OTHER_ROUTE : route.getPath();
+        String method = context.request().method().name();
+        RouteMetrics metrics = routes.computeIfAbsent(METHODS.contains(method) ? method : OTHER_METHOD,
+            key -> new ConcurrentHashMap<>()).computeIfAbsent(path, key -> new RouteMetrics());
+        metrics.latency.record(nanos);
+        metrics.statuses.computeIfAbsent(context.response().getStatusCode(), status -> new LongAdder()).increment();
+      });
+      context.next();
+    };
+  }
+
+  /**
+   * Measures how late a periodic timer fires on the caller's event loop, call
+   * it once per verticle instance
+   */
+  public void probeEventLoop(Vertx vertx, Duration interval) {
+    long intervalNanos = interval.toNanos();
+    long[] expected = { System.nanoTime() + intervalNanos };
+    vertx.setPeriodic(interval.toMillis(), id -> {
+      long lag = Math.max(0, System.nanoTime() - expected[0]);
+      expected[0] += intervalNanos;
+      EventLoopLag loop = eventLoops.computeIfAbsent(Thread.currentThread().getName(), name -> new EventLoopLag());
+      loop.lag.record(lag);
+      loop.lastNanos = lag;
+    });
+  }
+
+  public void lent() {
+    lends.increment();
+  }
+
+  public void loggedIn(boolean succeeded) {
+    (succeeded ? logins : failedLogins).increment();
+  }
+
+  /**
+   * Route metrics keyed by method, then by route path
+   */
+  public Map<String, Map<String, RouteMetrics>> getRoutes() {
+    return routes;
+  }
+
+  public Map<String, EventLoopLag> getEventLoops() {
+    return eventLoops;
+  }
+
+  public long getLends() {
+    return lends.sum();
+  }
+
+  public long getLogins() {
+    return logins.sum();
+  }
+
+  public long getFailedLogins() {
+    return failedLogins.sum();
+  }
+}
@@ -0,0 +1,209 @@
+package ch.lsh.ims.jukestack;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Bounded, TTL-aware cache of session lookups keyed by the hashed session
+ * token. Invalid tokens are cached as well (negative caching) and concurrent
+ * lookups of the same token share a single database query.
+ */
+public class SessionCache {
+
+  /**
+   * Result of a session lookup. A session without a user marks an invalid or
+   * expired token.
+   */
+  public static final class CachedSession {
+    private final SessionUser user;
+    private final long expiresAt;
+
+    private CachedSession(SessionUser user, long expiresAt) {
+      this.user = user;
+      this.expiresAt = expiresAt;
+    }
+
+    public SessionUser getUser() {
+      return user;
+    }
+
+    public boolean isValid() {
+      return user != null;
+    }
+  }
+
+  private final int maxEntries;
+  private final long positiveTtlMillis;
+  private final long negativeTtlMillis;
+
+  private final Map<String, CachedSession> entries;
+  private final Map<String, Future<CachedSession>> inFlight = new ConcurrentHashMap<>();
+  // Bumped on every invalidation so lookups started before it are not cached
+  private final AtomicLong generation = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder negativeHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxEntries  Maximum number of cached tokens, least recently used
+   *                    entries are evicted first
+   * @param positiveTtl How long a valid session is trusted without asking the
+   *                    database, never longer than the session itself
+   * @param negativeTtl How long an invalid token is remembered
+   */
+  public SessionCache(int maxEntries, Duration positiveTtl, Duration negativeTtl) {
+    this.maxEntries = maxEntries;
+    this.positiveTtlMillis = positiveTtl.toMillis();
+    this.negativeTtlMillis = negativeTtl.toMillis();
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+        if (size() > SessionCache.this.maxEntries) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Creates a cache entry for a valid session.
+   *
+   * @param remainingSeconds Seconds until the session expires in the database
+   */
+  public CachedSession valid(SessionUser user, long remainingSeconds) {
+    long ttl = Math.min(positiveTtlMillis, remainingSeconds * 1000);
+    return new CachedSession(user, System.currentTimeMillis() + ttl);
+  }
+
+  /**
+   * Creates a cache entry for an invalid or expired token.
+   */
+  public CachedSession invalid() {
+    return new CachedSession(null, System.currentTimeMillis() + negativeTtlMillis);
+  }
+
+  /**
+   * Returns the cached session for the token hash or loads it with the given
+   * loader. Concurrent calls for the same token while a load is running share
+   * its result.
+   *
+   * @param tokenHash The hashed session token
+   * @param loader    Loads the session from the database
+   */
+  public Future<CachedSession> get(String tokenHash, Function<String, Future<CachedSession>> loader) {
+    CachedSession cached = lookup(tokenHash);
+    if (cached != null) {
+      if (cached.isValid())
+        hits.increment();
+      else
+        negativeHits.increment();
+      return Future.succeededFuture(cached);
+    }
+
+    Promise<CachedSession> promise = Promise.promise();
+    Future<CachedSession> running = inFlight.putIfAbsent(tokenHash, promise.future());
+    if (running != null) {
+      coalesced.increment();
+      // The load may belong to another verticle instance
+      return Util.onCallerContext(running);
+    }
+
+    misses.increment();
+    long startGeneration = generation.get();
+    loader.apply(tokenHash).onComplete(ar -> {
+      if (ar.succeeded() && generation.get() == startGeneration) {
+        synchronized (entries) {
+          entries.put(tokenHash, ar.result());
+        }
+      }
+      inFlight.remove(tokenHash, promise.future());
+      promise.handle(ar);
+    });
+    return promise.future();
+  }
+
+  private CachedSession lookup(String tokenHash) {
+    synchronized (entries) {
+      CachedSession cached = entries.get(tokenHash);
+      if (cached == null)
+        return null;
+      if (cached.expiresAt <= System.currentTimeMillis()) {
+        entries.remove(tokenHash);
+        return null;
+      }
+      return cached;
+    }
+  }
+
+  /**
+   * Removes a single session token from the cache.
+   */
+  public void invalidate(String tokenHash) {
+    generation.incrementAndGet();
+    inFlight.remove(tokenHash);
+    synchronized (entries) {
+      entries.remove(tokenHash);
+    }
+  }
+
+  /**
+   * Removes all cached sessions of a user, e.g. after the users email was
+   * verified or the profile changed.
+   */
+  public void invalidateEmail(String benutzerEmail) {
+    generation.incrementAndGet();
+    synchronized (entries) {
+      Iterator<CachedSession> it = entries.values().iterator();
+      while (it.hasNext()) {
+        SessionUser user = it.next().user;
+        if (user != null && benutzerEmail.equals(user.getEmail()))
+          it.remove();
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getNegativeHits() {
+    return negativeHits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+        .put("size", size())
+        .put("maxEntries", maxEntries)
+        .put("hits", hits.sum())
+        .put("negativeHits", negativeHits.sum())
+        .put("misses", misses.sum())
+        .put("coalesced", coalesced.sum())
+        .put("evictions", evictions.sum());
+  }
+
+}
@@ -0,0 +1,158 @@
+package ch.lsh.ims.jukestack;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Periodically deletes expired sessions and old email verification tokens in
+ * small batches, so neither table grows without limit and no single delete
+ * holds locks for long. Only one node purges at a time: a run starts by taking
+ * a MySQL named lock and is skipped if another node holds it.
+ */
+public class SessionReaper {
+
+  private static final String LOCK_NAME = "jukestack.session-reaper";
+
+  private static final String DELETE_EXPIRED_SESSIONS = """
+      delete from TAuthSessions
+      where sessExpires < now() - interval ? second
+      limit ?
+      """;
+
+  private static final String DELETE_OLD_VERIFICATIONS = """
+      delete from TEmailVerifizierungen
+      where verifizierungErstellt < now() - interval ? second
+      limit ?
+      """;
+
+  private final Vertx vertx;
+  private final Pool dbPool;
+  private final Duration interval;
+  private final Duration sessionRetention;
+  private final Duration verificationRetention;
+  private final int batchSize;
+  private final long batchPauseMillis;
+
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  private final LongAdder runs = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder sessionsPurged = new LongAdder();
+  private final LongAdder verificationsPurged = new LongAdder();
+  private final LongAdder totalMillis = new LongAdder();
+  private volatile long lastRunMillis;
+  private volatile long lastRunAt;
+
+  /**
+   * @param interval              Time between two runs
+   * @param sessionRetention      How long expired sessions are kept
+   * @param verificationRetention How long verification tokens are kept after
+   *                              they were created
+   * @param batchSize             Rows deleted per statement
+   * @param batchPause            Pause between two batches
+   */
+  public SessionReaper(Vertx vertx, Pool dbPool, Duration interval, Duration sessionRetention,
+      Duration verificationRetention, int batchSize, Duration batchPause) {
+    this.vertx = vertx;
+    this.dbPool = dbPool;
+    this.interval = interval;
+    this.sessionRetention = sessionRetention;
+    this.verificationRetention = verificationRetention;
+    this.batchSize = batchSize;
+    this.batchPauseMillis = batchPause.toMillis();
+  }
+
+  /**
+   * Starts the periodic purge, further calls do nothing
+   */
+  public void start() {
+    if (!started.compareAndSet(false, true))
+      return;
+    vertx.setPeriodic(interval.toMillis(), interval.toMillis(), id -> run());
+  }
+
+  /**
+   * Runs one purge unless one is already running on this node
+   *
+   * @return True if this node purged, false if the run was skipped
+   */
+  public Future<Boolean> run() {
+    if (!running.compareAndSet(false, true))
+      return Future.succeededFuture(false);
+
+    long start = System.currentTimeMillis();
+    return dbPool.withConnection(conn -> conn.query("select get_lock('" + LOCK_NAME + "', 0) locked").execute()
+        .compose(rows -> {
+          Integer locked = rows.iterator().next().getInteger("locked");
+          if (locked == null || locked != 1) {
+            skipped.increment();
+            return Future.succeededFuture(false);
+          }
+
+          return purge(conn, DELETE_EXPIRED_SESSIONS, sessionRetention, sessionsPurged)
+              .compose(v -> purge(conn, DELETE_OLD_VERIFICATIONS, verificationRetention, verificationsPurged))
+              .eventually(() -> conn.query("select release_lock('" + LOCK_NAME + "')").execute())
+              .map(v -> {
+                runs.increment();
+                lastRunMillis = System.currentTimeMillis() - start;
+                lastRunAt = start;
+                totalMillis.add(lastRunMillis);
+                return true;
+              });
+        }))
+        .onFailure(err -> {
+          failures.increment();
+          System.err.println("Error while purging sessions: " + err.getMessage());
+        })
+        .onComplete(ar -> running.set(false));
+  }
+
+  /**
+   * Deletes batches until one deletes less than a full batch, pausing between
+   * them so other queries get the table in between
+   */
+  private Future<Void> purge(SqlConnection conn, String query, Duration retention, LongAdder purged) {
+    Promise<Void> promise = Promise.promise();
+    purgeBatch(conn, query, retention, purged, promise);
+    return promise.future();
+  }
+
+  private void purgeBatch(SqlConnection conn, String query, Duration retention, LongAdder purged,
+      Promise<Void> promise) {
+    conn.preparedQuery(query)
+        .execute(Tuple.of(retention.toSeconds(), batchSize))
+        .onFailure(promise::fail)
+        .onSuccess(res -> {
+          purged.add(res.rowCount());
+          if (res.rowCount() < batchSize) {
+            promise.complete();
+            return;
+          }
+          vertx.setTimer(Math.max(1, batchPauseMillis), id -> purgeBatch(conn, query, retention, purged, promise));
+        });
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+        .put("runs", runs.sum())
+        .put("skipped", skipped.sum())
+        .put("failures", failures.sum())
+        .put("sessionsPurged", sessionsPurged.sum())
+        .put("verificationsPurged", verificationsPurged.sum())
+        .put("totalMillis", totalMillis.sum())
+        .put("lastRunMillis", lastRunMillis)
+        .put("lastRunAt", lastRunAt);
+  }
+
+}
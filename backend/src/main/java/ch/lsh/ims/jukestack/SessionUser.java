@@ -0,0 +1,42 @@
+package ch.lsh.ims.jukestack;
+
+/**
+ * The authenticated user of a request, resolved from the session cookie
+ */
+public final class SessionUser {
+
+  private final String email;
+  private final String nachname;
+  private final String vorname;
+  private final boolean admin;
+  private final boolean emailVerified;
+
+  public SessionUser(String email, String nachname, String vorname, boolean admin, boolean emailVerified) {
+    this.email = email;
+    this.nachname = nachname;
+    this.vorname = vorname;
+    this.admin = admin;
+    this.emailVerified = emailVerified;
+  }
+
+  public String getEmail() {
+    return email;
+  }
+
+  public String getNachname() {
+    return nachname;
+  }
+
+  public String getVorname() {
+    return vorname;
+  }
+
+  public boolean isAdmin() {
+    return admin;
+  }
+
+  public boolean isEmailVerified() {
+    return emailVerified;
+  }
+
+}
@@ -0,0 +1,208 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import ch.lsh.ims.jukestack.handlers.AvailabilityIndex;
+import ch.lsh.ims.jukestack.handlers.SongCatalog;
+import ch.lsh.ims.jukestack.handlers.SongSearchIndex;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.sqlclient.Pool;
+
+/**
+ * State that exists once per Vert.x instance and is used by every deployed
+ * MainVerticle instance. Keeping the caches here means an invalidation on one
+ * event loop is seen by all of them. The resources live in a verticle of their
+ * own, so their pool, timers and sockets do not belong to whichever
+ * MainVerticle instance came first and stay up until the last one released
+ * them.
+ */
+public class SharedResources implements Shareable {
+
+  private static final String MAP_NAME = "jukestack.shared";
+  private static final String KEY = "resources";
+
+  // Reference count and owner deployment of the resources of a Vert.x instance
+  private static final class Holder implements Shareable {
+    private final Promise<SharedResources> resources = Promise.promise();
+    private Future<String> deployment;
+    private int references;
+  }
+
+  /**
+   * Creates the pool and the resources on its context and starts the background
+   * jobs, undeploying it closes all of them
+   */
+  private static final class Owner extends AbstractVerticle {
+    private final Holder holder;
+    private final Supplier<Pool> poolFactory;
+    private final Function<Pool, SharedResources> factory;
+    private Pool dbPool;
+
+    Owner(Holder holder, Supplier<Pool> poolFactory, Function<Pool, SharedResources> factory) {
+      this.holder = holder;
+      this.poolFactory = poolFactory;
+      this.factory = factory;
+    }
+
+    @Override
+    public void start() {
+      dbPool = poolFactory.get();
+      SharedResources resources = factory.apply(dbPool);
+      resources.start(vertx);
+      holder.resources.complete(resources);
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+      if (dbPool == null)
+        stopPromise.complete();
+      else
+        dbPool.close().onComplete(stopPromise);
+    }
+  }
+
+  private final CloudflareR2Client r2Client;
+  private final SessionCache sessionCache;
+  private final SongCatalog songCatalog;
+  private final KdfExecutor kdfExecutor;
+  private final SessionReaper sessionReaper;
+  private final MailOutbox mailOutbox;
+  private final RateLimits rateLimits;
+  private final SongSearchIndex songSearchIndex;
+  private final AvailabilityIndex availabilityIndex;
+  private final ClusterInvalidation invalidation;
+  private final ServiceMetrics metrics;
+
+  public SharedResources(CloudflareR2Client r2Client, SessionCache sessionCache, SongCatalog songCatalog,
+      KdfExecutor kdfExecutor, SessionReaper sessionReaper, MailOutbox mailOutbox, RateLimits rateLimits,
+      SongSearchIndex songSearchIndex, AvailabilityIndex availabilityIndex, ClusterInvalidation invalidation,
+      ServiceMetrics metrics) {
+    this.r2Client = r2Client;
+    this.sessionCache = sessionCache;
+    this.songCatalog = songCatalog;
+    this.kdfExecutor = kdfExecutor;
+    this.sessionReaper = sessionReaper;
+    this.mailOutbox = mailOutbox;
+    this.rateLimits = rateLimits;
+    this.songSearchIndex = songSearchIndex;
+    this.availabilityIndex = availabilityIndex;
+    this.invalidation = invalidation;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the shared resources of the Vert.x instance and counts a reference,
+   * call {@link #release(Vertx)} once they are no longer used. The first caller
+   * deploys the verticle that creates them: it opens the pool with
+   * poolFactory and passes it to factory. Completes on the caller's context.
+   *
+   * @param poolFactory Null for resources without a database
+   */
+  public static Future<SharedResources> acquire(Vertx vertx, Supplier<Pool> poolFactory,
+      Function<Pool, SharedResources> factory) {
+    LocalMap<String, Holder> map = vertx.sharedData().getLocalMap(MAP_NAME);
+    Holder holder = map.computeIfAbsent(KEY, key -> new Holder());
+    synchronized (holder) {
+      if (holder.references++ == 0) {
+        Owner owner = new Owner(holder, poolFactory == null ? () -> null : poolFactory, factory);
+        // Deployed from a thread outside Vert.x, from a verticle it would be a child that is
+        // undeployed together with the first instance
+        Promise<String> deployment = Promise.promise();
+        CompletableFuture.runAsync(() -> vertx.deployVerticle(owner).onComplete(deployment));
+        holder.deployment = deployment.future().onFailure(holder.resources::tryFail);
+      }
+    }
+    Context context = vertx.getOrCreateContext();
+    Promise<SharedResources> promise = Promise.promise();
+    holder.resources.future().onComplete(ar -> context.runOnContext(v -> promise.handle(ar)));
+    return promise.future();
+  }
+
+  /**
+   * Drops a reference taken by {@link #acquire}, the last one stops the
+   * background jobs and closes the pool
+   */
+  public static Future<Void> release(Vertx vertx) {
+    LocalMap<String, Holder> map = vertx.sharedData().getLocalMap(MAP_NAME);
+    Holder holder = map.get(KEY);
+    if (holder == null)
+      return Future.succeededFuture();
+    Future<String> deployment;
+    synchronized (holder) {
+      if (--holder.references > 0)
+        return Future.succeededFuture();
+      map.remove(KEY, holder);
+      deployment = holder.deployment;
+    }
+    return deployment.compose(vertx::undeploy, err -> Future.succeededFuture());
+  }
+
+  // Runs on the context of the owner, the timers and sockets belong to it
+  private void start(Vertx vertx) {
+    if (sessionReaper != null)
+      sessionReaper.start();
+    if (mailOutbox != null)
+      mailOutbox.start();
+    if (rateLimits != null)
+      rateLimits.start(vertx);
+    if (availabilityIndex != null)
+      availabilityIndex.start();
+    if (songSearchIndex != null)
+      songSearchIndex.start();
+    if (invalidation != null)
+      invalidation.start();
+  }
+
+  public CloudflareR2Client getR2Client() {
+    return r2Client;
+  }
+
+  public SessionCache getSessionCache() {
+    return sessionCache;
+  }
+
+  public SongCatalog getSongCatalog() {
+    return songCatalog;
+  }
+
+  public KdfExecutor getKdfExecutor() {
+    return kdfExecutor;
+  }
+
+  public SessionReaper getSessionReaper() {
+    return sessionReaper;
+  }
+
+  public MailOutbox getMailOutbox() {
+    return mailOutbox;
+  }
+
+  public RateLimits getRateLimits() {
+    return rateLimits;
+  }
+
+  public SongSearchIndex getSongSearchIndex() {
+    return songSearchIndex;
+  }
+
+  public AvailabilityIndex getAvailabilityIndex() {
+    return availabilityIndex;
+  }
+
+  public ClusterInvalidation getInvalidation() {
+    return invalidation;
+  }
+
+  public ServiceMetrics getMetrics() {
+    return metrics;
+  }
+
+}
@@ -0,0 +1,205 @@
+package ch.lsh.ims.jukestack;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Token bucket per key, e.g. per IP or per email. Each bucket is a single
+ * AtomicLong holding the time at which it would be full again (the GCRA form
+ * of a token bucket), so taking a token is one CAS and allocates nothing for
+ * keys that were seen before. Buckets that are full anyway are dropped by
+ * {@link #evictIdle(long)}. A new key never shares a bucket: while the map is
+ * full a few buckets are sampled and the one closest to full makes room.
+ */
+public class TokenBucketLimiter {
+
+  /**
+   * capacity tokens, refilled evenly over period
+   */
+  public static final class Budget {
+    private final int capacity;
+    private final Duration period;
+
+    public Budget(int capacity, Duration period) {
+      if (capacity < 1 || period.isNegative() || period.isZero())
+        throw new IllegalArgumentException("Invalid rate limit budget");
+      this.capacity = capacity;
+      this.period = period;
+    }
+
+    /**
+     * Parses {@code <tokens>/<seconds>}, e.g. {@code 10/60}
+     */
+    public static Budget parse(String value) {
+      int slash = value.indexOf('/');
+      if (slash < 0)
+        throw new IllegalArgumentException("Invalid rate limit budget: " + value);
+      return new Budget(Integer.parseInt(value.substring(0, slash).trim()),
+          Duration.ofSeconds(Long.parseLong(value.substring(slash + 1).trim())));
+    }
+
+    public int getCapacity() {
+      return capacity;
+    }
+
+    public Duration getPeriod() {
+      return period;
+    }
+
+    @Override
+    public String toString() {
+      return capacity + "/" + period.toSeconds();
+    }
+  }
+
+  // Holds the time in nanos at which the bucket is full again
+  private static final class Bucket extends AtomicLong {
+    Bucket(long full) {
+      super(full);
+    }
+  }
+
+  // Buckets looked at to make room for a new key
+  private static final int EVICTION_SAMPLE = 16;
+
+  private final String name;
+  private final Budget budget;
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final int maxKeys;
+  private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+  private final LongAdder allowed = new LongAdder();
+  private final LongAdder limited = new LongAdder();
+  private final LongAdder displaced = new LongAdder();
+  private final LongAdder evicted = new LongAdder();
+
+  /**
+   * @param maxKeys Maximum number of tracked keys, further keys displace the
+   *                bucket that is closest to full
+   */
+  public TokenBucketLimiter(String name, Budget budget, int maxKeys) {
+    this.name = name;
+    this.budget = budget;
+    this.intervalNanos = budget.period.toNanos() / budget.capacity;
+    this.burstNanos = intervalNanos * budget.capacity;
+    this.maxKeys = maxKeys;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Budget getBudget() {
+    return budget;
+  }
+
+  /**
+   * Takes a token from the bucket of the key
+   *
+   * @return 0 if a token was taken, otherwise the nanos until the next one is
+   *         available
+   */
+  public long acquire(String key) {
+    return acquire(key, System.nanoTime());
+  }
+
+  long acquire(String key, long now) {
+    Bucket bucket = buckets.get(key);
+    if (bucket == null)
+      bucket = newBucket(key, now);
+
+    while (true) {
+      long full = bucket.get();
+      long next = Math.max(full, now) + intervalNanos;
+      long wait = next - now - burstNanos;
+      if (wait > 0) {
+        limited.increment();
+        return wait;
+      }
+      if (bucket.compareAndSet(full, next)) {
+        allowed.increment();
+        return 0;
+      }
+    }
+  }
+
+  private Bucket newBucket(String key, long now) {
+    if (buckets.size() >= maxKeys)
+      makeRoom(now);
+    return buckets.computeIfAbsent(key, k -> new Bucket(now));
+  }
+
+  /**
+   * Removes a bucket among the first few of the map. A full one is removed
+   * without loss, otherwise the one that refills first, whose key gets a
+   * little more than its budget. Sharing a bucket instead would let anyone
+   * spraying new keys lock out every other new key.
+   */
+  private void makeRoom(long now) {
+    Map.Entry<String, Bucket> victim = null;
+    int sampled = 0;
+    for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+      long full = entry.getValue().get();
+      if (full <= now) {
+        if (buckets.remove(entry.getKey(), entry.getValue())) {
+          evicted.increment();
+          return;
+        }
+        continue;
+      }
+      if (victim == null || full < victim.getValue().get())
+        victim = entry;
+      if (++sampled == EVICTION_SAMPLE)
+        break;
+    }
+    if (victim != null && buckets.remove(victim.getKey(), victim.getValue()))
+      displaced.increment();
+  }
+
+  /**
+   * Removes buckets that have been full for at least idleNanos, they behave
+   * exactly like a new bucket
+   *
+   * @return Number of removed buckets
+   */
+  public int evictIdle(long idleNanos) {
+    return evictIdle(idleNanos, System.nanoTime());
+  }
+
+  int evictIdle(long idleNanos, long now) {
+    int removed = 0;
+    for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+      long full = entry.getValue().get();
+      if (now - full >= idleNanos && buckets.remove(entry.getKey(), entry.getValue()))
+        removed++;
+    }
+    evicted.add(removed);
+    return removed;
+  }
+
+  /**
+   * Converts a wait returned by {@link #acquire(String)} into whole seconds for
+   * a Retry-After header
+   */
+  public static long retryAfterSeconds(long waitNanos) {
+    return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+        .put("budget", budget.toString())
+        .put("keys", buckets.size())
+        .put("allowed", allowed.sum())
+        .put("limited", limited.sum())
+        .put("displaced", displaced.sum())
+        .put("evicted", evicted.sum());
+  }
+
+}
@@ -1,47 +1,88 @@
 package ch.lsh.ims.jukestack;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.Arrays;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
 
 public class Util {
 
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  // Value of each ASCII character as a hex digit, -1 for anything else
+  private static final byte[] HEX_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(HEX_VALUES, (byte) -1);
+    for (int i = 0; i < 10; i++)
+      HEX_VALUES['0' + i] = (byte) i;
+    for (int i = 0; i < 6; i++) {
+      HEX_VALUES['a' + i] = (byte) (10 + i);
+      HEX_VALUES['A' + i] = (byte) (10 + i);
+    }
+  }
+
   public static String bytesToHex(byte[] bytes) {
-    StringBuilder sb = new StringBuilder();
-    for (byte b : bytes) {
-      String hex = Integer.toHexString(0xff & b);
-      if (hex.length() == 1)
-        sb.append('0');
-      sb.append(hex);
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int b = bytes[i] & 0xff;
+      hex[i * 2] = HEX_DIGITS[b >>> 4];
+      hex[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
     }
-    return sb.toString();
+    return new String(hex);
   }
 
+  /**
+   * @throws IllegalArgumentException If the string is not valid hex
+   */
   public static byte[] hexToBytes(String hex) {
-    int length = hex.length();
-    byte[] data = new byte[length / 2];
-    for (int i = 0; i < length; i += 2) {
-      data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4) + Character.digit(hex.charAt(i + 1), 16));
-    }
+    byte[] data = new byte[hex.length() / 2];
+    if (!hexToBytes(hex, data))
+      throw new IllegalArgumentException("Invalid hex string");
     return data;
   }
 
-  public static String generateValidationMail(String vorname, String nachname, String verifyUrl) {
-      String template;
-      long start = System.currentTimeMillis();
-      try {
-        template = new String(Files.readAllBytes(Paths.get("/app/verify-mail.html")));
-      } catch (IOException e) {
-        e.printStackTrace();
-        return null;
-      }
-      System.out.println("Reading email file took: " + (System.currentTimeMillis() - start) + "ms");
-      long start2 = System.currentTimeMillis();
-      String name = vorname + " " + nachname;
-      template = template.replace("{{name}}", name);
-      template = template.replace("verifyUrl", verifyUrl);
-      System.out.println("Replacing email variables took: " + (System.currentTimeMillis() - start2) + "ms");
-      return template;
+  /**
+   * Decodes hex into an existing buffer without allocating.
+   *
+   * @return False if the string is not valid hex of exactly out.length bytes
+   */
+  public static boolean hexToBytes(CharSequence hex, byte[] out) {
+    if (hex.length() != out.length * 2)
+      return false;
+    for (int i = 0; i < out.length; i++) {
+      int high = hexValue(hex.charAt(i * 2));
+      int low = hexValue(hex.charAt(i * 2 + 1));
+      if ((high | low) < 0)
+        return false;
+      out[i] = (byte) ((high << 4) | low);
+    }
+    return true;
+  }
+
+  private static int hexValue(char c) {
+    return c < 128 ? HEX_VALUES[c] : -1;
+  }
+
+  /**
+   * Delivers the result of a future that may be shared with other verticle
+   * instances on the context of the caller, so handlers keep running on their
+   * own event loop.
+   */
+  public static <T> Future<T> onCallerContext(Future<T> future) {
+    Context context = Vertx.currentContext();
+    if (context == null)
+      return future;
+
+    Promise<T> promise = Promise.promise();
+    future.onComplete(ar -> {
+      if (Vertx.currentContext() == context)
+        promise.handle(ar);
+      else
+        context.runOnContext(v -> promise.handle(ar));
+    });
+    return promise.future();
   }
 
 }
\ No newline at end of file
@@ -1,12 +1,17 @@
 package ch.lsh.ims.jukestack.handlers;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
 import ch.lsh.ims.jukestack.AuthenticationManager;
-import io.vertx.core.Future;
-import io.vertx.core.Promise;
-import io.vertx.core.http.Cookie;
+import ch.lsh.ims.jukestack.CloudflareR2Client;
+import ch.lsh.ims.jukestack.ClusterInvalidation;
+import ch.lsh.ims.jukestack.DbPoolConfig;
+import ch.lsh.ims.jukestack.DbPoolMetrics;
+import ch.lsh.ims.jukestack.MailOutbox;
+import ch.lsh.ims.jukestack.RateLimits;
+import ch.lsh.ims.jukestack.SessionReaper;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
@@ -14,94 +19,121 @@ import io.vertx.sqlclient.Pool;
 import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.Tuple;
 
+/**
+ * Admin routes, access is checked by the {@link AuthHandler#admin} stage in
+ * front of them
+ */
 public class AdminHandler {
 
     private final Pool dbPool;
     private final AuthenticationManager authManager;
-
-    public AdminHandler(Pool dbPool, AuthenticationManager authManager) {
+    private final SongCatalog catalog;
+    private final AvailabilityIndex availability;
+    private final CloudflareR2Client r2Client;
+    private final DbPoolConfig poolConfig;
+    private final DbPoolMetrics poolMetrics;
+    private final SessionReaper sessionReaper;
+    private final MailOutbox mailOutbox;
+    private final RateLimits rateLimits;
+    private final SongSearchIndex searchIndex;
+    private final AvailabilityFeed feed;
+    private final ClusterInvalidation invalidation;
+    private final int fetchSize;
+    private final Duration streamStallTimeout;
+    private final KeysetPage.Limits pageLimits;
+
+    /**
+     * @param poolMetrics        Live pool metrics, null if Vert.x runs without
+     *                           metrics
+     * @param feed               Availability feed of this verticle instance
+     * @param fetchSize          Rows fetched per round trip by the streamed
+     *                           listings
+     * @param streamStallTimeout How long a streamed listing waits for a client
+     *                           that does not read
+     */
+    public AdminHandler(Pool dbPool, AuthenticationManager authManager, SongCatalog catalog,
+            AvailabilityIndex availability, CloudflareR2Client r2Client, DbPoolConfig poolConfig,
+            DbPoolMetrics poolMetrics, SessionReaper sessionReaper, MailOutbox mailOutbox, RateLimits rateLimits,
+            SongSearchIndex searchIndex, AvailabilityFeed feed, ClusterInvalidation invalidation, int fetchSize,
+            Duration streamStallTimeout, KeysetPage.Limits pageLimits) {
         this.dbPool = dbPool;
         this.authManager = authManager;
+        this.catalog = catalog;
+        this.availability = availability;
+        this.r2Client = r2Client;
+        this.poolConfig = poolConfig;
+        this.poolMetrics = poolMetrics;
+        this.sessionReaper = sessionReaper;
+        this.mailOutbox = mailOutbox;
+        this.rateLimits = rateLimits;
+        this.searchIndex = searchIndex;
+        this.feed = feed;
+        this.invalidation = invalidation;
+        this.fetchSize = fetchSize;
+        this.streamStallTimeout = streamStallTimeout;
+        this.pageLimits = pageLimits;
     }
 
-    private Future<Boolean> checkAdminAccess(Cookie cookie) {
-        Promise<Boolean> promise = Promise.promise();
-
-        authManager.validateSession(cookie, false)
-                .onFailure(promise::fail)
-                .onSuccess(benutzerEmail -> {
-                    dbPool.preparedQuery(SQLQueries.SELECT_USER_INFO_BY_EMAIL)
-                            .execute(Tuple.of(benutzerEmail))
-                            .onFailure(promise::fail)
-                            .onSuccess(res -> {
-                                if (res.size() == 0) {
-                                    promise.fail(new Throwable("User not found"));
-                                } else {
-                                    Row user = res.iterator().next();
-                                    boolean isAdmin = user.getBoolean("benutzerIstAdmin");
-                                    if (isAdmin)
-                                        promise.complete(true);
-                                    else
-                                        promise.fail(new Throwable("User is not an admin"));
-                                }
-                            });
-                });
-
-        return promise.future();
+    /**
+     * Streams the users with a cursor, the list is never held in memory as a
+     * whole. With a limit, cursor or email prefix a page ordered by email is
+     * returned instead, see {@link KeysetPage}.
+     */
+    public void listUsers(RoutingContext context) {
+        if (KeysetPage.requested(context, "email")) {
+            listUsersPage(context);
+            return;
+        }
+        JsonArrayStream.query(dbPool, SQLQueries.SELECT_ALL_USERS, Tuple.tuple(), fetchSize, streamStallTimeout,
+                AdminHandler::buildUserJson, context.response());
     }
 
-    public void listUsers(RoutingContext context) {
-        Cookie sessionCookie = context.request().getCookie("__session");
-
-        checkAdminAccess(sessionCookie)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized or no admin"))
-                .onSuccess(isAdmin -> {
-                    dbPool.preparedQuery(SQLQueries.SELECT_ALL_USERS)
-                            .execute()
-                            .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-                            .onSuccess(rows -> {
-                                JsonArray users = new JsonArray();
-                                for (Row row : rows) {
-                                    JsonObject user = new JsonObject();
-                                    user.put("email", row.getString("benutzerEmail"));
-                                    user.put("nachname", row.getString("benutzerNachname"));
-                                    user.put("vorname", row.getString("benutzerVorname"));
-                                    user.put("admin", row.getBoolean("benutzerIstAdmin"));
-                                    users.add(user);
-                                }
-
-                                context.response().end(users.encode());
-                            });
+    private void listUsersPage(RoutingContext context) {
+        KeysetPage page;
+        StringBuilder sql = new StringBuilder(SQLQueries.SELECT_USERS_PAGE);
+        Tuple params = Tuple.tuple();
+        try {
+            page = pageLimits.parse(context, "users");
+            params.addString(page.getAfter() == null ? "" : page.getAfter());
+
+            String email = context.request().getParam("email");
+            if (email != null) {
+                sql.append(SQLQueries.USER_EMAIL_PREFIX);
+                params.addString(KeysetPage.likePrefix(email.toLowerCase().trim()));
+            }
+        } catch (IllegalArgumentException e) {
+            context.response().setStatusCode(400).end("Invalid input");
+            return;
+        }
+        sql.append(SQLQueries.ORDER_BY_EMAIL_LIMIT);
+        params.addInteger(page.getFetchSize());
+
+        dbPool.preparedQuery(sql.toString())
+                .execute(params)
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
+                .onSuccess(rowSet -> {
+                    List<Row> rows = new ArrayList<>();
+                    rowSet.forEach(rows::add);
+
+                    JsonArray users = new JsonArray();
+                    for (Row row : page.trim(rows))
+                        users.add(buildUserJson(row));
+                    KeysetPage.putNextCursor(context, page.nextCursor(rows, row -> row.getString("benutzerEmail")));
+                    context.response().end(users.encode());
                 });
     }
 
+    private static JsonObject buildUserJson(Row row) {
+        JsonObject user = new JsonObject();
+        user.put("email", row.getString("benutzerEmail"));
+        user.put("nachname", row.getString("benutzerNachname"));
+        user.put("vorname", row.getString("benutzerVorname"));
+        user.put("admin", row.getBoolean("benutzerIstAdmin"));
+        return user;
+    }
+
     public void listLentSongs(RoutingContext context) {
-        Cookie sessionCookie = context.request().getCookie("__session");
-        String userEmail = context.request().getParam("email");
-
-        checkAdminAccess(sessionCookie)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized or no admin"))
-                .onSuccess(isAdmin -> {
-                    dbPool.preparedQuery(SQLQueries.GET_LENDINGS_FOR_USER)
-                            .execute(Tuple.of(userEmail))
-                            .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                            .onSuccess(rows -> {
-                                if (rows.size() == 0) {
-                                    context.response().end("[]");
-                                    return;
-                                }
-                                List<Integer> songIds = new ArrayList<>();
-                                rows.forEach(row -> songIds.add(row.getInteger("songId")));
-                                String songIdsStr = String.join(",", songIds.stream().map(Object::toString).toList());
-
-                                dbPool.preparedQuery(SQLQueries.GET_MUSICIANS_FOR_SONGS.replace("?", songIdsStr))
-                                        .execute()
-                                        .onFailure(err -> context.response().setStatusCode(500)
-                                                .end("Internal Server Error"))
-                                        .onSuccess(rows2 -> SongHandler.constructLendingsJsonResponse(context, rows,
-                                                rows2));
-                            });
-                });
+        SongHandler.listLendingsOf(dbPool, pageLimits, context, context.request().getParam("email"));
     }
 
     public void updateUserLend(RoutingContext context) {
@@ -113,8 +145,6 @@ public class AdminHandler {
             return;
         }
 
-        Cookie sessionCookie = context.request().getCookie("__session");
-
         JsonObject reqBody = context.body().asJsonObject();
         if (reqBody == null) {
             context.response().setStatusCode(400).end("Invalid input");
@@ -127,18 +157,23 @@ public class AdminHandler {
             return;
         }
 
-        checkAdminAccess(sessionCookie)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized or no admin"))
-                .onSuccess(isAdmin -> dbPool.preparedQuery(SQLQueries.UPDATE_LEND_DAYS_WITH_CHECK)
-                        .execute(Tuple.of(newLendDays, lendId))
-                        .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                        .onSuccess(rows -> {
-                            if (rows.rowCount() == 0) {
-                                context.response().setStatusCode(404).end("Lend not found");
-                                return;
-                            }
-                            context.response().end();
-                        }));
+        dbPool.preparedQuery(SQLQueries.UPDATE_LEND_DAYS_WITH_CHECK)
+                .execute(Tuple.of(newLendDays, lendId))
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(rows -> {
+                    if (rows.rowCount() == 0) {
+                        context.response().setStatusCode(404).end("Lend not found");
+                        return;
+                    }
+                    // The lending ID alone does not tell which song changed
+                    availability.refreshLending(lendId)
+                            .onComplete(ar -> {
+                                catalog.invalidate();
+                                if (ar.succeeded() && ar.result() != null)
+                                    invalidation.broadcast(ClusterInvalidation.Kind.SONG, ar.result().toString());
+                                context.response().end();
+                            });
+                });
     }
 
     public void returnUserLend(RoutingContext context) {
@@ -150,19 +185,42 @@ public class AdminHandler {
             return;
         }
 
-        Cookie sessionCookie = context.request().getCookie("__session");
-
-        checkAdminAccess(sessionCookie)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized or no admin"))
-                .onSuccess(isAdmin -> dbPool.preparedQuery(SQLQueries.RETURN_SONG_ADMIN)
-                        .execute(Tuple.of(lendId))
-                        .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                        .onSuccess(rows -> {
-                            if (rows.rowCount() == 0) {
-                                context.response().setStatusCode(404).end("Lend not found");
-                                return;
-                            }
-                            context.response().end();
-                        }));
+        dbPool.preparedQuery(SQLQueries.RETURN_SONG_ADMIN)
+                .execute(Tuple.of(lendId))
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(rows -> {
+                    if (rows.rowCount() == 0) {
+                        context.response().setStatusCode(404).end("Lend not found");
+                        return;
+                    }
+                    availability.refreshLending(lendId)
+                            .onComplete(ar -> {
+                                catalog.invalidate();
+                                if (ar.succeeded() && ar.result() != null)
+                                    invalidation.broadcast(ClusterInvalidation.Kind.SONG, ar.result().toString());
+                                context.response().end();
+                            });
+                });
+    }
+
+    public void getStats(RoutingContext context) {
+        JsonObject stats = new JsonObject();
+        stats.put("sessionCache", authManager.getSessionCache().stats());
+        stats.put("songCatalog", catalog.stats());
+        stats.put("availability", availability.stats());
+        stats.put("presignCache", r2Client.getPresignCache().stats());
+        stats.put("passwordHashing", authManager.getKdfExecutor().stats());
+        stats.put("reaper", sessionReaper.stats());
+        stats.put("mailOutbox", mailOutbox.stats());
+        stats.put("rateLimits", rateLimits.stats());
+        stats.put("search", searchIndex.stats());
+        stats.put("events", feed.stats());
+        stats.put("invalidation", invalidation.stats());
+
+        JsonObject pool = poolMetrics == null ? new JsonObject() : poolMetrics.stats();
+        pool.put("connections", dbPool.size());
+        pool.put("config", poolConfig.toJson());
+        stats.put("dbPool", pool);
+        context.response().end(stats.encode());
     }
 }
@@ -0,0 +1,72 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import ch.lsh.ims.jukestack.AuthenticationManager;
+import ch.lsh.ims.jukestack.SessionUser;
+import io.vertx.core.Handler;
+import io.vertx.core.http.Cookie;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Route stage that resolves the session cookie once per request and stores the
+ * authenticated user on the routing context. Handlers behind it read the user
+ * with {@link #user(RoutingContext)} instead of validating the session again.
+ */
+public class AuthHandler implements Handler<RoutingContext> {
+
+    private static final String USER_KEY = "sessionUser";
+
+    private final AuthenticationManager authManager;
+    private final boolean checkEmailVerified;
+    private final boolean requireAdmin;
+
+    private AuthHandler(AuthenticationManager authManager, boolean checkEmailVerified, boolean requireAdmin) {
+        this.authManager = authManager;
+        this.checkEmailVerified = checkEmailVerified;
+        this.requireAdmin = requireAdmin;
+    }
+
+    /**
+     * Accepts any valid session, even if the email is not verified yet
+     */
+    public static AuthHandler session(AuthenticationManager authManager) {
+        return new AuthHandler(authManager, false, false);
+    }
+
+    /**
+     * Accepts only sessions of users with a verified email
+     */
+    public static AuthHandler verified(AuthenticationManager authManager) {
+        return new AuthHandler(authManager, true, false);
+    }
+
+    /**
+     * Accepts only sessions of admins
+     */
+    public static AuthHandler admin(AuthenticationManager authManager) {
+        return new AuthHandler(authManager, false, true);
+    }
+
+    /**
+     * Returns the user resolved by the auth stage of the current route
+     */
+    public static SessionUser user(RoutingContext context) {
+        return context.get(USER_KEY);
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        Cookie sessionCookie = context.request().getCookie("__session");
+
+        authManager.validateSession(sessionCookie, checkEmailVerified)
+                .onFailure(err -> context.response().setStatusCode(401)
+                        .end(requireAdmin ? "Unauthorized or no admin" : "Unauthorized"))
+                .onSuccess(user -> {
+                    if (requireAdmin && !user.isAdmin()) {
+                        context.response().setStatusCode(401).end("Unauthorized or no admin");
+                        return;
+                    }
+                    context.put(USER_KEY, user);
+                    context.next();
+                });
+    }
+}
@@ -0,0 +1,252 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+import ch.lsh.ims.jukestack.HttpServerProfile;
+import ch.lsh.ims.jukestack.SessionUser;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.Cookie;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Server-Sent Events feed of the song availability, every lend, return and
+ * expiry is pushed as {@code {"songId":1,"state":"lent"}}. One feed per
+ * verticle instance, it listens to the {@link AvailabilityIndex} events and
+ * only touches its connections on the instance's event loop. A client that
+ * reads slower than songs change gets its pending changes coalesced per song,
+ * if they do not fit its queue it gets a single {@code resync} event and is
+ * expected to fetch the catalog again. An idle connection holds no queue.
+ * Every heartbeat checks the session of each connection again and ends the
+ * ones that were logged out or expired, a client that has not read anything
+ * for a whole heartbeat interval is disconnected.
+ */
+public class AvailabilityFeed {
+
+    private static final byte LENT = 0;
+    private static final byte RETURNED = 1;
+    private static final byte EXPIRED = 2;
+    private static final String[] STATES = { "lent", "returned", "expired" };
+
+    private static final Buffer HELLO = Buffer.buffer("retry: 5000\n\n");
+    private static final Buffer HEARTBEAT = Buffer.buffer(":\n\n");
+    private static final Buffer RESYNC = Buffer.buffer("event: resync\ndata: {}\n\n");
+    /**
+     * Bytes Netty may buffer for a connection before it counts as slow
+     */
+    private static final int WRITE_QUEUE_BYTES = 4096;
+
+    /**
+     * Changes not yet written to a slow client, at most one per song
+     */
+    private final class Connection {
+        final HttpServerResponse response;
+        final Cookie session;
+        int[] songIds;
+        byte[] states;
+        int pending;
+        boolean resync;
+        boolean waiting;
+        // Still waiting for the drain at the last heartbeat
+        boolean stalled;
+
+        Connection(HttpServerResponse response, Cookie session) {
+            this.response = response;
+            this.session = session;
+        }
+
+        /**
+         * Writes the heartbeat unless the client is behind
+         *
+         * @return False if the client did not read since the last heartbeat
+         */
+        boolean heartbeat() {
+            if (waiting) {
+                if (stalled)
+                    return false;
+                stalled = true;
+                return true;
+            }
+            if (response.writeQueueFull()) {
+                waiting = true;
+                stalled = true;
+                response.drainHandler(v -> flush());
+                return true;
+            }
+            response.write(HEARTBEAT);
+            return true;
+        }
+
+        void offer(int songId, byte state, Buffer event) {
+            if (!waiting && !response.writeQueueFull()) {
+                response.write(event);
+                return;
+            }
+            if (!resync)
+                queue(songId, state);
+            if (!waiting) {
+                waiting = true;
+                response.drainHandler(v -> flush());
+            }
+        }
+
+        private void queue(int songId, byte state) {
+            for (int i = 0; i < pending; i++) {
+                if (songIds[i] == songId) {
+                    states[i] = state;
+                    return;
+                }
+            }
+            if (pending == queueSize) {
+                // Cheaper for the client to reload than to catch up
+                resync = true;
+                songIds = null;
+                states = null;
+                pending = 0;
+                resyncs++;
+                return;
+            }
+            if (songIds == null || pending == songIds.length) {
+                int length = Math.min(queueSize, songIds == null ? 8 : songIds.length * 2);
+                songIds = songIds == null ? new int[length] : Arrays.copyOf(songIds, length);
+                states = states == null ? new byte[length] : Arrays.copyOf(states, length);
+            }
+            songIds[pending] = songId;
+            states[pending++] = state;
+        }
+
+        private void flush() {
+            waiting = false;
+            stalled = false;
+            response.drainHandler(null);
+            if (resync) {
+                resync = false;
+                response.write(RESYNC);
+            }
+            for (int i = 0; i < pending; i++)
+                response.write(event(songIds[i], states[i]));
+            songIds = null;
+            states = null;
+            pending = 0;
+        }
+    }
+
+    private final Vertx vertx;
+    private final Function<Cookie, Future<SessionUser>> sessionCheck;
+    private final Duration heartbeat;
+    private final int queueSize;
+    private final Set<Connection> connections = new HashSet<>();
+    private Context feedContext;
+    private long resyncs;
+    private long slowClosed;
+    private long sessionsEnded;
+
+    /**
+     * @param sessionCheck Validates the session cookie of a connection on every
+     *                     heartbeat, a failed future ends the connection
+     * @param heartbeat    How often idle connections get a comment, shorter than
+     *                     the idle timeouts of the server and the proxies
+     * @param queueSize    Changes kept per slow client before it has to resync
+     */
+    public AvailabilityFeed(Vertx vertx, Function<Cookie, Future<SessionUser>> sessionCheck, Duration heartbeat,
+            int queueSize) {
+        this.vertx = vertx;
+        this.sessionCheck = sessionCheck;
+        this.heartbeat = heartbeat;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Subscribes to the availability events, call it on the verticle's context
+     */
+    public void start() {
+        feedContext = vertx.getOrCreateContext();
+        for (String address : new String[] { AvailabilityIndex.CHANGED_ADDRESS, AvailabilityIndex.EXPIRED_ADDRESS })
+            vertx.eventBus().<JsonObject>consumer(address, message -> broadcast(message.body()));
+        vertx.setPeriodic(heartbeat.toMillis(), id -> heartbeat());
+    }
+
+    private void heartbeat() {
+        // Closing removes from the set
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (!connection.heartbeat()) {
+                if (connections.remove(connection)) {
+                    slowClosed++;
+                    connection.response.reset();
+                }
+                continue;
+            }
+            // The session cache may complete on another event loop
+            sessionCheck.apply(connection.session)
+                    .onFailure(err -> feedContext.runOnContext(v -> {
+                        if (connections.remove(connection)) {
+                            sessionsEnded++;
+                            connection.response.end();
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * GET /api/songs/events, keeps the response open and streams the changes
+     */
+    public void subscribe(RoutingContext context) {
+        HttpServerResponse response = context.response();
+        response.setChunked(true)
+                .setWriteQueueMaxSize(WRITE_QUEUE_BYTES)
+                .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream")
+                .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .putHeader("X-Accel-Buffering", "no");
+        // Compressed streams are buffered until a block is full
+        HttpServerProfile.skipCompression(context);
+
+        Connection connection = new Connection(response, context.request().getCookie("__session"));
+        connections.add(connection);
+        response.closeHandler(v -> connections.remove(connection));
+        response.exceptionHandler(err -> connections.remove(connection));
+        response.write(HELLO);
+    }
+
+    private void broadcast(JsonObject change) {
+        if (connections.isEmpty())
+            return;
+        int songId = change.getInteger("songId");
+        byte state = switch (change.getString("state")) {
+            case "lent" -> LENT;
+            case "returned" -> RETURNED;
+            default -> EXPIRED;
+        };
+        // Encoded once for all connections
+        Buffer event = event(songId, state);
+        for (Connection connection : connections)
+            connection.offer(songId, state, event);
+    }
+
+    private static Buffer event(int songId, byte state) {
+        return Buffer.buffer("data: {\"songId\":" + songId + ",\"state\":\"" + STATES[state] + "\"}\n\n");
+    }
+
+    public JsonObject stats() {
+        int slow = 0;
+        for (Connection connection : connections) {
+            if (connection.waiting)
+                slow++;
+        }
+        return new JsonObject()
+                .put("connections", connections.size())
+                .put("slowConnections", slow)
+                .put("resyncs", resyncs)
+                .put("slowClosed", slowClosed)
+                .put("sessionsEnded", sessionsEnded);
+    }
+}
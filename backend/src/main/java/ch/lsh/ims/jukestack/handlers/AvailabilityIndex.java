@@ -0,0 +1,340 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Which songs are lent right now, kept in memory so listing the available
+ * songs does not scan the lending history. A bitmap holds the lent songs and
+ * an {@link ExpiryWheel} the end of each lending. When a lending ends the song
+ * is cleared and a {@link #EXPIRED_ADDRESS} event is published, so caches do
+ * not have to guess when a song comes back. Readers get an immutable copy of
+ * the bitmap without locking. The index is loaded once and then updated by
+ * the lend, return and admin handlers. The locked check in
+ * {@link SongHandler#lend(String, int)} stays the authority, an optional check
+ * compares the index with the database from time to time and repairs it.
+ */
+public class AvailabilityIndex {
+
+    /**
+     * Event bus address of the ended lendings, the body holds the songId, the
+     * state "expired" and the ausleihEnde in epoch milliseconds
+     */
+    public static final String EXPIRED_ADDRESS = "lending.expired";
+    /**
+     * Event bus address of songs that were lent or returned, the body holds the
+     * songId and the state "lent" or "returned"
+     */
+    public static final String CHANGED_ADDRESS = "lending.changed";
+
+    private static final long LOAD_RETRY_MILLIS = 5000;
+    private static final long TICK_MILLIS = 100;
+
+    private final Vertx vertx;
+    private final Pool dbPool;
+    private final Duration checkInterval;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Promise<Void> loaded = Promise.promise();
+
+    private final BitSet lent = new BitSet();
+    private final ExpiryWheel expiries = new ExpiryWheel(TICK_MILLIS, System.currentTimeMillis());
+    /**
+     * Incremented by every change, a check that overlaps a change is skipped
+     */
+    private long modifications;
+    private volatile BitSet published = new BitSet();
+    private volatile long nextTickMillis = expiries.nextTickMillis();
+
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder checksSkipped = new LongAdder();
+    private final LongAdder mismatches = new LongAdder();
+
+    /**
+     * @param checkInterval How often the index is compared with the database,
+     *                      zero to never check
+     */
+    public AvailabilityIndex(Vertx vertx, Pool dbPool, Duration checkInterval) {
+        this.vertx = vertx;
+        this.dbPool = dbPool;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Loads the index, retrying until it succeeds, and starts the tick and check
+     * timers. Further calls do nothing.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true))
+            return;
+        load();
+        // One timer for all lendings, the wheel finds the ones that ended
+        vertx.setPeriodic(TICK_MILLIS, id -> advance(System.currentTimeMillis()));
+        if (!checkInterval.isZero())
+            vertx.setPeriodic(checkInterval.toMillis(), id -> check());
+    }
+
+    private void load() {
+        long before = modificationCount();
+        dbPool.preparedQuery(SQLQueries.ACTIVE_LENDINGS_BY_SONG).execute()
+                .onSuccess(rows -> {
+                    // A lending started or ended meanwhile, the rows may miss it
+                    if (reconcile(rows, before, false) < 0)
+                        load();
+                    else
+                        loaded.tryComplete();
+                })
+                .onFailure(err -> {
+                    System.err.println("Error while loading lendings: " + err.getMessage());
+                    vertx.setTimer(LOAD_RETRY_MILLIS, id -> load());
+                });
+    }
+
+    /**
+     * Completes once the index was loaded
+     */
+    public Future<Void> ready() {
+        return loaded.future();
+    }
+
+    public boolean isLoaded() {
+        return loaded.future().isComplete();
+    }
+
+    /**
+     * Compares the index with the database and replaces it if they differ
+     *
+     * @return The number of songs that differed, -1 if a change overlapped the
+     *         check
+     */
+    public Future<Integer> check() {
+        long before = modificationCount();
+        return dbPool.preparedQuery(SQLQueries.ACTIVE_LENDINGS_BY_SONG).execute()
+                .map(rows -> reconcile(rows, before, true))
+                .onFailure(err -> System.err.println("Error while checking lendings: " + err.getMessage()));
+    }
+
+    private int reconcile(RowSet<Row> rows, long before, boolean count) {
+        long now = System.currentTimeMillis();
+        int[] songIds = new int[rows.size()];
+        long[] ends = new long[songIds.length];
+        int i = 0;
+        for (Row row : rows) {
+            songIds[i] = row.getInteger("songId");
+            ends[i++] = now + row.getLong("secondsLeft") * 1000;
+        }
+        return reconcile(songIds, ends, before, count);
+    }
+
+    /**
+     * Replaces the index with the lendings read from the database. Ends are
+     * compared with a tolerance, the database counts in seconds and the
+     * handlers compute the end of a new lending on the local clock.
+     *
+     * @param before Change count when the query was sent
+     * @param count  Whether differences are counted as mismatches
+     * @return Songs that differed, -1 if the index changed meanwhile
+     */
+    synchronized int reconcile(int[] songIds, long[] ends, long before, boolean count) {
+        if (count)
+            checks.increment();
+        if (modifications != before) {
+            if (count)
+                checksSkipped.increment();
+            return -1;
+        }
+
+        long now = System.currentTimeMillis();
+        advance(now);
+        int differences = 0;
+        BitSet fresh = new BitSet();
+        for (int i = 0; i < songIds.length; i++) {
+            if (ends[i] <= now)
+                continue;
+            fresh.set(songIds[i]);
+            Long current = expiries.endMillis(songIds[i]);
+            if (current == null || Math.abs(current - ends[i]) > 2000)
+                differences++;
+        }
+        BitSet removed = (BitSet) lent.clone();
+        removed.andNot(fresh);
+        differences += removed.cardinality();
+        BitSet added = (BitSet) fresh.clone();
+        added.andNot(lent);
+
+        if (count && differences > 0) {
+            mismatches.add(differences);
+            System.err.println("Lending index differed from the database in " + differences + " songs, reloaded");
+        }
+        lent.clear();
+        expiries.clear();
+        for (int i = 0; i < songIds.length; i++) {
+            if (ends[i] > now)
+                put(songIds[i], ends[i]);
+        }
+        modifications++;
+        publish();
+        // The initial load is no change anyone waits for
+        if (count) {
+            removed.stream().forEach(songId -> changed(songId, "returned"));
+            added.stream().forEach(songId -> changed(songId, "lent"));
+        }
+        return differences;
+    }
+
+    synchronized long modificationCount() {
+        return modifications;
+    }
+
+    private void put(int songId, long end) {
+        lent.set(songId);
+        expiries.schedule(songId, end);
+    }
+
+    /**
+     * Clears the songs whose lending ended and publishes an event for each
+     *
+     * @return The number of lendings that ended
+     */
+    int advance(long now) {
+        List<JsonObject> events = new ArrayList<>();
+        synchronized (this) {
+            int ended = expiries.advance(now, (songId, end) -> {
+                lent.clear(songId);
+                events.add(new JsonObject().put("songId", songId).put("state", "expired").put("ausleihEnde", end));
+            });
+            if (ended > 0) {
+                expired.add(ended);
+                publish();
+            }
+            nextTickMillis = expiries.nextTickMillis();
+        }
+        if (vertx != null) {
+            for (JsonObject event : events)
+                vertx.eventBus().publish(EXPIRED_ADDRESS, event);
+        }
+        return events.size();
+    }
+
+    private void changed(int songId, String state) {
+        if (vertx != null)
+            vertx.eventBus().publish(CHANGED_ADDRESS, new JsonObject().put("songId", songId).put("state", state));
+    }
+
+    /**
+     * Copies the bitmap for the readers, changes are rare compared to reads
+     */
+    private void publish() {
+        published = (BitSet) lent.clone();
+    }
+
+    /**
+     * The lent songs indexed by songId. The bitmap is shared and must not be
+     * modified. Lendings that ended since the last tick are cleared first.
+     */
+    public BitSet lentSongs() {
+        long now = System.currentTimeMillis();
+        if (nextTickMillis <= now)
+            advance(now);
+        return published;
+    }
+
+    public boolean isLent(int songId) {
+        return lentSongs().get(songId);
+    }
+
+    /**
+     * Records a new lending
+     */
+    public synchronized void lent(int songId, long endMillis) {
+        modifications++;
+        if (endMillis <= System.currentTimeMillis())
+            return;
+        boolean changed = !lent.get(songId);
+        put(songId, endMillis);
+        publish();
+        if (changed)
+            changed(songId, "lent");
+    }
+
+    /**
+     * Records that the active lending of the song ended early
+     */
+    public synchronized void returned(int songId) {
+        modifications++;
+        boolean changed = lent.get(songId);
+        expiries.cancel(songId);
+        lent.clear(songId);
+        publish();
+        if (changed)
+            changed(songId, "returned");
+    }
+
+    /**
+     * Reads the state of the lending's song from the database, for changes that
+     * only know the lending ID
+     *
+     * @return The songId, null if the lending does not exist
+     */
+    public Future<Integer> refreshLending(int ausleihId) {
+        return dbPool.preparedQuery(SQLQueries.SONG_LENDING_STATE).execute(Tuple.of(ausleihId))
+                .map(rows -> {
+                    if (rows.size() == 0)
+                        return null;
+                    Row row = rows.iterator().next();
+                    int songId = row.getInteger("songId");
+                    refreshed(songId, row.getLong("secondsLeft"));
+                    return songId;
+                });
+    }
+
+    /**
+     * Reads the state of the song from the database, for changes made on
+     * another node
+     */
+    public Future<Void> refreshSong(int songId) {
+        return dbPool.preparedQuery(SQLQueries.SONG_STATE).execute(Tuple.of(songId))
+                .map(rows -> {
+                    refreshed(songId, rows.iterator().next().getLong("secondsLeft"));
+                    return null;
+                });
+    }
+
+    private synchronized void refreshed(int songId, Long secondsLeft) {
+        modifications++;
+        boolean wasLent = lent.get(songId);
+        expiries.cancel(songId);
+        lent.clear(songId);
+        if (secondsLeft != null && secondsLeft > 0)
+            put(songId, System.currentTimeMillis() + secondsLeft * 1000);
+        publish();
+        // A changed end of a lent song is no change for the listeners
+        if (wasLent != lent.get(songId))
+            changed(songId, wasLent ? "returned" : "lent");
+    }
+
+    public synchronized JsonObject stats() {
+        return new JsonObject()
+                .put("loaded", isLoaded())
+                .put("lentSongs", published.cardinality())
+                .put("timers", expiries.size())
+                .put("expired", expired.sum())
+                .put("checks", checks.sum())
+                .put("checksSkipped", checksSkipped.sum())
+                .put("mismatches", mismatches.sum());
+    }
+}
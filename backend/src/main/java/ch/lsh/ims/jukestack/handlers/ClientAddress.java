@@ -0,0 +1,88 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Route stage that resolves the address of the client behind the reverse
+ * proxies. Every proxy appends the address it got the request from to
+ * X-Forwarded-For or Forwarded, so only the entries the trusted proxies added
+ * are believed, counted from the right. Anything further left is set by the
+ * client and ignored.
+ */
+public class ClientAddress implements Handler<RoutingContext> {
+
+    private static final String KEY = "clientAddress";
+
+    private final int trustedHops;
+
+    /**
+     * @param trustedHops Number of proxies in front of the server, 0 to use the
+     *                    address of the connection
+     */
+    public ClientAddress(int trustedHops) {
+        this.trustedHops = trustedHops;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        if (trustedHops > 0)
+            context.put(KEY, resolve(context.request()));
+        context.next();
+    }
+
+    /**
+     * The client's address, the connection's address if no
+     * {@link ClientAddress} stage ran
+     */
+    public static String of(RoutingContext context) {
+        String address = context.get(KEY);
+        return address != null ? address : context.request().remoteAddress().host();
+    }
+
+    private String resolve(HttpServerRequest request) {
+        List<String> chain = new ArrayList<>();
+        List<String> forwarded = request.headers().getAll("Forwarded");
+        if (!forwarded.isEmpty()) {
+            for (String header : forwarded) {
+                for (String element : header.split(","))
+                    chain.add(forwardedFor(element));
+            }
+        } else {
+            for (String header : request.headers().getAll("X-Forwarded-For")) {
+                for (String address : header.split(","))
+                    chain.add(address.strip());
+            }
+        }
+        chain.add(request.remoteAddress().host());
+        // The entry the outermost trusted proxy added, a shorter chain means a missing header
+        String address = chain.get(Math.max(0, chain.size() - 1 - trustedHops));
+        return address == null || address.isEmpty() ? request.remoteAddress().host() : address;
+    }
+
+    /**
+     * The for= parameter of a Forwarded element without quotes, brackets and
+     * port, null if it has none
+     */
+    static String forwardedFor(String element) {
+        for (String pair : element.split(";")) {
+            String trimmed = pair.strip();
+            if (!trimmed.regionMatches(true, 0, "for=", 0, 4))
+                continue;
+            String value = trimmed.substring(4);
+            if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1)
+                value = value.substring(1, value.length() - 1);
+            if (value.startsWith("[")) {
+                int end = value.indexOf(']');
+                return end < 0 ? value : value.substring(1, end);
+            }
+            int colon = value.indexOf(':');
+            return colon < 0 ? value : value.substring(0, colon);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,200 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical hashed timer wheel for the ends of the lendings, at most one
+ * timer per song. Four levels of 256 slots, each slot of a level spans a whole
+ * turn of the level below. Scheduling and cancelling are O(1) however many
+ * timers are pending, a timer is moved down at most three times before it
+ * fires. Not thread-safe, the {@link AvailabilityIndex} synchronizes.
+ */
+final class ExpiryWheel {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /**
+     * Called for every timer that fires
+     */
+    interface Expired {
+        void expired(int songId, long endMillis);
+    }
+
+    private static final class Timer {
+        final int songId;
+        final long endMillis;
+        final long deadline;
+        Timer prev;
+        Timer next;
+        int slot;
+
+        Timer(int songId, long endMillis, long deadline) {
+            this.songId = songId;
+            this.endMillis = endMillis;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[] slots = new Timer[LEVELS * SLOTS];
+    /**
+     * Pending timers indexed by songId, song IDs are dense like in the bitmap
+     */
+    private Timer[] timers = new Timer[1024];
+    private int size;
+    /**
+     * The last tick that was processed
+     */
+    private long tick;
+
+    /**
+     * @param tickMillis Resolution of the wheel, a timer fires in the first tick
+     *                   at or after its end
+     */
+    ExpiryWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.tick = nowMillis / tickMillis;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * When the next tick is due, timers can only fire from then on
+     */
+    long nextTickMillis() {
+        return (tick + 1) * tickMillis;
+    }
+
+    /**
+     * End of the song's pending timer, null if there is none
+     */
+    Long endMillis(int songId) {
+        Timer timer = songId < timers.length ? timers[songId] : null;
+        return timer == null ? null : timer.endMillis;
+    }
+
+    /**
+     * Schedules the end of the song's lending, replacing its pending timer
+     */
+    void schedule(int songId, long endMillis) {
+        cancel(songId);
+        // Rounded up, a timer never fires before its end
+        long deadline = endMillis / tickMillis;
+        if (deadline * tickMillis < endMillis)
+            deadline++;
+        Timer timer = new Timer(songId, endMillis, deadline);
+        if (songId >= timers.length)
+            timers = Arrays.copyOf(timers, Math.max(songId + 1, timers.length * 2));
+        timers[songId] = timer;
+        size++;
+        place(timer);
+    }
+
+    /**
+     * @return Whether the song had a pending timer
+     */
+    boolean cancel(int songId) {
+        Timer timer = songId < timers.length ? timers[songId] : null;
+        if (timer == null)
+            return false;
+        timers[songId] = null;
+        size--;
+        unlink(timer);
+        return true;
+    }
+
+    void clear() {
+        Arrays.fill(slots, null);
+        Arrays.fill(timers, null);
+        size = 0;
+    }
+
+    /**
+     * Processes all ticks up to the given time and fires the timers that ended
+     *
+     * @return The number of timers that fired
+     */
+    int advance(long nowMillis, Expired expired) {
+        long target = nowMillis / tickMillis;
+        int fired = 0;
+        while (tick < target) {
+            if (size == 0) {
+                tick = target;
+                break;
+            }
+            long next = tick + 1;
+            // A level is moved down whenever the levels below it completed a turn
+            int level = 0;
+            while (level < LEVELS - 1 && (next & ((1L << (SLOT_BITS * (level + 1))) - 1)) == 0)
+                level++;
+            for (; level > 0; level--)
+                cascade(level * SLOTS + (int) ((next >>> (SLOT_BITS * level)) & SLOT_MASK));
+            tick = next;
+
+            int slot = (int) (next & SLOT_MASK);
+            Timer timer = slots[slot];
+            slots[slot] = null;
+            while (timer != null) {
+                Timer following = timer.next;
+                timers[timer.songId] = null;
+                size--;
+                timer.prev = timer.next = null;
+                expired.expired(timer.songId, timer.endMillis);
+                fired++;
+                timer = following;
+            }
+        }
+        return fired;
+    }
+
+    private void cascade(int slot) {
+        Timer timer = slots[slot];
+        slots[slot] = null;
+        while (timer != null) {
+            Timer following = timer.next;
+            timer.prev = timer.next = null;
+            place(timer);
+            timer = following;
+        }
+    }
+
+    /**
+     * Puts the timer into the lowest level whose range reaches its deadline.
+     * The slot is visited once the levels below completed their turns up to
+     * the deadline, overdue timers fire with the next tick.
+     */
+    private void place(Timer timer) {
+        int slot;
+        if (timer.deadline <= tick) {
+            slot = (int) ((tick + 1) & SLOT_MASK);
+        } else {
+            int level = 0;
+            while (level < LEVELS - 1
+                    && (timer.deadline >>> (SLOT_BITS * level)) - (tick >>> (SLOT_BITS * level)) > SLOTS)
+                level++;
+            // Beyond the top level the timer waits in its last slot and is placed again
+            long turn = Math.min(timer.deadline >>> (SLOT_BITS * level), (tick >>> (SLOT_BITS * level)) + SLOTS);
+            slot = level * SLOTS + (int) (turn & SLOT_MASK);
+        }
+        timer.slot = slot;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[slot] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.prev = timer.next = null;
+    }
+}
@@ -0,0 +1,80 @@
+package ch.lsh.ims.jukestack.handlers;
+
+/**
+ * Parsing of the conditional and content negotiation request headers. A
+ * substring search is not enough: "abc" is contained in the tag "abcd" and
+ * "gzip;q=0" contains gzip while forbidding it.
+ */
+final class HttpNegotiation {
+
+    private HttpNegotiation() {
+    }
+
+    /**
+     * Whether an If-None-Match header matches one of the entity tags, with the
+     * weak comparison RFC 9110 requires for it
+     *
+     * @param etags Quoted entity tags, e.g. {@code "abc"}
+     */
+    static boolean noneMatch(String ifNoneMatch, String... etags) {
+        if (ifNoneMatch == null)
+            return false;
+        int i = 0;
+        int length = ifNoneMatch.length();
+        while (i < length) {
+            char c = ifNoneMatch.charAt(i);
+            if (c == ' ' || c == '\t' || c == ',') {
+                i++;
+                continue;
+            }
+            if (c == '*')
+                return true;
+            int start = i;
+            if (ifNoneMatch.startsWith("W/", i))
+                start = i += 2;
+            if (i >= length || ifNoneMatch.charAt(i) != '"')
+                return false;
+            int end = ifNoneMatch.indexOf('"', i + 1);
+            if (end < 0)
+                return false;
+            for (String etag : etags) {
+                if (ifNoneMatch.regionMatches(start, etag, 0, etag.length()) && etag.length() == end + 1 - start)
+                    return true;
+            }
+            i = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Whether an Accept-Encoding header allows gzip, a coding with q=0 is
+     * refused and * stands for every coding not listed
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        double gzip = -1;
+        double any = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim();
+            double q = 1;
+            for (int p = 1; p < parts.length; p++) {
+                String parameter = parts[p].trim();
+                if (parameter.length() > 2 && (parameter.charAt(0) == 'q' || parameter.charAt(0) == 'Q')
+                        && parameter.charAt(1) == '=') {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip"))
+                gzip = Math.max(gzip, q);
+            else if (coding.equals("*"))
+                any = q;
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+}
@@ -0,0 +1,174 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowStream;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Writes large result sets as a chunked JSON array while the rows are still
+ * being fetched through a cursor. The cursor is paused whenever the response's
+ * write queue is full, so memory stays bounded by the fetch size and the chunk
+ * size no matter how many rows the query returns. A client that stops reading
+ * would keep the cursor and its pooled connection forever, so a response that
+ * cannot be written for longer than the stall timeout is reset.
+ */
+public final class JsonArrayStream {
+
+    /**
+     * Elements are collected up to this size before they are written, one write
+     * per row would mean one HTTP chunk and one flush per row
+     */
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    private JsonArrayStream() {
+    }
+
+    /**
+     * Streams the rows of a query to the response as a JSON array
+     *
+     * @param fetchSize    Rows fetched per round trip
+     * @param stallTimeout How long the client may not read before the response
+     *                     is reset and the connection returned to the pool
+     * @return Number of rows written, fails if the query fails or the client
+     *         goes away before the array is complete
+     */
+    public static Future<Long> query(Pool pool, String sql, Tuple params, int fetchSize, Duration stallTimeout,
+            Function<Row, JsonObject> mapper, HttpServerResponse response) {
+        return withCursor(pool, sql, params, fetchSize, rows -> write(rows, mapper, response, stallTimeout))
+                .onFailure(err -> {
+                    // No connection or the statement could not be prepared
+                    if (!response.headWritten() && !response.ended())
+                        response.setChunked(false).setStatusCode(500).end("Internal Server Error");
+                });
+    }
+
+    /**
+     * Runs a query with a cursor on a pooled connection. The cursor, statement and
+     * connection are closed once the future returned by the consumer completes.
+     */
+    public static <R> Future<R> withCursor(Pool pool, String sql, Tuple params, int fetchSize,
+            Function<RowStream<Row>, Future<R>> consumer) {
+        return pool.getConnection().compose(conn -> conn.prepare(sql)
+                .compose(statement -> {
+                    RowStream<Row> rows = statement.createStream(fetchSize, params);
+                    return consumer.apply(rows)
+                            .eventually(() -> rows.close().eventually(() -> statement.close()));
+                })
+                .eventually(() -> conn.close()));
+    }
+
+    /**
+     * Writes every item of the stream as an element of a JSON array. If the
+     * stream fails before anything was sent the response is a 500, afterwards
+     * the response is reset so the client never sees a truncated array as a
+     * complete one. Has to be called on a Vert.x context.
+     *
+     * @param stallTimeout Longest wait for a full write queue to drain
+     */
+    public static <T> Future<Long> write(ReadStream<T> items, Function<T, JsonObject> mapper,
+            HttpServerResponse response, Duration stallTimeout) {
+        return new Writer<>(items, mapper, response, stallTimeout).start();
+    }
+
+    private static final class Writer<T> {
+        private final ReadStream<T> items;
+        private final Function<T, JsonObject> mapper;
+        private final HttpServerResponse response;
+        private final long stallMillis;
+        private final Vertx vertx = Vertx.currentContext().owner();
+        private final Promise<Long> promise = Promise.promise();
+
+        private Buffer chunk = Buffer.buffer(CHUNK_SIZE + 1024).appendByte((byte) '[');
+        private long count;
+        // Fails the stream while the client does not read, -1 while writable
+        private long stallTimer = -1;
+
+        Writer(ReadStream<T> items, Function<T, JsonObject> mapper, HttpServerResponse response,
+                Duration stallTimeout) {
+            this.items = items;
+            this.mapper = mapper;
+            this.response = response;
+            this.stallMillis = Math.max(1, stallTimeout.toMillis());
+        }
+
+        Future<Long> start() {
+            response.setChunked(true);
+            response.closeHandler(v -> promise.tryFail("Connection closed after " + count + " elements"));
+            response.drainHandler(v -> {
+                cancelStallTimer();
+                items.resume();
+            });
+            promise.future().onComplete(ar -> cancelStallTimer());
+
+            items.exceptionHandler(this::fail);
+            items.endHandler(v -> {
+                if (promise.future().isComplete())
+                    return;
+                response.end(chunk.appendByte((byte) ']'));
+                promise.tryComplete(count);
+            });
+            items.handler(this::append);
+            return promise.future();
+        }
+
+        private void append(T item) {
+            if (promise.future().isComplete())
+                return;
+
+            JsonObject element;
+            try {
+                element = mapper.apply(item);
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (count++ > 0)
+                chunk.appendByte((byte) ',');
+            chunk.appendBuffer(element.toBuffer());
+
+            if (chunk.length() >= CHUNK_SIZE) {
+                response.write(chunk);
+                chunk = Buffer.buffer(CHUNK_SIZE + 1024);
+                // Resumed by the drain handler once the socket caught up
+                if (response.writeQueueFull()) {
+                    items.pause();
+                    if (stallTimer < 0)
+                        stallTimer = vertx.setTimer(stallMillis, id -> {
+                            stallTimer = -1;
+                            fail(new TimeoutException("Client did not read for " + stallMillis + " ms after "
+                                    + count + " elements"));
+                        });
+                }
+            }
+        }
+
+        private void cancelStallTimer() {
+            if (stallTimer >= 0) {
+                vertx.cancelTimer(stallTimer);
+                stallTimer = -1;
+            }
+        }
+
+        private void fail(Throwable err) {
+            if (!promise.tryFail(err))
+                return;
+            System.err.println("Error while streaming JSON array: " + err.getMessage());
+            if (!response.headWritten())
+                response.setChunked(false).setStatusCode(500).end("Internal Server Error");
+            else
+                response.reset();
+        }
+    }
+}
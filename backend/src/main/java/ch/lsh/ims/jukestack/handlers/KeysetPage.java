@@ -0,0 +1,180 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Page of a keyset paginated listing. A page continues after the last key of
+ * the previous one, so every page is an index range scan no matter how deep
+ * the client pages. The key travels as an opaque cursor: the body stays a JSON
+ * array and the cursor of the next page is sent in the X-Next-Cursor header,
+ * it is missing on the last page.
+ */
+public final class KeysetPage {
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /**
+     * Page sizes of all listings
+     */
+    public static final class Limits {
+        private final int defaultSize;
+        private final int maxSize;
+
+        /**
+         * @param defaultSize Page size if the request has no limit
+         * @param maxSize     Larger limits are capped to this size
+         */
+        public Limits(int defaultSize, int maxSize) {
+            if (defaultSize < 1 || maxSize < defaultSize)
+                throw new IllegalArgumentException("Invalid page sizes: " + defaultSize + "/" + maxSize);
+            this.defaultSize = defaultSize;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Reads the limit and cursor parameters of the request
+         *
+         * @param kind Listing the cursor has to belong to
+         * @throws IllegalArgumentException If the limit or the cursor is invalid
+         */
+        public KeysetPage parse(RoutingContext context, String kind) {
+            String limitParam = context.request().getParam("limit");
+            int size = defaultSize;
+            if (limitParam != null) {
+                size = Integer.parseInt(limitParam);
+                if (size < 1)
+                    throw new IllegalArgumentException("Invalid limit: " + size);
+                size = Math.min(size, maxSize);
+            }
+
+            String cursor = context.request().getParam("cursor");
+            return new KeysetPage(kind, size, cursor == null ? null : decode(kind, cursor));
+        }
+    }
+
+    private final String kind;
+    private final int size;
+    private final String after;
+
+    private KeysetPage(String kind, int size, String after) {
+        this.kind = kind;
+        this.size = size;
+        this.after = after;
+    }
+
+    /**
+     * Whether the client asked for a page: a limit, a cursor or one of the
+     * filters of the listing. Requests without any of them get the full
+     * listing like before.
+     */
+    public static boolean requested(RoutingContext context, String... filters) {
+        if (context.request().getParam("limit") != null || context.request().getParam("cursor") != null)
+            return true;
+        for (String filter : filters) {
+            if (context.request().getParam(filter) != null)
+                return true;
+        }
+        return false;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Rows to fetch, one more than the page size to know whether a next page
+     * exists without counting
+     */
+    public int getFetchSize() {
+        return size + 1;
+    }
+
+    /**
+     * Last key of the previous page, null on the first page
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * Last numeric key of the previous page, 0 on the first page
+     */
+    public int getAfterId() {
+        if (after == null)
+            return 0;
+        try {
+            return Integer.parseInt(after);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    /**
+     * The rows of this page without the extra row
+     *
+     * @param rows Rows fetched with {@link #getFetchSize()}
+     */
+    public <T> List<T> trim(List<T> rows) {
+        return rows.size() <= size ? rows : rows.subList(0, size);
+    }
+
+    /**
+     * Cursor of the next page, null if this is the last page
+     *
+     * @param rows Rows fetched with {@link #getFetchSize()}
+     * @param key  Keyset column of a row
+     */
+    public <T> String nextCursor(List<T> rows, Function<T, Object> key) {
+        if (rows.size() <= size)
+            return null;
+        return encode(kind, String.valueOf(key.apply(rows.get(size - 1))));
+    }
+
+    /**
+     * Sets the cursor header, nothing to do on the last page
+     */
+    public static void putNextCursor(RoutingContext context, String cursor) {
+        if (cursor != null)
+            context.response().putHeader(NEXT_CURSOR_HEADER, cursor);
+    }
+
+    /**
+     * Turns a prefix filter into a LIKE pattern, wildcards in the prefix match
+     * literally
+     */
+    public static String likePrefix(String prefix) {
+        StringBuilder pattern = new StringBuilder(prefix.length() + 2);
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c == '%' || c == '_' || c == '\\')
+                pattern.append('\\');
+            pattern.append(c);
+        }
+        return pattern.append('%').toString();
+    }
+
+    static String encode(String kind, String key) {
+        return ENCODER.encodeToString((kind + ":" + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String kind, String cursor) {
+        String value;
+        try {
+            value = new String(DECODER.decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        // A cursor of another listing would silently skip rows
+        if (!value.startsWith(kind + ":"))
+            throw new IllegalArgumentException("Invalid cursor");
+        return value.substring(kind.length() + 1);
+    }
+}
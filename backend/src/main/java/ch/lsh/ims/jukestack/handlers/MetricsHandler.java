@@ -0,0 +1,155 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+import ch.lsh.ims.jukestack.CloudflareR2Client;
+import ch.lsh.ims.jukestack.DbPoolMetrics;
+import ch.lsh.ims.jukestack.MailOutbox;
+import ch.lsh.ims.jukestack.ServiceMetrics;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Prometheus scrape endpoint and the health checks of the load balancer. The
+ * node is ready as long as requests do not queue up for database connections.
+ * The scrape endpoint needs a bearer token and stays disabled without one.
+ */
+public class MetricsHandler {
+
+    private final ServiceMetrics metrics;
+    private final DbPoolMetrics poolMetrics;
+    private final AvailabilityIndex availability;
+    private final MailOutbox mailOutbox;
+    private final CloudflareR2Client r2Client;
+    private final byte[] token;
+    private final int maxPoolWaiting;
+
+    /**
+     * @param poolMetrics    Null if Vert.x runs without the metrics SPI, the pool
+     *                       is then neither exported nor checked
+     * @param token          Bearer token the scraper has to send, null or empty
+     *                       to disable /metrics
+     * @param maxPoolWaiting Requests waiting for a connection until the node
+     *                       reports not ready
+     */
+    public MetricsHandler(ServiceMetrics metrics, DbPoolMetrics poolMetrics, AvailabilityIndex availability,
+            MailOutbox mailOutbox, CloudflareR2Client r2Client, String token, int maxPoolWaiting) {
+        this.metrics = metrics;
+        this.poolMetrics = poolMetrics;
+        this.availability = availability;
+        this.mailOutbox = mailOutbox;
+        this.r2Client = r2Client;
+        this.token = token == null || token.isEmpty() ? null : ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        this.maxPoolWaiting = maxPoolWaiting;
+    }
+
+    /**
+     * GET /metrics, 404 if no token is configured
+     */
+    public void metrics(RoutingContext context) {
+        if (token == null) {
+            context.response().setStatusCode(404).end("Not Found");
+            return;
+        }
+        String authorization = context.request().getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization == null || !MessageDigest.isEqual(token, authorization.getBytes(StandardCharsets.UTF_8))) {
+            context.response().setStatusCode(401).end("Unauthorized");
+            return;
+        }
+        context.response()
+                .putHeader(HttpHeaders.CONTENT_TYPE, PrometheusText.CONTENT_TYPE)
+                .end(scrape());
+    }
+
+    String scrape() {
+        PrometheusText text = new PrometheusText();
+
+        Map<String, Map<String, ServiceMetrics.RouteMetrics>> routes = metrics.getRoutes();
+        text.family("jukestack_http_server_requests_seconds", "histogram", "Time until the response was written");
+        routes.forEach((method, paths) -> paths.forEach((route, stats) -> text.histogram(
+                "jukestack_http_server_requests_seconds", stats.getLatency(), "method", method, "route", route)));
+        text.family("jukestack_http_server_responses_total", "counter", "Responses per route and status code");
+        routes.forEach((method, paths) -> paths.forEach((route, stats) -> stats.getStatuses().forEach(
+                (status, count) -> text.sample("jukestack_http_server_responses_total", count.sum(),
+                        "method", method, "route", route, "status", Integer.toString(status)))));
+
+        text.family("jukestack_event_loop_lag_seconds", "histogram", "Delay of a periodic timer on the event loop");
+        metrics.getEventLoops().forEach((loop, lag) -> text.histogram(
+                "jukestack_event_loop_lag_seconds", lag.getLag(), "loop", loop));
+        text.family("jukestack_event_loop_lag_last_seconds", "gauge", "Delay of the last probe on the event loop");
+        metrics.getEventLoops().forEach((loop, lag) -> text.sample(
+                "jukestack_event_loop_lag_last_seconds", lag.getLastSeconds(), "loop", loop));
+
+        if (poolMetrics != null) {
+            String pool = poolMetrics.getPoolName();
+            text.family("jukestack_db_pool_max_connections", "gauge", "Size of the SQL pool")
+                    .sample("jukestack_db_pool_max_connections", poolMetrics.getMaxSize(), "pool", pool);
+            text.family("jukestack_db_pool_in_use_connections", "gauge", "Connections handed out")
+                    .sample("jukestack_db_pool_in_use_connections", poolMetrics.getInUse(), "pool", pool);
+            text.family("jukestack_db_pool_waiting", "gauge", "Requests waiting for a connection")
+                    .sample("jukestack_db_pool_waiting", poolMetrics.getWaiting(), "pool", pool);
+            text.family("jukestack_db_pool_rejected_total", "counter", "Requests the full wait queue refused")
+                    .sample("jukestack_db_pool_rejected_total", poolMetrics.getRejected(), "pool", pool);
+            text.family("jukestack_db_pool_failed_total", "counter", "Connection uses that ended with an error")
+                    .sample("jukestack_db_pool_failed_total", poolMetrics.getFailed(), "pool", pool);
+            long[] boundsMillis = DbPoolMetrics.getBucketBoundsMillis();
+            double[] bounds = new double[boundsMillis.length];
+            for (int i = 0; i < bounds.length; i++)
+                bounds[i] = boundsMillis[i] / 1000.0;
+            text.family("jukestack_db_pool_acquire_seconds", "histogram", "Wait for a connection")
+                    .histogram("jukestack_db_pool_acquire_seconds", bounds, poolMetrics.getAcquireHistogram(),
+                            poolMetrics.getTotalAcquireSeconds(), "pool", pool);
+        }
+
+        text.family("jukestack_mail_send_seconds", "histogram", "Time of a single SMTP send")
+                .histogram("jukestack_mail_send_seconds", mailOutbox.getSendLatency());
+        text.family("jukestack_mail_sent_total", "counter", "Mails delivered")
+                .sample("jukestack_mail_sent_total", mailOutbox.getSent());
+        text.family("jukestack_mail_failures_total", "counter", "Failed send attempts")
+                .sample("jukestack_mail_failures_total", mailOutbox.getFailedAttempts());
+        text.family("jukestack_mail_given_up_total", "counter", "Mails dropped after the last attempt")
+                .sample("jukestack_mail_given_up_total", mailOutbox.getGivenUp());
+
+        text.family("jukestack_r2_presign_seconds", "histogram", "Time to sign an R2 URL, cache hits excluded")
+                .histogram("jukestack_r2_presign_seconds", r2Client.getPresignDuration());
+
+        text.family("jukestack_lendings_active", "gauge", "Songs lent right now")
+                .sample("jukestack_lendings_active", availability.lentSongs().cardinality());
+        text.family("jukestack_lends_total", "counter", "Successful lends")
+                .sample("jukestack_lends_total", metrics.getLends());
+        text.family("jukestack_logins_total", "counter", "Login attempts by result")
+                .sample("jukestack_logins_total", metrics.getLogins(), "result", "success")
+                .sample("jukestack_logins_total", metrics.getFailedLogins(), "result", "failure");
+        return text.toString();
+    }
+
+    /**
+     * GET /health/live, the event loop answers
+     */
+    public void live(RoutingContext context) {
+        context.response().end(new JsonObject().put("status", "UP").encode());
+    }
+
+    /**
+     * GET /health/ready, fails while too many requests wait for a database
+     * connection so the load balancer sends new ones elsewhere
+     */
+    public void ready(RoutingContext context) {
+        JsonObject health = new JsonObject();
+        boolean ready = true;
+        if (poolMetrics != null) {
+            int waiting = poolMetrics.getWaiting();
+            ready = waiting <= maxPoolWaiting;
+            health.put("pool", new JsonObject()
+                    .put("inUse", poolMetrics.getInUse())
+                    .put("maxSize", poolMetrics.getMaxSize())
+                    .put("waiting", waiting)
+                    .put("maxWaiting", maxPoolWaiting));
+        }
+        health.put("status", ready ? "UP" : "DOWN");
+        context.response().setStatusCode(ready ? 200 : 503).end(health.encode());
+    }
+}
@@ -0,0 +1,110 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import ch.lsh.ims.jukestack.Histogram;
+
+/**
+ * Writes metrics in the Prometheus text exposition format 0.0.4. The HELP and
+ * TYPE lines of a family are written before its first sample, the samples of
+ * a family have to be written one after another.
+ */
+final class PrometheusText {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder text = new StringBuilder(8192);
+    private String family;
+
+    /**
+     * Starts a family, does nothing if it is the current one
+     *
+     * @param type counter, gauge or histogram
+     */
+    PrometheusText family(String name, String type, String help) {
+        if (name.equals(family))
+            return this;
+        family = name;
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels Alternating label names and values
+     */
+    PrometheusText sample(String name, double value, String... labels) {
+        text.append(name);
+        labels(labels, null, null);
+        text.append(' ').append(format(value)).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes the cumulative buckets, the sum and the count of a histogram
+     */
+    PrometheusText histogram(String name, Histogram histogram, String... labels) {
+        return histogram(name, histogram.getBoundsSeconds(), histogram.getCounts(), histogram.getSumSeconds(), labels);
+    }
+
+    /**
+     * @param counts Observations per bucket, not cumulative, one more than
+     *               bounds for the ones above the highest bound
+     */
+    PrometheusText histogram(String name, double[] bounds, long[] counts, double sum, String... labels) {
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            text.append(name).append("_bucket");
+            labels(labels, "le", i < bounds.length ? format(bounds[i]) : "+Inf");
+            text.append(' ').append(cumulative).append('\n');
+        }
+        text.append(name).append("_sum");
+        labels(labels, null, null);
+        text.append(' ').append(format(sum)).append('\n');
+        text.append(name).append("_count");
+        labels(labels, null, null);
+        text.append(' ').append(cumulative).append('\n');
+        return this;
+    }
+
+    private void labels(String[] labels, String extraName, String extraValue) {
+        if (labels.length == 0 && extraName == null)
+            return;
+        text.append('{');
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                text.append(',');
+            label(labels[i], labels[i + 1]);
+        }
+        if (extraName != null) {
+            if (labels.length > 0)
+                text.append(',');
+            label(extraName, extraValue);
+        }
+        text.append('}');
+    }
+
+    private void label(String name, String value) {
+        text.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> text.append("\\\\");
+                case '"' -> text.append("\\\"");
+                case '\n' -> text.append("\\n");
+                default -> text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
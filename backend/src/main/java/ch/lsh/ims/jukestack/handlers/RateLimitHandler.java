@@ -0,0 +1,81 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.util.function.Function;
+
+import ch.lsh.ims.jukestack.SessionUser;
+import ch.lsh.ims.jukestack.TokenBucketLimiter;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Route stage that takes a token per client address and per account before
+ * the expensive part of a route runs. Requests over budget are answered with
+ * 429 and a Retry-After header.
+ */
+public class RateLimitHandler implements Handler<RoutingContext> {
+
+    private final TokenBucketLimiter ipLimiter;
+    private final TokenBucketLimiter emailLimiter;
+    private final Function<RoutingContext, String> email;
+
+    private RateLimitHandler(TokenBucketLimiter ipLimiter, TokenBucketLimiter emailLimiter,
+            Function<RoutingContext, String> email) {
+        this.ipLimiter = ipLimiter;
+        this.emailLimiter = emailLimiter;
+        this.email = email;
+    }
+
+    /**
+     * Limits by remote address and by the email in the JSON body, for routes
+     * without a session like login and sign up
+     */
+    public static RateLimitHandler bodyEmail(TokenBucketLimiter ipLimiter, TokenBucketLimiter emailLimiter) {
+        return new RateLimitHandler(ipLimiter, emailLimiter, RateLimitHandler::bodyEmail);
+    }
+
+    /**
+     * Limits by remote address and by the email of the session user, has to run
+     * after an {@link AuthHandler}
+     */
+    public static RateLimitHandler sessionEmail(TokenBucketLimiter ipLimiter, TokenBucketLimiter emailLimiter) {
+        return new RateLimitHandler(ipLimiter, emailLimiter, context -> {
+            SessionUser user = AuthHandler.user(context);
+            return user == null ? null : user.getEmail();
+        });
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        long wait = ipLimiter.acquire(ClientAddress.of(context));
+        if (wait == 0) {
+            String key = email.apply(context);
+            if (key != null)
+                wait = emailLimiter.acquire(key);
+        }
+
+        if (wait > 0) {
+            context.response()
+                    .putHeader("Retry-After", Long.toString(TokenBucketLimiter.retryAfterSeconds(wait)))
+                    .setStatusCode(429)
+                    .end("Too many requests");
+            return;
+        }
+        context.next();
+    }
+
+    /**
+     * Normalized like the handlers do it, null if the body has no email. For
+     * emails that are already lowercase and trimmed no new string is created.
+     */
+    private static String bodyEmail(RoutingContext context) {
+        try {
+            JsonObject body = context.body().asJsonObject();
+            String email = body == null ? null : body.getString("email");
+            return email == null ? null : email.toLowerCase().trim();
+        } catch (RuntimeException e) {
+            // Invalid input is rejected by the handler
+            return null;
+        }
+    }
+}
@@ -1,15 +1,33 @@
 package ch.lsh.ims.jukestack.handlers;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.Tuple;
+
 public final class SQLQueries {
 
+    /**
+     * Placeholder counts used for variable-arity in lists, a list is padded up
+     * to the next size so MySQL only ever sees these statement texts
+     */
+    private static final int[] IN_LIST_SIZES = { 8, 64, 512, 4096 };
+    private static final Map<String, String> IN_LIST_QUERIES = new ConcurrentHashMap<>();
+
     /**
      * SQL query to insert a new user into the TBenutzer table.
      * @see UserHandler#createUser(io.vertx.ext.web.RoutingContext)
      */
     public static final String INSERT_USER = """
         insert into TBenutzer 
-        (benutzerEmail, benutzerNachname, benutzerVorname, benutzerPWHash, benutzerPWSalt) 
-        values (?, ?, ?, ?, ?)
+        (benutzerEmail, benutzerNachname, benutzerVorname, benutzerPWHash, benutzerPWSalt, benutzerPWParams) 
+        values (?, ?, ?, ?, ?, ?)
     """;
 
     /**
@@ -25,40 +43,62 @@ public final class SQLQueries {
      * @see UserHandler#login(io.vertx.ext.web.RoutingContext)
      */
     public static final String SELECT_USER_CREDENTIALS = """
-        select benutzerPWHash, benutzerPWSalt 
+        select benutzerPWHash, benutzerPWSalt, benutzerPWParams 
         from TBenutzer 
         where benutzerEmail = ?
     """;
 
     /**
-     * SQL query to fetch user information by user ID.
-     * @see UserHandler#getUserInfo(io.vertx.ext.web.RoutingContext)
+     * SQL Query to get a page of the available songs without their musicians,
+     * continues after the last song of the previous page. The filters below are
+     * appended as needed, then {@link #ORDER_BY_SONG_ID_LIMIT}.
+     * @param songId last song ID of the previous page, 0 on the first page
+     * @see SongHandler#listSongs(io.vertx.ext.web.RoutingContext)
      */
-    public static final String SELECT_USER_INFO_BY_EMAIL = """
-        select benutzerNachname, benutzerVorname, benutzerIstAdmin, benutzerEmailVerifiziert 
-        from TBenutzer 
-        where benutzerEmail = ?
+    public static final String LIST_AVAILABLE_SONGS_PAGE = """
+        select TSongs.* 
+        from TSongs 
+        where TSongs.songId > ? 
+        and not exists (
+            select 1 
+            from TAusleihen 
+            where TAusleihen.songId = TSongs.songId 
+            and TAusleihen.ausleihEnde > now()
+        )
     """;
 
     /**
-     * SQL Query to get all available songs
-     * @see SongHandler#listSongs(io.vertx.ext.web.RoutingContext)
+     * Song filters, each takes one parameter
      */
-    public static final String LIST_AVAILABLE_SONGS = """
-        with MaxAusleihenEnde as (
-            select songId, max(ausleihEnde) ausleihEnde
-            from TAusleihen
-            group by songId
-        )
-        select * from TAusleihen
-        natural join MaxAusleihenEnde natural right join TSongs
-        where ausleihId is null or ausleihEnde < now()
+    public static final String SONG_NAME_PREFIX = "and songName like ?\n";
+    public static final String SONG_ALBUM_PREFIX = "and songAlbum like ?\n";
+    public static final String SONG_YEAR_FROM = "and songJahr >= ?\n";
+    public static final String SONG_YEAR_TO = "and songJahr <= ?\n";
+
+    /**
+     * @param limit page size plus one
+     */
+    public static final String ORDER_BY_SONG_ID_LIMIT = "order by TSongs.songId limit ?";
+
+    /**
+     * SQL Query to get all songs joined with their musicians, one row per song
+     * and musician. Lent songs are left out by the caller.
+     * @see SongCatalog#get()
+     * @see AvailabilityIndex
+     */
+    public static final String LIST_SONGS = """
+        select TSongs.*, TMusiker.musikerId, TMusiker.musikerName
+        from TSongs
+        left join TBeitraege on TBeitraege.songId = TSongs.songId
+        left join TMusiker on TMusiker.musikerId = TBeitraege.musikerId
+        order by TSongs.songId
     """;
 
     /**
-     * SQL Query to get musicians for given song IDs
+     * SQL Query to get musicians for given song IDs, run it with
+     * {@link #executeInList(Pool, String, List)}
      * @param songIds list of song IDs
-     * @see SongHandler#listSongs(io.vertx.ext.web.RoutingContext)
+     * @see SongHandler#listLendings(io.vertx.ext.web.RoutingContext)
      */
     public static final String GET_MUSICIANS_FOR_SONGS = """
         select songId, musikerId, musikerName 
@@ -67,6 +107,92 @@ public final class SQLQueries {
         where songId in (?)
     """;
 
+    /**
+     * SQL Query to get songs by ID, run it with
+     * {@link #executeInList(Pool, String, List)}
+     * @param songIds list of song IDs
+     * @see SongHandler#searchSongs(io.vertx.ext.web.RoutingContext)
+     */
+    public static final String SELECT_SONGS_BY_IDS = """
+        select *
+        from TSongs
+        where songId in (?)
+    """;
+
+    /**
+     * SQL Query to get the searchable fields of songs after a song ID
+     * @param songId largest song ID already indexed, 0 for all songs
+     * @see SongSearchIndex#rebuild()
+     */
+    public static final String SEARCH_INDEX_SONGS = """
+        select songId, songName, songAlbum
+        from TSongs
+        where songId > ?
+        order by songId
+    """;
+
+    /**
+     * SQL Query to get the musicians of songs after a song ID
+     * @param songId largest song ID already indexed, 0 for all songs
+     * @see SongSearchIndex#rebuild()
+     */
+    public static final String SEARCH_INDEX_MUSICIANS = """
+        select songId, musikerName
+        from TBeitraege
+        natural join TMusiker
+        where songId > ?
+        order by songId
+    """;
+
+    /**
+     * SQL Query to get the largest song ID
+     * @see SongSearchIndex#refresh()
+     */
+    public static final String MAX_SONG_ID = """
+        select max(songId)
+        from TSongs
+    """;
+
+    /**
+     * SQL Query to get the lent songs and the seconds until their last lending
+     * ends. Only the active lendings are read and grouped, idxAusleihEnde
+     * covers them, so the lending history does not slow it down.
+     * @see AvailabilityIndex#check()
+     */
+    public static final String ACTIVE_LENDINGS_BY_SONG = """
+        select songId, timestampdiff(second, now(), max(ausleihEnde)) secondsLeft
+        from TAusleihen
+        where ausleihEnde > now()
+        group by songId
+    """;
+
+    /**
+     * SQL Query to get the song of a lending and the seconds until the song's
+     * active lending ends, null if it is not lent anymore
+     * @param ausleihId lending ID
+     * @see AvailabilityIndex#refreshLending(int)
+     */
+    public static final String SONG_LENDING_STATE = """
+        select TAusleihen.songId, timestampdiff(second, now(), max(Aktiv.ausleihEnde)) secondsLeft
+        from TAusleihen
+        left join TAusleihen Aktiv on Aktiv.songId = TAusleihen.songId and Aktiv.ausleihEnde > now()
+        where TAusleihen.ausleihId = ?
+        group by TAusleihen.songId
+    """;
+
+    /**
+     * SQL Query to get the seconds until the song's active lending ends, null
+     * if it is not lent
+     * @param songId song ID
+     * @see AvailabilityIndex#refreshSong(int)
+     */
+    public static final String SONG_STATE = """
+        select timestampdiff(second, now(), max(ausleihEnde)) secondsLeft
+        from TAusleihen
+        where songId = ?
+        and ausleihEnde > now()
+    """;
+
     /**
      * SQL Query to get lendings for a user
      * @param benutzerEmail users mail
@@ -80,10 +206,45 @@ public final class SQLQueries {
         and ausleihEnde > now()
     """;
 
+    /**
+     * SQL Query to get a page of the active lendings of a user, continues after
+     * the last lending of the previous page
+     * @param benutzerEmail users mail
+     * @param ausleihId last lending ID of the previous page, 0 on the first page
+     * @param limit page size plus one
+     * @see SongHandler#listLendingsOf(Pool, KeysetPage.Limits, io.vertx.ext.web.RoutingContext, String)
+     */
+    public static final String GET_LENDINGS_FOR_USER_PAGE = """
+        select * 
+        from TAusleihen 
+        natural join TSongs 
+        where benutzerEmail = ? 
+        and ausleihEnde > now() 
+        and ausleihId > ? 
+        order by ausleihId 
+        limit ?
+    """;
+
+    /**
+     * SQL Query to lock the song and the user for a lending, concurrent lends of
+     * the same song or by the same user wait here until the first one commits.
+     * Returns no row if the song does not exist.
+     * @param songId song ID
+     * @param benutzerEmail users mail
+     * @see SongHandler#lend(String, int)
+     */
+    public static final String LOCK_SONG_AND_USER = """
+        select songId, benutzerEmail 
+        from TSongs, TBenutzer 
+        where songId = ? 
+        and benutzerEmail = ? 
+        for update
+    """;
+
     /**
      * SQL Query to check the number of active lendings for a user
      * @param benutzerEmail users mail
-     * @see SongHandler#lendSong(io.vertx.ext.web.RoutingContext)
+     * @see SongHandler#lend(String, int)
      */
     public static final String COUNT_ACTIVE_LENDINGS = """
         select count(*) 
@@ -95,7 +256,7 @@ public final class SQLQueries {
     /**
      * SQL Query to check if a song is already lent
      * @param songId song ID
-     * @see SongHandler#lendSong(io.vertx.ext.web.RoutingContext)
+     * @see SongHandler#lend(String, int)
      */
     public static final String CHECK_SONG_LENT = """
         select * 
@@ -109,7 +270,7 @@ public final class SQLQueries {
      * @param songId song ID
      * @param benutzerEmail users mail
      * @param ausleihTage number of days for the lending
-     * @see SongHandler#lendSong(io.vertx.ext.web.RoutingContext)
+     * @see SongHandler#lend(String, int)
      */
     public static final String INSERT_LENDING = """
         insert into TAusleihen (songId, benutzerEmail, ausleihStart, ausleihEnde) 
@@ -149,6 +310,27 @@ public final class SQLQueries {
         select * from TBenutzer where benutzerIstAdmin = 0
     """;
 
+    /**
+     * SQL Query to get a page of the non admin users, continues after the last
+     * email of the previous page. Optionally followed by
+     * {@link #USER_EMAIL_PREFIX}, then {@link #ORDER_BY_EMAIL_LIMIT}.
+     * @param benutzerEmail last email of the previous page, empty on the first page
+     * @see AdminHandler#listUsers(io.vertx.ext.web.RoutingContext)
+     */
+    public static final String SELECT_USERS_PAGE = """
+        select benutzerEmail, benutzerNachname, benutzerVorname, benutzerIstAdmin 
+        from TBenutzer 
+        where benutzerIstAdmin = 0 
+        and benutzerEmail > ?
+    """;
+
+    public static final String USER_EMAIL_PREFIX = "and benutzerEmail like ?\n";
+
+    /**
+     * @param limit page size plus one
+     */
+    public static final String ORDER_BY_EMAIL_LIMIT = "order by benutzerEmail limit ?";
+
     /**
      * SQL Query to update a lengings days
      * @param ausleihTage number of days for the lending
@@ -174,4 +356,69 @@ public final class SQLQueries {
         and ausleihEnde > now()
     """;
 
+    /**
+     * Runs a query whose single "in (?)" list takes a variable number of IDs.
+     * The list is padded to a fixed placeholder count by repeating its last ID,
+     * so each count maps to one reusable prepared statement. Lists longer than
+     * the largest count are split into chunks that run concurrently on the pool.
+     *
+     * @param pool  The pool to run the query on
+     * @param query A query containing exactly one "in (?)"
+     * @param ids   The IDs for the in list
+     * @return The rows of all chunks
+     */
+    public static Future<List<Row>> executeInList(Pool pool, String query, List<Integer> ids) {
+        if (ids.isEmpty())
+            return Future.succeededFuture(new ArrayList<>());
+
+        List<Future<RowSet<Row>>> chunks = new ArrayList<>();
+        for (Tuple params : inListParams(ids))
+            chunks.add(pool.preparedQuery(inListQuery(query, params.size())).execute(params));
+
+        return Future.all(chunks).map(res -> {
+            List<Row> rows = new ArrayList<>();
+            for (Future<RowSet<Row>> chunk : chunks)
+                chunk.result().forEach(rows::add);
+            return rows;
+        });
+    }
+
+    /**
+     * The parameters of every chunk, each padded to one of the placeholder counts
+     */
+    static List<Tuple> inListParams(List<Integer> ids) {
+        int maxSize = IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+        List<Tuple> chunks = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += maxSize) {
+            List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + maxSize));
+            int size = inListSize(chunk.size());
+
+            Tuple params = Tuple.tuple();
+            for (Integer id : chunk)
+                params.addValue(id);
+            Integer padding = chunk.get(chunk.size() - 1);
+            for (int i = chunk.size(); i < size; i++)
+                params.addValue(padding);
+            chunks.add(params);
+        }
+        return chunks;
+    }
+
+    private static int inListSize(int count) {
+        for (int size : IN_LIST_SIZES) {
+            if (count <= size)
+                return size;
+        }
+        return IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+    }
+
+    static String inListQuery(String query, int size) {
+        return IN_LIST_QUERIES.computeIfAbsent(size + ":" + query, key -> {
+            StringBuilder placeholders = new StringBuilder(size * 3);
+            for (int i = 0; i < size; i++)
+                placeholders.append(i == 0 ? "?" : ", ?");
+            return query.replace("in (?)", "in (" + placeholders + ")");
+        });
+    }
+
 }
@@ -0,0 +1,70 @@
+package ch.lsh.ims.jukestack.handlers;
+
+/**
+ * Keeps the best hits of a search ordered by rank. The rank is the match score
+ * with availability as tie breaker, among equal ranks the first hit found
+ * stays in front.
+ */
+final class SearchCollector {
+
+    private final int limit;
+    private final int[] songIds;
+    private final int[] ranks;
+    private int size;
+
+    SearchCollector(int limit) {
+        this.limit = limit;
+        this.songIds = new int[limit];
+        this.ranks = new int[limit];
+    }
+
+    static int rank(int score, boolean available) {
+        return score * 2 + (available ? 1 : 0);
+    }
+
+    boolean isFull() {
+        return size == limit;
+    }
+
+    int minRank() {
+        return size == 0 ? 0 : ranks[size - 1];
+    }
+
+    /**
+     * Adds a hit, a song that is already collected is ignored, it always has
+     * the same rank
+     */
+    void offer(int songId, int rank) {
+        if (size == limit && rank <= ranks[size - 1])
+            return;
+        for (int i = 0; i < size; i++) {
+            if (songIds[i] == songId)
+                return;
+        }
+
+        int i = size == limit ? size - 1 : size++;
+        while (i > 0 && ranks[i - 1] < rank) {
+            songIds[i] = songIds[i - 1];
+            ranks[i] = ranks[i - 1];
+            i--;
+        }
+        songIds[i] = songId;
+        ranks[i] = rank;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int songId(int i) {
+        return songIds[i];
+    }
+
+    int score(int i) {
+        return ranks[i] / 2;
+    }
+
+    boolean available(int i) {
+        return (ranks[i] & 1) != 0;
+    }
+}
@@ -0,0 +1,606 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import io.netty.util.collection.LongObjectHashMap;
+
+/**
+ * Immutable inverted index over a range of songs. Terms are the normalized,
+ * accent folded tokens of the song name, the musician names and the album.
+ * <ul>
+ * <li>postings: term to the ascending documents containing it, used to find
+ * candidates</li>
+ * <li>forward index: document to its terms and the fields they occur in, used
+ * to score a candidate against every query token without further lookups</li>
+ * <li>trigrams: padded trigram to the terms containing it, used to find terms
+ * within a small edit distance of a misspelled query token</li>
+ * </ul>
+ * Documents are numbered in songId order, all arrays are plain ints so a
+ * segment of a million songs stays compact and is read without locks.
+ */
+final class SearchSegment {
+
+    static final byte FIELD_NAME = 1;
+    static final byte FIELD_MUSICIAN = 2;
+    static final byte FIELD_ALBUM = 4;
+
+    /**
+     * Match quality of a query token against a term
+     */
+    static final int EXACT = 3;
+    static final int PREFIX = 2;
+    static final int FUZZY = 1;
+
+    /**
+     * Highest score a single token can reach, an exact match in the song name
+     */
+    static final int MAX_TOKEN_SCORE = EXACT * 3;
+
+    /**
+     * Prefixes shorter than this only match exactly, a single letter would
+     * expand to a large part of the dictionary
+     */
+    private static final int MIN_PREFIX = 2;
+    private static final int MIN_FUZZY = 4;
+    /**
+     * Terms a prefix or a misspelled token expands to when it drives the search
+     */
+    private static final int MAX_EXPANSIONS = 64;
+    /**
+     * Distinct terms indexed per song, more only happens with dozens of musicians
+     */
+    private static final int MAX_DOC_TERMS = 64;
+    /**
+     * Driver cost from which the documents of a second token are marked in a
+     * bitset first, checking a bit is far cheaper than scoring a candidate
+     */
+    private static final int FILTER_MIN_COST = 512;
+    private static final int FILTER_MAX_RATIO = 64;
+
+    /**
+     * Song as read from the database
+     */
+    static final class Document {
+        final int songId;
+        final String name;
+        final String album;
+        final List<String> musicians = new ArrayList<>(2);
+
+        Document(int songId, String name, String album) {
+            this.songId = songId;
+            this.name = name;
+            this.album = album;
+        }
+    }
+
+    private final int[] songIds;
+    private final String[] terms;
+    private final int[][] postings;
+    private final int[] docTermStart;
+    private final int[] docTerms;
+    private final byte[] docTermFields;
+    private final LongObjectHashMap<int[]> grams;
+    private final long postingCount;
+
+    private SearchSegment(int[] songIds, String[] terms, int[][] postings, int[] docTermStart, int[] docTerms,
+            byte[] docTermFields, LongObjectHashMap<int[]> grams, long postingCount) {
+        this.songIds = songIds;
+        this.terms = terms;
+        this.postings = postings;
+        this.docTermStart = docTermStart;
+        this.docTerms = docTerms;
+        this.docTermFields = docTermFields;
+        this.grams = grams;
+        this.postingCount = postingCount;
+    }
+
+    int size() {
+        return songIds.length;
+    }
+
+    int termCount() {
+        return terms.length;
+    }
+
+    long postingCount() {
+        return postingCount;
+    }
+
+    /**
+     * Largest songId in the segment, 0 if it is empty
+     */
+    int maxSongId() {
+        return songIds.length == 0 ? 0 : songIds[songIds.length - 1];
+    }
+
+    /**
+     * Lowercase, accent folded text, everything but letters and digits becomes
+     * a space. Apostrophes are dropped so "don't" stays one token.
+     */
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK || c == '\'' || c == '’')
+                continue;
+            normalized.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ');
+        }
+        return normalized.toString();
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null)
+            return tokens;
+        for (String token : normalize(text).split(" ")) {
+            if (!token.isEmpty())
+                tokens.add(token);
+        }
+        return tokens;
+    }
+
+    /**
+     * Builds a segment, the documents have to be ordered by songId
+     */
+    static SearchSegment build(List<Document> documents) {
+        int docCount = documents.size();
+        int[] songIds = new int[docCount];
+        Map<String, Integer> termIds = new HashMap<>();
+        List<String> termList = new ArrayList<>();
+
+        // Forward index with provisional term ids, one long per term: id << 8 | fields
+        int[] docTermStart = new int[docCount + 1];
+        long[] entries = new long[Math.max(16, docCount * 8)];
+        int entryCount = 0;
+        long[] docEntries = new long[MAX_DOC_TERMS];
+
+        for (int doc = 0; doc < docCount; doc++) {
+            Document document = documents.get(doc);
+            songIds[doc] = document.songId;
+
+            int docEntryCount = 0;
+            docEntryCount = addTokens(document.name, FIELD_NAME, termIds, termList, docEntries, docEntryCount);
+            for (String musician : document.musicians)
+                docEntryCount = addTokens(musician, FIELD_MUSICIAN, termIds, termList, docEntries, docEntryCount);
+            docEntryCount = addTokens(document.album, FIELD_ALBUM, termIds, termList, docEntries, docEntryCount);
+
+            if (entryCount + docEntryCount > entries.length)
+                entries = Arrays.copyOf(entries, Math.max(entries.length * 2, entryCount + docEntryCount));
+            System.arraycopy(docEntries, 0, entries, entryCount, docEntryCount);
+            entryCount += docEntryCount;
+            docTermStart[doc + 1] = entryCount;
+        }
+
+        // Sorted dictionary, prefixes become contiguous id ranges
+        String[] terms = termList.toArray(new String[0]);
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> terms[a].compareTo(terms[b]));
+        String[] sortedTerms = new String[terms.length];
+        int[] remap = new int[terms.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedTerms[i] = terms[order[i]];
+            remap[order[i]] = i;
+        }
+
+        int[] docTerms = new int[entryCount];
+        byte[] docTermFields = new byte[entryCount];
+        int[] documentFrequency = new int[terms.length];
+        for (int doc = 0; doc < docCount; doc++) {
+            int from = docTermStart[doc];
+            int to = docTermStart[doc + 1];
+            for (int i = from; i < to; i++)
+                entries[i] = ((long) remap[(int) (entries[i] >>> 8)] << 8) | (entries[i] & 0xff);
+            Arrays.sort(entries, from, to);
+            for (int i = from; i < to; i++) {
+                docTerms[i] = (int) (entries[i] >>> 8);
+                docTermFields[i] = (byte) entries[i];
+                documentFrequency[docTerms[i]]++;
+            }
+        }
+
+        int[][] postings = new int[terms.length][];
+        for (int term = 0; term < terms.length; term++)
+            postings[term] = new int[documentFrequency[term]];
+        int[] filled = new int[terms.length];
+        for (int doc = 0; doc < docCount; doc++) {
+            for (int i = docTermStart[doc]; i < docTermStart[doc + 1]; i++)
+                postings[docTerms[i]][filled[docTerms[i]]++] = doc;
+        }
+
+        return new SearchSegment(songIds, sortedTerms, postings, docTermStart, docTerms, docTermFields,
+                buildGrams(sortedTerms), entryCount);
+    }
+
+    private static int addTokens(String text, byte field, Map<String, Integer> termIds, List<String> termList,
+            long[] docEntries, int count) {
+        for (String token : tokenize(text)) {
+            Integer id = termIds.get(token);
+            if (id == null) {
+                id = termList.size();
+                termIds.put(token, id);
+                termList.add(token);
+            }
+
+            boolean merged = false;
+            for (int i = 0; i < count; i++) {
+                if ((int) (docEntries[i] >>> 8) == id) {
+                    docEntries[i] |= field;
+                    merged = true;
+                    break;
+                }
+            }
+            if (!merged && count < docEntries.length)
+                docEntries[count++] = ((long) id << 8) | field;
+        }
+        return count;
+    }
+
+    private static LongObjectHashMap<int[]> buildGrams(String[] terms) {
+        // Growing lists, slot 0 holds the number of terms
+        LongObjectHashMap<int[]> lists = new LongObjectHashMap<>();
+        for (int term = 0; term < terms.length; term++) {
+            for (long gram : grams(terms[term])) {
+                int[] list = lists.get(gram);
+                if (list == null) {
+                    list = new int[4];
+                    lists.put(gram, list);
+                }
+                int used = list[0];
+                // A term repeating a gram is listed once, ids arrive in ascending order
+                if (used > 0 && list[used] == term)
+                    continue;
+                if (used + 1 == list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    lists.put(gram, list);
+                }
+                list[used + 1] = term;
+                list[0] = used + 1;
+            }
+        }
+        LongObjectHashMap<int[]> grams = new LongObjectHashMap<>(lists.size());
+        for (LongObjectHashMap.PrimitiveEntry<int[]> entry : lists.entries())
+            grams.put(entry.key(), Arrays.copyOfRange(entry.value(), 1, entry.value()[0] + 1));
+        return grams;
+    }
+
+    /**
+     * Trigrams of the term padded with a start and end marker, "abc" has the
+     * grams "^ab", "abc" and "bc$"
+     */
+    private static long[] grams(String term) {
+        String padded = "^" + term + "$";
+        long[] grams = new long[Math.max(0, padded.length() - 2)];
+        for (int i = 0; i < grams.length; i++)
+            grams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        return grams;
+    }
+
+    /**
+     * Terms of this segment a query token matches
+     */
+    final class TokenMatch {
+        final String token;
+        int exact = -1;
+        int prefixFrom;
+        int prefixTo;
+        int[] fuzzy = new int[0];
+        /**
+         * Terms to enumerate if this token drives the search, best quality first
+         */
+        int[] expansions = new int[0];
+        long cost;
+
+        TokenMatch(String token) {
+            this.token = token;
+        }
+
+        int quality(int term) {
+            if (term == exact)
+                return EXACT;
+            if (term >= prefixFrom && term < prefixTo)
+                return PREFIX;
+            if (fuzzy.length > 0 && Arrays.binarySearch(fuzzy, term) >= 0)
+                return FUZZY;
+            return 0;
+        }
+
+        /**
+         * Best quality any term can reach for this token
+         */
+        int maxQuality() {
+            if (exact >= 0)
+                return EXACT;
+            if (prefixTo > prefixFrom)
+                return PREFIX;
+            return fuzzy.length > 0 ? FUZZY : 0;
+        }
+
+        /**
+         * Postings of every term the token matches, not just the expansions
+         */
+        long fullCost() {
+            long total = exact >= 0 && (exact < prefixFrom || exact >= prefixTo) ? postings[exact].length : 0;
+            for (int term = prefixFrom; term < prefixTo; term++)
+                total += postings[term].length;
+            for (int term : fuzzy)
+                total += postings[term].length;
+            return total;
+        }
+
+        /**
+         * Sets the bit of every document the token matches
+         */
+        void mark(long[] bits) {
+            if (exact >= 0 && (exact < prefixFrom || exact >= prefixTo))
+                mark(bits, exact);
+            for (int term = prefixFrom; term < prefixTo; term++)
+                mark(bits, term);
+            for (int term : fuzzy)
+                mark(bits, term);
+        }
+
+        private void mark(long[] bits, int term) {
+            for (int doc : postings[term])
+                bits[doc >>> 6] |= 1L << doc;
+        }
+    }
+
+    TokenMatch match(String token) {
+        TokenMatch match = new TokenMatch(token);
+        int from = lowerBound(token);
+        if (from < terms.length && terms[from].equals(token))
+            match.exact = from;
+
+        if (token.length() >= MIN_PREFIX) {
+            match.prefixFrom = from;
+            match.prefixTo = lowerBound(token + Character.MAX_VALUE);
+        }
+        if (match.exact < 0 && token.length() >= MIN_FUZZY)
+            match.fuzzy = fuzzyTerms(token);
+
+        // Exact first, then the most frequent completions, then misspellings
+        int prefixCount = Math.min(MAX_EXPANSIONS, match.prefixTo - match.prefixFrom);
+        int[] prefixTerms = frequentTerms(match.prefixFrom, match.prefixTo, match.exact, prefixCount);
+        int fuzzyCount = Math.min(MAX_EXPANSIONS, match.fuzzy.length);
+        int[] expansions = new int[(match.exact >= 0 ? 1 : 0) + prefixTerms.length + fuzzyCount];
+        int n = 0;
+        if (match.exact >= 0)
+            expansions[n++] = match.exact;
+        for (int term : prefixTerms)
+            expansions[n++] = term;
+        for (int i = 0; i < fuzzyCount; i++)
+            expansions[n++] = match.fuzzy[i];
+        match.expansions = expansions;
+        for (int term : expansions)
+            match.cost += postings[term].length;
+        return match;
+    }
+
+    /**
+     * The terms in the range with the most documents, without the excluded one
+     */
+    private int[] frequentTerms(int from, int to, int excluded, int count) {
+        if (count <= 0)
+            return new int[0];
+        if (to - from <= count) {
+            int[] all = new int[to - from];
+            int n = 0;
+            for (int term = from; term < to; term++) {
+                if (term != excluded)
+                    all[n++] = term;
+            }
+            return Arrays.copyOf(all, n);
+        }
+
+        // Selection of the largest posting lists, count is small
+        int[] best = new int[count];
+        int size = 0;
+        for (int term = from; term < to; term++) {
+            if (term == excluded)
+                continue;
+            int frequency = postings[term].length;
+            if (size == count && frequency <= postings[best[size - 1]].length)
+                continue;
+            int i = size == count ? size - 1 : size++;
+            while (i > 0 && postings[best[i - 1]].length < frequency) {
+                best[i] = best[i - 1];
+                i--;
+            }
+            best[i] = term;
+        }
+        return Arrays.copyOf(best, size);
+    }
+
+    /**
+     * Terms within edit distance 1, 2 for tokens of 8 or more characters. Two
+     * strings within distance k share at least length - 3k padded trigrams,
+     * only candidates above that bound are verified.
+     */
+    private int[] fuzzyTerms(String token) {
+        int maxDistance = token.length() >= 8 ? 2 : 1;
+        long[] tokenGrams = grams(token);
+        int minShared = tokenGrams.length - 3 * maxDistance;
+        if (minShared < 1)
+            return new int[0];
+
+        int total = 0;
+        int[][] lists = new int[tokenGrams.length][];
+        for (int i = 0; i < tokenGrams.length; i++) {
+            lists[i] = grams.get(tokenGrams[i]);
+            if (lists[i] != null)
+                total += lists[i].length;
+        }
+        int[] candidates = new int[total];
+        int n = 0;
+        for (int[] list : lists) {
+            if (list != null) {
+                System.arraycopy(list, 0, candidates, n, list.length);
+                n += list.length;
+            }
+        }
+        Arrays.sort(candidates);
+
+        int[] matches = new int[16];
+        int matchCount = 0;
+        for (int i = 0; i < n;) {
+            int term = candidates[i];
+            int shared = 0;
+            while (i < n && candidates[i] == term) {
+                shared++;
+                i++;
+            }
+            if (shared >= minShared && Math.abs(terms[term].length() - token.length()) <= maxDistance
+                    && withinDistance(token, terms[term], maxDistance)) {
+                if (matchCount == matches.length)
+                    matches = Arrays.copyOf(matches, matchCount * 2);
+                matches[matchCount++] = term;
+            }
+        }
+        return Arrays.copyOf(matches, matchCount);
+    }
+
+    /**
+     * Levenshtein distance of at most max, stops as soon as a row exceeds it
+     */
+    static boolean withinDistance(String a, String b, int max) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max)
+                return false;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()] <= max;
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = terms.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (terms[mid].compareTo(key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Finds the documents matching all tokens. The token with the fewest
+     * postings drives the search, every candidate is scored on its forward
+     * index. Expansions are visited best quality first, so the search stops as
+     * soon as the collector is full of hits no remaining expansion can beat.
+     *
+     * @param available Whether a song can be lent right now, breaks ties
+     */
+    void search(List<String> tokens, SearchCollector collector, IntPredicate available) {
+        if (tokens.isEmpty() || songIds.length == 0)
+            return;
+        TokenMatch[] matches = new TokenMatch[tokens.size()];
+        TokenMatch driver = null;
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = match(tokens.get(i));
+            if (driver == null || matches[i].cost < driver.cost)
+                driver = matches[i];
+        }
+        if (driver.cost == 0)
+            return;
+        long[] filter = filter(matches, driver);
+
+        int otherTokensMax = 0;
+        for (TokenMatch match : matches) {
+            if (match != driver)
+                otherTokensMax += match.maxQuality() * 3;
+        }
+        for (int term : driver.expansions) {
+            int bound = SearchCollector.rank(driver.quality(term) * 3 + otherTokensMax, true);
+            if (collector.isFull() && collector.minRank() >= bound)
+                return;
+            for (int doc : postings[term]) {
+                if (collector.isFull() && collector.minRank() >= bound)
+                    break;
+                if (filter != null && (filter[doc >>> 6] & (1L << doc)) == 0)
+                    continue;
+                int score = score(doc, matches);
+                if (score > 0)
+                    collector.offer(songIds[doc], SearchCollector.rank(score, available.test(songIds[doc])));
+            }
+        }
+    }
+
+    /**
+     * Documents of the cheapest other token as a bitset, null if the driver
+     * is cheap enough to score every candidate or no token is worth marking
+     */
+    private long[] filter(TokenMatch[] matches, TokenMatch driver) {
+        if (matches.length < 2 || driver.cost < FILTER_MIN_COST)
+            return null;
+        TokenMatch best = null;
+        long bestCost = driver.cost * FILTER_MAX_RATIO;
+        for (TokenMatch match : matches) {
+            if (match == driver)
+                continue;
+            long cost = match.fullCost();
+            if (cost <= bestCost) {
+                best = match;
+                bestCost = cost;
+            }
+        }
+        if (best == null)
+            return null;
+        long[] bits = new long[(songIds.length + 63) >>> 6];
+        best.mark(bits);
+        return bits;
+    }
+
+    /**
+     * Sum over the tokens of the best quality times field weight, 0 if a token
+     * does not match the document at all
+     */
+    private int score(int doc, TokenMatch[] matches) {
+        int total = 0;
+        int from = docTermStart[doc];
+        int to = docTermStart[doc + 1];
+        for (TokenMatch match : matches) {
+            int best = 0;
+            for (int i = from; i < to; i++) {
+                int quality = match.quality(docTerms[i]);
+                if (quality > 0)
+                    best = Math.max(best, quality * weight(docTermFields[i]));
+            }
+            if (best == 0)
+                return 0;
+            total += best;
+        }
+        return total;
+    }
+
+    private static int weight(byte fields) {
+        if ((fields & FIELD_NAME) != 0)
+            return 3;
+        if ((fields & FIELD_MUSICIAN) != 0)
+            return 2;
+        return 1;
+    }
+}
@@ -0,0 +1,210 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import ch.lsh.ims.jukestack.Util;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Versioned, pre-encoded snapshot of the available songs. The catalog only
+ * changes when a lending starts, ends or expires, so the JSON body and its
+ * gzip variant are built once per version and shared by all requests and
+ * verticle instances. Which songs are lent comes from the
+ * {@link AvailabilityIndex}, the database only delivers the songs. Expired
+ * lendings arrive as {@link AvailabilityIndex#EXPIRED_ADDRESS} events.
+ */
+public class SongCatalog {
+
+    private static final long READY_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Immutable, already encoded catalog
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final String etag;
+        private final Buffer body;
+        private final Buffer gzipBody;
+
+        private Snapshot(long version, String etag, Buffer body, Buffer gzipBody) {
+            this.version = version;
+            this.etag = etag;
+            this.body = body;
+            this.gzipBody = gzipBody;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Hash of the encoded body, the same catalog keeps its ETag across restarts
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        public Buffer getBody() {
+            return body;
+        }
+
+        public Buffer getGzipBody() {
+            return gzipBody;
+        }
+    }
+
+    private final Vertx vertx;
+    private final Pool dbPool;
+    private final AvailabilityIndex availability;
+    private final long staleTimeoutMillis;
+    private final int fetchSize;
+
+    private final AtomicLong version = new AtomicLong(1);
+    private volatile Snapshot snapshot;
+    private Future<Snapshot> refreshing;
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder staleServed = new LongAdder();
+
+    /**
+     * @param availability       Which songs are lent, they are left out
+     * @param staleTimeoutMillis How long a request waits for a refresh before the
+     *                           previous snapshot is served instead
+     * @param fetchSize          Rows fetched per round trip while the snapshot
+     *                           is encoded
+     */
+    public SongCatalog(Vertx vertx, Pool dbPool, AvailabilityIndex availability, long staleTimeoutMillis,
+            int fetchSize) {
+        this.vertx = vertx;
+        this.dbPool = dbPool;
+        this.availability = availability;
+        this.staleTimeoutMillis = staleTimeoutMillis;
+        this.fetchSize = fetchSize;
+        if (vertx != null)
+            vertx.eventBus().consumer(AvailabilityIndex.EXPIRED_ADDRESS, message -> invalidate());
+    }
+
+    /**
+     * Marks the current snapshot as outdated, the next request rebuilds it
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns the current snapshot, refreshing it first if the catalog changed.
+     * If the refresh fails or takes longer than the stale timeout the previous
+     * snapshot is returned.
+     */
+    public Future<Snapshot> get() {
+        Snapshot current = snapshot;
+        if (current != null && current.version == version.get())
+            return Future.succeededFuture(current);
+
+        // The refresh may have been started by another verticle instance
+        Future<Snapshot> refresh = Util.onCallerContext(refresh());
+        if (current == null)
+            return refresh;
+
+        Promise<Snapshot> promise = Promise.promise();
+        long timerId = vertx.setTimer(staleTimeoutMillis, id -> {
+            if (promise.tryComplete(current))
+                staleServed.increment();
+        });
+        refresh.onComplete(ar -> {
+            vertx.cancelTimer(timerId);
+            if (ar.succeeded())
+                promise.tryComplete(ar.result());
+            else if (promise.tryComplete(current))
+                staleServed.increment();
+        });
+        return promise.future();
+    }
+
+    private synchronized Future<Snapshot> refresh() {
+        if (refreshing != null)
+            return refreshing;
+
+        long refreshVersion = version.get();
+        refreshes.increment();
+
+        // Fails like a database error while the lendings can not be loaded
+        Future<Void> ready = availability.ready().timeout(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        Future<Snapshot> future = ready.compose(v -> {
+            // Taken before the rows are read, a lending that starts meanwhile bumps the version
+            BitSet lent = availability.lentSongs();
+
+            // Encoded while the rows arrive, the result set is never held as a whole
+            return JsonArrayStream.withCursor(dbPool, SQLQueries.LIST_SONGS, Tuple.tuple(), fetchSize,
+                    rows -> SongHandler.streamSongsJson(rows, songId -> !lent.get(songId)))
+                    .compose(json -> vertx.executeBlocking(() -> encode(refreshVersion, json), false));
+        });
+
+        refreshing = future;
+        future.onComplete(ar -> {
+            synchronized (this) {
+                refreshing = null;
+            }
+            if (ar.succeeded()) {
+                Snapshot current = snapshot;
+                if (current == null || current.version <= ar.result().version)
+                    snapshot = ar.result();
+            } else {
+                refreshFailures.increment();
+                System.err.println("Error while refreshing song catalog: " + ar.cause().getMessage());
+            }
+        });
+        return future;
+    }
+
+    private static Snapshot encode(long version, Buffer body) throws IOException {
+        byte[] json = body.getBytes();
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream(json.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+            gzip.write(json);
+        }
+
+        String etag;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+            etag = Util.bytesToHex(digest).substring(0, 32);
+        } catch (NoSuchAlgorithmException e) {
+            etag = Long.toHexString(version);
+        }
+
+        return new Snapshot(version, etag, body, Buffer.buffer(gzipped.toByteArray()));
+    }
+
+    public JsonObject stats() {
+        Snapshot current = snapshot;
+        return new JsonObject()
+                .put("version", version.get())
+                .put("snapshotVersion", current == null ? null : current.version)
+                .put("snapshotBytes", current == null ? null : current.body.length())
+                .put("snapshotGzipBytes", current == null ? null : current.gzipBody.length())
+                .put("refreshes", refreshes.sum())
+                .put("refreshFailures", refreshFailures.sum())
+                .put("staleServed", staleServed.sum());
+    }
+
+}
@@ -4,12 +4,19 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntPredicate;
 
-import ch.lsh.ims.jukestack.AuthenticationManager;
 import ch.lsh.ims.jukestack.CloudflareR2Client;
-import io.vertx.core.http.Cookie;
+import ch.lsh.ims.jukestack.ClusterInvalidation;
+import ch.lsh.ims.jukestack.HttpServerProfile;
+import ch.lsh.ims.jukestack.ServiceMetrics;
+import io.netty.util.collection.IntObjectHashMap;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.sqlclient.Pool;
 import io.vertx.sqlclient.Row;
@@ -18,134 +25,400 @@ import io.vertx.sqlclient.Tuple;
 
 public class SongHandler {
 
+    /**
+     * Outcome of a lend attempt
+     */
+    enum LendResult {
+        OK, TOO_MANY_LENDINGS, ALREADY_LENT, NOT_FOUND
+    }
+
     private final Pool dbPool;
-    private final AuthenticationManager authManager;
+    private final SongCatalog catalog;
+    private final AvailabilityIndex availability;
     private final CloudflareR2Client r2Client;
     private final int MAX_LENDINGS;
     private final int LENDING_DAYS;
     private final String SONG_BUCKET = "juke-stack";
+    private final KeysetPage.Limits pageLimits;
+    private final SongSearchIndex searchIndex;
+    private final ClusterInvalidation invalidation;
+    private final ServiceMetrics metrics;
+
+    /**
+     * Longest search query and the default and largest number of search hits
+     */
+    private static final int MAX_QUERY_LENGTH = 100;
+    private static final int SEARCH_LIMIT_DEFAULT = 20;
+    private static final int SEARCH_LIMIT_MAX = 50;
 
-    public SongHandler(Pool dbPool, AuthenticationManager authManager, CloudflareR2Client r2Client, int maxLendings,
-            int lendingDays) {
+    /**
+     * Query parameters that filter the song list
+     */
+    private static final String[] SONG_FILTERS = { "name", "album", "yearFrom", "yearTo" };
+
+    public SongHandler(Pool dbPool, SongCatalog catalog, AvailabilityIndex availability,
+            CloudflareR2Client r2Client, int maxLendings, int lendingDays, KeysetPage.Limits pageLimits,
+            SongSearchIndex searchIndex, ClusterInvalidation invalidation, ServiceMetrics metrics) {
         this.dbPool = dbPool;
-        this.authManager = authManager;
+        this.catalog = catalog;
+        this.availability = availability;
         this.r2Client = r2Client;
         this.MAX_LENDINGS = maxLendings;
         this.LENDING_DAYS = lendingDays;
+        this.pageLimits = pageLimits;
+        this.searchIndex = searchIndex;
+        this.invalidation = invalidation;
+        this.metrics = metrics;
     }
 
+    /**
+     * The full list comes from the catalog snapshot. With a limit, cursor or
+     * filter a page is read from the database instead, see {@link KeysetPage}.
+     */
     public void listSongs(RoutingContext context) {
-        Cookie sessionCookie = context.request().getCookie("__session");
-        authManager.validateSession(sessionCookie, true)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-                .onSuccess(benutzerEmail -> dbPool.preparedQuery(SQLQueries.LIST_AVAILABLE_SONGS)
-                        .execute()
-                        .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                        .onSuccess(rows -> {
-                            List<Integer> songIds = new ArrayList<>();
-                            rows.forEach(row -> songIds.add(row.getInteger(0)));
-                            String songIdsStr = String.join(",", songIds.stream().map(Object::toString).toList());
-
-                            dbPool.preparedQuery(SQLQueries.GET_MUSICIANS_FOR_SONGS.replace("?", songIdsStr))
-                                    .execute()
-                                    .onFailure(
-                                            err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                                    .onSuccess(rows2 -> constructSongsJsonResponse(context, rows, rows2));
-                        }));
-    }
-
-    private void constructSongsJsonResponse(RoutingContext context, RowSet<Row> rows, RowSet<Row> rows2) {
+        if (KeysetPage.requested(context, SONG_FILTERS)) {
+            listSongsPage(context);
+            return;
+        }
+
+        catalog.get()
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(snapshot -> {
+                    String etag = "\"" + snapshot.getEtag() + "\"";
+                    String gzipEtag = "\"" + snapshot.getEtag() + "-gzip\"";
+                    boolean gzip = HttpNegotiation.acceptsGzip(context.request().getHeader("Accept-Encoding"))
+                            && HttpServerProfile.acceptsPrecompressed(context);
+                    context.response()
+                            .putHeader("Cache-Control", "private, no-cache")
+                            .putHeader("Vary", "Accept-Encoding")
+                            .putHeader("ETag", gzip ? gzipEtag : etag);
+
+                    // Either encoding of the same snapshot is still current
+                    if (HttpNegotiation.noneMatch(context.request().getHeader("If-None-Match"), etag, gzipEtag)) {
+                        context.response().setStatusCode(304).end();
+                        return;
+                    }
+
+                    if (gzip) {
+                        context.response()
+                                .putHeader("Content-Encoding", "gzip")
+                                .end(snapshot.getGzipBody());
+                        return;
+                    }
+                    context.response().end(snapshot.getBody());
+                });
+    }
+
+    /**
+     * A page of the available songs, optionally filtered by name or album prefix
+     * and a year range
+     */
+    private void listSongsPage(RoutingContext context) {
+        KeysetPage page;
+        StringBuilder sql = new StringBuilder(SQLQueries.LIST_AVAILABLE_SONGS_PAGE);
+        Tuple params = Tuple.tuple();
+        try {
+            page = pageLimits.parse(context, "songs");
+            params.addInteger(page.getAfterId());
+
+            String name = context.request().getParam("name");
+            if (name != null) {
+                sql.append(SQLQueries.SONG_NAME_PREFIX);
+                params.addString(KeysetPage.likePrefix(name));
+            }
+            String album = context.request().getParam("album");
+            if (album != null) {
+                sql.append(SQLQueries.SONG_ALBUM_PREFIX);
+                params.addString(KeysetPage.likePrefix(album));
+            }
+            String yearFrom = context.request().getParam("yearFrom");
+            if (yearFrom != null) {
+                sql.append(SQLQueries.SONG_YEAR_FROM);
+                params.addInteger(Integer.parseInt(yearFrom));
+            }
+            String yearTo = context.request().getParam("yearTo");
+            if (yearTo != null) {
+                sql.append(SQLQueries.SONG_YEAR_TO);
+                params.addInteger(Integer.parseInt(yearTo));
+            }
+        } catch (IllegalArgumentException e) {
+            context.response().setStatusCode(400).end("Bad Request");
+            return;
+        }
+        sql.append(SQLQueries.ORDER_BY_SONG_ID_LIMIT);
+        params.addInteger(page.getFetchSize());
+
+        // At most one statement text per filter combination
+        dbPool.preparedQuery(sql.toString())
+                .execute(params)
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(rowSet -> {
+                    List<Row> rows = new ArrayList<>();
+                    rowSet.forEach(rows::add);
+                    String nextCursor = page.nextCursor(rows, row -> row.getInteger("songId"));
+                    List<Row> songs = page.trim(rows);
+
+                    List<Integer> songIds = new ArrayList<>(songs.size());
+                    songs.forEach(row -> songIds.add(row.getInteger("songId")));
+                    SQLQueries.executeInList(dbPool, SQLQueries.GET_MUSICIANS_FOR_SONGS, songIds)
+                            .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                            .onSuccess(rows2 -> {
+                                KeysetPage.putNextCursor(context, nextCursor);
+                                context.response()
+                                        .putHeader("Cache-Control", "private, no-cache")
+                                        .end(buildSongPageJson(songs, rows2).encode());
+                            });
+                });
+    }
+
+    /**
+     * Searches songs by name, musician and album with the in-memory index. The
+     * hits are ordered by relevance and include lent songs, each song has an
+     * "available" flag.
+     */
+    public void searchSongs(RoutingContext context) {
+        String query = context.request().getParam("q");
+        String limitParam = context.request().getParam("limit");
+        int limit = SEARCH_LIMIT_DEFAULT;
+        try {
+            if (query == null || query.isBlank() || query.length() > MAX_QUERY_LENGTH)
+                throw new IllegalArgumentException("Invalid query");
+            if (limitParam != null) {
+                limit = Integer.parseInt(limitParam);
+                if (limit < 1)
+                    throw new IllegalArgumentException("Invalid limit: " + limit);
+                limit = Math.min(limit, SEARCH_LIMIT_MAX);
+            }
+        } catch (IllegalArgumentException e) {
+            context.response().setStatusCode(400).end("Bad Request");
+            return;
+        }
+
+        List<SongSearchIndex.Hit> hits = searchIndex.search(query, limit);
+        if (hits == null) {
+            context.response().setStatusCode(503).end("Service Unavailable");
+            return;
+        }
+        if (hits.isEmpty()) {
+            context.response().putHeader("Cache-Control", "private, no-cache").end("[]");
+            return;
+        }
+
+        List<Integer> songIds = new ArrayList<>(hits.size());
+        hits.forEach(hit -> songIds.add(hit.getSongId()));
+        Future.all(SQLQueries.executeInList(dbPool, SQLQueries.SELECT_SONGS_BY_IDS, songIds),
+                SQLQueries.executeInList(dbPool, SQLQueries.GET_MUSICIANS_FOR_SONGS, songIds))
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(all -> context.response()
+                        .putHeader("Cache-Control", "private, no-cache")
+                        .end(buildSearchJson(hits, all.resultAt(0), all.resultAt(1)).encode()));
+    }
+
+    /**
+     * Builds the JSON array of search hits in the order of the hits, songs
+     * deleted since the index was built are left out
+     *
+     * @param rows  Song rows without musicians
+     * @param rows2 Musician rows of these songs
+     */
+    static JsonArray buildSearchJson(List<SongSearchIndex.Hit> hits, List<Row> rows, List<Row> rows2) {
+        IntObjectHashMap<Row> songsById = new IntObjectHashMap<>(rows.size());
+        rows.forEach(row -> songsById.put(row.getInteger("songId"), row));
+        IntObjectHashMap<JsonArray> musikerBySong = groupMusicians(rows2);
+
         JsonArray songs = new JsonArray();
+        for (SongSearchIndex.Hit hit : hits) {
+            Row row = songsById.get(hit.getSongId());
+            if (row == null)
+                continue;
+            JsonArray musiker = musikerBySong.get(hit.getSongId());
+            songs.add(buildSongJson(row)
+                    .put("musiker", musiker == null ? new JsonArray() : musiker)
+                    .put("available", hit.isAvailable()));
+        }
+        return songs;
+    }
+
+    /**
+     * Builds the JSON array of a page of songs
+     *
+     * @param rows  Song rows without musicians
+     * @param rows2 Musician rows of these songs
+     */
+    static JsonArray buildSongPageJson(Iterable<Row> rows, Iterable<Row> rows2) {
+        IntObjectHashMap<JsonArray> musikerBySong = groupMusicians(rows2);
+
+        JsonArray songs = new JsonArray();
+        for (Row row : rows) {
+            JsonArray musiker = musikerBySong.get(row.getInteger("songId"));
+            songs.add(buildSongJson(row).put("musiker", musiker == null ? new JsonArray() : musiker));
+        }
+        return songs;
+    }
+
+    /**
+     * Builds the JSON array of songs with their musicians in a single pass
+     *
+     * @param rows Song rows joined with their musicians, one row per song and
+     *             musician or a single row with a null musikerId
+     */
+    static JsonArray buildSongsJson(Iterable<Row> rows) {
+        JsonArray songs = new JsonArray();
+        IntObjectHashMap<JsonArray> musikerBySong = new IntObjectHashMap<>();
         for (Row row : rows) {
-            Integer id = row.getInteger("songId");
-            JsonObject song = new JsonObject();
-            song.put("id", id);
-            song.put("name", row.getString("songName"));
-            song.put("dauer", ((java.time.Duration) row.getValue("songDauer")).getSeconds());
-            song.put("jahr", row.getInteger("songJahr"));
-            song.put("album", row.getString("songAlbum"));
-            song.put("coverObjekt", row.getString("songCoverObjekt"));
-
-            JsonArray musiker = new JsonArray();
-            for (Row row2 : rows2) {
-                if (row2.getInteger("songId").equals(id)) {
-                    JsonObject musikerObj = new JsonObject();
-                    musikerObj.put("id", row2.getInteger("musikerId"));
-                    musikerObj.put("name", row2.getString("musikerName"));
-                    musiker.add(musikerObj);
-                }
+            int id = row.getInteger("songId");
+            JsonArray musiker = musikerBySong.get(id);
+            if (musiker == null) {
+                musiker = new JsonArray();
+                musikerBySong.put(id, musiker);
+                songs.add(buildSongJson(row).put("musiker", musiker));
             }
-            song.put("musiker", musiker);
+            if (row.getValue("musikerId") != null)
+                musiker.add(buildMusikerJson(row));
+        }
+        return songs;
+    }
+
+    /**
+     * Encodes the songs while the rows arrive from a cursor. The rows have to be
+     * ordered by songId, a song is complete once the next one starts, so only a
+     * single song is held as a JSON tree at any time. The result is the same as
+     * {@code buildSongsJson(rows).toBuffer()} for the rows the filter accepts.
+     *
+     * @param include Whether the rows of a songId are written
+     */
+    static Future<Buffer> streamSongsJson(ReadStream<Row> rows, IntPredicate include) {
+        Promise<Buffer> promise = Promise.promise();
+        Buffer json = Buffer.buffer(64 * 1024).appendByte((byte) '[');
+        JsonObject[] current = new JsonObject[1];
+
+        rows.exceptionHandler(promise::tryFail);
+        rows.endHandler(v -> {
+            if (current[0] != null)
+                json.appendBuffer(current[0].toBuffer());
+            promise.tryComplete(json.appendByte((byte) ']'));
+        });
+        rows.handler(row -> {
+            if (!include.test(row.getInteger("songId")))
+                return;
+            JsonObject song = current[0];
+            if (song == null || !song.getInteger("id").equals(row.getInteger("songId"))) {
+                if (song != null)
+                    json.appendBuffer(song.toBuffer()).appendByte((byte) ',');
+                song = buildSongJson(row).put("musiker", new JsonArray());
+                current[0] = song;
+            }
+            if (row.getValue("musikerId") != null)
+                song.getJsonArray("musiker").add(buildMusikerJson(row));
+        });
+        return promise.future();
+    }
 
-            songs.add(song);
+    /**
+     * Groups musician rows by songId in a single pass
+     *
+     * @param rows2 Musician rows with songId, musikerId and musikerName
+     */
+    static IntObjectHashMap<JsonArray> groupMusicians(Iterable<Row> rows2) {
+        IntObjectHashMap<JsonArray> musikerBySong = new IntObjectHashMap<>();
+        for (Row row2 : rows2) {
+            int songId = row2.getInteger("songId");
+            JsonArray musiker = musikerBySong.get(songId);
+            if (musiker == null) {
+                musiker = new JsonArray();
+                musikerBySong.put(songId, musiker);
+            }
+            musiker.add(buildMusikerJson(row2));
         }
-        context.response().end(songs.encode());
+        return musikerBySong;
+    }
+
+    private static JsonObject buildSongJson(Row row) {
+        JsonObject song = new JsonObject();
+        song.put("id", row.getInteger("songId"));
+        song.put("name", row.getString("songName"));
+        song.put("dauer", ((java.time.Duration) row.getValue("songDauer")).getSeconds());
+        song.put("jahr", row.getInteger("songJahr"));
+        song.put("album", row.getString("songAlbum"));
+        song.put("coverObjekt", row.getString("songCoverObjekt"));
+        return song;
+    }
+
+    private static JsonObject buildMusikerJson(Row row) {
+        JsonObject musikerObj = new JsonObject();
+        musikerObj.put("id", row.getInteger("musikerId"));
+        musikerObj.put("name", row.getString("musikerName"));
+        return musikerObj;
     }
 
     public void listLendings(RoutingContext context) {
-        Cookie sessionCookie = context.request().getCookie("__session");
-        if (sessionCookie == null) {
-            context.response().setStatusCode(401).end("Unauthorized");
+        listLendingsOf(dbPool, pageLimits, context, AuthHandler.user(context).getEmail());
+    }
+
+    /**
+     * Responds with the active lendings of a user, all of them or with a limit or
+     * cursor a page ordered by ausleihId
+     */
+    static void listLendingsOf(Pool dbPool, KeysetPage.Limits pageLimits, RoutingContext context,
+            String benutzerEmail) {
+        KeysetPage page;
+        try {
+            page = KeysetPage.requested(context) ? pageLimits.parse(context, "lend") : null;
+        } catch (IllegalArgumentException e) {
+            context.response().setStatusCode(400).end("Bad Request");
             return;
         }
 
-        authManager.validateSession(sessionCookie, true)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-                .onSuccess(benutzerEmail -> dbPool.preparedQuery(SQLQueries.GET_LENDINGS_FOR_USER)
-                        .execute(Tuple.of(benutzerEmail))
-                        .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                        .onSuccess(rows -> {
-                            if (rows.size() == 0) {
-                                context.response().end("[]");
-                                return;
-                            }
-                            List<Integer> songIds = new ArrayList<>();
-                            rows.forEach(row -> songIds.add(row.getInteger(0)));
-                            String songIdsStr = String.join(",", songIds.stream().map(Object::toString).toList());
-
-                            dbPool.preparedQuery(SQLQueries.GET_MUSICIANS_FOR_SONGS.replace("?", songIdsStr))
-                                    .execute()
-                                    .onFailure(
-                                            err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                                    .onSuccess(rows2 -> constructLendingsJsonResponse(context, rows, rows2));
-                        }));
-    }
-
-    public static void constructLendingsJsonResponse(RoutingContext context, RowSet<Row> rows, RowSet<Row> rows2) {
+        Future<RowSet<Row>> query = page == null
+                ? dbPool.preparedQuery(SQLQueries.GET_LENDINGS_FOR_USER).execute(Tuple.of(benutzerEmail))
+                : dbPool.preparedQuery(SQLQueries.GET_LENDINGS_FOR_USER_PAGE)
+                        .execute(Tuple.of(benutzerEmail, page.getAfterId(), page.getFetchSize()));
+        query.onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(rowSet -> {
+                    List<Row> rows = new ArrayList<>();
+                    rowSet.forEach(rows::add);
+                    String nextCursor = page == null ? null
+                            : page.nextCursor(rows, row -> row.getInteger("ausleihId"));
+                    List<Row> lendings = page == null ? rows : page.trim(rows);
+                    if (lendings.isEmpty()) {
+                        context.response().end("[]");
+                        return;
+                    }
+                    List<Integer> songIds = new ArrayList<>();
+                    lendings.forEach(row -> songIds.add(row.getInteger("songId")));
+
+                    SQLQueries.executeInList(dbPool, SQLQueries.GET_MUSICIANS_FOR_SONGS, songIds)
+                            .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                            .onSuccess(rows2 -> {
+                                KeysetPage.putNextCursor(context, nextCursor);
+                                context.response().end(buildLendingsJson(lendings, rows2).encode());
+                            });
+                });
+    }
+
+    /**
+     * Builds the JSON array of lendings, musicians are grouped by song once
+     * instead of scanning all musician rows for every lending
+     */
+    static JsonArray buildLendingsJson(Iterable<Row> rows, Iterable<Row> rows2) {
+        IntObjectHashMap<JsonArray> musikerBySong = groupMusicians(rows2);
+
         JsonArray lendings = new JsonArray();
         for (Row row : rows) {
-            Integer id = row.getInteger("ausleihId");
-            Integer songId = row.getInteger("songId");
             JsonObject lending = new JsonObject();
-            lending.put("id", id);
+            lending.put("id", row.getInteger("ausleihId"));
             LocalDateTime ausleihStart = row.getLocalDateTime("ausleihStart");
             lending.put("borrowedAt", ausleihStart.toString());
             LocalDateTime ausleihEnde = row.getLocalDateTime("ausleihEnde");
             lending.put("returnAt", ausleihEnde.toString());
 
-            JsonObject song = new JsonObject();
-            song.put("id", row.getInteger("songId"));
-            song.put("name", row.getString("songName"));
-            song.put("dauer", ((java.time.Duration) row.getValue("songDauer")).getSeconds());
-            song.put("jahr", row.getInteger("songJahr"));
-            song.put("album", row.getString("songAlbum"));
-            song.put("coverObjekt", row.getString("songCoverObjekt"));
-
-            JsonArray musiker = new JsonArray();
-            for (Row row2 : rows2) {
-                if (row2.getInteger("songId").equals(songId)) {
-                    JsonObject musikerObj = new JsonObject();
-                    musikerObj.put("id", row2.getInteger("musikerId"));
-                    musikerObj.put("name", row2.getString("musikerName"));
-                    musiker.add(musikerObj);
-                }
-            }
-            song.put("musiker", musiker);
+            JsonArray musiker = musikerBySong.get(row.getInteger("songId"));
+            JsonObject song = buildSongJson(row);
+            song.put("musiker", musiker == null ? new JsonArray() : musiker);
             lending.put("song", song);
             lendings.add(lending);
         }
-
-        context.response().end(lendings.encode());
+        return lendings;
     }
 
     public void lendSong(RoutingContext context) {
@@ -157,41 +430,64 @@ public class SongHandler {
             return;
         }
 
-        Cookie sessionCookie = context.request().getCookie("__session");
-        authManager.validateSession(sessionCookie, true)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-                .onSuccess(benutzerEmail -> {
-                    dbPool.preparedQuery(SQLQueries.COUNT_ACTIVE_LENDINGS)
-                            .execute(Tuple.of(benutzerEmail))
-                            .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                            .onSuccess(rows -> {
-                                if (rows.iterator().next().getInteger(0) >= MAX_LENDINGS) {
-                                    context.response().setStatusCode(403).end("Too many lendings");
-                                    return;
-                                }
-
-                                dbPool.preparedQuery(SQLQueries.CHECK_SONG_LENT)
-                                        .execute(Tuple.of(songId))
-                                        .onFailure(err -> context.response().setStatusCode(500)
-                                                .end("Internal Server Error"))
-                                        .onSuccess(rows2 -> {
-                                            if (rows2.size() > 0) {
-                                                context.response().setStatusCode(404)
-                                                        .end("Song already lent");
-                                                return;
-                                            }
-
-                                            dbPool.preparedQuery(SQLQueries.INSERT_LENDING)
-                                                    .execute(Tuple.of(songId, benutzerEmail, LENDING_DAYS))
-                                                    .onFailure(err -> context.response().setStatusCode(500)
-                                                            .end("Internal Server Error"))
-                                                    .onSuccess(res -> context.response().end("OK"));
-                                        });
+        String benutzerEmail = AuthHandler.user(context).getEmail();
 
-                            });
+        lend(benutzerEmail, songId)
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(result -> {
+                    switch (result) {
+                        case TOO_MANY_LENDINGS -> context.response().setStatusCode(403).end("Too many lendings");
+                        case ALREADY_LENT -> context.response().setStatusCode(404).end("Song already lent");
+                        case NOT_FOUND -> context.response().setStatusCode(404).end("Song not found");
+                        case OK -> {
+                            metrics.lent();
+                            availability.lent(songId, System.currentTimeMillis() + LENDING_DAYS * 86_400_000L);
+                            catalog.invalidate();
+                            invalidation.broadcast(ClusterInvalidation.Kind.SONG, Integer.toString(songId));
+                            context.response().end("OK");
+                        }
+                    }
                 });
     }
 
+    /**
+     * Lends a song in a single transaction. The song and user rows are locked
+     * first, so the checks and the insert can not interleave with another lend
+     * of the same song or by the same user. A song the availability index
+     * knows as lent is refused without a transaction.
+     *
+     * @param benutzerEmail The users mail
+     * @param songId        The song to lend
+     * @return The outcome of the lend
+     */
+    Future<LendResult> lend(String benutzerEmail, int songId) {
+        if (availability.isLoaded() && availability.isLent(songId))
+            return Future.succeededFuture(LendResult.ALREADY_LENT);
+
+        return dbPool.withTransaction(conn -> conn.preparedQuery(SQLQueries.LOCK_SONG_AND_USER)
+                .execute(Tuple.of(songId, benutzerEmail))
+                .compose(locked -> {
+                    if (locked.size() == 0)
+                        return Future.succeededFuture(LendResult.NOT_FOUND);
+
+                    Future<RowSet<Row>> activeLendings = conn.preparedQuery(SQLQueries.COUNT_ACTIVE_LENDINGS)
+                            .execute(Tuple.of(benutzerEmail));
+                    Future<RowSet<Row>> songLent = conn.preparedQuery(SQLQueries.CHECK_SONG_LENT)
+                            .execute(Tuple.of(songId));
+
+                    return Future.all(activeLendings, songLent).compose(checks -> {
+                        if (activeLendings.result().iterator().next().getInteger(0) >= MAX_LENDINGS)
+                            return Future.succeededFuture(LendResult.TOO_MANY_LENDINGS);
+                        if (songLent.result().size() > 0)
+                            return Future.succeededFuture(LendResult.ALREADY_LENT);
+
+                        return conn.preparedQuery(SQLQueries.INSERT_LENDING)
+                                .execute(Tuple.of(songId, benutzerEmail, LENDING_DAYS))
+                                .map(LendResult.OK);
+                    });
+                }));
+    }
+
     public void returnSong(RoutingContext context) {
         int songId;
         try {
@@ -201,19 +497,21 @@ public class SongHandler {
             return;
         }
 
-        Cookie sessionCookie = context.request().getCookie("__session");
-        authManager.validateSession(sessionCookie, true)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-                .onSuccess(benutzerEmail -> dbPool.preparedQuery(SQLQueries.RETURN_SONG)
-                        .execute(Tuple.of(songId, benutzerEmail))
-                        .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                        .onSuccess(res -> {
-                            if (res.rowCount() == 0) {
-                                context.response().setStatusCode(404).end("Song not lent");
-                                return;
-                            }
-                            context.response().end("OK");
-                        }));
+        String benutzerEmail = AuthHandler.user(context).getEmail();
+
+        dbPool.preparedQuery(SQLQueries.RETURN_SONG)
+                .execute(Tuple.of(songId, benutzerEmail))
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(res -> {
+                    if (res.rowCount() == 0) {
+                        context.response().setStatusCode(404).end("Song not lent");
+                        return;
+                    }
+                    availability.returned(songId);
+                    catalog.invalidate();
+                    invalidation.broadcast(ClusterInvalidation.Kind.SONG, Integer.toString(songId));
+                    context.response().end("OK");
+                });
     }
 
     public void generateListenLink(RoutingContext context) {
@@ -225,29 +523,27 @@ public class SongHandler {
             return;
         }
 
-        Cookie sessionCookie = context.request().getCookie("__session");
-        authManager.validateSession(sessionCookie, true)
-                .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-                .onSuccess(benutzerEmail -> dbPool.preparedQuery(
-                        SQLQueries.GET_LISTEN_OBJECT)
-                        .execute(Tuple.of(songId, benutzerEmail))
-                        .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
-                        .onSuccess(rows -> {
-                            if (rows.size() == 0) {
-                                context.response().setStatusCode(404).end("Song not lent");
-                                return;
-                            }
-
-                            String link = r2Client.generatePresignedDownloadUrl(SONG_BUCKET,
-                                    rows.iterator().next().getString("songMP3Objekt"), Duration.ofMinutes(15));
-                            if (link == null) {
-                                context.response().setStatusCode(500).end("Internal Server Error");
-                                return;
-                            }
-                            JsonObject json = new JsonObject();
-                            json.put("link", link);
-                            context.response().end(json.encode());
-                        }));
+        String benutzerEmail = AuthHandler.user(context).getEmail();
+
+        dbPool.preparedQuery(SQLQueries.GET_LISTEN_OBJECT)
+                .execute(Tuple.of(songId, benutzerEmail))
+                .onFailure(err -> context.response().setStatusCode(500).end("Internal Server Error"))
+                .onSuccess(rows -> {
+                    if (rows.size() == 0) {
+                        context.response().setStatusCode(404).end("Song not lent");
+                        return;
+                    }
+
+                    String link = r2Client.generatePresignedDownloadUrl(SONG_BUCKET,
+                            rows.iterator().next().getString("songMP3Objekt"), Duration.ofMinutes(15));
+                    if (link == null) {
+                        context.response().setStatusCode(500).end("Internal Server Error");
+                        return;
+                    }
+                    JsonObject json = new JsonObject();
+                    json.put("link", link);
+                    context.response().end(json.encode());
+                });
     }
 
 }
\ No newline at end of file
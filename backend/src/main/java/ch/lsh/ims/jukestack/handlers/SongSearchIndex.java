@@ -0,0 +1,255 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * In-memory search over song names, musicians and albums. The index is built
+ * once from the database, songs added later are indexed into a small delta
+ * segment. A full rebuild replaces both segments from time to time, which also
+ * picks up edited songs. Which songs are lent comes from the
+ * {@link AvailabilityIndex}.
+ */
+public class SongSearchIndex {
+
+    /**
+     * Most tokens of a query that are used, the rest is ignored
+     */
+    private static final int MAX_TOKENS = 8;
+
+    /**
+     * Search result, the song details come from the database
+     */
+    public static final class Hit {
+        private final int songId;
+        private final int score;
+        private final boolean available;
+
+        private Hit(int songId, int score, boolean available) {
+            this.songId = songId;
+            this.score = score;
+            this.available = available;
+        }
+
+        public int getSongId() {
+            return songId;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+    }
+
+    private static final class Segments {
+        final SearchSegment base;
+        final SearchSegment delta;
+
+        Segments(SearchSegment base, SearchSegment delta) {
+            this.base = base;
+            this.delta = delta;
+        }
+    }
+
+    private final Vertx vertx;
+    private final Pool dbPool;
+    private final AvailabilityIndex availability;
+    private final Duration refreshInterval;
+    private final Duration rebuildInterval;
+    private final int fetchSize;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Segments segments;
+
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder deltaBuilds = new LongAdder();
+    private final LongAdder buildFailures = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+    private volatile long lastBuildMillis;
+
+    /**
+     * @param availability    Which songs are lent, available songs rank first
+     * @param refreshInterval How often new songs are looked for
+     * @param rebuildInterval How often the whole index is rebuilt
+     * @param fetchSize       Rows fetched per round trip while building
+     */
+    public SongSearchIndex(Vertx vertx, Pool dbPool, AvailabilityIndex availability, Duration refreshInterval,
+            Duration rebuildInterval, int fetchSize) {
+        this.vertx = vertx;
+        this.dbPool = dbPool;
+        this.availability = availability;
+        this.refreshInterval = refreshInterval;
+        this.rebuildInterval = rebuildInterval;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Builds the index and starts the refresh timers, further calls do nothing
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true))
+            return;
+        rebuild();
+        vertx.setPeriodic(refreshInterval.toMillis(), id -> refresh());
+        vertx.setPeriodic(rebuildInterval.toMillis(), id -> rebuild());
+    }
+
+    /**
+     * Builds the whole index from the database, the old one is served meanwhile
+     */
+    public Future<Void> rebuild() {
+        long start = System.currentTimeMillis();
+        return load(0)
+                .compose(documents -> vertx.executeBlocking(() -> SearchSegment.build(documents), false))
+                .onSuccess(base -> {
+                    segments = new Segments(base, null);
+                    builds.increment();
+                    lastBuildMillis = System.currentTimeMillis() - start;
+                })
+                .onFailure(err -> {
+                    buildFailures.increment();
+                    System.err.println("Error while building search index: " + err.getMessage());
+                })
+                .mapEmpty();
+    }
+
+    /**
+     * Indexes songs added since the last full build. Songs are only ever
+     * appended, so everything above the base segment's largest songId goes into
+     * a fresh delta segment.
+     */
+    public Future<Void> refresh() {
+        Segments current = segments;
+        if (current == null)
+            return Future.succeededFuture();
+        int baseMax = current.base.maxSongId();
+        int knownMax = current.delta == null ? baseMax : current.delta.maxSongId();
+
+        return dbPool.preparedQuery(SQLQueries.MAX_SONG_ID).execute()
+                .compose(rows -> {
+                    Integer max = rows.iterator().next().getInteger(0);
+                    if (max == null || max <= knownMax)
+                        return Future.succeededFuture();
+                    return load(baseMax)
+                            .compose(documents -> vertx.executeBlocking(() -> SearchSegment.build(documents), false))
+                            .onSuccess(delta -> {
+                                // A full rebuild in between already contains these songs
+                                if (segments == current) {
+                                    segments = new Segments(current.base, delta);
+                                    deltaBuilds.increment();
+                                }
+                            })
+                            .mapEmpty();
+                })
+                .onFailure(err -> {
+                    buildFailures.increment();
+                    System.err.println("Error while refreshing search index: " + err.getMessage());
+                })
+                .mapEmpty();
+    }
+
+    /**
+     * Reads the songs after the given songId with their musicians, both queries
+     * are ordered by songId so the musicians are attached in one pass
+     */
+    private Future<List<SearchSegment.Document>> load(int afterSongId) {
+        List<SearchSegment.Document> documents = new ArrayList<>();
+        int[] position = new int[1];
+        return JsonArrayStream.withCursor(dbPool, SQLQueries.SEARCH_INDEX_SONGS, Tuple.of(afterSongId), fetchSize,
+                rows -> collect(rows, row -> documents.add(new SearchSegment.Document(row.getInteger("songId"),
+                        row.getString("songName"), row.getString("songAlbum")))))
+                .compose(v -> JsonArrayStream.withCursor(dbPool, SQLQueries.SEARCH_INDEX_MUSICIANS,
+                        Tuple.of(afterSongId), fetchSize, rows -> collect(rows, row -> {
+                            int songId = row.getInteger("songId");
+                            while (position[0] < documents.size() && documents.get(position[0]).songId < songId)
+                                position[0]++;
+                            // Songs added after the first query are left for the next refresh
+                            if (position[0] < documents.size() && documents.get(position[0]).songId == songId)
+                                documents.get(position[0]).musicians.add(row.getString("musikerName"));
+                        })))
+                .map(v -> documents);
+    }
+
+    private static Future<Void> collect(ReadStream<Row> rows, Consumer<Row> consumer) {
+        Promise<Void> promise = Promise.promise();
+        rows.exceptionHandler(promise::tryFail);
+        rows.endHandler(v -> promise.tryComplete());
+        rows.handler(consumer::accept);
+        return promise.future();
+    }
+
+    /**
+     * Replaces the index, for tests and benchmarks without a database
+     */
+    void install(SearchSegment base, SearchSegment delta) {
+        segments = new Segments(base, delta);
+    }
+
+    /**
+     * Searches songs by name, musician and album. All tokens of the query have
+     * to match, exact matches rank above prefixes and prefixes above misspelled
+     * tokens, matches in the song name above musicians and musicians above the
+     * album. Among equal matches available songs come first.
+     *
+     * @return The best hits, null if the index is not built yet
+     */
+    public List<Hit> search(String query, int limit) {
+        Segments current = segments;
+        if (current == null)
+            return null;
+
+        long start = System.nanoTime();
+        List<String> tokens = SearchSegment.tokenize(query);
+        if (tokens.size() > MAX_TOKENS)
+            tokens = tokens.subList(0, MAX_TOKENS);
+
+        BitSet lent = availability.lentSongs();
+        SearchCollector collector = new SearchCollector(limit);
+        current.base.search(tokens, collector, songId -> !lent.get(songId));
+        if (current.delta != null)
+            current.delta.search(tokens, collector, songId -> !lent.get(songId));
+
+        List<Hit> hits = new ArrayList<>(collector.size());
+        for (int i = 0; i < collector.size(); i++)
+            hits.add(new Hit(collector.songId(i), collector.score(i), collector.available(i)));
+
+        searches.increment();
+        searchNanos.add(System.nanoTime() - start);
+        return hits;
+    }
+
+    public JsonObject stats() {
+        Segments current = segments;
+        long count = searches.sum();
+        return new JsonObject()
+                .put("ready", current != null)
+                .put("songs", current == null ? 0 : current.base.size() + (current.delta == null ? 0 : current.delta.size()))
+                .put("deltaSongs", current == null || current.delta == null ? 0 : current.delta.size())
+                .put("terms", current == null ? 0 : current.base.termCount())
+                .put("postings", current == null ? 0 : current.base.postingCount())
+                .put("builds", builds.sum())
+                .put("deltaBuilds", deltaBuilds.sum())
+                .put("buildFailures", buildFailures.sum())
+                .put("lastBuildMillis", lastBuildMillis)
+                .put("searches", count)
+                .put("searchAvgMicros", count == 0 ? 0 : searchNanos.sum() / count / 1000);
+    }
+}
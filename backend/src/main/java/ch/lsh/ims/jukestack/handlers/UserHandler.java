@@ -3,28 +3,42 @@ package ch.lsh.ims.jukestack.handlers;
 import java.time.Duration;
 
 import ch.lsh.ims.jukestack.AuthenticationManager;
+import ch.lsh.ims.jukestack.KdfExecutor;
+import ch.lsh.ims.jukestack.MailOutbox;
+import ch.lsh.ims.jukestack.MailTemplate;
+import ch.lsh.ims.jukestack.ServiceMetrics;
+import ch.lsh.ims.jukestack.SessionUser;
 import ch.lsh.ims.jukestack.Util;
 import io.vertx.core.http.Cookie;
 import io.vertx.core.http.CookieSameSite;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.mail.MailClient;
-import io.vertx.ext.mail.MailMessage;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.sqlclient.Pool;
 import io.vertx.sqlclient.Tuple;
 
 public class UserHandler {
 
+  /**
+   * Placeholders of the verification mail template, rendered with the name of
+   * the user and the verification link
+   */
+  public static final String[] VERIFY_MAIL_PLACEHOLDERS = { "{{name}}", "verifyUrl" };
+
   private final Pool dbPool;
   private final AuthenticationManager authManager;
-  private final MailClient mailClient;
+  private final MailOutbox mailOutbox;
+  private final MailTemplate verifyMailTemplate;
   private final Duration SESSION_DURATION;
+  private final ServiceMetrics metrics;
 
-  public UserHandler(Pool dbPool, AuthenticationManager authManager, MailClient client, Duration sessionDuration) {
+  public UserHandler(Pool dbPool, AuthenticationManager authManager, MailOutbox mailOutbox,
+      MailTemplate verifyMailTemplate, Duration sessionDuration, ServiceMetrics metrics) {
     this.dbPool = dbPool;
     this.authManager = authManager;
-    this.mailClient = client;
+    this.mailOutbox = mailOutbox;
+    this.verifyMailTemplate = verifyMailTemplate;
     this.SESSION_DURATION = sessionDuration;
+    this.metrics = metrics;
   }
 
   public void createUser(RoutingContext context) {
@@ -59,10 +73,14 @@ public class UserHandler {
       return;
     }
 
-    String[] hashData = authManager.hashPassword(passwort);
+    authManager.hashPassword(passwort)
+        .onFailure(err -> failHashing(context, err))
+        .onSuccess(hashData -> insertUser(context, email, nachname, vorname, hashData));
+  }
 
+  private void insertUser(RoutingContext context, String email, String nachname, String vorname, String[] hashData) {
     dbPool.preparedQuery(SQLQueries.INSERT_USER)
-        .execute(Tuple.of(email, nachname, vorname, hashData[1], hashData[0]))
+        .execute(Tuple.of(email, nachname, vorname, hashData[1], hashData[0], hashData[2]))
         .onFailure(
             err -> dbPool.preparedQuery(SQLQueries.SELECT_USER_BY_EMAIL).execute(Tuple.of(email))
                 .onFailure(err2 -> context.response().setStatusCode(500).end("Internal server error"))
@@ -95,141 +113,113 @@ public class UserHandler {
         .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
         .onSuccess(res -> {
           if (res.size() == 0) {
+            metrics.loggedIn(false);
             context.response().setStatusCode(401).end("Invalid credentials");
             return;
           }
 
           String benutzerPWHash_hex = res.iterator().next().getString("benutzerPWHash");
           String benutzerPWSalt_hex = res.iterator().next().getString("benutzerPWSalt");
+          String benutzerPWParams = res.iterator().next().getString("benutzerPWParams");
 
           byte[] benutzerPWHash = Util.hexToBytes(benutzerPWHash_hex);
           byte[] benutzerPWSalt = Util.hexToBytes(benutzerPWSalt_hex);
 
-          boolean pwValid = authManager.verifyPassword(passwort, benutzerPWHash, benutzerPWSalt);
+          authManager.verifyPassword(passwort, benutzerPWHash, benutzerPWSalt, benutzerPWParams)
+              .onFailure(err -> failHashing(context, err))
+              .onSuccess(pwValid -> {
+                if (!pwValid) {
+                  metrics.loggedIn(false);
+                  context.response().setStatusCode(401).end("Invalid credentials");
+                  return;
+                }
 
-          if (!pwValid) {
-            context.response().setStatusCode(401).end("Invalid credentials");
-            return;
-          }
+                if (authManager.needsRehash(benutzerPWParams))
+                  authManager.rehashPassword(email, passwort, benutzerPWHash_hex);
 
-          authManager
-              .generateSession(email, context.request().remoteAddress().host(),
-                  context.request().getHeader("User-Agent"))
-              .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-              .onSuccess(sessionToken -> context.response()
-                  .addCookie(Cookie.cookie("__session", sessionToken).setHttpOnly(true)
-                      .setSecure(authManager.SECURE_COOKIE).setPath("/").setSameSite(CookieSameSite.STRICT))
-                  .setStatusCode(201).end());
+                authManager
+                    .generateSession(email, ClientAddress.of(context),
+                        context.request().getHeader("User-Agent"))
+                    .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
+                    .onSuccess(sessionToken -> {
+                      metrics.loggedIn(true);
+                      context.response()
+                          .addCookie(Cookie.cookie("__session", sessionToken).setHttpOnly(true)
+                              .setSecure(authManager.SECURE_COOKIE).setPath("/").setSameSite(CookieSameSite.STRICT))
+                          .setStatusCode(201).end();
+                    });
+              });
         });
   }
 
-  public void getUserInfo(RoutingContext context) {
-    Cookie sessionCookie = context.request().getCookie("__session");
+  /**
+   * Answers a failed password hash, 503 if the hashing pool is overloaded
+   */
+  private static void failHashing(RoutingContext context, Throwable err) {
+    if (err instanceof KdfExecutor.OverloadedException) {
+      context.response().putHeader("Retry-After", "1").setStatusCode(503).end("Service unavailable");
+      return;
+    }
+    System.err.println("Error while hashing password: " + err.getMessage());
+    context.response().setStatusCode(500).end("Internal server error");
+  }
 
-    authManager.validateSession(sessionCookie, false)
-        .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized, " + err.getMessage()))
-        .onSuccess(benutzerEmail -> {
-          dbPool.preparedQuery(SQLQueries.SELECT_USER_INFO_BY_EMAIL)
-              .execute(Tuple.of(benutzerEmail))
-              .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-              .onSuccess(res -> {
-                if (res.size() == 0) {
-                  context.response().setStatusCode(500).end("Internal server error");
-                  return;
-                }
+  public void getUserInfo(RoutingContext context) {
+    SessionUser sessionUser = AuthHandler.user(context);
 
-                JsonObject user = new JsonObject()
-                    .put("email", benutzerEmail)
-                    .put("nachname", res.iterator().next().getString("benutzerNachname"))
-                    .put("vorname", res.iterator().next().getString("benutzerVorname"))
-                    .put("admin", res.iterator().next().getBoolean("benutzerIstAdmin"))
-                    .put("emailVerifiziert", res.iterator().next().getBoolean("benutzerEmailVerifiziert"));
+    JsonObject user = new JsonObject()
+        .put("email", sessionUser.getEmail())
+        .put("nachname", sessionUser.getNachname())
+        .put("vorname", sessionUser.getVorname())
+        .put("admin", sessionUser.isAdmin())
+        .put("emailVerifiziert", sessionUser.isEmailVerified());
 
-                context.response().setStatusCode(200).end(user.encode());
-              });
-        });
+    context.response().setStatusCode(200).end(user.encode());
   }
 
   public void verifyToken(RoutingContext context) {
-    Cookie sessionCookie = context.request().getCookie("__session");
-
-    authManager.validateSession(sessionCookie, true)
-        .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-        .onSuccess(benutzerEmail -> context.response().setStatusCode(200).end());
+    context.response().setStatusCode(200).end();
   }
 
   public void refresh(RoutingContext context) {
-    Cookie sessionCookie = context.request().getCookie("__session");
-
-    authManager.validateSession(sessionCookie, true)
-        .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-        .onComplete(benutzerEmail -> {
-          if (benutzerEmail.failed())
-            return;
-
-          authManager
-              .generateSession(benutzerEmail.result(), context.request().remoteAddress().host(),
-                  context.request().getHeader("User-Agent"))
-              .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-              .onSuccess(sessionToken -> context.response()
-                  .addCookie(Cookie.cookie("__session", sessionToken).setHttpOnly(true)
-                      .setSecure(authManager.SECURE_COOKIE).setPath("/").setMaxAge(SESSION_DURATION.getSeconds()))
-                  .setStatusCode(201).end());
-        });
+    authManager
+        .generateSession(AuthHandler.user(context).getEmail(), ClientAddress.of(context),
+            context.request().getHeader("User-Agent"))
+        .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
+        .onSuccess(sessionToken -> context.response()
+            .addCookie(Cookie.cookie("__session", sessionToken).setHttpOnly(true)
+                .setSecure(authManager.SECURE_COOKIE).setPath("/").setMaxAge(SESSION_DURATION.getSeconds()))
+            .setStatusCode(201).end());
   }
 
   public void logout(RoutingContext context) {
     Cookie sessionCookie = context.request().getCookie("__session");
 
-    authManager.validateSession(sessionCookie, false)
-        .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-        .onSuccess(benutzerEmail -> {
-          authManager.invalidateSession(sessionCookie);
-          context.getCookie("__session").setMaxAge(0);
-          context.response().removeCookies("__session", true);
-          context.response().setStatusCode(200).end();
-        });
+    // Answer once the session is expired, a following request must not pass with it
+    authManager.invalidateSession(sessionCookie).onComplete(ar -> {
+      context.getCookie("__session").setMaxAge(0);
+      context.response().removeCookies("__session", true);
+      context.response().setStatusCode(ar.succeeded() ? 200 : 500).end();
+    });
   }
 
   public void sendVerifyMail(RoutingContext context) {
-    Cookie sessionCookie = context.request().getCookie("__session");
-
-    authManager.validateSession(sessionCookie, false)
-        .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-        .onSuccess(benutzerEmail -> {
-          dbPool.preparedQuery(SQLQueries.SELECT_USER_INFO_BY_EMAIL)
-              .execute(Tuple.of(benutzerEmail))
-              .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-              .onSuccess(res -> {
-                if (res.size() == 0) {
-                  context.response().setStatusCode(500).end("Internal server error");
-                  return;
-                }
+    SessionUser user = AuthHandler.user(context);
 
-                String benutzerVorname = res.iterator().next().getString("benutzerVorname");
-                String benutzerNachname = res.iterator().next().getString("benutzerNachname");
-                boolean benutzerEmailVerifiziert = res.iterator().next().getBoolean("benutzerEmailVerifiziert");
-
-                if (benutzerEmailVerifiziert) {
-                  context.response().setStatusCode(400).end("Email already verified");
-                  return;
-                }
+    if (user.isEmailVerified()) {
+      context.response().setStatusCode(400).end("Email already verified");
+      return;
+    }
 
-                authManager.generateAndSaveEmailVerifyToken(benutzerEmail)
-                    .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-                    .onComplete((verifyToken) -> {
-                      String verifyUrl = "https://jukestack.ch/api/auth/verifyEmail?token=" + verifyToken.result();
-                      String mailContent = Util.generateValidationMail(benutzerVorname, benutzerNachname, verifyUrl);
-                      mailClient.sendMail(new MailMessage()
-                          .setFrom("noreply@jukestack.ch")
-                          .setTo(benutzerEmail)
-                          .setSubject("Jukestack Email Verification")
-                          .setHtml(mailContent))
-                          .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-                          .onSuccess(res2 -> context.response().setStatusCode(200).end());
-                    });
-              });
-        });
+    // Only queued here, the outbox sends it in the background
+    authManager.generateAndSaveEmailVerifyToken(user.getEmail())
+        .compose(verifyToken -> {
+          String verifyUrl = "https://jukestack.ch/api/auth/verifyEmail?token=" + verifyToken;
+          String mailContent = verifyMailTemplate.render(user.getVorname() + " " + user.getNachname(), verifyUrl);
+          return mailOutbox.enqueue(user.getEmail(), "Jukestack Email Verification", mailContent);
+        })
+        .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
+        .onSuccess(v -> context.response().setStatusCode(200).end());
   }
 
   public void verifyEmail(RoutingContext context) {
@@ -268,53 +258,57 @@ public class UserHandler {
       return;
     }
 
-    Cookie sessionCookie = context.request().getCookie("__session");
-
-    authManager.validateSession(sessionCookie, true)
-        .onFailure(err -> context.response().setStatusCode(401).end("Unauthorized"))
-        .onSuccess(benutzerEmail -> {
-          if (field.equals("email")) {
-            String email = value.getString("email").toLowerCase().trim();
-            if (email == null || !email.matches("^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}$")
-                || email.length() > 255) {
-              context.response().setStatusCode(400).end("Invalid email");
-              return;
-            }
-
-            dbPool.preparedQuery("UPDATE TBenutzer SET benutzerEmail = ?, benutzerEmailVerifiziert = false WHERE benutzerEmail = ?")
-                .execute(Tuple.of(email, benutzerEmail))
-                .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-                .onSuccess(res -> context.response().setStatusCode(200).end());
-          } else if (field.equals("name")) {
-            String vorname = value.getString("vorname");
-            String nachname = value.getString("nachname");
-
-            if (vorname == null || nachname == null || vorname.length() > 45 || nachname.length() > 45) {
-              context.response().setStatusCode(400).end("Invalid name");
-              return;
-            }
-
-            dbPool
-                .preparedQuery("UPDATE TBenutzer SET benutzerVorname = ?, benutzerNachname = ? WHERE benutzerEmail = ?")
-                .execute(Tuple.of(vorname, nachname, benutzerEmail))
-                .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-                .onSuccess(res -> context.response().setStatusCode(200).end());
-          } else if (field.equals("passwort")) {
-            String passwort = value.getString("passwort");
-
-            if (passwort == null) {
-              context.response().setStatusCode(400).end("Invalid password");
-              return;
-            }
-
-            String[] hashData = authManager.hashPassword(passwort);
-
-            dbPool.preparedQuery("UPDATE TBenutzer SET benutzerPWHash = ?, benutzerPWSalt = ? WHERE benutzerEmail = ?")
-                .execute(Tuple.of(hashData[1], hashData[0], benutzerEmail))
-                .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
-                .onSuccess(res -> context.response().setStatusCode(200).end());
-          }
-        });
+    String benutzerEmail = AuthHandler.user(context).getEmail();
+
+    if (field.equals("email")) {
+      String email = value.getString("email").toLowerCase().trim();
+      if (email == null || !email.matches("^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}$")
+          || email.length() > 255) {
+        context.response().setStatusCode(400).end("Invalid email");
+        return;
+      }
+
+      dbPool.preparedQuery("UPDATE TBenutzer SET benutzerEmail = ?, benutzerEmailVerifiziert = false WHERE benutzerEmail = ?")
+          .execute(Tuple.of(email, benutzerEmail))
+          .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
+          .onSuccess(res -> {
+            authManager.invalidateUserSessions(benutzerEmail);
+            context.response().setStatusCode(200).end();
+          });
+    } else if (field.equals("name")) {
+      String vorname = value.getString("vorname");
+      String nachname = value.getString("nachname");
+
+      if (vorname == null || nachname == null || vorname.length() > 45 || nachname.length() > 45) {
+        context.response().setStatusCode(400).end("Invalid name");
+        return;
+      }
+
+      dbPool
+          .preparedQuery("UPDATE TBenutzer SET benutzerVorname = ?, benutzerNachname = ? WHERE benutzerEmail = ?")
+          .execute(Tuple.of(vorname, nachname, benutzerEmail))
+          .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
+          .onSuccess(res -> {
+            authManager.invalidateUserSessions(benutzerEmail);
+            context.response().setStatusCode(200).end();
+          });
+    } else if (field.equals("passwort")) {
+      String passwort = value.getString("passwort");
+
+      if (passwort == null) {
+        context.response().setStatusCode(400).end("Invalid password");
+        return;
+      }
+
+      authManager.hashPassword(passwort)
+          .onFailure(err -> failHashing(context, err))
+          .onSuccess(hashData -> dbPool
+              .preparedQuery(
+                  "UPDATE TBenutzer SET benutzerPWHash = ?, benutzerPWSalt = ?, benutzerPWParams = ? WHERE benutzerEmail = ?")
+              .execute(Tuple.of(hashData[1], hashData[0], hashData[2], benutzerEmail))
+              .onFailure(err -> context.response().setStatusCode(500).end("Internal server error"))
+              .onSuccess(res -> context.response().setStatusCode(200).end()));
+    }
   }
 
 }
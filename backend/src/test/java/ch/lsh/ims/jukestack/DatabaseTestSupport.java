@@ -0,0 +1,36 @@
+package ch.lsh.ims.jukestack;
+
+import io.vertx.core.Vertx;
+import io.vertx.mysqlclient.MySQLConnectOptions;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+
+/**
+ * Connection settings for tests that need a real MySQL with the jukeStack
+ * schema. Those tests are skipped unless JUKESTACK_TEST_DB_HOST is set.
+ */
+public final class DatabaseTestSupport {
+
+  public static final String HOST_VARIABLE = "JUKESTACK_TEST_DB_HOST";
+
+  private DatabaseTestSupport() {
+  }
+
+  public static MySQLConnectOptions connectOptions() {
+    return new MySQLConnectOptions()
+        .setHost(System.getenv(HOST_VARIABLE))
+        .setPort(Integer.parseInt(env("JUKESTACK_TEST_DB_PORT", "3306")))
+        .setDatabase(env("JUKESTACK_TEST_DB_NAME", "JukeStackDB_Luis"))
+        .setUser(env("JUKESTACK_TEST_DB_USER", "root"))
+        .setPassword(env("JUKESTACK_TEST_DB_PASSWORD", "root_password"));
+  }
+
+  public static Pool pool(Vertx vertx, int maxSize) {
+    return Pool.pool(vertx, connectOptions(), new PoolOptions().setMaxSize(maxSize));
+  }
+
+  private static String env(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null ? defaultValue : value;
+  }
+}
@@ -0,0 +1,92 @@
+package ch.lsh.ims.jukestack;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.ext.mail.MailConfig;
+import io.vertx.ext.mail.StartTLSOptions;
+
+/**
+ * Minimal SMTP server for tests, accepts every mail without authentication
+ * and keeps the raw message data. The first failures mails are rejected with a
+ * temporary error.
+ */
+public final class FakeSmtpServer {
+
+  private final List<String> messages = new CopyOnWriteArrayList<>();
+  private final AtomicInteger failures;
+  private final AtomicInteger connections = new AtomicInteger();
+  private NetServer server;
+
+  public FakeSmtpServer(int failures) {
+    this.failures = new AtomicInteger(failures);
+  }
+
+  public Future<FakeSmtpServer> start(Vertx vertx) {
+    server = vertx.createNetServer().connectHandler(this::handle);
+    return server.listen(0).map(s -> this);
+  }
+
+  public Future<Void> close() {
+    return server.close();
+  }
+
+  /**
+   * Mail config of a client sending to this server
+   */
+  public MailConfig mailConfig() {
+    return new MailConfig().setHostname("localhost").setPort(server.actualPort())
+        .setStarttls(StartTLSOptions.DISABLED).setMaxPoolSize(2).setKeepAlive(true);
+  }
+
+  public List<String> getMessages() {
+    return messages;
+  }
+
+  public int getConnections() {
+    return connections.get();
+  }
+
+  private void handle(NetSocket socket) {
+    connections.incrementAndGet();
+    StringBuilder data = new StringBuilder();
+    boolean[] inData = { false };
+
+    socket.handler(RecordParser.newDelimited("\r\n", line -> {
+      String command = line.toString();
+      if (inData[0]) {
+        if (!command.equals(".")) {
+          data.append(command).append('\n');
+          return;
+        }
+        inData[0] = false;
+        if (failures.getAndDecrement() > 0) {
+          socket.write("451 Try again later\r\n");
+        } else {
+          messages.add(data.toString());
+          socket.write("250 OK\r\n");
+        }
+        data.setLength(0);
+        return;
+      }
+
+      String verb = command.length() < 4 ? command : command.substring(0, 4).toUpperCase();
+      switch (verb) {
+        case "EHLO", "HELO" -> socket.write("250 localhost\r\n");
+        case "DATA" -> {
+          inData[0] = true;
+          socket.write("354 End data with <CR><LF>.<CR><LF>\r\n");
+        }
+        case "QUIT" -> socket.write("221 Bye\r\n").onComplete(v -> socket.close());
+        default -> socket.write("250 OK\r\n");
+      }
+    }));
+    socket.write("220 localhost ESMTP fake\r\n");
+  }
+}
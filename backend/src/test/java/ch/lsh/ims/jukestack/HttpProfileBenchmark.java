@@ -0,0 +1,173 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+
+/**
+ * Compares the default and the tuned {@link HttpServerProfile}, with and
+ * without compression, on stand-ins for the song list (a pre-gzipped snapshot
+ * like SongCatalog serves it) and the lendings of a user (JSON built per
+ * request). The client behaves like a browser: 6 HTTP/1.1 connections for the
+ * default profile, a single h2c connection for the tuned one, with 64 requests
+ * in flight. Not part of the default test run, start it with
+ * {@code mvn test -Dtest=HttpProfileBenchmark}
+ */
+public class HttpProfileBenchmark {
+
+  // The tuned profile with HTTP_COMPRESSION
+  private static final String GZIP = "tuned+gzip";
+  private static final int IN_FLIGHT = 64;
+  private static final Duration WARMUP = Duration.ofSeconds(3);
+  private static final Duration MEASURE = Duration.ofSeconds(10);
+  private static final String[] PATHS = { "/api/songs", "/api/lend" };
+
+  private static class Result {
+    final LongAdder requests = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+  }
+
+  @Test
+  void default_vs_tuned_profile() throws Exception {
+    String[] profiles = { HttpServerProfile.DEFAULT, HttpServerProfile.TUNED, GZIP };
+    // One discarded round, otherwise the profile that runs first pays for the JIT
+    for (String path : PATHS)
+      for (String profile : profiles)
+        run(profile, path);
+
+    for (String path : PATHS) {
+      for (String profile : profiles) {
+        Result result = run(profile, path);
+        List<Long> latencies = new ArrayList<>(result.latencies);
+        Collections.sort(latencies);
+        long count = result.requests.sum();
+        System.out.printf("%-10s %-10s %8.0f req/s | p50 %6.2f ms | p99 %6.2f ms | %6.0f bytes/response%n", path,
+            profile, count / (double) MEASURE.toSeconds(), percentile(latencies, 0.50) / 1e6,
+            percentile(latencies, 0.99) / 1e6, result.bytes.sum() / (double) Math.max(1, count));
+        assertTrue(count > 0);
+      }
+    }
+  }
+
+  private static Result run(String profileName, String path) throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      HttpServerProfile profile = HttpServerProfile.resolve(GZIP.equals(profileName)
+          ? Map.of("HTTP_PROFILE", HttpServerProfile.TUNED, "HTTP_COMPRESSION", "true")::get
+          : Map.of("HTTP_PROFILE", profileName)::get);
+      HttpServer server = vertx.createHttpServer(profile.getOptions()).requestHandler(router(vertx, profile))
+          .listen(0).toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+
+      boolean tuned = !HttpServerProfile.DEFAULT.equals(profileName);
+      HttpClientOptions clientOptions = new HttpClientOptions()
+          .setDefaultHost("localhost").setDefaultPort(server.actualPort()).setKeepAlive(true);
+      // Flow control windows like Chrome, the Netty defaults of 64 KB stall
+      // large responses on a single connection
+      if (tuned)
+        clientOptions.setProtocolVersion(HttpVersion.HTTP_2).setHttp2ClearTextUpgrade(false)
+            .setHttp2MultiplexingLimit(IN_FLIGHT)
+            .setHttp2ConnectionWindowSize(15 * 1024 * 1024)
+            .setInitialSettings(new Http2Settings().setInitialWindowSize(6 * 1024 * 1024));
+      HttpClient client = vertx.createHttpClient(clientOptions,
+          new PoolOptions().setHttp1MaxSize(6).setHttp2MaxSize(1).setMaxWaitQueueSize(-1));
+
+      load(client, path, WARMUP, new Result());
+      Result result = new Result();
+      load(client, path, MEASURE, result);
+      return result;
+    } finally {
+      vertx.close().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  private static Router router(Vertx vertx, HttpServerProfile profile) throws IOException {
+    JsonArray songs = new JsonArray();
+    for (int i = 1; i <= 200; i++)
+      songs.add(new JsonObject().put("id", i).put("name", "Song " + i).put("dauer", 180 + i % 120)
+          .put("jahr", 2000 + i % 25).put("album", "Album " + i / 10).put("coverObjekt", "cover-" + i + ".webp")
+          .put("musiker", new JsonArray().add(new JsonObject().put("id", i * 10).put("name", "Musiker " + i))));
+    Buffer songsBody = songs.toBuffer();
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+      gzip.write(songsBody.getBytes());
+    }
+    Buffer songsGzip = Buffer.buffer(gzipped.toByteArray());
+
+    Router router = Router.router(vertx);
+    router.route().handler(profile.compression());
+    router.get("/api/songs").handler(ctx -> {
+      String acceptEncoding = ctx.request().getHeader("Accept-Encoding");
+      if (acceptEncoding != null && acceptEncoding.contains("gzip") && HttpServerProfile.acceptsPrecompressed(ctx))
+        ctx.response().putHeader("Content-Encoding", "gzip").end(songsGzip);
+      else
+        ctx.response().end(songsBody);
+    });
+    router.get("/api/lend").handler(ctx -> {
+      JsonArray lendings = new JsonArray();
+      for (int i = 0; i < 5; i++)
+        lendings.add(new JsonObject().put("id", i).put("borrowedAt", "2026-10-18T10:00").put("returnAt",
+            "2026-10-25T10:00").put("song", songs.getJsonObject(i)));
+      ctx.response().end(lendings.encode());
+    });
+    return router;
+  }
+
+  private static void load(HttpClient client, String path, Duration duration, Result result)
+      throws InterruptedException {
+    AtomicBoolean running = new AtomicBoolean(true);
+    for (int i = 0; i < IN_FLIGHT; i++)
+      send(client, path, running, result);
+    Thread.sleep(duration.toMillis());
+    running.set(false);
+  }
+
+  private static void send(HttpClient client, String path, AtomicBoolean running, Result result) {
+    if (!running.get())
+      return;
+    long start = System.nanoTime();
+    // Decompression stays off so the body length is what went over the wire
+    client.request(HttpMethod.GET, path)
+        .compose(req -> req.putHeader("Accept-Encoding", "gzip, deflate").send())
+        .compose(resp -> resp.body())
+        .onComplete(ar -> {
+          if (ar.succeeded() && running.get()) {
+            result.requests.increment();
+            result.bytes.add(ar.result().length());
+            result.latencies.add(System.nanoTime() - start);
+          }
+          send(client, path, running, result);
+        });
+  }
+
+  private static long percentile(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty())
+      return 0;
+    return sorted.get((int) Math.min(sorted.size() - 1, Math.round(percentile * (sorted.size() - 1))));
+  }
+}
@@ -0,0 +1,33 @@
+package ch.lsh.ims.jukestack;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import io.vertx.core.Vertx;
+
+/**
+ * A node of {@link TestClusterInvalidation} in its own JVM. Arguments are the
+ * UDP port and the comma separated peers. Reads lines of
+ * {@code <kind> <key>} from stdin and broadcasts them, prints
+ * {@code applied <kind> <key>} for every invalidation of another node.
+ */
+public class InvalidationNode {
+
+  public static void main(String[] args) throws Exception {
+    Vertx vertx = Vertx.vertx();
+    ClusterInvalidation invalidation = new ClusterInvalidation(vertx, "127.0.0.1", Integer.parseInt(args[0]),
+        ClusterInvalidation.parsePeers(args[1]), "convergence");
+    for (ClusterInvalidation.Kind kind : ClusterInvalidation.Kind.values())
+      invalidation.on(kind, key -> System.out.println("applied " + kind + " " + key));
+    invalidation.start().toCompletionStage().toCompletableFuture().get();
+    System.out.println("ready");
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    String line;
+    while ((line = in.readLine()) != null) {
+      String[] parts = line.split(" ", 2);
+      invalidation.broadcast(ClusterInvalidation.Kind.valueOf(parts[0]), parts[1]);
+    }
+    vertx.close();
+  }
+}
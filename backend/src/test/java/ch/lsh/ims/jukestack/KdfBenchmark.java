@@ -0,0 +1,99 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+
+/**
+ * Measures hashes per second of the legacy and the current KDF and how long a
+ * burst of logins blocks the event loop with inline hashing compared to the
+ * KdfExecutor. Not part of the default test run, start it with
+ * {@code mvn test -Dtest=KdfBenchmark}
+ */
+public class KdfBenchmark {
+
+  private static final int LOGINS = 32;
+  private static final int PBKDF2_ITERATIONS = 210_000;
+
+  @Test
+  void hashes_per_second() {
+    byte[] salt = new byte[16];
+    for (PasswordKdf kdf : new PasswordKdf[] { new PasswordKdf.Sha512(1),
+        new PasswordKdf.Pbkdf2(PBKDF2_ITERATIONS) }) {
+      int hashes = kdf instanceof PasswordKdf.Sha512 ? 200_000 : 20;
+      for (int i = 0; i < hashes / 10; i++)
+        kdf.hash("warmup", salt);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < hashes; i++)
+        kdf.hash("password" + i, salt);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%s: %.0f hashes/s per thread%n", kdf.params(), hashes / seconds);
+    }
+  }
+
+  @Test
+  void event_loop_blocked_time() throws Exception {
+    PasswordKdf kdf = new PasswordKdf.Pbkdf2(PBKDF2_ITERATIONS);
+    long inline = maxTimerLag(vertx -> {
+      List<Future<byte[]>> logins = new ArrayList<>();
+      for (int i = 0; i < LOGINS; i++)
+        logins.add(Future.succeededFuture(kdf.hash("password" + i, new byte[16])));
+      return Future.all(logins).mapEmpty();
+    });
+    long offloaded = maxTimerLag(vertx -> {
+      KdfExecutor executor = new KdfExecutor(vertx, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+          LOGINS);
+      List<Future<byte[]>> logins = new ArrayList<>();
+      for (int i = 0; i < LOGINS; i++) {
+        String password = "password" + i;
+        logins.add(executor.submit(() -> kdf.hash(password, new byte[16])));
+      }
+      return Future.all(logins).mapEmpty();
+    });
+
+    System.out.printf("%d logins, max event loop lag inline: %d ms, on KdfExecutor: %d ms%n", LOGINS, inline,
+        offloaded);
+    assertTrue(offloaded < inline);
+  }
+
+  /**
+   * Runs the burst on a single event loop and returns the largest delay of a
+   * 5 ms periodic timer on the same loop
+   */
+  private static long maxTimerLag(Function<Vertx, Future<Void>> burst) throws Exception {
+    Vertx vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+    try {
+      AtomicLong maxLag = new AtomicLong();
+      Promise<Void> done = Promise.promise();
+      vertx.runOnContext(v -> {
+        long[] last = { System.nanoTime() };
+        long timerId = vertx.setPeriodic(5, id -> {
+          long now = System.nanoTime();
+          maxLag.accumulateAndGet((now - last[0]) / 1_000_000 - 5, Math::max);
+          last[0] = now;
+        });
+        vertx.setTimer(50, id -> burst.apply(vertx)
+            .onComplete(ar -> vertx.setTimer(50, id2 -> {
+              vertx.cancelTimer(timerId);
+              done.handle(ar);
+            })));
+      });
+      done.future().toCompletionStage().toCompletableFuture().get(5, TimeUnit.MINUTES);
+      return maxLag.get();
+    } finally {
+      vertx.close();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+import ch.lsh.ims.jukestack.CloudflareR2Client.S3Config;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Compares the request throughput of one verticle instance with one instance
+ * per core. Every request does the CPU work of a typical API call: hashing the
+ * session token, presigning an R2 URL and encoding a JSON response. Not part
+ * of the default test run, start it with
+ * {@code mvn test -Dtest=MultiInstanceBenchmark}
+ */
+public class MultiInstanceBenchmark {
+
+  private static final int PORT = 18080;
+  private static final int CONNECTIONS = 256;
+  private static final Duration WARMUP = Duration.ofSeconds(3);
+  private static final Duration MEASURE = Duration.ofSeconds(10);
+
+  public static class ApiVerticle extends AbstractVerticle {
+    @Override
+    public void start(Promise<Void> startPromise) {
+      SharedResources.acquire(vertx, null, pool -> new SharedResources(
+          new CloudflareR2Client(new S3Config("account", "access", "secret")), null, null, null, null, null, null, null, null, null, null))
+          .compose(shared -> listen(shared.getR2Client()))
+          .onComplete(startPromise);
+    }
+
+    private Future<Void> listen(CloudflareR2Client r2Client) {
+      HashUtils hashUtils = new HashUtils(16, new PasswordKdf.Sha512(1));
+      byte[] token = new byte[32];
+
+      return vertx.createHttpServer().requestHandler(req -> {
+        hashUtils.hashSessionToken(token);
+        String url = r2Client.generatePresignedDownloadUrl("songs", "song-1.mp3", Duration.ofMinutes(15));
+        JsonArray songs = new JsonArray();
+        for (int i = 0; i < 50; i++)
+          songs.add(new JsonObject().put("songId", i).put("songName", "Song " + i).put("url", url));
+        req.response().end(songs.encode());
+      }).listen(PORT).mapEmpty();
+    }
+  }
+
+  @Test
+  void single_vs_per_core_instances() throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+    double single = run(1);
+    double perCore = run(cores);
+
+    System.out.printf("1 instance: %.0f req/s%n", single);
+    System.out.printf("%d instances: %.0f req/s (%.1fx)%n", cores, perCore, perCore / single);
+    assertTrue(single > 0 && perCore > 0);
+  }
+
+  private static double run(int instances) throws Exception {
+    Vertx server = Vertx.vertx();
+    Vertx client = Vertx.vertx();
+    try {
+      server.deployVerticle(ApiVerticle.class, new DeploymentOptions().setInstances(instances))
+          .toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+
+      HttpClient http = client.createHttpClient(
+          new HttpClientOptions().setDefaultPort(PORT).setDefaultHost("localhost").setKeepAlive(true),
+          new PoolOptions().setHttp1MaxSize(CONNECTIONS));
+
+      load(http, WARMUP);
+      long count = load(http, MEASURE);
+      return count / (double) MEASURE.toSeconds();
+    } finally {
+      client.close().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+      server.close().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  private static long load(HttpClient http, Duration duration) throws InterruptedException {
+    LongAdder completed = new LongAdder();
+    AtomicBoolean running = new AtomicBoolean(true);
+    for (int i = 0; i < CONNECTIONS; i++)
+      send(http, running, completed);
+    Thread.sleep(duration.toMillis());
+    running.set(false);
+    return completed.sum();
+  }
+
+  private static void send(HttpClient http, AtomicBoolean running, LongAdder completed) {
+    if (!running.get())
+      return;
+    http.request(HttpMethod.GET, "/api/songs")
+        .compose(req -> req.send())
+        .compose(resp -> resp.body())
+        .onComplete(ar -> {
+          if (ar.succeeded())
+            completed.increment();
+          send(http, running, completed);
+        });
+  }
+}
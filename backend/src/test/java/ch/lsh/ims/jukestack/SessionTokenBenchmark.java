@@ -0,0 +1,90 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares time and allocated bytes per session validation of the old hex
+ * pipeline (hex decode, shared digest, hex encoded cache key) with the binary
+ * one. Allocations are read from the per-thread allocation counter of the JVM.
+ * Not part of the default test run, start it with
+ * {@code mvn test -Dtest=SessionTokenBenchmark}
+ */
+public class SessionTokenBenchmark {
+
+  private static final int WARMUP = 200_000;
+  private static final int OPERATIONS = 1_000_000;
+
+  private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+      .getThreadMXBean();
+
+  private interface Pipeline {
+    String key(String hexToken) throws Exception;
+  }
+
+  private static String oldBytesToHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      String hex = Integer.toHexString(0xff & b);
+      if (hex.length() == 1)
+        sb.append('0');
+      sb.append(hex);
+    }
+    return sb.toString();
+  }
+
+  private static byte[] oldHexToBytes(String hex) {
+    int length = hex.length();
+    byte[] data = new byte[length / 2];
+    for (int i = 0; i < length; i += 2) {
+      data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4) + Character.digit(hex.charAt(i + 1), 16));
+    }
+    return data;
+  }
+
+  @Test
+  void hex_vs_binary_pipeline() throws Exception {
+    byte[] token = new byte[32];
+    new SecureRandom().nextBytes(token);
+    String hexToken = Util.bytesToHex(token);
+
+    MessageDigest sharedDigest = MessageDigest.getInstance("SHA-256");
+    Pipeline hex = t -> oldBytesToHex(sharedDigest.digest(oldHexToBytes(t)));
+
+    HashUtils hashUtils = new HashUtils(16, new PasswordKdf.Sha512(1));
+    byte[] out = new byte[32];
+    Pipeline binary = t -> {
+      hashUtils.hashSessionToken(t, 32, out);
+      return new String(out, StandardCharsets.ISO_8859_1);
+    };
+
+    double[] hexResult = measure(hex, hexToken);
+    double[] binaryResult = measure(binary, hexToken);
+    System.out.printf("hex pipeline:    %.0f ns/op, %.0f B/op%n", hexResult[0], hexResult[1]);
+    System.out.printf("binary pipeline: %.0f ns/op, %.0f B/op%n", binaryResult[0], binaryResult[1]);
+    assertTrue(binaryResult[1] < hexResult[1]);
+  }
+
+  private static double[] measure(Pipeline pipeline, String hexToken) throws Exception {
+    int sink = 0;
+    for (int i = 0; i < WARMUP; i++)
+      sink += pipeline.key(hexToken).length();
+
+    long threadId = Thread.currentThread().getId();
+    long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    for (int i = 0; i < OPERATIONS; i++)
+      sink += pipeline.key(hexToken).length();
+    long nanos = System.nanoTime() - start;
+    long bytes = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+    assertTrue(sink > 0);
+    return new double[] { (double) nanos / OPERATIONS, (double) bytes / OPERATIONS };
+  }
+}
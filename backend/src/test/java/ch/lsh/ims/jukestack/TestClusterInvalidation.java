@@ -0,0 +1,182 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.DatagramSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestClusterInvalidation {
+
+  private static final int NODES = 3;
+  private static final int ROUNDS = 100;
+  private static final String LOCALHOST = "127.0.0.1";
+  private static final String SECRET = "secret";
+
+  private static int freePort() throws IOException {
+    try (DatagramSocket socket = new DatagramSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  @Test
+  void invalidations_reach_the_peers_once(Vertx vertx, VertxTestContext testContext) throws IOException {
+    int portA = freePort();
+    int portB = freePort();
+    List<String> peers = List.of("127.0.0.1:" + portA, "127.0.0.1:" + portB);
+    ClusterInvalidation a = new ClusterInvalidation(vertx, LOCALHOST, portA, peers, SECRET);
+    ClusterInvalidation b = new ClusterInvalidation(vertx, LOCALHOST, portB, peers, SECRET);
+    AtomicInteger appliedA = new AtomicInteger();
+    List<String> appliedB = new ArrayList<>();
+    a.on(ClusterInvalidation.Kind.SESSION, key -> appliedA.incrementAndGet());
+    b.on(ClusterInvalidation.Kind.SESSION, key -> appliedB.add("session " + key));
+    b.on(ClusterInvalidation.Kind.SONG, key -> appliedB.add("song " + key));
+
+    Future.all(a.start(), b.start()).onComplete(testContext.succeeding(started -> {
+      a.broadcast(ClusterInvalidation.Kind.SESSION, "token");
+      a.broadcast(ClusterInvalidation.Kind.SONG, "42");
+      // Past the resend
+      vertx.setTimer(600, id -> testContext.verify(() -> {
+        assertEquals(List.of("session token", "song 42"), appliedB);
+        assertEquals(0, appliedA.get());
+        assertEquals(2L, b.stats().getLong("duplicates"));
+        testContext.completeNow();
+      }));
+    }));
+  }
+
+  @Test
+  void unsigned_and_forged_messages_are_dropped(Vertx vertx, VertxTestContext testContext) throws IOException {
+    int port = freePort();
+    List<String> peers = List.of("127.0.0.1:" + port);
+    // Only lists itself, a node without peers does not listen
+    ClusterInvalidation receiver = new ClusterInvalidation(vertx, LOCALHOST, port, peers, SECRET);
+    ClusterInvalidation forged = new ClusterInvalidation(vertx, LOCALHOST, freePort(), peers, "guess");
+    ClusterInvalidation signed = new ClusterInvalidation(vertx, LOCALHOST, freePort(), peers, SECRET);
+    List<String> applied = new ArrayList<>();
+    receiver.on(ClusterInvalidation.Kind.USER, applied::add);
+
+    Future.all(receiver.start(), forged.start(), signed.start())
+        .onComplete(testContext.succeeding(started -> {
+          // A well-formed message without the signature
+          Buffer unsigned = Buffer.buffer().appendByte((byte) 2).appendLong(1).appendLong(1)
+              .appendLong(System.currentTimeMillis()).appendByte((byte) ClusterInvalidation.Kind.USER.ordinal())
+              .appendShort((short) 5).appendString("a@b.c");
+          vertx.createDatagramSocket().send(unsigned, port, LOCALHOST);
+          forged.broadcast(ClusterInvalidation.Kind.USER, "forged@jukestack.ch");
+          signed.broadcast(ClusterInvalidation.Kind.USER, "signed@jukestack.ch");
+          vertx.setTimer(600, id -> testContext.verify(() -> {
+            assertEquals(List.of("signed@jukestack.ch"), applied);
+            assertEquals(3L, receiver.stats().getLong("rejected"));
+            testContext.completeNow();
+          }));
+        }));
+  }
+
+  @Test
+  void peers_without_a_secret_are_refused(Vertx vertx) {
+    assertThrows(IllegalArgumentException.class,
+        () -> new ClusterInvalidation(vertx, LOCALHOST, 7946, List.of("10.0.0.2:7946"), ""));
+    // A single node needs neither
+    assertFalse(new ClusterInvalidation(vertx, LOCALHOST, 7946, List.of(), null).isEnabled());
+  }
+
+  /**
+   * Three JVMs on localhost, each round one node invalidates a session and
+   * the time until both others applied it is measured
+   */
+  @Test
+  @Timeout(120)
+  void nodes_in_separate_jvms_converge() throws Exception {
+    int[] ports = new int[NODES];
+    for (int i = 0; i < NODES; i++)
+      ports[i] = freePort();
+    String peers = String.join(",", Arrays.stream(ports).mapToObj(port -> "127.0.0.1:" + port).toList());
+    // Surefire starts the tests from a manifest-only jar
+    String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+    String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+    List<Process> processes = new ArrayList<>();
+    List<PrintWriter> commands = new ArrayList<>();
+    List<BlockingQueue<String>> outputs = new ArrayList<>();
+    try {
+      for (int i = 0; i < NODES; i++) {
+        Process process = new ProcessBuilder(java, "-Xmx64m", "-XX:TieredStopAtLevel=1", "-cp", classPath,
+            InvalidationNode.class.getName(), Integer.toString(ports[i]), peers)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        processes.add(process);
+        commands.add(new PrintWriter(process.getOutputStream(), true));
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        outputs.add(output);
+        Thread reader = new Thread(() -> {
+          try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null)
+              output.add(line);
+          } catch (IOException e) {
+            // The node was stopped
+          }
+        });
+        reader.setDaemon(true);
+        reader.start();
+      }
+      for (BlockingQueue<String> output : outputs)
+        assertEquals("ready", output.poll(60, TimeUnit.SECONDS));
+
+      long[] millis = new long[ROUNDS];
+      for (int round = 0; round < ROUNDS; round++) {
+        int sender = round % NODES;
+        long start = System.nanoTime();
+        commands.get(sender).println("SESSION token-" + round);
+        for (int node = 0; node < NODES; node++) {
+          if (node == sender)
+            continue;
+          String line = outputs.get(node).poll(5, TimeUnit.SECONDS);
+          assertNotNull(line, "node " + node + " did not apply round " + round);
+          assertEquals("applied SESSION token-" + round, line);
+        }
+        millis[round] = (System.nanoTime() - start) / 1_000_000;
+      }
+
+      // The resent copies are recognised, nothing is applied twice
+      Thread.sleep(500);
+      for (BlockingQueue<String> output : outputs)
+        assertNull(output.poll());
+
+      Arrays.sort(millis);
+      System.out.printf("Converged %d nodes in %d ms median, %d ms p99, %d ms max%n", NODES,
+          millis[ROUNDS / 2], millis[ROUNDS * 99 / 100], millis[ROUNDS - 1]);
+      assertTrue(millis[ROUNDS - 1] < 1000, "slowest round took " + millis[ROUNDS - 1] + " ms");
+    } finally {
+      for (Process process : processes)
+        process.destroy();
+    }
+  }
+}
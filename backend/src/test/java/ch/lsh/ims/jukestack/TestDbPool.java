@@ -0,0 +1,145 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.spi.metrics.PoolMetrics;
+import io.vertx.mysqlclient.MySQLConnectOptions;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+
+public class TestDbPool {
+
+  @Test
+  void env_wins_over_tconfigs_and_defaults() {
+    Map<String, String> env = Map.of(DbPoolConfig.MAX_SIZE, "12");
+    Map<String, String> db = Map.of(DbPoolConfig.MAX_SIZE, "4", DbPoolConfig.PIPELINING_LIMIT, "32",
+        DbPoolConfig.SHARED, "false");
+
+    DbPoolConfig config = DbPoolConfig.resolve(env::get, db);
+    PoolOptions options = config.toPoolOptions();
+
+    assertEquals(12, options.getMaxSize());
+    assertFalse(options.isShared());
+    assertEquals(32, config.applyTo(new MySQLConnectOptions()).getPipeliningLimit());
+    assertEquals(256, options.getMaxWaitQueueSize());
+  }
+
+  @Test
+  void invalid_values_fall_back_to_defaults() {
+    Map<String, String> env = Map.of(DbPoolConfig.MAX_SIZE, "many", DbPoolConfig.PIPELINING_LIMIT, "0");
+
+    DbPoolConfig config = DbPoolConfig.resolve(env::get, Map.of());
+
+    assertEquals(8, config.getMaxSize());
+    assertEquals(1, config.applyTo(new MySQLConnectOptions()).getPipeliningLimit());
+  }
+
+  @Test
+  void acquire_latency_is_bucketed() {
+    DbPoolMetrics metrics = new DbPoolMetrics("test", 2);
+
+    Long task = metrics.submitted();
+    assertEquals(1, metrics.getWaiting());
+    metrics.begin(task);
+    assertEquals(0, metrics.getWaiting());
+    assertEquals(1, metrics.getInUse());
+    metrics.end(null, true);
+    assertEquals(0, metrics.getInUse());
+
+    metrics.recordAcquire(3_000_000);
+    metrics.recordAcquire(10_000_000_000L);
+    long[] histogram = metrics.getAcquireHistogram();
+    assertEquals(1, histogram[2]);
+    assertEquals(1, histogram[histogram.length - 1]);
+    assertEquals(1, metrics.getAcquired());
+  }
+
+  @Test
+  void pool_registers_metrics() {
+    Vertx vertx = Vertx.vertx(new VertxOptions().setMetricsOptions(AppMetrics.options()));
+    try {
+      DbPoolConfig config = DbPoolConfig.resolve(key -> null, Map.of());
+      Pool pool = Pool.pool(vertx, config.applyTo(new MySQLConnectOptions()), config.toPoolOptions());
+
+      DbPoolMetrics metrics = AppMetrics.of(vertx).getSqlPool(DbPoolConfig.POOL_NAME);
+      assertNotNull(metrics);
+      assertEquals(8, metrics.stats().getInteger("maxSize"));
+      pool.close();
+    } finally {
+      vertx.close();
+    }
+  }
+
+  @Test
+  void unshared_pools_of_the_same_name_are_summed() {
+    AppMetrics metrics = new AppMetrics();
+    PoolMetrics<?> first = metrics.createPoolMetrics("sql", DbPoolConfig.POOL_NAME, 8);
+    PoolMetrics<?> second = metrics.createPoolMetrics("sql", DbPoolConfig.POOL_NAME, 4);
+    first.submitted();
+    second.submitted();
+
+    DbPoolMetrics pool = metrics.getSqlPool(DbPoolConfig.POOL_NAME);
+    assertEquals(12, pool.getMaxSize());
+    assertEquals(2, pool.getWaiting());
+
+    second.close();
+    assertEquals(8, pool.getMaxSize());
+  }
+
+  @Test
+  void unshared_pools_of_every_instance_are_reported() throws Exception {
+    Vertx vertx = Vertx.vertx(new VertxOptions().setMetricsOptions(AppMetrics.options()));
+    try {
+      DbPoolConfig config = DbPoolConfig.resolve(Map.of(DbPoolConfig.SHARED, "false")::get, Map.of());
+      Pool first = Pool.pool(vertx, config.applyTo(new MySQLConnectOptions()), config.toPoolOptions());
+      Pool second = Pool.pool(vertx, config.applyTo(new MySQLConnectOptions()), config.toPoolOptions());
+
+      DbPoolMetrics metrics = AppMetrics.of(vertx).getSqlPool(DbPoolConfig.POOL_NAME);
+      assertEquals(16, metrics.getMaxSize());
+      second.close().toCompletionStage().toCompletableFuture().get();
+      assertEquals(8, metrics.getMaxSize());
+      first.close();
+    } finally {
+      vertx.close();
+    }
+  }
+
+  @Test
+  void tconfigs_are_read_once_per_vertx() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      // Refuses the handshake, every load ends with the defaults
+      AtomicInteger connections = new AtomicInteger();
+      NetServer server = vertx.createNetServer()
+          .connectHandler(socket -> {
+            connections.incrementAndGet();
+            socket.close();
+          })
+          .listen(0, "127.0.0.1").toCompletionStage().toCompletableFuture().get();
+      MySQLConnectOptions options = new MySQLConnectOptions().setHost("127.0.0.1").setPort(server.actualPort());
+
+      Future<Map<String, String>> first = DbPoolConfig.sharedDbConfigs(vertx, options, 3000);
+      Future<Map<String, String>> second = DbPoolConfig.sharedDbConfigs(vertx, options, 3000);
+      Future.all(first, second).toCompletionStage().toCompletableFuture().get();
+
+      assertEquals(1, connections.get());
+      assertTrue(first.result().isEmpty());
+      assertSame(first.result(), second.result());
+    } finally {
+      vertx.close();
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.Router;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestHttpServerProfile {
+
+  private static final Map<String, String> TUNED_GZIP = Map.of(
+      "HTTP_PROFILE", HttpServerProfile.TUNED, "HTTP_COMPRESSION", "true");
+  private static final String LARGE = "{\"songName\":\"Song\"},".repeat(500);
+
+  private static Buffer gzip(String body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(body.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return Buffer.buffer(out.toByteArray());
+  }
+
+  private static String gunzip(Buffer body) throws IOException {
+    try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body.getBytes()))) {
+      return new String(gzip.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static Future<HttpServer> start(Vertx vertx, HttpServerProfile profile) {
+    Router router = Router.router(vertx);
+    router.route().handler(profile.compression());
+    router.get("/small").handler(ctx -> ctx.response().end("{\"ok\":true}"));
+    router.get("/large").handler(ctx -> ctx.response().end(LARGE));
+    router.get("/stream").handler(ctx -> {
+      HttpServerProfile.skipCompression(ctx);
+      ctx.response().setChunked(true).write(LARGE);
+      ctx.response().end();
+    });
+    router.get("/precompressed").handler(ctx -> {
+      if (HttpServerProfile.acceptsPrecompressed(ctx))
+        ctx.response().putHeader("Content-Encoding", "gzip").end(gzip(LARGE));
+      else
+        ctx.response().end(LARGE);
+    });
+    return vertx.createHttpServer(profile.getOptions()).requestHandler(router).listen(0);
+  }
+
+  private static Future<HttpClientResponse> get(HttpClient client, int port, String path) {
+    return client.request(HttpMethod.GET, port, "localhost", path)
+        .compose(req -> req.putHeader("Accept-Encoding", "gzip").send());
+  }
+
+  @Test
+  void unknown_profile_is_rejected() {
+    assertThrows(IllegalArgumentException.class, () -> HttpServerProfile.resolve(Map.of("HTTP_PROFILE", "fast")::get));
+  }
+
+  @Test
+  void default_profile_is_the_default() {
+    HttpServerProfile profile = HttpServerProfile.resolve(Map.<String, String>of()::get);
+    assertEquals(HttpServerProfile.DEFAULT, profile.getName());
+    assertFalse(profile.getOptions().isReusePort());
+    assertFalse(profile.getOptions().isCompressionSupported());
+  }
+
+  @Test
+  void tuned_profile_compresses_only_large_responses(Vertx vertx, VertxTestContext testContext) {
+    HttpServerProfile profile = HttpServerProfile.resolve(TUNED_GZIP::get);
+    start(vertx, profile).onComplete(testContext.succeeding(server -> {
+      HttpClient client = vertx.createHttpClient();
+      get(client, server.actualPort(), "/large")
+          .compose(large -> {
+            testContext.verify(() -> assertEquals("gzip", large.getHeader("Content-Encoding")));
+            return get(client, server.actualPort(), "/small");
+          })
+          .compose(small -> {
+            // Not compressed and no identity marker on the wire
+            testContext.verify(() -> assertNull(small.getHeader("Content-Encoding")));
+            return small.body();
+          })
+          .onComplete(testContext.succeeding(body -> testContext.verify(() -> {
+            assertEquals("{\"ok\":true}", body.toString());
+            testContext.completeNow();
+          })));
+    }));
+  }
+
+  @Test
+  void streams_skip_compression_without_an_identity_marker(Vertx vertx, VertxTestContext testContext) {
+    Future.all(start(vertx, HttpServerProfile.resolve(TUNED_GZIP::get)),
+        start(vertx, HttpServerProfile.resolve(Map.<String, String>of()::get)))
+        .onComplete(testContext.succeeding(servers -> {
+          HttpClient client = vertx.createHttpClient();
+          Future.all(get(client, servers.<HttpServer>resultAt(0).actualPort(), "/stream")
+              .compose(resp -> resp.body().map(resp)),
+              get(client, servers.<HttpServer>resultAt(1).actualPort(), "/stream")
+                  .compose(resp -> resp.body().map(resp)))
+              .onComplete(testContext.succeeding(all -> testContext.verify(() -> {
+                for (int i = 0; i < 2; i++) {
+                  HttpClientResponse resp = all.resultAt(i);
+                  assertNull(resp.getHeader("Content-Encoding"));
+                  assertEquals(LARGE, resp.body().result().toString());
+                }
+                testContext.completeNow();
+              })));
+        }));
+  }
+
+  @Test
+  void precompressed_bodies_are_compressed_once_over_h2c(Vertx vertx, VertxTestContext testContext) {
+    HttpServerProfile profile = HttpServerProfile.resolve(TUNED_GZIP::get);
+    start(vertx, profile).onComplete(testContext.succeeding(server -> {
+      HttpClient http1 = vertx.createHttpClient();
+      HttpClient http2 = vertx.createHttpClient(new HttpClientOptions()
+          .setProtocolVersion(HttpVersion.HTTP_2).setHttp2ClearTextUpgrade(false));
+      Future.all(get(http1, server.actualPort(), "/precompressed").compose(resp -> resp.body().map(resp)),
+          get(http2, server.actualPort(), "/precompressed").compose(resp -> resp.body().map(resp)))
+          .onComplete(testContext.succeeding(all -> testContext.verify(() -> {
+            for (int i = 0; i < 2; i++) {
+              HttpClientResponse resp = all.resultAt(i);
+              assertEquals(i == 0 ? HttpVersion.HTTP_1_1 : HttpVersion.HTTP_2, resp.version());
+              assertEquals("gzip", resp.getHeader("Content-Encoding"));
+              assertEquals(LARGE, gunzip(resp.body().result()));
+            }
+            testContext.completeNow();
+          })));
+    }));
+  }
+}
@@ -0,0 +1,81 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import ch.lsh.ims.jukestack.handlers.SQLQueries;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.Cookie;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Validates a session while it is logged out, needs a MySQL with the jukeStack
+ * schema, see {@link DatabaseTestSupport}
+ */
+@EnabledIfEnvironmentVariable(named = DatabaseTestSupport.HOST_VARIABLE, matches = ".+")
+public class TestLogout {
+
+  private static final String EMAIL = "logout@jukestack.test";
+  private static final String USER_AGENT = "logout-test";
+  private static final int ROUNDS = 20;
+  private static final int RACING_VALIDATIONS = 16;
+
+  private static Vertx vertx;
+  private static Pool pool;
+  private static AuthenticationManager authManager;
+
+  @BeforeAll
+  static void setUp() throws Exception {
+    vertx = Vertx.vertx();
+    pool = DatabaseTestSupport.pool(vertx, 8);
+    // The default single node setup, no peers evict a stale cache entry
+    ClusterInvalidation invalidation = new ClusterInvalidation(vertx, "127.0.0.1", 0, List.of(), "");
+    authManager = new AuthenticationManager(pool, new HashUtils(16, new PasswordKdf.Sha512(1)), null,
+        new SessionCache(100, Duration.ofMinutes(1), Duration.ofSeconds(10)), invalidation, 32,
+        Duration.ofMinutes(30), false);
+    await(pool.preparedQuery(SQLQueries.INSERT_USER)
+        .execute(Tuple.of(EMAIL, "Test", "Logout", "0", "0", null)));
+  }
+
+  @AfterAll
+  static void tearDown() throws Exception {
+    await(pool.preparedQuery("delete from TAuthSessions where benutzerEmail = ?").execute(Tuple.of(EMAIL)));
+    await(pool.preparedQuery("delete from TBenutzer where benutzerEmail = ?").execute(Tuple.of(EMAIL)));
+    await(pool.close());
+    await(vertx.close());
+  }
+
+  @Test
+  void session_is_rejected_once_logout_completed() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      Cookie cookie = Cookie.cookie("__session", await(authManager.generateSession(EMAIL, "127.0.0.1", USER_AGENT)));
+      await(authManager.validateSession(cookie, false));
+
+      Future<Void> logout = authManager.invalidateSession(cookie);
+      // These may still see the session, they must not cache it past the logout
+      List<Future<SessionUser>> racing = new ArrayList<>();
+      for (int i = 0; i < RACING_VALIDATIONS; i++)
+        racing.add(authManager.validateSession(cookie, false));
+      await(logout);
+      await(Future.join(racing));
+
+      assertThrows(ExecutionException.class, () -> await(authManager.validateSession(cookie, false)));
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,94 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Vertx;
+import io.vertx.ext.mail.MailClient;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestMailOutbox {
+
+  private static MailOutbox outbox(Vertx vertx, MailClient mailClient) {
+    return new MailOutbox(vertx, null, mailClient, "noreply@jukestack.test", 20, Duration.ofSeconds(10), 5,
+        Duration.ofSeconds(30), Duration.ofMinutes(10));
+  }
+
+  @Test
+  void template_renders_every_placeholder() {
+    MailTemplate template = MailTemplate.compile("<p>Hallo {{name}}</p><a href=\"verifyUrl\">verifyUrl</a>",
+        "{{name}}", "verifyUrl");
+    assertEquals("<p>Hallo Max Muster</p><a href=\"https://x/1\">https://x/1</a>",
+        template.render("Max Muster", "https://x/1"));
+    assertEquals("no placeholders", MailTemplate.compile("no placeholders", "{{name}}").render("unused"));
+  }
+
+  @Test
+  void retry_delay_doubles_up_to_the_limit() {
+    MailOutbox outbox = outbox(null, null);
+    assertEquals(Duration.ofSeconds(30), outbox.retryDelay(1));
+    assertEquals(Duration.ofSeconds(60), outbox.retryDelay(2));
+    assertEquals(Duration.ofSeconds(480), outbox.retryDelay(5));
+    assertEquals(Duration.ofMinutes(10), outbox.retryDelay(6));
+    assertEquals(Duration.ofMinutes(10), outbox.retryDelay(60));
+  }
+
+  @Test
+  void delivers_a_batch_over_pooled_connections(Vertx vertx, VertxTestContext testContext) {
+    FakeSmtpServer smtp = new FakeSmtpServer(0);
+    smtp.start(vertx).onComplete(testContext.succeeding(server -> {
+      MailClient mailClient = MailClient.create(vertx, smtp.mailConfig());
+      MailOutbox outbox = outbox(vertx, mailClient);
+
+      List<MailOutbox.OutboxMail> mails = new ArrayList<>();
+      for (int i = 0; i < 10; i++)
+        mails.add(new MailOutbox.OutboxMail(i, "user" + i + "@jukestack.test", "Test " + i, "<p>" + i + "</p>", 0));
+
+      outbox.deliver(mails).onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+        assertEquals(10, smtp.getMessages().size());
+        assertTrue(smtp.getConnections() <= 2, "mail client must reuse its pooled connections");
+        for (MailOutbox.OutboxMail mail : mails)
+          assertNull(mail.error);
+        mailClient.close();
+        smtp.close();
+        testContext.completeNow();
+      })));
+    }));
+  }
+
+  @Test
+  void rejected_mails_keep_their_error(Vertx vertx, VertxTestContext testContext) {
+    FakeSmtpServer smtp = new FakeSmtpServer(1);
+    smtp.start(vertx).onComplete(testContext.succeeding(server -> {
+      MailClient mailClient = MailClient.create(vertx, smtp.mailConfig());
+      MailOutbox outbox = outbox(vertx, mailClient);
+      MailOutbox.OutboxMail mail = new MailOutbox.OutboxMail(1, "user@jukestack.test", "Test", "<p>Test</p>", 0);
+
+      outbox.deliver(List.of(mail))
+          .compose(v -> {
+            testContext.verify(() -> assertNotNull(mail.error));
+            MailOutbox.OutboxMail retry = new MailOutbox.OutboxMail(1, "user@jukestack.test", "Test", "<p>Test</p>",
+                1);
+            return outbox.deliver(List.of(retry)).map(retry);
+          })
+          .onComplete(testContext.succeeding(retry -> testContext.verify(() -> {
+            assertNull(retry.error);
+            assertEquals(1, smtp.getMessages().size());
+            mailClient.close();
+            smtp.close();
+            testContext.completeNow();
+          })));
+    }));
+  }
+}
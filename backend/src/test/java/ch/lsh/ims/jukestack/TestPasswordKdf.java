@@ -0,0 +1,65 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+
+public class TestPasswordKdf {
+
+  @Test
+  void legacy_hashes_still_verify() throws Exception {
+    byte[] salt = Util.hexToBytes("00112233445566778899aabbccddeeff");
+    byte[] password = "geheim".getBytes(StandardCharsets.UTF_8);
+    byte[] toHash = new byte[password.length + salt.length];
+    System.arraycopy(password, 0, toHash, 0, password.length);
+    System.arraycopy(salt, 0, toHash, password.length, salt.length);
+    byte[] stored = MessageDigest.getInstance("SHA-512").digest(toHash);
+
+    assertArrayEquals(stored, PasswordKdf.forParams(null).hash("geheim", salt));
+  }
+
+  @Test
+  void pbkdf2_matches_reference_vector() {
+    PasswordKdf kdf = PasswordKdf.forParams("pbkdf2-sha512:1");
+
+    assertEquals("pbkdf2-sha512:1", kdf.params());
+    assertEquals("867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252"
+        + "c02d470a285a0501bad999bfe943c08f050235d7d68b1da55e63f73b60a57fce",
+        Util.bytesToHex(kdf.hash("password", "salt".getBytes(StandardCharsets.UTF_8))));
+  }
+
+  @Test
+  void unknown_params_are_rejected() {
+    assertThrows(IllegalArgumentException.class, () -> PasswordKdf.forParams("md5:1"));
+  }
+
+  @Test
+  void full_queue_fails_fast() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      KdfExecutor executor = new KdfExecutor(vertx, 1, 1);
+      CountDownLatch release = new CountDownLatch(1);
+
+      Future<Boolean> running = executor.submit(() -> release.await(10, TimeUnit.SECONDS));
+      Future<Boolean> rejected = executor.submit(() -> true);
+
+      assertInstanceOf(KdfExecutor.OverloadedException.class, rejected.cause());
+      release.countDown();
+      running.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+      assertEquals(1L, executor.stats().getLong("rejected"));
+    } finally {
+      vertx.close();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class TestPresignCache {
+
+  @Test
+  void same_object_is_signed_once() {
+    PresignCache cache = new PresignCache(10, Duration.ofMinutes(5));
+    AtomicInteger signings = new AtomicInteger();
+
+    String first = cache.get("songs", "a.mp3", Duration.ofMinutes(15), () -> "url-" + signings.incrementAndGet());
+    String second = cache.get("songs", "a.mp3", Duration.ofMinutes(15), () -> "url-" + signings.incrementAndGet());
+    String other = cache.get("songs", "b.mp3", Duration.ofMinutes(15), () -> "url-" + signings.incrementAndGet());
+
+    assertEquals(first, second);
+    assertNotEquals(first, other);
+    assertEquals(2, signings.get());
+    assertEquals(1.0 / 3, cache.stats().getDouble("hitRate"), 0.001);
+  }
+
+  @Test
+  void urls_never_fall_below_the_floor() throws InterruptedException {
+    Duration expiration = Duration.ofMillis(300);
+    Duration floor = Duration.ofMillis(200);
+    PresignCache cache = new PresignCache(10, floor);
+
+    long end = System.currentTimeMillis() + 1000;
+    while (System.currentTimeMillis() < end) {
+      String signedAt = cache.get("songs", "a.mp3", expiration, () -> Long.toString(System.currentTimeMillis()));
+      long remaining = Long.parseLong(signedAt) + expiration.toMillis() - System.currentTimeMillis();
+      assertTrue(remaining >= floor.toMillis(), "remaining " + remaining + "ms");
+      Thread.sleep(5);
+    }
+    assertTrue(cache.getHits() > 0);
+    assertTrue(cache.getMisses() > 1);
+  }
+
+  @Test
+  void expiration_below_floor_is_not_cached() {
+    PresignCache cache = new PresignCache(10, Duration.ofMinutes(5));
+    AtomicInteger signings = new AtomicInteger();
+
+    cache.get("songs", "a.mp3", Duration.ofMinutes(1), () -> "url-" + signings.incrementAndGet());
+    cache.get("songs", "a.mp3", Duration.ofMinutes(1), () -> "url-" + signings.incrementAndGet());
+
+    assertEquals(2, signings.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void size_is_bounded() {
+    PresignCache cache = new PresignCache(2, Duration.ofMinutes(5));
+    for (String key : new String[] { "a", "b", "c" })
+      cache.get("songs", key, Duration.ofMinutes(15), () -> "url-" + key);
+
+    assertEquals(2, cache.size());
+    assertEquals(1L, cache.stats().getLong("evictions"));
+  }
+}
@@ -0,0 +1,199 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import ch.lsh.ims.jukestack.TokenBucketLimiter.Budget;
+import ch.lsh.ims.jukestack.handlers.ClientAddress;
+import ch.lsh.ims.jukestack.handlers.RateLimitHandler;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.BodyHandler;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestRateLimiter {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  void allows_a_burst_then_refills_evenly() {
+    TokenBucketLimiter limiter = new TokenBucketLimiter("test", new Budget(5, Duration.ofSeconds(10)), 100);
+    long now = 0;
+    for (int i = 0; i < 5; i++)
+      assertEquals(0, limiter.acquire("1.2.3.4", now));
+
+    long wait = limiter.acquire("1.2.3.4", now);
+    assertEquals(2 * SECOND, wait);
+    assertEquals(2, TokenBucketLimiter.retryAfterSeconds(wait));
+    // Other keys have their own bucket
+    assertEquals(0, limiter.acquire("5.6.7.8", now));
+
+    // One token every 2 seconds
+    assertEquals(0, limiter.acquire("1.2.3.4", now + 2 * SECOND));
+    assertTrue(limiter.acquire("1.2.3.4", now + 2 * SECOND) > 0);
+  }
+
+  @Test
+  void idle_buckets_are_evicted() {
+    TokenBucketLimiter limiter = new TokenBucketLimiter("test", new Budget(1, Duration.ofSeconds(1)), 2);
+    assertEquals(0, limiter.acquire("a", 0));
+    assertEquals(0, limiter.acquire("b", 0));
+
+    assertEquals(0, limiter.evictIdle(60 * SECOND, 30 * SECOND));
+    assertEquals(2, limiter.evictIdle(60 * SECOND, 62 * SECOND));
+    assertEquals(0, limiter.stats().getInteger("keys"));
+  }
+
+  @Test
+  void new_keys_never_share_a_bucket_when_the_map_is_full() {
+    TokenBucketLimiter limiter = new TokenBucketLimiter("test", new Budget(1, Duration.ofSeconds(10)), 2);
+    assertEquals(0, limiter.acquire("a", 0));
+    assertEquals(0, limiter.acquire("b", SECOND));
+    // Sprayed keys each get their own bucket and push out the one that refills first
+    for (int i = 0; i < 100; i++)
+      assertEquals(0, limiter.acquire("spray" + i, 2 * SECOND));
+    assertEquals(0, limiter.acquire("victim", 2 * SECOND));
+    assertTrue(limiter.stats().getInteger("keys") <= 2);
+    assertEquals(101L, limiter.stats().getLong("displaced"));
+
+    // A bucket that is full again is reused without displacing anyone
+    assertEquals(0, limiter.acquire("late", 20 * SECOND));
+    assertEquals(101L, limiter.stats().getLong("displaced"));
+  }
+
+  @Test
+  void forwarded_clients_have_their_own_bucket(Vertx vertx, VertxTestContext testContext) {
+    RateLimits limits = new RateLimits(100, Duration.ofMinutes(10));
+    Router router = Router.router(vertx);
+    router.route().handler(new ClientAddress(1));
+    router.route().handler(BodyHandler.create());
+    router.post("/login")
+        .handler(RateLimitHandler.bodyEmail(limits.limiter("login.ip", new Budget(1, Duration.ofSeconds(60))),
+            limits.limiter("login.email", new Budget(10, Duration.ofSeconds(60)))))
+        .handler(ctx -> ctx.response().end("ok"));
+
+    vertx.createHttpServer().requestHandler(router).listen(0)
+        .compose(server -> {
+          HttpClient client = vertx.createHttpClient();
+          // The client's own entry on the left is ignored, the proxy appended the right one
+          return login(client, server.actualPort(), "X-Forwarded-For", "6.6.6.6, 1.1.1.1")
+              .compose(first -> {
+                testContext.verify(() -> assertEquals(200, first));
+                return login(client, server.actualPort(), "Forwarded", "for=6.6.6.6, for=\"[2001:db8::2]:4711\"");
+              })
+              .compose(second -> {
+                testContext.verify(() -> assertEquals(200, second));
+                return login(client, server.actualPort(), "X-Forwarded-For", "7.7.7.7, 1.1.1.1");
+              });
+        })
+        .onComplete(testContext.succeeding(third -> testContext.verify(() -> {
+          assertEquals(429, third);
+          testContext.completeNow();
+        })));
+  }
+
+  @Test
+  void clients_behind_the_same_proxy_are_limited_separately(Vertx vertx, VertxTestContext testContext) {
+    RateLimits limits = new RateLimits(100, Duration.ofMinutes(10));
+    Router router = Router.router(vertx);
+    router.route().handler(new ClientAddress(1));
+    router.route().handler(BodyHandler.create());
+    router.post("/login")
+        .handler(RateLimitHandler.bodyEmail(limits.limiter("login.ip", new Budget(1, Duration.ofSeconds(60))),
+            limits.limiter("login.email", new Budget(10, Duration.ofSeconds(60)))))
+        .handler(ctx -> ctx.response().end("ok"));
+
+    // Both connect from the proxy's address, like every request on Cloud Run
+    vertx.createHttpServer().requestHandler(router).listen(0)
+        .compose(server -> {
+          HttpClient client = vertx.createHttpClient();
+          int port = server.actualPort();
+          return Future.all(login(client, port, "X-Forwarded-For", "1.1.1.1"),
+              login(client, port, "X-Forwarded-For", "2.2.2.2"))
+              .compose(first -> {
+                testContext.verify(() -> {
+                  assertEquals(200, first.<Integer>resultAt(0));
+                  assertEquals(200, first.<Integer>resultAt(1));
+                });
+                return Future.all(login(client, port, "X-Forwarded-For", "1.1.1.1"),
+                    login(client, port, "X-Forwarded-For", "2.2.2.2"));
+              });
+        })
+        .onComplete(testContext.succeeding(second -> testContext.verify(() -> {
+          assertEquals(429, second.<Integer>resultAt(0));
+          assertEquals(429, second.<Integer>resultAt(1));
+          assertEquals(2, limits.stats().getJsonObject("login.ip").getInteger("keys"));
+          testContext.completeNow();
+        })));
+  }
+
+  private static Future<Integer> login(HttpClient client, int port, String header, String value) {
+    return client.request(HttpMethod.POST, port, "localhost", "/login")
+        .compose(req -> req.putHeader(header, value).send(new JsonObject().put("email", "a@b.ch").toBuffer()))
+        .map(response -> response.statusCode());
+  }
+
+  @Test
+  void concurrent_acquires_never_exceed_the_budget() throws Exception {
+    TokenBucketLimiter limiter = new TokenBucketLimiter("test", new Budget(1000, Duration.ofHours(1)), 100);
+    AtomicInteger allowed = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 1000; i++)
+          if (limiter.acquire("shared") == 0)
+            allowed.incrementAndGet();
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(1000, allowed.get());
+  }
+
+  @Test
+  void limited_requests_get_429_with_retry_after(Vertx vertx, VertxTestContext testContext) {
+    RateLimits limits = new RateLimits(100, Duration.ofMinutes(10));
+    Router router = Router.router(vertx);
+    router.route().handler(BodyHandler.create());
+    router.post("/login")
+        .handler(RateLimitHandler.bodyEmail(limits.limiter("login.ip", new Budget(10, Duration.ofSeconds(60))),
+            limits.limiter("login.email", new Budget(1, Duration.ofSeconds(60)))))
+        .handler(ctx -> ctx.response().end("ok"));
+
+    JsonObject body = new JsonObject().put("email", " Max@Jukestack.test ");
+    vertx.createHttpServer().requestHandler(router).listen(0)
+        .compose(server -> {
+          HttpClient client = vertx.createHttpClient();
+          return client.request(HttpMethod.POST, server.actualPort(), "localhost", "/login")
+              .compose(req -> req.send(body.toBuffer()))
+              .compose(first -> {
+                testContext.verify(() -> assertEquals(200, first.statusCode()));
+                // Same account, different spelling
+                return client.request(HttpMethod.POST, server.actualPort(), "localhost", "/login")
+                    .compose(req -> req.send(new JsonObject().put("email", "max@jukestack.test").toBuffer()));
+              });
+        })
+        .onComplete(testContext.succeeding(second -> testContext.verify(() -> {
+          assertEquals(429, second.statusCode());
+          assertEquals("60", second.getHeader("Retry-After"));
+          testContext.completeNow();
+        })));
+  }
+}
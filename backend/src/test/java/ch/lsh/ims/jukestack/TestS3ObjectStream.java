@@ -0,0 +1,92 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Vertx;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+@ExtendWith(VertxExtension.class)
+public class TestS3ObjectStream {
+
+  private static final int PAGE_SIZE = 1000;
+
+  private static CompletableFuture<ListObjectsV2Response> page(String token, int total, AtomicInteger fetches) {
+    fetches.incrementAndGet();
+    int start = token == null ? 0 : Integer.parseInt(token);
+    int end = Math.min(total, start + PAGE_SIZE);
+
+    List<S3Object> contents = new ArrayList<>();
+    for (int i = start; i < end; i++)
+      contents.add(S3Object.builder().key("song-" + i + ".mp3").build());
+
+    return CompletableFuture.supplyAsync(() -> ListObjectsV2Response.builder()
+        .contents(contents)
+        .isTruncated(end < total)
+        .nextContinuationToken(end < total ? Integer.toString(end) : null)
+        .build());
+  }
+
+  @Test
+  void streams_every_page(Vertx vertx, VertxTestContext testContext) {
+    AtomicInteger fetches = new AtomicInteger();
+    List<String> keys = new ArrayList<>();
+    S3ObjectStream stream = new S3ObjectStream(vertx.getOrCreateContext(),
+        token -> page(token, 2500, fetches));
+
+    stream.exceptionHandler(testContext::failNow);
+    stream.endHandler(v -> testContext.verify(() -> {
+      assertEquals(2500, keys.size());
+      assertEquals("song-2499.mp3", keys.get(2499));
+      assertEquals(3, fetches.get());
+      testContext.completeNow();
+    }));
+    stream.handler(object -> keys.add(object.key()));
+  }
+
+  @Test
+  void paused_stream_fetches_no_further_pages(Vertx vertx, VertxTestContext testContext) {
+    AtomicInteger fetches = new AtomicInteger();
+    AtomicInteger received = new AtomicInteger();
+    S3ObjectStream stream = new S3ObjectStream(vertx.getOrCreateContext(),
+        token -> page(token, 5000, fetches));
+
+    stream.pause();
+    stream.endHandler(v -> testContext.verify(() -> {
+      assertEquals(5000, received.get());
+      testContext.completeNow();
+    }));
+    stream.handler(object -> {
+      if (received.incrementAndGet() == PAGE_SIZE) {
+        // Consumed the first page while paused: nothing else may be requested
+        vertx.setTimer(100, id -> testContext.verify(() -> {
+          assertEquals(1, fetches.get());
+          stream.resume();
+        }));
+      }
+    });
+    stream.fetch(PAGE_SIZE);
+  }
+
+  @Test
+  void failures_reach_the_exception_handler(Vertx vertx, VertxTestContext testContext) {
+    S3ObjectStream stream = new S3ObjectStream(vertx.getOrCreateContext(),
+        token -> CompletableFuture.failedFuture(new IllegalStateException("R2 unavailable")));
+
+    stream.exceptionHandler(err -> testContext.verify(() -> {
+      assertEquals("R2 unavailable", err.getMessage());
+      testContext.completeNow();
+    }));
+    stream.handler(object -> testContext.failNow("no objects expected"));
+  }
+}
@@ -0,0 +1,115 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+public class TestSessionCache {
+
+  private static SessionUser user(boolean emailVerified) {
+    return new SessionUser("user@jukestack.ch", "Muster", "Max", false, emailVerified);
+  }
+
+  @Test
+  void concurrent_lookups_share_one_load() {
+    SessionCache cache = new SessionCache(10, Duration.ofMinutes(1), Duration.ofSeconds(10));
+    AtomicInteger loads = new AtomicInteger();
+    Promise<SessionCache.CachedSession> pending = Promise.promise();
+
+    Future<SessionCache.CachedSession> first = cache.get("a", key -> {
+      loads.incrementAndGet();
+      return pending.future();
+    });
+    Future<SessionCache.CachedSession> second = cache.get("a", key -> {
+      loads.incrementAndGet();
+      return pending.future();
+    });
+    assertSame(first, second);
+
+    pending.complete(cache.valid(user(true), 1800));
+    cache.get("a", key -> Future.failedFuture("should be cached"));
+
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  void invalid_tokens_are_cached() {
+    SessionCache cache = new SessionCache(10, Duration.ofMinutes(1), Duration.ofSeconds(10));
+    cache.get("bad", key -> Future.succeededFuture(cache.invalid()));
+    SessionCache.CachedSession session = cache.get("bad", key -> Future.failedFuture("should be cached")).result();
+
+    assertFalse(session.isValid());
+    assertEquals(1, cache.getNegativeHits());
+  }
+
+  @Test
+  void invalidation_forces_reload() {
+    SessionCache cache = new SessionCache(10, Duration.ofMinutes(1), Duration.ofSeconds(10));
+    cache.get("a", key -> Future.succeededFuture(cache.valid(user(false), 1800)));
+    cache.get("b", key -> Future.succeededFuture(cache.valid(user(false), 1800)));
+
+    cache.invalidateEmail("user@jukestack.ch");
+    assertEquals(0, cache.size());
+
+    cache.get("a", key -> Future.succeededFuture(cache.valid(user(true), 1800)));
+    cache.invalidate("a");
+    SessionCache.CachedSession session = cache
+        .get("a", key -> Future.succeededFuture(cache.invalid())).result();
+    assertFalse(session.isValid());
+  }
+
+  @Test
+  void entries_never_outlive_the_session() {
+    SessionCache cache = new SessionCache(10, Duration.ofMinutes(1), Duration.ofSeconds(10));
+    cache.get("a", key -> Future.succeededFuture(cache.valid(user(true), 0)));
+    SessionCache.CachedSession session = cache
+        .get("a", key -> Future.succeededFuture(cache.invalid())).result();
+    assertFalse(session.isValid());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  void size_is_bounded() {
+    SessionCache cache = new SessionCache(2, Duration.ofMinutes(1), Duration.ofSeconds(10));
+    for (String key : new String[] { "a", "b", "c" })
+      cache.get(key, k -> Future.succeededFuture(cache.valid(user(true), 1800)));
+
+    assertEquals(2, cache.size());
+    assertEquals(1L, cache.stats().getLong("evictions"));
+  }
+
+  @Test
+  void shared_loads_complete_on_the_callers_context() throws Exception {
+    Vertx vertx = Vertx.vertx();
+    try {
+      SessionCache cache = new SessionCache(10, Duration.ofMinutes(1), Duration.ofSeconds(10));
+      Promise<SessionCache.CachedSession> pending = Promise.promise();
+      Context first = vertx.getOrCreateContext();
+      Context second = vertx.getOrCreateContext();
+      CompletableFuture<Context> completedOn = new CompletableFuture<>();
+
+      first.runOnContext(v -> cache.get("a", key -> pending.future()));
+      second.runOnContext(v -> cache.get("a", key -> Future.failedFuture("should share the load"))
+          .onComplete(ar -> completedOn.complete(Vertx.currentContext())));
+      first.runOnContext(v -> pending.complete(cache.valid(user(true), 1800)));
+
+      assertSame(second, completedOn.get(10, TimeUnit.SECONDS));
+    } finally {
+      vertx.close();
+    }
+  }
+}
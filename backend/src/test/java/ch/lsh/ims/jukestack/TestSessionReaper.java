@@ -0,0 +1,105 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Needs a MySQL with the jukeStack schema, see {@link DatabaseTestSupport}
+ */
+@EnabledIfEnvironmentVariable(named = DatabaseTestSupport.HOST_VARIABLE, matches = ".+")
+public class TestSessionReaper {
+
+  private static final String USER_AGENT = "reaper-test";
+  private static final int EXPIRED = 25;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static Vertx vertx;
+  private static Pool pool;
+
+  @BeforeAll
+  static void setUp() {
+    vertx = Vertx.vertx();
+    pool = DatabaseTestSupport.pool(vertx, 4);
+  }
+
+  @AfterAll
+  static void tearDown() throws Exception {
+    await(pool.preparedQuery("delete from TAuthSessions where sessUserAgent = ?").execute(Tuple.of(USER_AGENT)));
+    await(pool.close());
+    await(vertx.close());
+  }
+
+  private static SessionReaper reaper() {
+    return new SessionReaper(vertx, pool, Duration.ofMinutes(5), Duration.ofHours(1), Duration.ofHours(48), 10,
+        Duration.ofMillis(1));
+  }
+
+  @Test
+  void purges_expired_sessions_in_batches() throws Exception {
+    List<Buffer> expired = new ArrayList<>();
+    Buffer recent = null;
+    for (int i = 0; i < EXPIRED + 1; i++) {
+      // The last session only expired recently and is still within the retention
+      String expires = i < EXPIRED ? "now() - interval 2 hour" : "now() - interval 10 minute";
+      byte[] token = new byte[32];
+      RANDOM.nextBytes(token);
+      Buffer tokenBuffer = Buffer.buffer(token);
+      if (i < EXPIRED)
+        expired.add(tokenBuffer);
+      else
+        recent = tokenBuffer;
+      await(pool.preparedQuery("insert into TAuthSessions values (?, " + expires + ", now(), '127.0.0.1', ?, ?)")
+          .execute(Tuple.of(tokenBuffer, USER_AGENT, "reaper@jukestack.test")));
+    }
+
+    SessionReaper reaper = reaper();
+    assertTrue(await(reaper.run()));
+
+    // Other rows in the database may be purged as well, only this test's rows are checked
+    for (Buffer token : expired)
+      assertFalse(exists(token), "expired session left over");
+    assertTrue(exists(recent), "session within the retention was purged");
+  }
+
+  private static boolean exists(Buffer token) throws Exception {
+    return await(pool.preparedQuery("select count(*) c from TAuthSessions where sessToken = ?")
+        .execute(Tuple.of(token))).iterator().next().getLong("c") > 0;
+  }
+
+  @Test
+  void skips_while_another_node_holds_the_lock() throws Exception {
+    SqlConnection otherNode = await(pool.getConnection());
+    try {
+      await(otherNode.query("select get_lock('jukestack.session-reaper', 0)").execute());
+      SessionReaper reaper = reaper();
+      assertFalse(await(reaper.run()));
+      assertEquals(1, reaper.stats().getLong("skipped"));
+    } finally {
+      await(otherNode.query("select release_lock('jukestack.session-reaper')").execute());
+      await(otherNode.close());
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+  }
+}
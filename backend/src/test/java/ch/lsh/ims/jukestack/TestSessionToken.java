@@ -0,0 +1,49 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import org.junit.jupiter.api.Test;
+
+public class TestSessionToken {
+
+  @Test
+  void hex_round_trip() {
+    byte[] bytes = new byte[256];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) i;
+
+    String hex = Util.bytesToHex(bytes);
+    assertEquals("00010203", hex.substring(0, 8));
+    assertEquals("fdfeff", hex.substring(hex.length() - 6));
+    assertArrayEquals(bytes, Util.hexToBytes(hex));
+    assertArrayEquals(new byte[] { (byte) 0xab, (byte) 0xcd }, Util.hexToBytes("ABcd"));
+  }
+
+  @Test
+  void malformed_hex_is_rejected() {
+    assertThrows(IllegalArgumentException.class, () -> Util.hexToBytes("0g"));
+    assertFalse(Util.hexToBytes("abc", new byte[2]));
+    assertFalse(Util.hexToBytes("abéf", new byte[2]));
+  }
+
+  @Test
+  void hex_token_hashes_like_raw_token() throws Exception {
+    HashUtils hashUtils = new HashUtils(16, new PasswordKdf.Sha512(1));
+    byte[] token = new byte[32];
+    new SecureRandom().nextBytes(token);
+
+    byte[] out = new byte[32];
+    assertTrue(hashUtils.hashSessionToken(Util.bytesToHex(token), 32, out));
+
+    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(token), out);
+    assertArrayEquals(out, hashUtils.hashSessionToken(token));
+    assertFalse(hashUtils.hashSessionToken("not a token", 32, out));
+  }
+}
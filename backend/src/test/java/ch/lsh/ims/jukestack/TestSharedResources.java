@@ -0,0 +1,81 @@
+package ch.lsh.ims.jukestack;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestSharedResources {
+
+  private static final AtomicInteger created = new AtomicInteger();
+  private static final Set<Context> instanceContexts = ConcurrentHashMap.newKeySet();
+  private static final List<Context> factoryContexts = new CopyOnWriteArrayList<>();
+  private static final List<SharedResources> acquired = new CopyOnWriteArrayList<>();
+
+  public static class Instance extends AbstractVerticle {
+    @Override
+    public void start(Promise<Void> startPromise) {
+      instanceContexts.add(context);
+      SharedResources.acquire(vertx, null, pool -> {
+        created.incrementAndGet();
+        factoryContexts.add(Vertx.currentContext());
+        return new SharedResources(null, null, null, null, null, null, null, null, null, null, null);
+      }).onSuccess(shared -> {
+        // Completes on the context of the instance
+        assertSame(context, Vertx.currentContext());
+        acquired.add(shared);
+      }).<Void>mapEmpty().onComplete(startPromise);
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+      SharedResources.release(vertx).onComplete(stopPromise);
+    }
+  }
+
+  @Test
+  void resources_live_on_their_own_context_until_the_last_release(Vertx vertx, VertxTestContext testContext) {
+    vertx.deployVerticle(Instance.class, new DeploymentOptions().setInstances(2))
+        .compose(id -> {
+          testContext.verify(() -> {
+            assertEquals(1, created.get());
+            assertEquals(2, acquired.size());
+            assertSame(acquired.get(0), acquired.get(1));
+            for (Context instance : instanceContexts)
+              assertNotSame(instance, factoryContexts.get(0));
+            // Both instances and the owner of the resources
+            assertEquals(2, vertx.deploymentIDs().size());
+          });
+          return vertx.deployVerticle(new Instance()).compose(single -> {
+            testContext.verify(() -> assertEquals(1, created.get()));
+            return vertx.undeploy(id).map(single);
+          });
+        })
+        .compose(single -> {
+          // The remaining instance keeps the resources
+          testContext.verify(() -> assertEquals(2, vertx.deploymentIDs().size()));
+          return vertx.undeploy(single);
+        })
+        .onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+          assertEquals(0, vertx.deploymentIDs().size());
+          testContext.completeNow();
+        })));
+  }
+}
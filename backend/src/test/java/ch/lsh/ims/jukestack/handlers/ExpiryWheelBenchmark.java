@@ -0,0 +1,65 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Cost of scheduling, cancelling and expiring lendings with millions of
+ * pending timers. Not part of the default test run, start it with
+ * {@code mvn test -Dtest=ExpiryWheelBenchmark}
+ */
+public class ExpiryWheelBenchmark {
+
+    private static final int TIMERS = 2_000_000;
+    private static final long TICK_MILLIS = 100;
+    private static final long DAY_MILLIS = 86_400_000L;
+
+    @Test
+    void wheel_operations() {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        // Lendings end within the next two weeks
+        long[] ends = new long[TIMERS];
+        for (int i = 0; i < TIMERS; i++)
+            ends[i] = now + (long) (random.nextDouble() * 14 * DAY_MILLIS);
+
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm-up" : "measured");
+            ExpiryWheel wheel = new ExpiryWheel(TICK_MILLIS, now);
+
+            long start = System.nanoTime();
+            for (int songId = 0; songId < TIMERS; songId++)
+                wheel.schedule(songId, ends[songId]);
+            report("schedule", start, TIMERS);
+
+            start = System.nanoTime();
+            for (int songId = 0; songId < TIMERS; songId += 2)
+                wheel.schedule(songId, ends[songId] + DAY_MILLIS);
+            report("reschedule", start, TIMERS / 2);
+
+            start = System.nanoTime();
+            for (int songId = 1; songId < TIMERS; songId += 4)
+                wheel.cancel(songId);
+            report("cancel", start, TIMERS / 4);
+
+            // One day of ticks, each lending ends in one of them
+            long ticks = DAY_MILLIS / TICK_MILLIS;
+            long[] fired = { 0 };
+            long worst = 0;
+            start = System.nanoTime();
+            for (long tick = 1; tick <= ticks; tick++) {
+                long tickStart = System.nanoTime();
+                wheel.advance(now + tick * TICK_MILLIS, (songId, end) -> fired[0]++);
+                worst = Math.max(worst, System.nanoTime() - tickStart);
+            }
+            System.out.printf("%-12s %d ticks, %d fired, %.1f us per tick, worst %.1f ms, %d pending%n", "advance",
+                    ticks, fired[0], (System.nanoTime() - start) / 1000.0 / ticks, worst / 1e6, wheel.size());
+        }
+    }
+
+    private static void report(String name, long start, int operations) {
+        System.out.printf("%-12s %d in %d ms, %.0f ns each%n", name, operations,
+                (System.nanoTime() - start) / 1_000_000, (double) (System.nanoTime() - start) / operations);
+    }
+}
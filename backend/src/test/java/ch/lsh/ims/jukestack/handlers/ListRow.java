@@ -0,0 +1,60 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * A row of fixed columns backed by a list, to feed the handlers without a
+ * database
+ */
+class ListRow implements Row {
+    private final List<String> columns;
+    private final List<Object> values;
+
+    ListRow(List<String> columns, List<?> values) {
+        this.columns = columns;
+        this.values = new ArrayList<>(values);
+    }
+
+    @Override
+    public String getColumnName(int pos) {
+        return columns.get(pos);
+    }
+
+    @Override
+    public int getColumnIndex(String column) {
+        return columns.indexOf(column);
+    }
+
+    @Override
+    public Object getValue(int pos) {
+        return values.get(pos);
+    }
+
+    @Override
+    public Tuple addValue(Object value) {
+        values.add(value);
+        return this;
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        values.clear();
+    }
+
+    @Override
+    public List<Class<?>> types() {
+        List<Class<?>> types = new ArrayList<>(values.size());
+        for (Object value : values)
+            types.add(value == null ? Object.class : value.getClass());
+        return types;
+    }
+}
@@ -0,0 +1,120 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Row;
+
+/**
+ * Compares the old nested-loop musician join with the single pass grouping.
+ * Not part of the default test run, start it with
+ * {@code mvn test -Dtest=SongJsonBenchmark}
+ */
+public class SongJsonBenchmark {
+
+    private static final int MUSICIANS_PER_SONG = 2;
+
+    private static final List<String> SONG_COLUMNS = List.of("songId", "songName", "songDauer", "songJahr",
+            "songAlbum", "songCoverObjekt");
+    private static final List<String> JOINED_COLUMNS = List.of("songId", "songName", "songDauer", "songJahr",
+            "songAlbum", "songCoverObjekt", "musikerId", "musikerName");
+    private static final List<String> MUSICIAN_COLUMNS = List.of("songId", "musikerId", "musikerName");
+
+    private static List<Object> songValues(int songId) {
+        return List.of(songId, "Song " + songId, Duration.ofSeconds(180 + songId % 120), 2000 + songId % 25,
+                "Album " + songId / 10, "cover-" + songId + ".webp");
+    }
+
+    private static List<Row> songRows(int songs) {
+        List<Row> rows = new ArrayList<>(songs);
+        for (int songId = 1; songId <= songs; songId++)
+            rows.add(new ListRow(SONG_COLUMNS, songValues(songId)));
+        return rows;
+    }
+
+    private static List<Row> musicianRows(int songs) {
+        List<Row> rows = new ArrayList<>(songs * MUSICIANS_PER_SONG);
+        for (int songId = 1; songId <= songs; songId++)
+            for (int m = 0; m < MUSICIANS_PER_SONG; m++)
+                rows.add(new ListRow(MUSICIAN_COLUMNS, List.of(songId, songId * 10 + m, "Musiker " + m)));
+        return rows;
+    }
+
+    private static List<Row> joinedRows(int songs) {
+        List<Row> rows = new ArrayList<>(songs * MUSICIANS_PER_SONG);
+        for (int songId = 1; songId <= songs; songId++) {
+            for (int m = 0; m < MUSICIANS_PER_SONG; m++) {
+                List<Object> values = new ArrayList<>(songValues(songId));
+                values.add(songId * 10 + m);
+                values.add("Musiker " + m);
+                rows.add(new ListRow(JOINED_COLUMNS, values));
+            }
+        }
+        return rows;
+    }
+
+    // The previous implementation, scans every musician row for every song
+    private static JsonArray nestedLoop(List<Row> rows, List<Row> rows2) {
+        JsonArray songs = new JsonArray();
+        for (Row row : rows) {
+            Integer id = row.getInteger("songId");
+            JsonObject song = new JsonObject();
+            song.put("id", id);
+            song.put("name", row.getString("songName"));
+            song.put("dauer", ((Duration) row.getValue("songDauer")).getSeconds());
+            song.put("jahr", row.getInteger("songJahr"));
+            song.put("album", row.getString("songAlbum"));
+            song.put("coverObjekt", row.getString("songCoverObjekt"));
+
+            JsonArray musiker = new JsonArray();
+            for (Row row2 : rows2) {
+                if (row2.getInteger("songId").equals(id)) {
+                    JsonObject musikerObj = new JsonObject();
+                    musikerObj.put("id", row2.getInteger("musikerId"));
+                    musikerObj.put("name", row2.getString("musikerName"));
+                    musiker.add(musikerObj);
+                }
+            }
+            song.put("musiker", musiker);
+            songs.add(song);
+        }
+        return songs;
+    }
+
+    private static long timeMillis(Runnable runnable, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            runnable.run();
+        return (System.nanoTime() - start) / iterations / 1_000_000;
+    }
+
+    @Test
+    void compare_musician_join() {
+        for (int songs : new int[] { 1_000, 10_000, 100_000 }) {
+            List<Row> rows = songRows(songs);
+            List<Row> rows2 = musicianRows(songs);
+            List<Row> joined = joinedRows(songs);
+
+            assertEquals(nestedLoop(rows.subList(0, 100), rows2), SongHandler.buildSongsJson(joined.subList(0, 200)));
+
+            // Warm up
+            for (int i = 0; i < 5; i++)
+                SongHandler.buildSongsJson(joined);
+
+            int iterations = songs >= 100_000 ? 1 : 3;
+            long nested = timeMillis(() -> nestedLoop(rows, rows2), iterations);
+            long grouped = timeMillis(() -> SongHandler.buildSongsJson(joined), 10);
+            long lendings = timeMillis(() -> SongHandler.groupMusicians(rows2), 10);
+
+            System.out.printf("%,7d songs: nested loop %,8d ms | single pass %,5d ms | groupMusicians %,5d ms%n",
+                    songs, nested, grouped, lendings);
+        }
+    }
+}
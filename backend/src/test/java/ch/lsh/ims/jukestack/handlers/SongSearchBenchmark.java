@@ -0,0 +1,120 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Search latency over a synthetic catalog of a million songs on a single
+ * thread. Names are drawn from a skewed vocabulary so common words have long
+ * posting lists like in a real catalog. Not part of the default test run,
+ * start it with {@code mvn test -Dtest=SongSearchBenchmark}
+ */
+public class SongSearchBenchmark {
+
+    private static final int SONGS = 1_000_000;
+    private static final int WORDS = 50_000;
+    private static final int QUERIES = 20_000;
+
+    private static String word(int i) {
+        // Pronounceable words of 3 to 9 letters
+        String consonants = "bcdfghjklmnprstvwz";
+        String vowels = "aeiou";
+        StringBuilder word = new StringBuilder();
+        int length = 3 + (i * 7919) % 7;
+        int seed = i + 1;
+        for (int n = 0; n < length; n++) {
+            String letters = n % 2 == 0 ? consonants : vowels;
+            word.append(letters.charAt(seed % letters.length()));
+            seed = seed / letters.length() + (n + 1) * 31 + i;
+        }
+        return word.toString();
+    }
+
+    /**
+     * Index of a word, the first words are by far the most frequent
+     */
+    private static int skewed(Random random) {
+        return (int) Math.min(WORDS - 1, Math.floor(Math.pow(random.nextDouble(), 3) * WORDS));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static void run(String name, SongSearchIndex index, List<String> queries) {
+        long[] nanos = new long[queries.size()];
+        int hits = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            long start = System.nanoTime();
+            hits += index.search(queries.get(i), 20).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-12s p50 %6.1f us  p99 %7.1f us  max %8.1f us  avg hits %.1f%n", name,
+                percentile(nanos, 0.5) / 1000.0, percentile(nanos, 0.99) / 1000.0,
+                nanos[nanos.length - 1] / 1000.0, (double) hits / queries.size());
+    }
+
+    @Test
+    void search_latency() {
+        Random random = new Random(42);
+        String[] words = new String[WORDS];
+        for (int i = 0; i < WORDS; i++)
+            words[i] = word(i);
+
+        List<SearchSegment.Document> songs = new ArrayList<>(SONGS);
+        for (int songId = 1; songId <= SONGS; songId++) {
+            int nameWords = 1 + random.nextInt(4);
+            StringBuilder songName = new StringBuilder();
+            for (int i = 0; i < nameWords; i++)
+                songName.append(words[skewed(random)]).append(' ');
+            SearchSegment.Document song = new SearchSegment.Document(songId, songName.toString(),
+                    words[skewed(random)] + " " + words[skewed(random)]);
+            song.musicians.add(words[skewed(random)] + " " + words[random.nextInt(WORDS)]);
+            if (random.nextInt(4) == 0)
+                song.musicians.add(words[skewed(random)] + " " + words[random.nextInt(WORDS)]);
+            songs.add(song);
+        }
+
+        long buildStart = System.nanoTime();
+        SearchSegment segment = SearchSegment.build(songs);
+        System.out.printf("build %d songs, %d terms, %d postings in %d ms%n", segment.size(), segment.termCount(),
+                segment.postingCount(), (System.nanoTime() - buildStart) / 1_000_000);
+
+        AvailabilityIndex availability = new AvailabilityIndex(null, null, Duration.ZERO);
+        for (int songId = 1; songId <= SONGS; songId += 10)
+            availability.lent(songId, Long.MAX_VALUE);
+        SongSearchIndex index = new SongSearchIndex(null, null, availability, null, null, 0);
+        index.install(segment, null);
+
+        List<String> exact = new ArrayList<>();
+        List<String> prefix = new ArrayList<>();
+        List<String> typo = new ArrayList<>();
+        List<String> twoWords = new ArrayList<>();
+        for (int i = 0; i < QUERIES; i++) {
+            String w = words[skewed(random)];
+            exact.add(w);
+            prefix.add(w.substring(0, Math.min(w.length(), 2 + random.nextInt(3))));
+            int at = random.nextInt(w.length());
+            typo.add(w.substring(0, at) + "x" + w.substring(at + 1));
+            SearchSegment.Document song = songs.get(random.nextInt(SONGS));
+            List<String> tokens = SearchSegment.tokenize(song.name + " " + song.musicians.get(0));
+            String last = tokens.get(tokens.size() - 1);
+            twoWords.add(tokens.get(0) + " " + last.substring(0, Math.max(2, last.length() - 2)));
+        }
+
+        // Warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm-up" : "measured");
+            run("exact", index, exact);
+            run("prefix", index, prefix);
+            run("typo", index, typo);
+            run("two words", index, twoWords);
+        }
+    }
+}
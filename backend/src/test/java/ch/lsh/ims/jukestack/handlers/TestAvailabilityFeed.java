@@ -0,0 +1,249 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import ch.lsh.ims.jukestack.HttpServerProfile;
+import ch.lsh.ims.jukestack.SessionUser;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.Cookie;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.ext.web.Router;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestAvailabilityFeed {
+
+    private static final int SONGS = 32;
+    private static final int CHANGES = 20_000;
+    private static final int SENTINEL = 1000;
+    private static final Function<Cookie, Future<SessionUser>> VALID = cookie -> Future
+            .succeededFuture(new SessionUser("feed@jukestack.test", "Feed", "Test", false, true));
+
+    /**
+     * Starts the feed and its server in a verticle, like MainVerticle does
+     */
+    private static Future<Integer> start(Vertx vertx, AvailabilityFeed feed) {
+        Promise<Integer> port = Promise.promise();
+        vertx.deployVerticle(new AbstractVerticle() {
+            @Override
+            public void start(Promise<Void> startPromise) {
+                feed.start();
+                Router router = Router.router(vertx);
+                router.route().handler(HttpServerProfile.resolve(Map.<String, String>of()::get).compression());
+                router.get("/events").handler(feed::subscribe);
+                // Small socket buffers, so a paused client backs up quickly
+                vertx.createHttpServer(new HttpServerOptions().setSendBufferSize(4096)).requestHandler(router)
+                        .listen(0)
+                        .onSuccess(server -> port.complete(server.actualPort()))
+                        .<Void>mapEmpty()
+                        .onComplete(startPromise);
+            }
+        });
+        return port.future();
+    }
+
+    /**
+     * Connects and hands every complete event to the consumer, the first one
+     * is the retry hint
+     */
+    private static Future<HttpClientResponse> connect(Vertx vertx, int port, Consumer<String> events) {
+        return vertx.createHttpClient(new HttpClientOptions().setReceiveBufferSize(4096))
+                .request(HttpMethod.GET, port, "localhost", "/events")
+                .compose(req -> req.send())
+                .onSuccess(response -> {
+                    StringBuilder received = new StringBuilder();
+                    response.handler(buffer -> {
+                        received.append(buffer.toString());
+                        int end;
+                        while ((end = received.indexOf("\n\n")) >= 0) {
+                            events.accept(received.substring(0, end));
+                            received.delete(0, end + 2);
+                        }
+                    });
+                });
+    }
+
+    private static void change(Vertx vertx, int songId, String state) {
+        String address = state.equals("expired") ? AvailabilityIndex.EXPIRED_ADDRESS
+                : AvailabilityIndex.CHANGED_ADDRESS;
+        vertx.eventBus().publish(address, new JsonObject().put("songId", songId).put("state", state));
+    }
+
+    private static JsonObject data(String event) {
+        return new JsonObject(event.substring(event.indexOf("data: ") + 6));
+    }
+
+    @Test
+    void changes_reach_every_client(Vertx vertx, VertxTestContext testContext) {
+        AvailabilityFeed feed = new AvailabilityFeed(vertx, VALID, Duration.ofSeconds(30), 64);
+        var received = testContext.checkpoint(4);
+        var connected = testContext.checkpoint(2);
+        Promise<Void> both = Promise.promise();
+        int[] clients = { 0 };
+
+        start(vertx, feed).onComplete(testContext.succeeding(port -> {
+            for (int client = 0; client < 2; client++) {
+                connect(vertx, port, event -> {
+                    if (event.startsWith("retry:")) {
+                        connected.flag();
+                        if (++clients[0] == 2)
+                            both.complete();
+                        return;
+                    }
+                    testContext.verify(() -> {
+                        JsonObject change = data(event);
+                        assertTrue(change.getInteger("songId") == 5 && change.getString("state").equals("lent")
+                                || change.getInteger("songId") == 6 && change.getString("state").equals("expired"));
+                    });
+                    received.flag();
+                }).onComplete(testContext.succeeding(response -> testContext.verify(
+                        () -> assertEquals("text/event-stream", response.getHeader("Content-Type")))));
+            }
+            both.future().onSuccess(v -> {
+                change(vertx, 5, "lent");
+                change(vertx, 6, "expired");
+            });
+        }));
+    }
+
+    @Test
+    void default_profile_stream_has_no_content_encoding(Vertx vertx, VertxTestContext testContext) {
+        AvailabilityFeed feed = new AvailabilityFeed(vertx, VALID, Duration.ofSeconds(30), 64);
+        start(vertx, feed)
+                .compose(port -> connect(vertx, port, event -> {
+                }))
+                .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+                    assertEquals("text/event-stream", response.getHeader("Content-Type"));
+                    assertNull(response.getHeader("Content-Encoding"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void slow_clients_get_the_last_state_per_song(Vertx vertx, VertxTestContext testContext) {
+        AvailabilityFeed feed = new AvailabilityFeed(vertx, VALID, Duration.ofSeconds(30), 64);
+        Map<Integer, String> expected = new HashMap<>();
+        Map<Integer, String> states = new HashMap<>();
+        int[] events = { 0 };
+
+        start(vertx, feed).onComplete(testContext.succeeding(port -> {
+            HttpClientResponse[] response = new HttpClientResponse[1];
+            connect(vertx, port, event -> {
+                if (event.startsWith("retry:")) {
+                    // Stops reading, then the changes pile up on the server
+                    response[0].pause();
+                    for (int i = 0; i < CHANGES; i++) {
+                        int songId = i % SONGS;
+                        String state = (i / SONGS) % 2 == 0 ? "lent" : "returned";
+                        expected.put(songId, state);
+                        change(vertx, songId, state);
+                    }
+                    change(vertx, SENTINEL, "expired");
+                    vertx.setTimer(500, id -> response[0].resume());
+                    return;
+                }
+                events[0]++;
+                JsonObject change = data(event);
+                if (change.getInteger("songId") != SENTINEL) {
+                    states.put(change.getInteger("songId"), change.getString("state"));
+                    return;
+                }
+                testContext.verify(() -> {
+                    assertEquals(expected, states);
+                    assertTrue(events[0] < CHANGES, events[0] + " events for " + CHANGES + " changes");
+                });
+                testContext.completeNow();
+            }).onComplete(testContext.succeeding(res -> response[0] = res));
+        }));
+    }
+
+    @Test
+    void overflowing_clients_are_asked_to_resync(Vertx vertx, VertxTestContext testContext) {
+        AvailabilityFeed feed = new AvailabilityFeed(vertx, VALID, Duration.ofSeconds(30), 8);
+        boolean[] resync = { false };
+
+        start(vertx, feed).onComplete(testContext.succeeding(port -> {
+            HttpClientResponse[] response = new HttpClientResponse[1];
+            connect(vertx, port, event -> {
+                if (event.startsWith("retry:")) {
+                    response[0].pause();
+                    for (int i = 0; i < CHANGES; i++)
+                        change(vertx, i % SONGS, "lent");
+                    vertx.setTimer(500, id -> response[0].resume());
+                } else if (event.startsWith("event: resync")) {
+                    // Changes after the resync are delivered again
+                    resync[0] = true;
+                    change(vertx, SENTINEL, "expired");
+                } else if (data(event).getInteger("songId") == SENTINEL) {
+                    testContext.verify(() -> assertTrue(resync[0]));
+                    testContext.completeNow();
+                }
+            }).onComplete(testContext.succeeding(res -> response[0] = res));
+        }));
+    }
+
+    @Test
+    void connections_end_once_the_session_is_invalid(Vertx vertx, VertxTestContext testContext) {
+        AtomicBoolean loggedOut = new AtomicBoolean();
+        AvailabilityFeed feed = new AvailabilityFeed(vertx,
+                cookie -> loggedOut.get() ? Future.failedFuture("Invalid or expired session token")
+                        : VALID.apply(cookie),
+                Duration.ofMillis(100), 64);
+
+        start(vertx, feed).onComplete(testContext.succeeding(port -> connect(vertx, port, event -> {
+            if (event.startsWith("retry:"))
+                loggedOut.set(true);
+        }).onComplete(testContext.succeeding(response -> response.endHandler(v -> testContext.verify(() -> {
+            assertEquals(1L, feed.stats().getLong("sessionsEnded"));
+            testContext.completeNow();
+        }))))));
+    }
+
+    @Test
+    void clients_that_stop_reading_are_disconnected(Vertx vertx, VertxTestContext testContext) {
+        AvailabilityFeed feed = new AvailabilityFeed(vertx, VALID, Duration.ofMillis(200), 64);
+
+        // A raw socket, an HTTP client keeps reading into memory while paused
+        start(vertx, feed).compose(port -> vertx.createNetClient(new NetClientOptions().setReceiveBufferSize(4096))
+                .connect(port, "localhost"))
+                .onComplete(testContext.succeeding(socket -> {
+                    socket.handler(buffer -> {
+                        if (!buffer.toString().contains("retry:"))
+                            return;
+                        socket.pause();
+                        // Until the socket buffers and the paused socket's own buffer are full
+                        vertx.setPeriodic(20, id -> {
+                            for (int i = 0; i < CHANGES / 10; i++)
+                                change(vertx, i % SONGS, "lent");
+                            if (feed.stats().getLong("slowClosed") == 0)
+                                return;
+                            vertx.cancelTimer(id);
+                            testContext.verify(() -> assertEquals(0, feed.stats().getInteger("connections")));
+                            testContext.completeNow();
+                        });
+                    });
+                    socket.write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                }));
+    }
+}
@@ -0,0 +1,153 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+public class TestAvailabilityIndex {
+
+    private static AvailabilityIndex index() {
+        return new AvailabilityIndex(null, null, Duration.ZERO);
+    }
+
+    @Test
+    void lend_and_return_update_the_bitmap() {
+        AvailabilityIndex index = index();
+        long end = System.currentTimeMillis() + 60_000;
+        index.lent(7, end);
+        BitSet before = index.lentSongs();
+
+        assertTrue(index.isLent(7));
+        assertFalse(index.isLent(8));
+        assertEquals(1, index.stats().getInteger("timers"));
+
+        index.returned(7);
+        assertFalse(index.isLent(7));
+        assertEquals(0, index.stats().getInteger("timers"));
+        // Readers keep the bitmap they got
+        assertTrue(before.get(7));
+    }
+
+    @Test
+    void lendings_expire_without_a_change() throws InterruptedException {
+        AvailabilityIndex index = index();
+        long now = System.currentTimeMillis();
+        index.lent(1, now + 50);
+        index.lent(2, now + 60_000);
+
+        Thread.sleep(200);
+        assertFalse(index.isLent(1));
+        assertTrue(index.isLent(2));
+        assertEquals(1, index.stats().getInteger("timers"));
+        assertEquals(1L, index.stats().getLong("expired"));
+    }
+
+    @Test
+    void returns_and_changed_ends_leave_no_timers_behind() {
+        AvailabilityIndex index = index();
+        long end = System.currentTimeMillis() + 60_000;
+        for (int i = 0; i < 10_000; i++) {
+            index.lent(1, end + i);
+            index.returned(1);
+            index.lent(2, end + i);
+        }
+
+        assertEquals(1, index.stats().getInteger("timers"));
+        assertFalse(index.isLent(1));
+        assertTrue(index.isLent(2));
+    }
+
+    @Test
+    void expired_lendings_are_published() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            AvailabilityIndex index = new AvailabilityIndex(vertx, null, Duration.ZERO);
+            CompletableFuture<JsonObject> event = new CompletableFuture<>();
+            vertx.eventBus().<JsonObject>consumer(AvailabilityIndex.EXPIRED_ADDRESS,
+                    message -> event.complete(message.body()));
+
+            // On a full second, the wheel ticks every 100 ms
+            long end = (System.currentTimeMillis() / 1000 + 60) * 1000;
+            index.lent(3, end);
+            index.lent(4, end + 1);
+            // Nothing ends before its time
+            assertEquals(0, index.advance(end - 1));
+            assertEquals(1, index.advance(end));
+
+            JsonObject body = event.get(5, TimeUnit.SECONDS);
+            assertEquals(3, body.getInteger("songId"));
+            assertEquals(end, body.getLong("ausleihEnde"));
+        } finally {
+            vertx.close().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void only_state_changes_are_published() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            AvailabilityIndex index = new AvailabilityIndex(vertx, null, Duration.ZERO);
+            List<String> changes = new CopyOnWriteArrayList<>();
+            vertx.eventBus().<JsonObject>consumer(AvailabilityIndex.CHANGED_ADDRESS,
+                    message -> changes.add(message.body().getInteger("songId") + " " + message.body().getString("state")));
+
+            long end = System.currentTimeMillis() + 60_000;
+            index.lent(1, end);
+            // A new end of a lent song and returning a free song change nothing
+            index.lent(1, end + 60_000);
+            index.returned(2);
+            index.returned(1);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (changes.size() < 2 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            Thread.sleep(50);
+            assertEquals(List.of("1 lent", "1 returned"), changes);
+        } finally {
+            vertx.close().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void check_repairs_differences() {
+        AvailabilityIndex index = index();
+        long now = System.currentTimeMillis();
+        index.lent(1, now + 60_000);
+        index.lent(2, now + 60_000);
+
+        // The database knows song 2 with another end, song 3 and not song 1
+        int[] songIds = { 2, 3 };
+        long[] ends = { now + 120_000, now + 60_000 };
+        assertEquals(3, index.reconcile(songIds, ends, index.modificationCount(), true));
+        assertFalse(index.isLent(1));
+        assertTrue(index.isLent(2));
+        assertTrue(index.isLent(3));
+
+        assertEquals(0, index.reconcile(songIds, ends, index.modificationCount(), true));
+        assertEquals(3L, index.stats().getLong("mismatches"));
+    }
+
+    @Test
+    void check_is_skipped_if_a_lending_changed_meanwhile() {
+        AvailabilityIndex index = index();
+        long before = index.modificationCount();
+        // Lent after the query was sent, the rows do not contain it yet
+        index.lent(5, System.currentTimeMillis() + 60_000);
+
+        assertEquals(-1, index.reconcile(new int[0], new long[0], before, true));
+        assertTrue(index.isLent(5));
+        assertEquals(1L, index.stats().getLong("checksSkipped"));
+    }
+}
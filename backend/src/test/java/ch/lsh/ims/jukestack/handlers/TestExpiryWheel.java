@@ -0,0 +1,82 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TestExpiryWheel {
+
+    @Test
+    void timers_fire_in_the_first_tick_after_their_end() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 0);
+        wheel.schedule(1, 250);
+        wheel.schedule(2, 300);
+        List<Integer> fired = new ArrayList<>();
+
+        assertEquals(0, wheel.advance(299, (songId, end) -> fired.add(songId)));
+        assertEquals(2, wheel.advance(300, (songId, end) -> fired.add(songId)));
+        assertEquals(List.of(2, 1), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void rescheduled_and_cancelled_timers_do_not_fire() {
+        ExpiryWheel wheel = new ExpiryWheel(1, 0);
+        wheel.schedule(1, 10);
+        wheel.schedule(2, 10);
+        wheel.schedule(1, 100_000);
+        assertTrue(wheel.cancel(2));
+        assertFalse(wheel.cancel(3));
+        assertEquals(100_000L, wheel.endMillis(1));
+        assertNull(wheel.endMillis(2));
+
+        List<Long> fired = new ArrayList<>();
+        wheel.advance(99_999, (songId, end) -> fired.add(end));
+        assertEquals(List.of(), fired);
+        wheel.advance(100_000, (songId, end) -> fired.add(end));
+        assertEquals(List.of(100_000L), fired);
+    }
+
+    @Test
+    void overdue_timers_fire_with_the_next_tick() {
+        ExpiryWheel wheel = new ExpiryWheel(1, 1000);
+        wheel.schedule(1, 5);
+        assertEquals(1, wheel.advance(1001, (songId, end) -> {
+        }));
+    }
+
+    @Test
+    void timers_on_every_level_fire_on_time() {
+        // Deadlines up to 2^25 ticks reach the top level, time moves in random steps
+        Random random = new Random(7);
+        ExpiryWheel wheel = new ExpiryWheel(1, 0);
+        Map<Integer, Long> ends = new HashMap<>();
+        for (int songId = 0; songId < 20_000; songId++) {
+            long end = 1 + (random.nextInt(4) == 0 ? random.nextInt(1 << 10) : random.nextInt(1 << 25));
+            wheel.schedule(songId, end);
+            ends.put(songId, end);
+        }
+
+        long now = 0;
+        long[] previous = { 0 };
+        while (wheel.size() > 0) {
+            now += 1 + random.nextInt(1 << 16);
+            long current = now;
+            wheel.advance(now, (songId, end) -> {
+                assertEquals(ends.remove(songId), end);
+                assertTrue(end <= current && end > previous[0], "song " + songId + " fired at " + current);
+            });
+            previous[0] = now;
+        }
+        assertTrue(ends.isEmpty());
+    }
+}
@@ -0,0 +1,41 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class TestHttpNegotiation {
+
+    private static final String ETAG = "\"abc\"";
+    private static final String GZIP_ETAG = "\"abc-gzip\"";
+
+    @Test
+    void if_none_match_compares_whole_tags() {
+        assertTrue(HttpNegotiation.noneMatch("\"abc\"", ETAG, GZIP_ETAG));
+        assertTrue(HttpNegotiation.noneMatch("\"x\", W/\"abc-gzip\"", ETAG, GZIP_ETAG));
+        assertTrue(HttpNegotiation.noneMatch(" * ", ETAG));
+
+        assertFalse(HttpNegotiation.noneMatch(null, ETAG));
+        assertFalse(HttpNegotiation.noneMatch("\"abcd\"", ETAG, GZIP_ETAG));
+        assertFalse(HttpNegotiation.noneMatch("\"ab\"", ETAG, GZIP_ETAG));
+        assertFalse(HttpNegotiation.noneMatch("\"xabc\", \"abc-gzip2\"", ETAG, GZIP_ETAG));
+        assertFalse(HttpNegotiation.noneMatch("abc", ETAG));
+        assertFalse(HttpNegotiation.noneMatch("\"abc", ETAG));
+    }
+
+    @Test
+    void accept_encoding_honors_q_values() {
+        assertTrue(HttpNegotiation.acceptsGzip("gzip"));
+        assertTrue(HttpNegotiation.acceptsGzip("deflate, gzip;q=0.5, br"));
+        assertTrue(HttpNegotiation.acceptsGzip("br, *"));
+        assertTrue(HttpNegotiation.acceptsGzip("x-gzip"));
+
+        assertFalse(HttpNegotiation.acceptsGzip(null));
+        assertFalse(HttpNegotiation.acceptsGzip("gzip;q=0"));
+        assertFalse(HttpNegotiation.acceptsGzip("gzip; q=0.000, *"));
+        assertFalse(HttpNegotiation.acceptsGzip("*;q=0"));
+        assertFalse(HttpNegotiation.acceptsGzip("br, gzipx"));
+        assertFalse(HttpNegotiation.acceptsGzip("identity"));
+    }
+}
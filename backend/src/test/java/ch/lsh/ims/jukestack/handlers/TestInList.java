@@ -0,0 +1,71 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+
+public class TestInList {
+
+    // Placeholders MySQL accepts in one prepared statement
+    private static final int MYSQL_MAX_PARAMETERS = 65_535;
+
+    private static int placeholders(String sql) {
+        return (int) sql.chars().filter(c -> c == '?').count();
+    }
+
+    @Test
+    void empty_list_runs_no_query() {
+        // A query on the null pool would throw
+        Future<List<Row>> rows = SQLQueries.executeInList(null, SQLQueries.GET_MUSICIANS_FOR_SONGS, List.of());
+
+        assertTrue(rows.succeeded());
+        assertTrue(rows.result().isEmpty());
+        assertTrue(SQLQueries.inListParams(List.of()).isEmpty());
+    }
+
+    @Test
+    void single_id_is_padded_to_the_smallest_statement() {
+        List<Tuple> chunks = SQLQueries.inListParams(List.of(42));
+
+        assertEquals(1, chunks.size());
+        Tuple params = chunks.get(0);
+        assertEquals(8, params.size());
+        for (int i = 0; i < params.size(); i++)
+            assertEquals(42, params.getInteger(i));
+        assertEquals(8, placeholders(SQLQueries.inListQuery(SQLQueries.GET_MUSICIANS_FOR_SONGS, params.size())));
+    }
+
+    @Test
+    void long_lists_are_split_below_the_parameter_limit() {
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 0; id < MYSQL_MAX_PARAMETERS + 100; id++)
+            ids.add(id);
+
+        List<Tuple> chunks = SQLQueries.inListParams(ids);
+
+        assertEquals(17, chunks.size());
+        List<Integer> seen = new ArrayList<>();
+        for (Tuple params : chunks) {
+            String sql = SQLQueries.inListQuery(SQLQueries.SELECT_SONGS_BY_IDS, params.size());
+            assertEquals(params.size(), placeholders(sql));
+            assertTrue(params.size() <= MYSQL_MAX_PARAMETERS);
+            for (int i = 0; i < params.size(); i++) {
+                int id = params.getInteger(i);
+                if (seen.isEmpty() || seen.get(seen.size() - 1) != id)
+                    seen.add(id);
+            }
+        }
+        // Every ID once and in order, the padding only repeats the last one
+        assertEquals(ids, seen);
+        assertEquals(4096, chunks.get(0).size());
+        assertEquals(512, chunks.get(chunks.size() - 1).size());
+    }
+}
@@ -0,0 +1,262 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import io.vertx.sqlclient.Row;
+
+@ExtendWith(VertxExtension.class)
+public class TestJsonArrayStream {
+
+    private static final String PADDING = "x".repeat(80);
+
+    /**
+     * Emits the items in small batches on the context, honoring pause and
+     * resume like a RowStream does
+     */
+    private static class Source<T> implements ReadStream<T> {
+        private final Context context;
+        private final List<T> items;
+        private final int failAt;
+        private volatile int emitted;
+        private boolean paused;
+        private boolean done;
+        private Handler<T> handler;
+        private Handler<Void> endHandler;
+        private Handler<Throwable> exceptionHandler;
+
+        Source(Context context, List<T> items, int failAt) {
+            this.context = context;
+            this.items = items;
+            this.failAt = failAt;
+        }
+
+        private void emit() {
+            for (int batch = 0; batch < 100; batch++) {
+                if (paused || done)
+                    return;
+                if (emitted == failAt) {
+                    done = true;
+                    exceptionHandler.handle(new RuntimeException("Cursor failed"));
+                    return;
+                }
+                if (emitted == items.size()) {
+                    done = true;
+                    endHandler.handle(null);
+                    return;
+                }
+                handler.handle(items.get(emitted++));
+            }
+            context.runOnContext(v -> emit());
+        }
+
+        @Override
+        public ReadStream<T> exceptionHandler(Handler<Throwable> handler) {
+            this.exceptionHandler = handler;
+            return this;
+        }
+
+        @Override
+        public ReadStream<T> handler(Handler<T> handler) {
+            this.handler = handler;
+            if (handler != null)
+                context.runOnContext(v -> emit());
+            return this;
+        }
+
+        @Override
+        public ReadStream<T> pause() {
+            paused = true;
+            return this;
+        }
+
+        @Override
+        public ReadStream<T> resume() {
+            if (paused) {
+                paused = false;
+                context.runOnContext(v -> emit());
+            }
+            return this;
+        }
+
+        @Override
+        public ReadStream<T> fetch(long amount) {
+            return resume();
+        }
+
+        @Override
+        public ReadStream<T> endHandler(Handler<Void> endHandler) {
+            this.endHandler = endHandler;
+            return this;
+        }
+    }
+
+    private static List<Integer> range(int total) {
+        List<Integer> items = new ArrayList<>(total);
+        for (int i = 0; i < total; i++)
+            items.add(i);
+        return items;
+    }
+
+    private static Future<HttpServer> serve(Vertx vertx, int total, int failAt, List<Source<Integer>> sources) {
+        return serve(vertx, total, failAt, Duration.ofSeconds(30), sources, new ArrayList<>());
+    }
+
+    private static Future<HttpServer> serve(Vertx vertx, int total, int failAt, Duration stallTimeout,
+            List<Source<Integer>> sources, List<Future<Long>> results) {
+        return vertx.createHttpServer().requestHandler(req -> {
+            Source<Integer> source = new Source<>(Vertx.currentContext(), range(total), failAt);
+            sources.add(source);
+            results.add(JsonArrayStream.write(source, i -> new JsonObject().put("id", i).put("name", PADDING),
+                    req.response(), stallTimeout));
+        }).listen(0);
+    }
+
+    private static Future<HttpClientResponse> get(Vertx vertx, HttpServer server) {
+        return vertx.createHttpClient().request(HttpMethod.GET, server.actualPort(), "localhost", "/")
+                .compose(req -> req.send());
+    }
+
+    @Test
+    void writes_a_complete_array(Vertx vertx, VertxTestContext testContext) {
+        List<Source<Integer>> sources = new ArrayList<>();
+        serve(vertx, 5000, -1, sources)
+                .compose(server -> get(vertx, server))
+                .compose(resp -> {
+                    testContext.verify(() -> assertEquals("chunked", resp.getHeader("Transfer-Encoding")));
+                    return resp.body();
+                })
+                .onComplete(testContext.succeeding(body -> testContext.verify(() -> {
+                    JsonArray array = body.toJsonArray();
+                    assertEquals(5000, array.size());
+                    assertEquals(4999, array.getJsonObject(4999).getInteger("id"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void empty_source_is_an_empty_array(Vertx vertx, VertxTestContext testContext) {
+        serve(vertx, 0, -1, new ArrayList<>())
+                .compose(server -> get(vertx, server))
+                .compose(HttpClientResponse::body)
+                .onComplete(testContext.succeeding(body -> testContext.verify(() -> {
+                    assertEquals("[]", body.toString());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void source_is_paused_while_the_client_does_not_read(Vertx vertx, VertxTestContext testContext) {
+        // About 30 MB, more than the socket buffers hold
+        int total = 300_000;
+        List<Source<Integer>> sources = new ArrayList<>();
+        serve(vertx, total, -1, sources)
+                .compose(server -> get(vertx, server))
+                .onComplete(testContext.succeeding(resp -> {
+                    resp.pause();
+                    // Once the socket buffers are full the source has to stall
+                    vertx.setTimer(1000, first -> {
+                        int stalled = sources.get(0).emitted;
+                        vertx.setTimer(500, second -> {
+                            int emitted = sources.get(0).emitted;
+                            testContext.verify(() -> {
+                                assertTrue(emitted < total, "emitted " + emitted);
+                                assertEquals(stalled, emitted);
+                            });
+
+                            Future<Buffer> body = resp.body();
+                            resp.resume();
+                            body.onComplete(testContext.succeeding(buffer -> testContext.verify(() -> {
+                                assertEquals(total, buffer.toJsonArray().size());
+                                testContext.completeNow();
+                            })));
+                        });
+                    });
+                }));
+    }
+
+    @Test
+    void client_that_stops_reading_is_reset_after_the_stall_timeout(Vertx vertx, VertxTestContext testContext) {
+        int total = 300_000;
+        List<Source<Integer>> sources = new ArrayList<>();
+        List<Future<Long>> results = new ArrayList<>();
+        serve(vertx, total, -1, Duration.ofMillis(300), sources, results)
+                .compose(server -> get(vertx, server))
+                .onComplete(testContext.succeeding(resp -> {
+                    resp.pause();
+                    vertx.setTimer(1500, timer -> testContext.verify(() -> {
+                        // The caller closes the cursor and returns the connection
+                        Future<Long> result = results.get(0);
+                        assertTrue(result.failed(), "still streaming");
+                        assertTrue(result.cause() instanceof TimeoutException, result.cause().toString());
+                        assertTrue(sources.get(0).emitted < total);
+                        testContext.completeNow();
+                    }));
+                }));
+    }
+
+    @Test
+    void failure_before_the_first_chunk_is_a_500(Vertx vertx, VertxTestContext testContext) {
+        serve(vertx, 1000, 10, new ArrayList<>())
+                .compose(server -> get(vertx, server))
+                .onComplete(testContext.succeeding(resp -> testContext.verify(() -> {
+                    assertEquals(500, resp.statusCode());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void failure_after_the_first_chunk_resets_the_response(Vertx vertx, VertxTestContext testContext) {
+        serve(vertx, 100_000, 50_000, new ArrayList<>())
+                .compose(server -> get(vertx, server))
+                .compose(resp -> {
+                    testContext.verify(() -> assertEquals(200, resp.statusCode()));
+                    return resp.body();
+                })
+                .onComplete(testContext.failing(err -> testContext.completeNow()));
+    }
+
+    private static final List<String> SONG_COLUMNS = List.of("songId", "songName", "songDauer", "songJahr",
+            "songAlbum", "songCoverObjekt", "musikerId", "musikerName");
+
+    private static Row songRow(int songId, Integer musikerId) {
+        return new ListRow(SONG_COLUMNS, Arrays.asList(songId, "Song " + songId, Duration.ofSeconds(200), 2020,
+                "Album", "cover.webp", musikerId, musikerId == null ? null : "Musiker " + musikerId));
+    }
+
+    @Test
+    void streamed_songs_match_the_grouped_songs(Vertx vertx, VertxTestContext testContext) {
+        List<Row> rows = List.of(songRow(1, 10), songRow(1, 11), songRow(2, null), songRow(3, 12));
+        vertx.runOnContext(v -> Future.all(
+                SongHandler.streamSongsJson(new Source<>(vertx.getOrCreateContext(), rows, -1), songId -> true),
+                SongHandler.streamSongsJson(new Source<>(vertx.getOrCreateContext(), rows, -1), songId -> songId != 1))
+                .onComplete(testContext.succeeding(all -> testContext.verify(() -> {
+                    assertEquals(SongHandler.buildSongsJson(rows).encode(), all.<Buffer>resultAt(0).toString());
+                    assertEquals(SongHandler.buildSongsJson(rows.subList(2, 4)).encode(),
+                            all.<Buffer>resultAt(1).toString());
+                    testContext.completeNow();
+                }))));
+    }
+}
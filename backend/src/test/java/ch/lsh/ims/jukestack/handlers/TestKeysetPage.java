@@ -0,0 +1,123 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestKeysetPage {
+
+    private static final KeysetPage.Limits LIMITS = new KeysetPage.Limits(50, 200);
+
+    /**
+     * Answers with the parsed page of the songs listing, 400 if it is invalid
+     */
+    private static Future<Integer> start(Vertx vertx) {
+        Router router = Router.router(vertx);
+        router.get("/songs").handler(ctx -> {
+            try {
+                KeysetPage page = LIMITS.parse(ctx, "songs");
+                ctx.response().end(new JsonObject().put("size", page.getSize()).put("after", page.getAfterId())
+                        .encode());
+            } catch (IllegalArgumentException e) {
+                ctx.response().setStatusCode(400).end();
+            }
+        });
+        return vertx.createHttpServer().requestHandler(router).listen(0).map(server -> server.actualPort());
+    }
+
+    private static Future<JsonObject> get(HttpClient client, int port, String uri) {
+        return client.request(HttpMethod.GET, port, "localhost", uri)
+                .compose(req -> req.send())
+                .compose(resp -> resp.statusCode() == 400 ? Future.succeededFuture(null)
+                        : resp.body().map(body -> body.toJsonObject()));
+    }
+
+    @Test
+    void limits_are_capped_and_validated(Vertx vertx, VertxTestContext testContext) {
+        start(vertx).onComplete(testContext.succeeding(port -> {
+            HttpClient client = vertx.createHttpClient();
+            Future.all(get(client, port, "/songs"), get(client, port, "/songs?limit=10"),
+                    get(client, port, "/songs?limit=100000"), get(client, port, "/songs?limit=0"),
+                    get(client, port, "/songs?limit=ten"))
+                    .onComplete(testContext.succeeding(all -> testContext.verify(() -> {
+                        assertEquals(50, all.<JsonObject>resultAt(0).getInteger("size"));
+                        assertEquals(10, all.<JsonObject>resultAt(1).getInteger("size"));
+                        assertEquals(200, all.<JsonObject>resultAt(2).getInteger("size"));
+                        assertNull(all.resultAt(3));
+                        assertNull(all.resultAt(4));
+                        testContext.completeNow();
+                    })));
+        }));
+    }
+
+    @Test
+    void cursors_belong_to_their_listing(Vertx vertx, VertxTestContext testContext) {
+        start(vertx).onComplete(testContext.succeeding(port -> {
+            HttpClient client = vertx.createHttpClient();
+            Future.all(get(client, port, "/songs?cursor=" + KeysetPage.encode("songs", "42")),
+                    get(client, port, "/songs?cursor=" + KeysetPage.encode("users", "42")),
+                    get(client, port, "/songs?cursor=" + KeysetPage.encode("songs", "x")),
+                    get(client, port, "/songs?cursor=%%%"))
+                    .onComplete(testContext.succeeding(all -> testContext.verify(() -> {
+                        assertEquals(42, all.<JsonObject>resultAt(0).getInteger("after"));
+                        assertNull(all.resultAt(1));
+                        assertNull(all.resultAt(2));
+                        assertNull(all.resultAt(3));
+                        testContext.completeNow();
+                    })));
+        }));
+    }
+
+    @Test
+    void extra_row_becomes_the_next_cursor(Vertx vertx, VertxTestContext testContext) {
+        Router router = Router.router(vertx);
+        router.get("/users").handler(ctx -> {
+            KeysetPage page = LIMITS.parse(ctx, "users");
+            List<String> fetched = List.of("a@x.ch", "b@x.ch", "c@x.ch");
+            List<String> rows = fetched.subList(0, Math.min(fetched.size(), page.getFetchSize()));
+            KeysetPage.putNextCursor(ctx, page.nextCursor(rows, email -> email));
+            ctx.response().end(String.join(",", page.trim(rows)));
+        });
+        vertx.createHttpServer().requestHandler(router).listen(0).onComplete(testContext.succeeding(server -> {
+            HttpClient client = vertx.createHttpClient();
+            client.request(HttpMethod.GET, server.actualPort(), "localhost", "/users?limit=2")
+                    .compose(req -> req.send())
+                    .compose(first -> first.body().map(body -> {
+                        testContext.verify(() -> {
+                            assertEquals("a@x.ch,b@x.ch", body.toString());
+                            assertEquals(KeysetPage.encode("users", "b@x.ch"),
+                                    first.getHeader(KeysetPage.NEXT_CURSOR_HEADER));
+                        });
+                        return first;
+                    }))
+                    .compose(first -> client.request(HttpMethod.GET, server.actualPort(), "localhost",
+                            "/users?limit=3"))
+                    .compose(req -> req.send())
+                    .onComplete(testContext.succeeding(last -> testContext.verify(() -> {
+                        // No extra row, this is the last page
+                        assertNull(last.getHeader(KeysetPage.NEXT_CURSOR_HEADER));
+                        testContext.completeNow();
+                    })));
+        }));
+    }
+
+    @Test
+    void prefix_filters_match_wildcards_literally() {
+        assertEquals("Abba%", KeysetPage.likePrefix("Abba"));
+        assertEquals("100\\%\\_pure\\\\%", KeysetPage.likePrefix("100%_pure\\"));
+    }
+}
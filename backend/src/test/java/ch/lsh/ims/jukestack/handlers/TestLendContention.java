@@ -0,0 +1,102 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import ch.lsh.ims.jukestack.DatabaseTestSupport;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.mysqlclient.MySQLClient;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Lends the same song from many clients at once and checks that it is only
+ * lent once. Also prints lend latencies, needs a MySQL with the jukeStack
+ * schema, see {@link DatabaseTestSupport}.
+ */
+@EnabledIfEnvironmentVariable(named = DatabaseTestSupport.HOST_VARIABLE, matches = ".+")
+public class TestLendContention {
+
+    private static final int MAX_CLIENTS = 256;
+    private static final int ROUNDS = 20;
+    private static final String USER_PREFIX = "contention-";
+    private static final String USER_DOMAIN = "@jukestack.test";
+
+    private static Vertx vertx;
+    private static Pool pool;
+    private static SongHandler songHandler;
+    private static int songId;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        pool = DatabaseTestSupport.pool(vertx, 16);
+        songHandler = new SongHandler(pool, null, new AvailabilityIndex(null, pool, Duration.ZERO), null, 5, 1,
+                new KeysetPage.Limits(50, 200), null, null, null);
+
+        await(pool.preparedQuery(
+                "insert into TSongs (songName, songDauer, songJahr, songMP3Objekt) values ('Contention', '00:03:00', 2025, 'contention.mp3')")
+                .execute()
+                .onSuccess(res -> songId = res.property(MySQLClient.LAST_INSERTED_ID).intValue()));
+
+        List<Tuple> users = new ArrayList<>();
+        for (int i = 0; i < MAX_CLIENTS; i++)
+            users.add(Tuple.of(USER_PREFIX + i + USER_DOMAIN, "Test", "Contention", "0", "0", null));
+        await(pool.preparedQuery(SQLQueries.INSERT_USER).executeBatch(users));
+    }
+
+    @AfterAll
+    static void tearDown() throws Exception {
+        await(pool.preparedQuery("delete from TAusleihen where songId = ?").execute(Tuple.of(songId)));
+        await(pool.preparedQuery("delete from TSongs where songId = ?").execute(Tuple.of(songId)));
+        await(pool.preparedQuery("delete from TBenutzer where benutzerEmail like ?")
+                .execute(Tuple.of(USER_PREFIX + "%" + USER_DOMAIN)));
+        await(pool.close());
+        await(vertx.close());
+    }
+
+    @Test
+    void same_song_is_lent_once() throws Exception {
+        for (int clients : new int[] { 1, 16, MAX_CLIENTS }) {
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+            for (int round = 0; round < ROUNDS; round++) {
+                List<Future<SongHandler.LendResult>> lends = new ArrayList<>();
+                for (int i = 0; i < clients; i++) {
+                    long start = System.nanoTime();
+                    lends.add(songHandler.lend(USER_PREFIX + i + USER_DOMAIN, songId)
+                            .onSuccess(result -> latencies.add(System.nanoTime() - start)));
+                }
+                await(Future.all(lends));
+
+                long ok = lends.stream().filter(lend -> lend.result() == SongHandler.LendResult.OK).count();
+                assertEquals(1, ok, "song must be lent exactly once with " + clients + " clients");
+
+                await(pool.preparedQuery("delete from TAusleihen where songId = ?").execute(Tuple.of(songId)));
+            }
+
+            Collections.sort(latencies);
+            System.out.printf("%3d clients: p50 %6.2f ms | p99 %6.2f ms%n", clients,
+                    percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6);
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.round(percentile * (sorted.size() - 1))));
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,186 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import ch.lsh.ims.jukestack.CloudflareR2Client;
+import ch.lsh.ims.jukestack.CloudflareR2Client.S3Config;
+import ch.lsh.ims.jukestack.DbPoolMetrics;
+import ch.lsh.ims.jukestack.MailOutbox;
+import ch.lsh.ims.jukestack.ServiceMetrics;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.Router;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+@ExtendWith(VertxExtension.class)
+public class TestMetricsHandler {
+
+    private static MetricsHandler handler(Vertx vertx, ServiceMetrics metrics, DbPoolMetrics poolMetrics) {
+        return handler(vertx, metrics, poolMetrics, "scrape");
+    }
+
+    private static MetricsHandler handler(Vertx vertx, ServiceMetrics metrics, DbPoolMetrics poolMetrics,
+            String token) {
+        MailOutbox mailOutbox = new MailOutbox(vertx, null, null, "noreply@jukestack.test", 20,
+                Duration.ofSeconds(10), 5, Duration.ofSeconds(30), Duration.ofMinutes(10));
+        AvailabilityIndex availability = new AvailabilityIndex(null, null, Duration.ZERO);
+        availability.lent(3, System.currentTimeMillis() + 60_000);
+        return new MetricsHandler(metrics, poolMetrics, availability, mailOutbox,
+                new CloudflareR2Client(new S3Config("account", "access", "secret")), token, 2);
+    }
+
+    private static Future<Integer> get(HttpClient client, int port, String uri, String authorization) {
+        return client.request(HttpMethod.GET, port, "localhost", uri)
+                .compose(req -> {
+                    if (authorization != null)
+                        req.putHeader("Authorization", authorization);
+                    return req.send();
+                })
+                .compose(response -> response.body().map(body -> response.statusCode()));
+    }
+
+    @Test
+    void requests_are_counted_per_declared_route(Vertx vertx, VertxTestContext testContext) {
+        ServiceMetrics metrics = new ServiceMetrics();
+        MetricsHandler metricsHandler = handler(vertx, metrics, null);
+        Router router = Router.router(vertx);
+        router.route().handler(metrics.routeTimer());
+        router.get("/api/lend/:id").handler(ctx -> ctx.response().end("OK"));
+        router.get("/metrics").handler(metricsHandler::metrics);
+        HttpClient client = vertx.createHttpClient();
+
+        vertx.createHttpServer().requestHandler(router).listen(0)
+                .compose(server -> {
+                    int port = server.actualPort();
+                    return get(client, port, "/api/lend/1", null)
+                            .compose(v -> get(client, port, "/api/lend/2", null))
+                            .compose(v -> get(client, port, "/unknown/7", null))
+                            .compose(v -> get(client, port, "/metrics", null))
+                            .compose(unauthorized -> {
+                                testContext.verify(() -> assertEquals(401, unauthorized));
+                                return get(client, port, "/metrics", "Bearer scrape");
+                            });
+                })
+                .onComplete(testContext.succeeding(status -> testContext.verify(() -> {
+                    assertEquals(200, status);
+                    metrics.lent();
+                    metrics.loggedIn(false);
+                    String text = metricsHandler.scrape();
+                    assertTrue(text.contains(
+                            "jukestack_http_server_responses_total{method=\"GET\",route=\"/api/lend/:id\",status=\"200\"} 2\n"),
+                            text);
+                    assertTrue(text.contains(
+                            "jukestack_http_server_responses_total{method=\"GET\",route=\"other\",status=\"404\"} 1\n"));
+                    assertTrue(text.contains(
+                            "jukestack_http_server_requests_seconds_bucket{method=\"GET\",route=\"/api/lend/:id\",le=\"+Inf\"} 2\n"));
+                    assertTrue(text.contains(
+                            "jukestack_http_server_requests_seconds_count{method=\"GET\",route=\"/api/lend/:id\"} 2\n"));
+                    assertTrue(text.contains("# TYPE jukestack_mail_send_seconds histogram\n"));
+                    assertTrue(text.contains("jukestack_lendings_active 1\n"));
+                    assertTrue(text.contains("jukestack_lends_total 1\n"));
+                    assertTrue(text.contains("jukestack_logins_total{result=\"failure\"} 1\n"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void metrics_are_disabled_without_a_token(Vertx vertx, VertxTestContext testContext) {
+        MetricsHandler metricsHandler = handler(vertx, new ServiceMetrics(), null, "");
+        Router router = Router.router(vertx);
+        router.get("/metrics").handler(metricsHandler::metrics);
+        HttpClient client = vertx.createHttpClient();
+
+        vertx.createHttpServer().requestHandler(router).listen(0)
+                .compose(server -> get(client, server.actualPort(), "/metrics", null)
+                        .compose(anonymous -> {
+                            testContext.verify(() -> assertEquals(404, anonymous));
+                            return get(client, server.actualPort(), "/metrics", "Bearer ");
+                        }))
+                .onComplete(testContext.succeeding(emptyToken -> testContext.verify(() -> {
+                    assertEquals(404, emptyToken);
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void unknown_methods_share_one_label(Vertx vertx, VertxTestContext testContext) {
+        ServiceMetrics metrics = new ServiceMetrics();
+        Router router = Router.router(vertx);
+        router.route().handler(metrics.routeTimer());
+        HttpClient client = vertx.createHttpClient();
+
+        vertx.createHttpServer().requestHandler(router).listen(0)
+                .compose(server -> {
+                    Future<Integer> requests = Future.succeededFuture();
+                    for (int i = 0; i < 5; i++) {
+                        HttpMethod method = HttpMethod.valueOf("FOO" + i);
+                        requests = requests.compose(v -> client.request(method, server.actualPort(), "localhost", "/")
+                                .compose(req -> req.send())
+                                .compose(response -> response.body().map(body -> response.statusCode())));
+                    }
+                    return requests.compose(v -> get(client, server.actualPort(), "/", null));
+                })
+                .onComplete(testContext.succeeding(status -> testContext.verify(() -> {
+                    assertEquals(2, metrics.getRoutes().size());
+                    String text = handler(vertx, metrics, null).scrape();
+                    assertTrue(text.contains(
+                            "jukestack_http_server_responses_total{method=\"other\",route=\"other\",status=\"404\"} 5\n"),
+                            text);
+                    assertTrue(text.contains(
+                            "jukestack_http_server_responses_total{method=\"GET\",route=\"other\",status=\"404\"} 1\n"));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    void buckets_are_cumulative() {
+        PrometheusText text = new PrometheusText();
+        text.family("latency_seconds", "histogram", "Test")
+                .histogram("latency_seconds", new double[] { 0.1, 0.5 }, new long[] { 1, 2, 3 }, 4.25,
+                        "route", "/a\"b");
+        assertEquals("""
+                # HELP latency_seconds Test
+                # TYPE latency_seconds histogram
+                latency_seconds_bucket{route="/a\\"b",le="0.1"} 1
+                latency_seconds_bucket{route="/a\\"b",le="0.5"} 3
+                latency_seconds_bucket{route="/a\\"b",le="+Inf"} 6
+                latency_seconds_sum{route="/a\\"b"} 4.25
+                latency_seconds_count{route="/a\\"b"} 6
+                """, text.toString());
+    }
+
+    @Test
+    void not_ready_while_requests_queue_for_connections(Vertx vertx, VertxTestContext testContext) {
+        DbPoolMetrics poolMetrics = new DbPoolMetrics("test", 4);
+        MetricsHandler metricsHandler = handler(vertx, new ServiceMetrics(), poolMetrics);
+        Router router = Router.router(vertx);
+        router.get("/health/ready").handler(metricsHandler::ready);
+        HttpClient client = vertx.createHttpClient();
+
+        vertx.createHttpServer().requestHandler(router).listen(0)
+                .compose(server -> {
+                    int port = server.actualPort();
+                    for (int i = 0; i < 2; i++)
+                        poolMetrics.submitted();
+                    return get(client, port, "/health/ready", null)
+                            .compose(ready -> {
+                                testContext.verify(() -> assertEquals(200, ready));
+                                poolMetrics.submitted();
+                                return get(client, port, "/health/ready", null);
+                            });
+                })
+                .onComplete(testContext.succeeding(saturated -> testContext.verify(() -> {
+                    assertEquals(503, saturated);
+                    testContext.completeNow();
+                })));
+    }
+}
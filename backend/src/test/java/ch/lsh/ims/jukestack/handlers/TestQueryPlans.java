@@ -0,0 +1,254 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import ch.lsh.ims.jukestack.DatabaseTestSupport;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Runs EXPLAIN on every statement in {@link SQLQueries} and fails if one of
+ * them reads a whole table, e.g. because an index went missing. Seeds a few
+ * thousand songs and lendings first so the optimizer does not prefer a scan
+ * of a tiny table. Needs a MySQL with the jukeStack schema, see
+ * {@link DatabaseTestSupport}.
+ */
+@EnabledIfEnvironmentVariable(named = DatabaseTestSupport.HOST_VARIABLE, matches = ".+")
+public class TestQueryPlans {
+
+    private static final String PREFIX = "QueryPlan ";
+    private static final String USER_PREFIX = "query-plan-";
+    private static final String USER_DOMAIN = "@jukestack.test";
+    private static final String USER = USER_PREFIX + 0 + USER_DOMAIN;
+    private static final int SONGS = 2000;
+    private static final int MUSICIANS = 200;
+    private static final int USERS = 100;
+
+    /**
+     * Statements that read every row on purpose, with the tables they may scan
+     */
+    private static final Map<String, Set<String>> FULL_READS = Map.of(
+            "LIST_SONGS", Set.of("TSongs"),
+            "SELECT_ALL_USERS", Set.of("TBenutzer"),
+            "SEARCH_INDEX_SONGS", Set.of("TSongs"),
+            "SEARCH_INDEX_MUSICIANS", Set.of("TBeitraege", "TMusiker"));
+
+    /**
+     * Inserts with values read nothing, there is no plan to check
+     */
+    private static final Set<String> NOT_EXPLAINED = Set.of("INSERT_USER", "INSERT_LENDING");
+
+    private static Vertx vertx;
+    private static Pool pool;
+    private static int songId;
+    private static int ausleihId;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        pool = DatabaseTestSupport.pool(vertx, 4);
+
+        List<Tuple> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++)
+            users.add(Tuple.of(USER_PREFIX + i + USER_DOMAIN, "Test", "Plan", "0", "0", null));
+        await(pool.preparedQuery(SQLQueries.INSERT_USER).executeBatch(users));
+
+        List<Tuple> songs = new ArrayList<>();
+        for (int i = 0; i < SONGS; i++)
+            songs.add(Tuple.of(PREFIX + i, 1970 + i % 50, PREFIX + "Album " + i % 50, "plan-" + i + ".mp3"));
+        await(pool.preparedQuery(
+                "insert into TSongs (songName, songDauer, songJahr, songAlbum, songMP3Objekt) values (?, '00:03:00', ?, ?, ?)")
+                .executeBatch(songs));
+
+        List<Tuple> musicians = new ArrayList<>();
+        for (int i = 0; i < MUSICIANS; i++)
+            musicians.add(Tuple.of(PREFIX + "Musiker " + i));
+        await(pool.preparedQuery("insert into TMusiker (musikerName) values (?)").executeBatch(musicians));
+
+        List<Integer> songIds = ids("select songId from TSongs where songName like ? order by songId");
+        List<Integer> musicianIds = ids("select musikerId from TMusiker where musikerName like ? order by musikerId");
+        songId = songIds.get(0);
+
+        // Every song has a musician and an ended lending, every tenth is lent
+        List<Tuple> contributions = new ArrayList<>();
+        List<Tuple> lendings = new ArrayList<>();
+        for (int i = 0; i < songIds.size(); i++) {
+            contributions.add(Tuple.of(musicianIds.get(i % musicianIds.size()), songIds.get(i)));
+            String user = USER_PREFIX + i % USERS + USER_DOMAIN;
+            lendings.add(Tuple.of(songIds.get(i), user, 60, -30));
+            if (i % 10 == 0)
+                lendings.add(Tuple.of(songIds.get(i), user, 1, 13));
+        }
+        await(pool.preparedQuery("insert into TBeitraege (musikerId, songId) values (?, ?)").executeBatch(contributions));
+        await(pool.preparedQuery(
+                "insert into TAusleihen (songId, benutzerEmail, ausleihStart, ausleihEnde) values (?, ?, now() - interval ? day, now() + interval ? day)")
+                .executeBatch(lendings));
+        ausleihId = ids("select ausleihId from TAusleihen where benutzerEmail like ? order by ausleihId").get(0);
+
+        await(pool.query("analyze table TSongs, TMusiker, TBeitraege, TAusleihen, TBenutzer").execute());
+    }
+
+    @AfterAll
+    static void tearDown() throws Exception {
+        await(pool.preparedQuery("delete from TAusleihen where benutzerEmail like ?")
+                .execute(Tuple.of(USER_PREFIX + "%" + USER_DOMAIN)));
+        await(pool.preparedQuery("delete TBeitraege from TBeitraege natural join TSongs where songName like ?")
+                .execute(Tuple.of(PREFIX + "%")));
+        await(pool.preparedQuery("delete from TSongs where songName like ?").execute(Tuple.of(PREFIX + "%")));
+        await(pool.preparedQuery("delete from TMusiker where musikerName like ?").execute(Tuple.of(PREFIX + "%")));
+        await(pool.preparedQuery("delete from TBenutzer where benutzerEmail like ?")
+                .execute(Tuple.of(USER_PREFIX + "%" + USER_DOMAIN)));
+        await(pool.close());
+        await(vertx.close());
+    }
+
+    /**
+     * The statements to explain with sample parameters, keyed by the name of
+     * their constant. Fragments are explained as part of the statements they
+     * are appended to.
+     */
+    private static Map<String, List<Explained>> statements() {
+        String page = SQLQueries.LIST_AVAILABLE_SONGS_PAGE;
+        String usersPage = SQLQueries.SELECT_USERS_PAGE;
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            ids.add(songId + i);
+
+        Map<String, List<Explained>> statements = new LinkedHashMap<>();
+        statements.put("SELECT_USER_BY_EMAIL", List.of(new Explained(SQLQueries.SELECT_USER_BY_EMAIL, USER)));
+        statements.put("SELECT_USER_CREDENTIALS", List.of(new Explained(SQLQueries.SELECT_USER_CREDENTIALS, USER)));
+        statements.put("LIST_AVAILABLE_SONGS_PAGE", List.of(
+                new Explained(page + SQLQueries.ORDER_BY_SONG_ID_LIMIT, 0, 21),
+                new Explained(page + SQLQueries.SONG_NAME_PREFIX + SQLQueries.ORDER_BY_SONG_ID_LIMIT,
+                        0, PREFIX + "12%", 21),
+                new Explained(page + SQLQueries.SONG_ALBUM_PREFIX + SQLQueries.ORDER_BY_SONG_ID_LIMIT,
+                        0, PREFIX + "Album 1%", 21),
+                new Explained(page + SQLQueries.SONG_YEAR_FROM + SQLQueries.SONG_YEAR_TO
+                        + SQLQueries.ORDER_BY_SONG_ID_LIMIT, 0, 1990, 1992, 21)));
+        statements.put("LIST_SONGS", List.of(new Explained(SQLQueries.LIST_SONGS)));
+        statements.put("GET_MUSICIANS_FOR_SONGS", List.of(inList(SQLQueries.GET_MUSICIANS_FOR_SONGS, ids)));
+        statements.put("SELECT_SONGS_BY_IDS", List.of(inList(SQLQueries.SELECT_SONGS_BY_IDS, ids)));
+        statements.put("SEARCH_INDEX_SONGS", List.of(new Explained(SQLQueries.SEARCH_INDEX_SONGS, 0)));
+        statements.put("SEARCH_INDEX_MUSICIANS", List.of(new Explained(SQLQueries.SEARCH_INDEX_MUSICIANS, 0)));
+        statements.put("MAX_SONG_ID", List.of(new Explained(SQLQueries.MAX_SONG_ID)));
+        statements.put("ACTIVE_LENDINGS_BY_SONG", List.of(new Explained(SQLQueries.ACTIVE_LENDINGS_BY_SONG)));
+        statements.put("SONG_LENDING_STATE", List.of(new Explained(SQLQueries.SONG_LENDING_STATE, ausleihId)));
+        statements.put("SONG_STATE", List.of(new Explained(SQLQueries.SONG_STATE, songId)));
+        statements.put("GET_LENDINGS_FOR_USER", List.of(new Explained(SQLQueries.GET_LENDINGS_FOR_USER, USER)));
+        statements.put("GET_LENDINGS_FOR_USER_PAGE",
+                List.of(new Explained(SQLQueries.GET_LENDINGS_FOR_USER_PAGE, USER, 0, 21)));
+        statements.put("LOCK_SONG_AND_USER", List.of(new Explained(SQLQueries.LOCK_SONG_AND_USER, songId, USER)));
+        statements.put("COUNT_ACTIVE_LENDINGS", List.of(new Explained(SQLQueries.COUNT_ACTIVE_LENDINGS, USER)));
+        statements.put("CHECK_SONG_LENT", List.of(new Explained(SQLQueries.CHECK_SONG_LENT, songId)));
+        statements.put("RETURN_SONG", List.of(new Explained(SQLQueries.RETURN_SONG, songId, USER)));
+        statements.put("GET_LISTEN_OBJECT", List.of(new Explained(SQLQueries.GET_LISTEN_OBJECT, songId, USER)));
+        statements.put("SELECT_ALL_USERS", List.of(new Explained(SQLQueries.SELECT_ALL_USERS)));
+        statements.put("SELECT_USERS_PAGE", List.of(
+                new Explained(usersPage + SQLQueries.ORDER_BY_EMAIL_LIMIT, "", 21),
+                new Explained(usersPage + SQLQueries.USER_EMAIL_PREFIX + SQLQueries.ORDER_BY_EMAIL_LIMIT,
+                        "", USER_PREFIX + "%", 21)));
+        statements.put("UPDATE_LEND_DAYS_WITH_CHECK",
+                List.of(new Explained(SQLQueries.UPDATE_LEND_DAYS_WITH_CHECK, 30, ausleihId)));
+        statements.put("RETURN_SONG_ADMIN", List.of(new Explained(SQLQueries.RETURN_SONG_ADMIN, ausleihId)));
+        return statements;
+    }
+
+    @Test
+    void every_statement_is_explained() throws IllegalAccessException {
+        Set<String> expected = new TreeSet<>();
+        for (Field field : SQLQueries.class.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) || field.getType() != String.class)
+                continue;
+            String sql = ((String) field.get(null)).trim().toLowerCase();
+            boolean statement = sql.startsWith("select") || sql.startsWith("insert") || sql.startsWith("update")
+                    || sql.startsWith("delete");
+            if (statement && !NOT_EXPLAINED.contains(field.getName()))
+                expected.add(field.getName());
+        }
+
+        assertEquals(expected, new TreeSet<>(statements().keySet()));
+    }
+
+    @Test
+    void no_statement_scans_a_whole_table() throws Exception {
+        List<String> scans = new ArrayList<>();
+        for (Map.Entry<String, List<Explained>> entry : statements().entrySet()) {
+            Set<String> allowed = FULL_READS.getOrDefault(entry.getKey(), Set.of());
+            for (Explained explained : entry.getValue()) {
+                for (Row row : await(pool.query("explain " + explained.sql()).execute())) {
+                    String table = row.getString("table");
+                    String type = row.getString("type");
+                    // Derived and temporary tables are built from the rows read before
+                    if (table == null || table.startsWith("<") || allowed.contains(table))
+                        continue;
+                    if ("ALL".equals(type) || "index".equals(type))
+                        scans.add(entry.getKey() + ": " + type + " on " + table + ", possible keys "
+                                + row.getString("possible_keys") + "\n" + explained.sql());
+                }
+            }
+        }
+
+        assertTrue(scans.isEmpty(), String.join("\n\n", scans));
+    }
+
+    private static Explained inList(String query, List<Integer> ids) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++)
+            placeholders.append(i == 0 ? "?" : ", ?");
+        return new Explained(query.replace("in (?)", "in (" + placeholders + ")"), ids.toArray());
+    }
+
+    private static List<Integer> ids(String query) throws Exception {
+        String like = query.contains("benutzerEmail") ? USER_PREFIX + "%" + USER_DOMAIN : PREFIX + "%";
+        List<Integer> ids = new ArrayList<>();
+        for (Row row : await(pool.preparedQuery(query).execute(Tuple.of(like))))
+            ids.add(row.getInteger(0));
+        return ids;
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A statement with its parameters, inlined as literals because EXPLAIN
+     * cannot be prepared on every MySQL version
+     */
+    private record Explained(String query, Object... params) {
+
+        String sql() {
+            StringBuilder sql = new StringBuilder();
+            int param = 0;
+            for (char c : query.toCharArray()) {
+                if (c != '?') {
+                    sql.append(c);
+                } else if (params[param] instanceof String text) {
+                    sql.append('\'').append(text.replace("'", "''")).append('\'');
+                    param++;
+                } else {
+                    sql.append(params[param++]);
+                }
+            }
+            return sql.toString();
+        }
+    }
+}
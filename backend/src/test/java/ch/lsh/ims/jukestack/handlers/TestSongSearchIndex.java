@@ -0,0 +1,158 @@
+package ch.lsh.ims.jukestack.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TestSongSearchIndex {
+
+    private static SearchSegment.Document song(int songId, String name, String album, String... musicians) {
+        SearchSegment.Document document = new SearchSegment.Document(songId, name, album);
+        document.musicians.addAll(List.of(musicians));
+        return document;
+    }
+
+    private static SongSearchIndex index(AvailabilityIndex availability, List<SearchSegment.Document> songs) {
+        SongSearchIndex index = new SongSearchIndex(null, null, availability, null, null, 0);
+        index.install(SearchSegment.build(songs), null);
+        return index;
+    }
+
+    private static SongSearchIndex index(SearchSegment.Document... songs) {
+        return index(new AvailabilityIndex(null, null, Duration.ZERO), List.of(songs));
+    }
+
+    private static List<Integer> ids(List<SongSearchIndex.Hit> hits) {
+        List<Integer> ids = new ArrayList<>();
+        hits.forEach(hit -> ids.add(hit.getSongId()));
+        return ids;
+    }
+
+    @Test
+    void text_is_accent_folded_and_split() {
+        assertEquals(List.of("cafe", "deja", "vu"), SearchSegment.tokenize("Café  Déjà-Vu"));
+        assertEquals(List.of("dont", "stop", "me", "now"), SearchSegment.tokenize("Don't Stop Me Now!"));
+        assertEquals(List.of(), SearchSegment.tokenize(" - "));
+    }
+
+    @Test
+    void distance_is_bounded() {
+        assertTrue(SearchSegment.withinDistance("queen", "queen", 0));
+        assertTrue(SearchSegment.withinDistance("qeen", "queen", 1));
+        assertTrue(SearchSegment.withinDistance("beatels", "beatles", 2));
+        assertFalse(SearchSegment.withinDistance("beatels", "beatles", 1));
+        assertFalse(SearchSegment.withinDistance("abba", "queen", 2));
+    }
+
+    @Test
+    void exact_ranks_above_prefix_above_misspelling() {
+        SongSearchIndex index = index(
+                song(1, "Thunderstruck", "The Razors Edge", "AC/DC"),
+                song(2, "Thunder", "Evolve", "Imagine Dragons"),
+                song(3, "Thumder Road", "Born to Run", "Bruce Springsteen"));
+
+        List<SongSearchIndex.Hit> hits = index.search("thunder", 10);
+        // A known word is not looked up as a misspelling
+        assertEquals(List.of(2, 1), ids(hits));
+        int exact = hits.get(0).getScore();
+        int prefix = hits.get(1).getScore();
+        assertTrue(exact > prefix);
+
+        hits = index.search("thundr", 10);
+        assertEquals(List.of(2), ids(hits));
+        assertTrue(hits.get(0).getScore() < prefix);
+        assertEquals(List.of(3), ids(index.search("thumder", 10)));
+        // Accents and case in the query do not matter
+        assertEquals(List.of(1), ids(index.search("THÜNDERSTRUCK", 10)));
+    }
+
+    @Test
+    void name_ranks_above_musician_above_album() {
+        SongSearchIndex index = index(
+                song(1, "Other", "Queen Album", "Someone"),
+                song(2, "Other", "Album", "Queen"),
+                song(3, "Queen", "Album", "Someone"));
+
+        assertEquals(List.of(3, 2, 1), ids(index.search("queen", 10)));
+    }
+
+    @Test
+    void all_tokens_have_to_match() {
+        SongSearchIndex index = index(
+                song(1, "Bohemian Rhapsody", "A Night at the Opera", "Queen"),
+                song(2, "Rhapsody in Blue", "Gershwin", "George Gershwin"),
+                song(3, "We Will Rock You", "News of the World", "Queen"));
+
+        assertEquals(List.of(1), ids(index.search("queen rhaps", 10)));
+        assertEquals(List.of(1), ids(index.search("bohemain queen", 10)));
+        assertEquals(List.of(), ids(index.search("queen gershwin", 10)));
+        assertEquals(List.of(), ids(index.search("zz", 10)));
+    }
+
+    @Test
+    void available_songs_win_ties() {
+        AvailabilityIndex availability = new AvailabilityIndex(null, null, Duration.ZERO);
+        SongSearchIndex index = index(availability, List.of(
+                song(1, "Yesterday", "Help", "The Beatles"),
+                song(2, "Yesterday", "Yesterday", "Leona Lewis"),
+                song(3, "Yesterday", "Single", "Ray Charles")));
+        // Song 2 is lent, song 3 was lent but has been returned
+        availability.lent(2, System.currentTimeMillis() + 3_600_000);
+        availability.lent(3, System.currentTimeMillis() + 3_600_000);
+        availability.returned(3);
+
+        List<SongSearchIndex.Hit> hits = index.search("yesterday", 10);
+        assertEquals(List.of(1, 3, 2), ids(hits));
+        assertTrue(hits.get(0).isAvailable());
+        assertFalse(hits.get(2).isAvailable());
+    }
+
+    @Test
+    void limit_keeps_the_best_hits() {
+        List<SearchSegment.Document> songs = new ArrayList<>();
+        for (int songId = 1; songId <= 1000; songId++)
+            songs.add(song(songId, songId == 700 ? "Love" : "Lovely " + songId, "Album", "Musician"));
+        SongSearchIndex index = index(new AvailabilityIndex(null, null, Duration.ZERO), songs);
+
+        List<SongSearchIndex.Hit> hits = index.search("love", 5);
+        assertEquals(5, hits.size());
+        assertEquals(700, hits.get(0).getSongId());
+        assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+    }
+
+    @Test
+    void frequent_tokens_are_intersected() {
+        // Both tokens match more than a thousand songs, only every third has both
+        List<SearchSegment.Document> songs = new ArrayList<>();
+        for (int songId = 1; songId <= 3000; songId++) {
+            String name = songId % 3 == 2 ? "Other " + songId : "Love " + songId;
+            String musician = songId % 3 == 1 ? "Nobody" : "Queen";
+            songs.add(song(songId, name, "Album", musician));
+        }
+        SongSearchIndex index = index(new AvailabilityIndex(null, null, Duration.ZERO), songs);
+
+        List<SongSearchIndex.Hit> hits = index.search("love queen", 50);
+        assertEquals(50, hits.size());
+        for (SongSearchIndex.Hit hit : hits)
+            assertEquals(0, hit.getSongId() % 3);
+    }
+
+    @Test
+    void delta_segment_is_searched_too() {
+        SongSearchIndex index = new SongSearchIndex(null, null, new AvailabilityIndex(null, null, Duration.ZERO),
+                null, null, 0);
+        assertNull(index.search("anything", 10));
+
+        index.install(SearchSegment.build(List.of(song(1, "Imagine", "Imagine", "John Lennon"))),
+                SearchSegment.build(List.of(song(2, "Imagine", "Live", "A Perfect Circle"))));
+        assertEquals(List.of(1, 2), ids(index.search("imagine", 10)));
+        assertEquals(2, index.stats().getInteger("songs"));
+    }
+}
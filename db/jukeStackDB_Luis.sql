@@ -18,6 +18,12 @@
   1.7        16.01.2025   LH      removed synthetic primary key from TBenutzer and switched to email
   1.8        16.01.2025   LH      switched ausleihTage to ausleihEnde
   1.9        22.01.2025   LH      created table TEmailVerifizierungen and added verified field to TBenutzer
+  1.10       18.10.2026   LH      added benutzerPWParams to TBenutzer for the password KDF parameters
+  1.11       18.10.2026   LH      store sessToken as BINARY(32) instead of hex CHAR(64)
+  1.12       18.10.2026   LH      added indexes on sessExpires and verifizierungErstellt for the reaper
+  1.13       18.10.2026   LH      created table TMailOutbox
+  1.14       18.10.2026   LH      added indexes for the keyset paginated song, lending and musician lookups
+  1.15       18.10.2026   LH      added covering indexes for the active lendings of a user and of all songs
 
   Copyright © 2025, Luis Hutterli, All rights reserved.
 -------------------------------------------------------- */
@@ -40,6 +46,7 @@ CREATE TABLE TBenutzer (
   benutzerVorname VARCHAR(45) NOT NULL,
   benutzerPWHash CHAR(128) NOT NULL,
   benutzerPWSalt CHAR(32) NOT NULL,
+  benutzerPWParams VARCHAR(45) NULL COMMENT 'KDF und Arbeitsfaktor, z.B. pbkdf2-sha512:210000, NULL = sha512:1',
   benutzerIstAdmin BOOLEAN NOT NULL DEFAULT FALSE,
   benutzerEmailVerifiziert BOOLEAN NOT NULL DEFAULT FALSE,
   PRIMARY KEY (benutzerEmail))
@@ -56,7 +63,8 @@ CREATE TABLE TEmailVerifizierungen (
   verifizierungId CHAR(32) NOT NULL,
   benutzerEmail VARCHAR(255) NOT NULL,
   verifizierungErstellt TIMESTAMP NOT NULL,
-  PRIMARY KEY (verifizierungId))
+  PRIMARY KEY (verifizierungId),
+  INDEX idxVerifizierungErstellt (verifizierungErstellt))
 ENGINE = InnoDB
 DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 
@@ -74,7 +82,10 @@ CREATE TABLE TSongs (
   songAlbum VARCHAR(45) NULL,
   songMP3Objekt VARCHAR(255) NOT NULL,
   songCoverObjekt VARCHAR(255) NULL,
-  PRIMARY KEY (songId))
+  PRIMARY KEY (songId),
+  INDEX idxSongName (songName),
+  INDEX idxSongAlbum (songAlbum),
+  INDEX idxSongJahr (songJahr))
 ENGINE = InnoDB
 DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 
@@ -90,7 +101,11 @@ CREATE TABLE TAusleihen (
   ausleihEnde TIMESTAMP NOT NULL,
   benutzerEmail VARCHAR(255) NOT NULL,
   songId INT UNSIGNED NOT NULL,
-  PRIMARY KEY (ausleihId))
+  PRIMARY KEY (ausleihId),
+  INDEX idxAusleihBenutzer (benutzerEmail, ausleihId),
+  INDEX idxAusleihSong (songId, ausleihEnde),
+  INDEX idxAusleihBenutzerEnde (benutzerEmail, ausleihEnde),
+  INDEX idxAusleihEnde (ausleihEnde, songId))
 ENGINE = InnoDB
 DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 
@@ -116,7 +131,8 @@ DROP TABLE IF EXISTS TBeitraege ;
 CREATE TABLE TBeitraege (
   musikerId INT UNSIGNED NOT NULL,
   songId INT UNSIGNED NOT NULL,
-  PRIMARY KEY (musikerId, songId))
+  PRIMARY KEY (musikerId, songId),
+  INDEX idxBeitragSong (songId))
 ENGINE = InnoDB
 DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 
@@ -127,13 +143,14 @@ DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 DROP TABLE IF EXISTS TAuthSessions ;
 
 CREATE TABLE TAuthSessions (
-  sessToken CHAR(64) NOT NULL,
+  sessToken BINARY(32) NOT NULL COMMENT 'SHA-256 des Session Tokens',
   sessExpires TIMESTAMP NOT NULL,
   sessCreated TIMESTAMP NOT NULL,
   sessUserIP VARCHAR(39) NOT NULL COMMENT '39 chars max, da ipv6 eine max laenge von 32 hat + 7 chars für doppelpunkt um die bloecke zu trennen',
   sessUserAgent VARCHAR(255) NOT NULL,
   benutzerEmail VARCHAR(255) NOT NULL,
-  PRIMARY KEY (sessToken))
+  PRIMARY KEY (sessToken),
+  INDEX idxSessExpires (sessExpires))
 ENGINE = InnoDB
 DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 
@@ -148,4 +165,24 @@ CREATE TABLE TConfigs (
   configValue VARCHAR(255) NOT NULL,
   PRIMARY KEY (configKey))
 ENGINE = InnoDB
-DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
\ No newline at end of file
+DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
+
+
+-- -----------------------------------------------------
+-- Table TMailOutbox
+-- -----------------------------------------------------
+DROP TABLE IF EXISTS TMailOutbox ;
+
+CREATE TABLE TMailOutbox (
+  mailId INT UNSIGNED NOT NULL AUTO_INCREMENT,
+  mailEmpfaenger VARCHAR(255) NOT NULL,
+  mailBetreff VARCHAR(255) NOT NULL,
+  mailInhalt MEDIUMTEXT NOT NULL,
+  mailVersuche INT UNSIGNED NOT NULL DEFAULT 0,
+  mailNaechsterVersuch TIMESTAMP NOT NULL COMMENT 'Faellig ab, waehrend dem Senden in die Zukunft verschoben',
+  mailErstellt TIMESTAMP NOT NULL,
+  mailFehler VARCHAR(255) NULL COMMENT 'Letzter SMTP Fehler',
+  PRIMARY KEY (mailId),
+  INDEX idxMailNaechsterVersuch (mailNaechsterVersuch))
+ENGINE = InnoDB
+DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
@@ -0,0 +1,12 @@
+/* -----------------------------------------------------
+  1.10_password_kdf.sql
+
+  Migrates an existing jukeStack database to schema version 1.10.
+  Existing hashes keep NULL and are rehashed on the next login.
+-------------------------------------------------------- */
+
+USE JukeStackDB_Luis ;
+
+ALTER TABLE TBenutzer
+  ADD COLUMN benutzerPWParams VARCHAR(45) NULL COMMENT 'KDF und Arbeitsfaktor, z.B. pbkdf2-sha512:210000, NULL = sha512:1'
+  AFTER benutzerPWSalt;
@@ -0,0 +1,20 @@
+/* -----------------------------------------------------
+  1.11_binary_session_token.sql
+
+  Migrates an existing jukeStack database to schema version 1.11.
+  Converts the hex session token hashes to BINARY(32), existing sessions
+  stay valid.
+-------------------------------------------------------- */
+
+USE JukeStackDB_Luis ;
+
+ALTER TABLE TAuthSessions
+  ADD COLUMN sessTokenBin BINARY(32) NULL FIRST;
+
+UPDATE TAuthSessions SET sessTokenBin = UNHEX(sessToken);
+
+ALTER TABLE TAuthSessions
+  DROP PRIMARY KEY,
+  DROP COLUMN sessToken,
+  CHANGE COLUMN sessTokenBin sessToken BINARY(32) NOT NULL COMMENT 'SHA-256 des Session Tokens',
+  ADD PRIMARY KEY (sessToken);
@@ -0,0 +1,15 @@
+/* -----------------------------------------------------
+  1.12_reaper_indexes.sql
+
+  Migrates an existing jukeStack database to schema version 1.12.
+  Indexes the expiry columns so the session reaper deletes by range
+  instead of scanning the whole table.
+-------------------------------------------------------- */
+
+USE JukeStackDB_Luis ;
+
+ALTER TABLE TAuthSessions
+  ADD INDEX idxSessExpires (sessExpires);
+
+ALTER TABLE TEmailVerifizierungen
+  ADD INDEX idxVerifizierungErstellt (verifizierungErstellt);
@@ -0,0 +1,22 @@
+/* -----------------------------------------------------
+  1.13_mail_outbox.sql
+
+  Migrates an existing jukeStack database to schema version 1.13.
+  Creates the outbox the backend queues mails in before sending them.
+-------------------------------------------------------- */
+
+USE JukeStackDB_Luis ;
+
+CREATE TABLE IF NOT EXISTS TMailOutbox (
+  mailId INT UNSIGNED NOT NULL AUTO_INCREMENT,
+  mailEmpfaenger VARCHAR(255) NOT NULL,
+  mailBetreff VARCHAR(255) NOT NULL,
+  mailInhalt MEDIUMTEXT NOT NULL,
+  mailVersuche INT UNSIGNED NOT NULL DEFAULT 0,
+  mailNaechsterVersuch TIMESTAMP NOT NULL COMMENT 'Faellig ab, waehrend dem Senden in die Zukunft verschoben',
+  mailErstellt TIMESTAMP NOT NULL,
+  mailFehler VARCHAR(255) NULL COMMENT 'Letzter SMTP Fehler',
+  PRIMARY KEY (mailId),
+  INDEX idxMailNaechsterVersuch (mailNaechsterVersuch))
+ENGINE = InnoDB
+DEFAULT CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
@@ -0,0 +1,22 @@
+/* -----------------------------------------------------
+  1.14_keyset_indexes.sql
+
+  Migrates an existing jukeStack database to schema version 1.14.
+  Indexes the keyset paginated listings so every page is a range
+  scan: songs by name, album and year, lendings by user and by song,
+  and contributions by song for the musician lookup.
+-------------------------------------------------------- */
+
+USE JukeStackDB_Luis ;
+
+ALTER TABLE TSongs
+  ADD INDEX idxSongName (songName),
+  ADD INDEX idxSongAlbum (songAlbum),
+  ADD INDEX idxSongJahr (songJahr);
+
+ALTER TABLE TAusleihen
+  ADD INDEX idxAusleihBenutzer (benutzerEmail, ausleihId),
+  ADD INDEX idxAusleihSong (songId, ausleihEnde);
+
+ALTER TABLE TBeitraege
+  ADD INDEX idxBeitragSong (songId);
@@ -0,0 +1,15 @@
+/* -----------------------------------------------------
+  1.15_query_plan_indexes.sql
+
+  Migrates an existing jukeStack database to schema version 1.15.
+  Covers the active lending lookups: the count and list of a user's
+  active lendings read only the user's rows with an end in the future,
+  and the availability check reads only the active lendings instead
+  of grouping the whole lending history.
+-------------------------------------------------------- */
+
+USE JukeStackDB_Luis ;
+
+ALTER TABLE TAusleihen
+  ADD INDEX idxAusleihBenutzerEnde (benutzerEmail, ausleihEnde),
+  ADD INDEX idxAusleihEnde (ausleihEnde, songId);